@@ -18,24 +18,35 @@ package org.xbib.elasticsearch.index.analysis.skos;
 import java.io.IOException;
 import java.io.StringReader;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import java.util.Stack;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.TokenFilter;
 import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.payloads.PayloadHelper;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.analysis.tokenattributes.PayloadAttribute;
 import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.apache.lucene.util.ArrayUtil;
 import org.apache.lucene.util.AttributeSource;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.CharsRef;
-
 import org.apache.lucene.util.CharsRefBuilder;
+import org.apache.lucene.util.RamUsageEstimator;
+
+import org.xbib.elasticsearch.index.analysis.skos.SKOSAnalyzer.ExpansionType;
+import org.xbib.elasticsearch.index.analysis.skos.engine.ExpansionBreaker;
+import org.xbib.elasticsearch.index.analysis.skos.engine.ExpansionCache;
+import org.xbib.elasticsearch.index.analysis.skos.engine.LabelNormalizer;
 import org.xbib.elasticsearch.index.analysis.skos.engine.SKOSEngine;
+import org.xbib.elasticsearch.index.analysis.skos.engine.SKOSEngineHandle;
 import org.xbib.elasticsearch.index.analysis.skos.SKOSTypeAttribute.SKOSType;
 
 /**
@@ -44,9 +55,19 @@ import org.xbib.elasticsearch.index.analysis.skos.SKOSTypeAttribute.SKOSType;
 public abstract class AbstractSKOSFilter extends TokenFilter {
 
     // a stack holding the expanded terms for a token
-    protected Stack<ExpandedTerm> termStack;
+    protected final ExpandedTerms termStack = new ExpandedTerms();
     // an engine delivering SKOS concepts
     protected SKOSEngine engine;
+    // the handle of reloadable engines, or null for a fixed engine
+    private final SKOSEngineHandle handle;
+    // the engine version acquired by the last reset, released on close
+    private SKOSEngineHandle.Version version;
+    // the circuit breaker of reloadable engines, or null for a fixed engine
+    private final ExpansionBreaker breaker;
+    // the time spent in engine calls since the last reset, in nanoseconds
+    private long expansionNanos;
+    // true if the engine calls since the last reset exceeded the expansion budget
+    private boolean overBudget;
     // the skos types to expand to
     protected Set<SKOSType> types;
     // provides access to the the term attributes
@@ -59,31 +80,129 @@ public abstract class AbstractSKOSFilter extends TokenFilter {
     protected final PayloadAttribute payloadAtt;
     // the SKOS-specific attribute attached to a term
     protected final SKOSTypeAttribute skosAtt;
-    // the analyzer to use when parsing
-    protected final Analyzer analyzer;
+    // the cache of analyzed expansions, or null
+    protected ExpansionCache cache;
+    // the reusable key for cache lookups
+    private final ExpansionCache.Key cacheKey;
+    // the term that is looked up in the cache, read by the loader on a cache miss
+    private CharSequence pendingText;
+    private int pendingStart;
+    private int pendingEnd;
+    private final Callable<ExpansionCache.Expansion> loader = new Callable<ExpansionCache.Expansion>() {
+        @Override
+        public ExpansionCache.Expansion call() throws IOException {
+            ExpansionCache.Expansion expansion = guardedExpansion(pendingText.subSequence(pendingStart, pendingEnd).toString());
+            if (expansion == null) {
+                // not cached, the term is expanded again when the engine recovers
+                throw SKIPPED;
+            }
+            return expansion;
+        }
+    };
+
+    // the expansion of terms that are passed through
+    protected static final ExpansionCache.Expansion NO_EXPANSION =
+            new ExpansionCache.Expansion(new char[0][], new SKOSType[0]);
+
+    private static final SkippedExpansionException SKIPPED = new SkippedExpansionException();
 
     private List<SKOSTypeAttribute.SKOSType> defaultTypes = Arrays.asList(SKOSAnalyzer.DEFAULT_SKOS_TYPES);
 
+    // the payloads of the SKOS types, shared by all emitted terms
+    private static final BytesRef[] PAYLOADS = new BytesRef[SKOSType.values().length];
+
+    static {
+        for (SKOSType type : SKOSType.values()) {
+            PAYLOADS[type.ordinal()] = new BytesRef(PayloadHelper.encodeInt(type.ordinal()));
+        }
+    }
+
     /**
      * Constructor
      *
      * @param input the TokenStream
      * @param engine the engine delivering skos concepts
-     * @param analyzer the analyzer
+     * @param analyzer a standard analyzer or null, labels are analyzed by the engine
      * @param types the skos types to expand to
+     * @throws IllegalArgumentException if the analyzer is not a standard analyzer
+     * @deprecated use {@link #AbstractSKOSFilter(TokenStream, SKOSEngine, List, ExpansionCache)}
      */
+    @Deprecated
     public AbstractSKOSFilter(TokenStream input, SKOSEngine engine, Analyzer analyzer, List<SKOSType> types) {
+        this(input, checkAnalyzer(engine, analyzer), types, null);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param input the TokenStream
+     * @param engine the engine delivering skos concepts and analyzed labels
+     * @param types the skos types to expand to
+     * @param cache the cache of analyzed expansions, or null
+     */
+    public AbstractSKOSFilter(TokenStream input, SKOSEngine engine, List<SKOSType> types, ExpansionCache cache) {
+        this(input, null, engine, types, cache);
+    }
+
+    /**
+     * Constructor for a reloadable engine. Each reset of the stream acquires
+     * the current version of the engine and its cache, close releases it.
+     *
+     * @param input the TokenStream
+     * @param handle the handle of the engine
+     * @param types the skos types to expand to
+     */
+    public AbstractSKOSFilter(TokenStream input, SKOSEngineHandle handle, List<SKOSType> types) {
+        this(input, handle, handle.getCurrent(), types);
+    }
+
+    private AbstractSKOSFilter(TokenStream input, SKOSEngineHandle handle, SKOSEngineHandle.Version version,
+                               List<SKOSType> types) {
+        this(input, handle, version.getEngine(), types, version.getCache());
+    }
+
+    /**
+     * Constructor
+     *
+     * @param input the TokenStream
+     * @param handle the handle of the engine, or null for a fixed engine
+     * @param engine the engine, or the current engine of the handle
+     * @param types the skos types to expand to
+     * @param cache the cache of analyzed expansions, or null
+     */
+    protected AbstractSKOSFilter(TokenStream input, SKOSEngineHandle handle, SKOSEngine engine,
+                                 List<SKOSType> types, ExpansionCache cache) {
         super(input);
-        termStack = new Stack<>();
+        this.handle = handle;
+        this.breaker = handle != null ? handle.getBreaker() : null;
         this.engine = engine;
-        this.analyzer = analyzer;
+        this.cache = cache;
         this.types = new TreeSet<>(types != null && !types.isEmpty() ? types : defaultTypes);
+        this.cacheKey = new ExpansionCache.Key(getExpansionType(), this.types);
         this.termAtt = addAttribute(CharTermAttribute.class);
         this.posIncrAtt = addAttribute(PositionIncrementAttribute.class);
         this.payloadAtt = addAttribute(PayloadAttribute.class);
         this.skosAtt = addAttribute(SKOSTypeAttribute.class);
     }
 
+    /**
+     * Rejects an analyzer passed to a deprecated constructor if it is not the
+     * standard analyzer, as labels are analyzed by the engine. Engines use
+     * another analyzer by their setting 'labelAnalyzer'.
+     *
+     * @param engine the engine
+     * @param analyzer the analyzer, or null
+     * @return the engine
+     * @throws IllegalArgumentException if the analyzer is not a standard analyzer
+     */
+    protected static SKOSEngine checkAnalyzer(SKOSEngine engine, Analyzer analyzer) {
+        if (analyzer != null && !(analyzer instanceof StandardAnalyzer)) {
+            throw new IllegalArgumentException("labels are analyzed by the SKOS engine, use the engine setting '"
+                    + LabelNormalizer.SETTING + "' instead of " + analyzer.getClass().getName());
+        }
+        return engine;
+    }
+
     /**
      * Advances the stream to the next token.
      *
@@ -92,35 +211,72 @@ public abstract class AbstractSKOSFilter extends TokenFilter {
     @Override
     public abstract boolean incrementToken() throws IOException;
 
+    @Override
+    public void reset() throws IOException {
+        super.reset();
+        termStack.clear();
+        current = null;
+        expansionNanos = 0L;
+        overBudget = false;
+        if (handle != null) {
+            acquire();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            if (version != null) {
+                version.decRef();
+                version = null;
+            }
+        }
+    }
+
     /**
-     * Replaces the current term (attributes) with term (attributes) from the stack
-     *
-     * @throws IOException if analyzer failed
+     * Acquires the current version of the engine and releases the version of
+     * the previous reset, so a stream picks up a reloaded engine when it is
+     * reused
      */
-    protected void processTermOnStack() throws IOException {
-        ExpandedTerm expandedTerm = termStack.pop();
-        String term = expandedTerm.getTerm();
-        SKOSType termType = expandedTerm.getTermType();
-        String sTerm;
-        try {
-            CharsRefBuilder builder = new CharsRefBuilder();
-            sTerm = analyze(analyzer, term, builder).toString();
-        } catch (IllegalArgumentException e) {
-            // skip this term
-            return;
+    private void acquire() {
+        SKOSEngineHandle.Version latest = handle.acquire();
+        if (version != null) {
+            version.decRef();
+        }
+        version = latest;
+        if (engine != latest.getEngine()) {
+            engine = latest.getEngine();
+            cache = latest.getCache();
+            engineChanged();
         }
+    }
+
+    /**
+     * Called when a reset binds the stream to another version of the engine
+     */
+    protected void engineChanged() {
+    }
+
+    /**
+     * Replaces the current term (attributes) with term (attributes) from the stack
+     */
+    protected void processTermOnStack() {
+        termStack.pop();
+        char[] term = termStack.term();
+        SKOSType termType = termStack.type();
         // copies the values of all attribute implementations from this state into
         // the implementations of the target stream
         restoreState(current);
-        // adds the expanded term to the term buffer
-        termAtt.setEmpty().append(sTerm);
+        // copies the analyzed expanded term into the term buffer
+        termAtt.copyBuffer(term, 0, term.length);
         // set position increment to zero to put multiple terms into the same position
         posIncrAtt.setPositionIncrement(0);
         // sets the type of the expanded term (pref, alt, broader, narrower, etc.)
         skosAtt.setSkosType(termType);
-        // converts the SKOS Attribute to a payload, which is propagated to the index
-        byte[] bytes = PayloadHelper.encodeInt(skosAtt.getSkosType().ordinal());
-        payloadAtt.setPayload(new BytesRef(bytes));
+        // the SKOS type as payload, which is propagated to the index
+        payloadAtt.setPayload(PAYLOADS[termType.ordinal()]);
     }
 
     public static CharsRef analyze(Analyzer analyzer, String text, CharsRefBuilder buffer)
@@ -146,33 +302,324 @@ public abstract class AbstractSKOSFilter extends TokenFilter {
         return buffer.get();
     }
 
-    protected void pushLabelsToStack(List<String> labels, SKOSType type) {
+    /**
+     * Adds the expanded terms of a term to the stack, from the cache if
+     * there is one
+     *
+     * @param term the given term
+     * @return true if term stack is not empty
+     * @throws IOException if the engine fails
+     */
+    public boolean addTermsToStack(String term) throws IOException {
+        return addTermsToStack(term, 0, term.length());
+    }
+
+    /**
+     * Adds the expanded terms of a part of a text to the stack, from the
+     * cache if there is one. A cache hit does not allocate.
+     *
+     * @param text the text
+     * @param start the start of the term in the text
+     * @param end the end of the term in the text
+     * @return true if term stack is not empty
+     * @throws IOException if the engine fails
+     */
+    protected boolean addTermsToStack(CharSequence text, int start, int end) throws IOException {
+        ExpansionCache.Expansion expansion;
+        if (cache == null) {
+            if (breaker == null) {
+                expand(text.subSequence(start, end).toString(), termStack);
+                return !termStack.isEmpty();
+            }
+            expansion = guardedExpansion(text.subSequence(start, end).toString());
+            if (expansion == null) {
+                return false;
+            }
+        } else {
+            cacheKey.set(text, start, end, ignoreCase());
+            pendingText = text;
+            pendingStart = start;
+            pendingEnd = end;
+            try {
+                expansion = cache.get(cacheKey, loader);
+            } catch (SkippedExpansionException e) {
+                return false;
+            } finally {
+                pendingText = null;
+            }
+        }
+        for (int i = 0; i < expansion.size(); i++) {
+            termStack.push(expansion.term(i), expansion.type(i));
+        }
+        return !termStack.isEmpty();
+    }
+
+    /**
+     * Expands a term into the arrays of a cache entry, unless the breaker
+     * passes terms through
+     *
+     * @return the expansion, or null if the term is passed through
+     */
+    private ExpansionCache.Expansion guardedExpansion(String term) throws IOException {
+        if (!allowExpansion(1)) {
+            return null;
+        }
+        long startNanos = System.nanoTime();
+        ExpansionCache.Expansion expansion;
+        try {
+            expansion = collectExpansion(term);
+        } catch (IOException | RuntimeException e) {
+            expansionDone(startNanos, e, 1);
+            return null;
+        }
+        expansionDone(startNanos, null, 1);
+        return expansion;
+    }
+
+    /**
+     * Returns whether the engine may be called for terms of the current
+     * document. Terms are passed through while the breaker is open or after
+     * the document exceeded the expansion budget, and counted as skipped.
+     *
+     * @param terms the number of terms the engine call would expand
+     * @return true if the engine may be called
+     */
+    protected boolean allowExpansion(int terms) {
+        if (breaker == null || (!overBudget && breaker.allowRequest())) {
+            return true;
+        }
+        breaker.skipped(terms);
+        return false;
+    }
+
+    /**
+     * Records the outcome of an engine call with the breaker. Without a
+     * breaker, a failure is thrown, with a breaker the failure is counted and
+     * the terms are passed through.
+     *
+     * @param startNanos the start of the engine call
+     * @param failure the failure, or null if the call succeeded
+     * @param terms the number of terms of the engine call
+     * @throws IOException the failure, if there is no breaker
+     */
+    protected void expansionDone(long startNanos, Exception failure, int terms) throws IOException {
+        if (breaker == null) {
+            if (failure instanceof IOException) {
+                throw (IOException) failure;
+            }
+            if (failure != null) {
+                throw (RuntimeException) failure;
+            }
+            return;
+        }
+        expansionNanos += System.nanoTime() - startNanos;
+        if (failure != null) {
+            breaker.onFailure(failure);
+            breaker.skipped(terms);
+        } else if (!overBudget && breaker.isOverBudget(expansionNanos)) {
+            overBudget = true;
+            breaker.onSlowDocument();
+        } else {
+            breaker.onSuccess();
+        }
+    }
+
+    /**
+     * Expands a term into the arrays of a cache entry
+     */
+    private ExpansionCache.Expansion collectExpansion(String term) throws IOException {
+        ExpandedTerms expandedTerms = new ExpandedTerms();
+        expand(term, expandedTerms);
+        return toExpansion(expandedTerms);
+    }
+
+    /**
+     * Copies expanded terms into the arrays of a cache entry
+     *
+     * @param expandedTerms the expanded terms
+     * @return the expansion
+     */
+    protected static ExpansionCache.Expansion toExpansion(ExpandedTerms expandedTerms) {
+        return new ExpansionCache.Expansion(Arrays.copyOf(expandedTerms.terms, expandedTerms.size),
+                Arrays.copyOf(expandedTerms.types, expandedTerms.size));
+    }
+
+    /**
+     * Adds the expanded terms of a term, in the order they are pushed to the
+     * stack
+     *
+     * @param term the given term
+     * @param expandedTerms receives the expanded terms
+     * @throws IOException if the engine fails
+     */
+    protected abstract void expand(String term, ExpandedTerms expandedTerms) throws IOException;
+
+    /**
+     * Returns the expansion type of this filter, part of the cache key
+     *
+     * @return the expansion type
+     */
+    protected abstract ExpansionType getExpansionType();
+
+    /**
+     * Returns true if terms differing only in case have the same expansion,
+     * so they share a cache entry
+     *
+     * @return true if the case of terms is ignored
+     */
+    protected boolean ignoreCase() {
+        return false;
+    }
+
+    /**
+     * Adds the analyzed forms of labels to a list. Labels that are eliminated
+     * by the analyzer are skipped.
+     *
+     * @param expandedTerms receives the expanded terms
+     * @param labels the labels
+     * @param type the SKOS type of the labels
+     * @throws IOException if the engine fails
+     */
+    protected void pushLabels(ExpandedTerms expandedTerms, List<String> labels, SKOSType type)
+            throws IOException {
         if (labels != null) {
             for (String label : labels) {
-                termStack.push(new ExpandedTerm(label, type));
+                char[] analyzed = engine.getAnalyzedLabel(label);
+                if (analyzed != null) {
+                    expandedTerms.push(analyzed, type);
+                }
             }
         }
     }
 
     /**
-     * Helper class for capturing terms and term types
+     * Returns the requested SKOS types among the types a filter supports
+     *
+     * @param supported the supported types, in the order their labels are added
+     * @return the types to expand to, in the given order
      */
-    protected static class ExpandedTerm {
+    protected Set<SKOSType> expandTypes(SKOSType... supported) {
+        Set<SKOSType> expandTypes = new LinkedHashSet<>();
+        for (SKOSType type : supported) {
+            if (types.contains(type)) {
+                expandTypes.add(type);
+            }
+        }
+        return expandTypes;
+    }
 
-        private final String term;
-        private final SKOSType termType;
+    /**
+     * Adds the labels of concepts, read from the engine in one call
+     *
+     * @param expandedTerms receives the expanded terms
+     * @param conceptURIs the concept URIs
+     * @param expandTypes the SKOS types to expand to, in the order the labels are added
+     * @throws IOException if the engine fails
+     */
+    protected void pushConceptLabels(ExpandedTerms expandedTerms, Collection<String> conceptURIs,
+                                     Set<SKOSType> expandTypes) throws IOException {
+        if (conceptURIs.isEmpty() || expandTypes.isEmpty()) {
+            return;
+        }
+        Map<String, Map<SKOSType, List<String>>> labels = engine.getLabels(conceptURIs, expandTypes);
+        pushConceptLabels(expandedTerms, conceptURIs, labels, expandTypes);
+    }
 
-        protected ExpandedTerm(String term, SKOSType termType) {
-            this.term = term;
-            this.termType = termType;
+    /**
+     * Adds the labels of concepts from the result of a batched engine call
+     *
+     * @param expandedTerms receives the expanded terms
+     * @param conceptURIs the concept URIs
+     * @param labels the labels by type of concepts, as returned by {@link SKOSEngine#getLabels}
+     * @param expandTypes the SKOS types to expand to, in the order the labels are added
+     * @throws IOException if the engine fails
+     */
+    protected void pushConceptLabels(ExpandedTerms expandedTerms, Collection<String> conceptURIs,
+                                     Map<String, Map<SKOSType, List<String>>> labels,
+                                     Set<SKOSType> expandTypes) throws IOException {
+        for (String conceptURI : conceptURIs) {
+            Map<SKOSType, List<String>> conceptLabels = labels.get(conceptURI);
+            if (conceptLabels != null) {
+                for (SKOSType type : expandTypes) {
+                    pushLabels(expandedTerms, conceptLabels.get(type), type);
+                }
+            }
         }
+    }
 
-        protected String getTerm() {
-            return this.term;
+    /**
+     * A stack of expanded terms and their types in parallel arrays, which
+     * are reused and only grow
+     */
+    protected static final class ExpandedTerms {
+
+        private char[][] terms = new char[8][];
+        private SKOSType[] types = new SKOSType[8];
+        private int size;
+
+        /**
+         * Pushes an analyzed term
+         *
+         * @param term the analyzed term, it is not copied
+         * @param type the SKOS type of the term
+         */
+        public void push(char[] term, SKOSType type) {
+            if (size == terms.length) {
+                terms = Arrays.copyOf(terms, ArrayUtil.oversize(size + 1, RamUsageEstimator.NUM_BYTES_OBJECT_REF));
+                types = Arrays.copyOf(types, terms.length);
+            }
+            terms[size] = term;
+            types[size] = type;
+            size++;
+        }
+
+        /**
+         * Removes the top of the stack, which is then available from
+         * {@link #term()} and {@link #type()} until the next push
+         */
+        public void pop() {
+            size--;
+        }
+
+        /**
+         * Returns the term removed by the last pop
+         *
+         * @return the term
+         */
+        public char[] term() {
+            return terms[size];
+        }
+
+        /**
+         * Returns the type removed by the last pop
+         *
+         * @return the SKOS type
+         */
+        public SKOSType type() {
+            return types[size];
         }
 
-        protected SKOSType getTermType() {
-            return this.termType;
+        public int size() {
+            return size;
+        }
+
+        public boolean isEmpty() {
+            return size == 0;
+        }
+
+        public void clear() {
+            size = 0;
+        }
+    }
+
+    /**
+     * Thrown by the cache loader for a term that is passed through, so that
+     * no expansion is cached for it
+     */
+    private static final class SkippedExpansionException extends RuntimeException {
+
+        SkippedExpansionException() {
+            super("expansion skipped", null, false, false);
         }
     }
 }
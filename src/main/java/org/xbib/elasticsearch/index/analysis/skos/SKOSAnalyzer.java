@@ -26,13 +26,14 @@ import org.apache.lucene.analysis.core.LowerCaseFilter;
 import org.apache.lucene.analysis.core.StopAnalyzer;
 import org.apache.lucene.analysis.core.StopFilter;
 import org.apache.lucene.analysis.miscellaneous.RemoveDuplicatesTokenFilter;
-import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.analysis.standard.StandardFilter;
 import org.apache.lucene.analysis.standard.StandardTokenizer;
 import org.apache.lucene.analysis.util.CharArraySet;
 import org.apache.lucene.analysis.util.StopwordAnalyzerBase;
 
+import org.xbib.elasticsearch.index.analysis.skos.engine.ExpansionCache;
 import org.xbib.elasticsearch.index.analysis.skos.engine.SKOSEngine;
+import org.xbib.elasticsearch.index.analysis.skos.engine.SKOSEngineHandle;
 import org.xbib.elasticsearch.index.analysis.skos.SKOSTypeAttribute.SKOSType;
 
 /**
@@ -70,6 +71,14 @@ public class SKOSAnalyzer extends StopwordAnalyzerBase {
      * A SKOS Engine instance
      */
     private SKOSEngine skosEngine;
+    /**
+     * The handle of a reloadable engine, or null
+     */
+    private SKOSEngineHandle engineHandle;
+    /**
+     * The cache of analyzed expansions, or null
+     */
+    private ExpansionCache expansionCache;
     /**
      * Default maximum allowed token length
      */
@@ -78,6 +87,8 @@ public class SKOSAnalyzer extends StopwordAnalyzerBase {
     private int maxTokenLength = DEFAULT_MAX_TOKEN_LENGTH;
 
     private int bufferSize;
+
+    private int batchWindow;
     /**
      * An unmodifiable set containing some common English words that are usually
      * not useful for searching.
@@ -96,6 +107,29 @@ public class SKOSAnalyzer extends StopwordAnalyzerBase {
         this.types = types;
     }
 
+    public void setExpansionCache(ExpansionCache expansionCache) {
+        this.expansionCache = expansionCache;
+    }
+
+    /**
+     * Set the handle of a reloadable engine. The filters pick up the current
+     * version of the engine and its expansion cache each time a token stream
+     * is reset, instead of the engine and cache of this analyzer.
+     * @param engineHandle the engine handle
+     */
+    public void setEngineHandle(SKOSEngineHandle engineHandle) {
+        this.engineHandle = engineHandle;
+    }
+
+    /**
+     * Set the number of token positions the label filter resolves with one
+     * batched engine call, 0 resolves each position on its own
+     * @param batchWindow the batch window
+     */
+    public void setBatchWindow(int batchWindow) {
+        this.batchWindow = batchWindow;
+    }
+
     public List<SKOSType> getTypes() {
         return types;
     }
@@ -127,7 +161,8 @@ public class SKOSAnalyzer extends StopwordAnalyzerBase {
     protected TokenStreamComponents createComponents(String fileName) {
         if (expansionType.equals(ExpansionType.URI)) {
             final KeywordTokenizer src = new KeywordTokenizer();
-            TokenStream tok = new SKOSURIFilter(src, skosEngine, new StandardAnalyzer(), types);
+            TokenStream tok = engineHandle != null ? new SKOSURIFilter(src, engineHandle, types)
+                    : new SKOSURIFilter(src, skosEngine, types, expansionCache);
             tok = new LowerCaseFilter(tok);
             return new TokenStreamComponents(src, tok);
         } else {
@@ -135,7 +170,8 @@ public class SKOSAnalyzer extends StopwordAnalyzerBase {
             src.setMaxTokenLength(maxTokenLength);
             TokenStream tok = new StandardFilter(src);
             // prior to this we get the classic behavior, standardfilter does it for us.
-            tok = new SKOSLabelFilter(tok, skosEngine, new StandardAnalyzer(), bufferSize, types);
+            tok = engineHandle != null ? new SKOSLabelFilter(tok, engineHandle, bufferSize, batchWindow, types)
+                    : new SKOSLabelFilter(tok, skosEngine, bufferSize, batchWindow, types, expansionCache);
             tok = new LowerCaseFilter(tok);
             tok = new StopFilter(tok, stopwords);
             tok = new RemoveDuplicatesTokenFilter(tok);
@@ -7,11 +7,13 @@ import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.inject.Injector;
 import org.elasticsearch.common.inject.assistedinject.Assisted;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.NodeEnvironment;
 import org.elasticsearch.index.Index;
 import org.elasticsearch.index.analysis.AbstractIndexAnalyzerProvider;
 import org.elasticsearch.index.settings.IndexSettingsService;
-import org.xbib.elasticsearch.index.analysis.skos.engine.SKOSEngine;
+import org.elasticsearch.indices.IndicesLifecycle;
 import org.xbib.elasticsearch.index.analysis.skos.engine.SKOSEngineFactory;
+import org.xbib.elasticsearch.index.analysis.skos.engine.SKOSEngineHandle;
 import org.xbib.elasticsearch.index.analysis.skos.SKOSTypeAttribute.SKOSType;
 
 import java.io.IOException;
@@ -81,12 +83,15 @@ public class SKOSAnalyzerProvider extends AbstractIndexAnalyzerProvider<SKOSAnal
             }
         }
         String languageString = settings.get("language");
-        SKOSEngine skosEngine = null;
+        SKOSEngineHandle engineHandle = null;
         if (skosFile != null) {
             if (skosFile.endsWith(".n3") || skosFile.endsWith(".rdf") || skosFile.endsWith(".ttl") || skosFile.endsWith(".zip")) {
                 try {
-                    skosEngine = SKOSEngineFactory.getSKOSEngine(client, settings.get("path", ""), skosFile,
-                            languageString != null ? Arrays.asList(languageString.split(" ")) : Collections.<String>emptyList());
+                    engineHandle = SKOSEngineFactory.retainEngineHandle(client, settings.get("path", ""), skosFile,
+                            languageString != null ? Arrays.asList(languageString.split(" ")) : Collections.<String>emptyList(),
+                            engineSettings());
+                    SKOSTokenFilterFactory.releaseOnClose(index(), engineHandle,
+                            injector.getInstance(IndicesLifecycle.class));
                 } catch (IOException e) {
                     logger.error(e.getMessage(), e);
                     throw new IllegalArgumentException("could not instantiate SKOS engine", e);
@@ -95,7 +100,18 @@ public class SKOSAnalyzerProvider extends AbstractIndexAnalyzerProvider<SKOSAnal
                 throw new IllegalArgumentException("Allowed file suffixes are: .n3 (N3), .rdf (RDF/XML), .ttl (Turtle) and .zip (zip)");
             }
         }
-        return new SKOSAnalyzer(stopwords, skosEngine, expansionType, bufferSize, types);
+        SKOSAnalyzer analyzer = new SKOSAnalyzer(stopwords, engineHandle != null ? engineHandle.getEngine() : null,
+                expansionType, bufferSize, types);
+        analyzer.setEngineHandle(engineHandle);
+        analyzer.setBatchWindow(settings.getAsInt("batchWindow", 0));
+        return analyzer;
     }
 
+    /**
+     * Returns the settings for the engine, with the default path of private
+     * engine indexes and vocabulary snapshots under the node data path
+     */
+    private Settings engineSettings() {
+        return SKOSEngineFactory.withDefaultEnginePath(settings, injector.getInstance(NodeEnvironment.class));
+    }
 }
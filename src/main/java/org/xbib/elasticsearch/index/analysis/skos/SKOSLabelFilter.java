@@ -16,14 +16,23 @@
 package org.xbib.elasticsearch.index.analysis.skos;
 
 import java.io.IOException;
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Queue;
+import java.util.Map;
+import java.util.Set;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.TokenStream;
 
+import org.xbib.elasticsearch.index.analysis.skos.SKOSAnalyzer.ExpansionType;
+import org.xbib.elasticsearch.index.analysis.skos.engine.ExpansionCache;
+import org.xbib.elasticsearch.index.analysis.skos.engine.LabelMatcher;
 import org.xbib.elasticsearch.index.analysis.skos.engine.SKOSEngine;
+import org.xbib.elasticsearch.index.analysis.skos.engine.SKOSEngineHandle;
 import org.xbib.elasticsearch.index.analysis.skos.SKOSTypeAttribute.SKOSType;
 
 /**
@@ -37,10 +46,36 @@ import org.xbib.elasticsearch.index.analysis.skos.SKOSTypeAttribute.SKOSType;
 public final class SKOSLabelFilter extends AbstractSKOSFilter {
 
     public static final int DEFAULT_BUFFER_SIZE = 1;
-    /* the size of the buffer used for multi-term prediction */
+    /* the maximum number of words of a label to consider for multi-term prediction */
     private int bufferSize = DEFAULT_BUFFER_SIZE;
-    /* a list serving as token buffer between consumed and consuming stream */
-    private Queue<State> buffer = new LinkedList<>();
+    /* a ring of the look-ahead tokens and their terms, the first one is the current token if it was captured */
+    private final State[] buffer;
+    private final StringBuilder[] bufferTerms;
+    private int bufferHead;
+    private int bufferCount;
+    /* true if the consumed stream has no more tokens */
+    private boolean exhausted;
+    /* walks the labels of the engine word by word */
+    private LabelMatcher.Cursor cursor;
+    /* the words of the current match, and the lengths at which a label may end */
+    private final StringBuilder window = new StringBuilder();
+    private final int[] labelEnds;
+    /* the requested types this filter expands to, in the order they are added */
+    private final Set<SKOSType> expandTypes;
+    /* the number of token positions resolved by one batched engine call, 0 resolves each position on its own */
+    private final int batchWindow;
+    /* the expansions of the resolved positions of a window, null for no expansion, and the next position to emit */
+    private final ExpansionCache.Expansion[] resolved;
+    private int resolvedCount;
+    private int resolvedNext;
+    /* the key for lowercasing the candidates of a window and for their cache lookups */
+    private final ExpansionCache.Key batchKey;
+    /* the candidate labels at each position of a window, their expansions and the candidates to look up,
+       reused for all windows */
+    private final String[][] candidates;
+    private final int[] candidateCounts;
+    private final Map<String, ExpansionCache.Expansion> expansions = new HashMap<>();
+    private final Set<String> misses = new LinkedHashSet<>();
 
     /**
      * Constructor for multi-term expansion support. Takes an input token
@@ -49,15 +84,99 @@ public final class SKOSLabelFilter extends AbstractSKOSFilter {
      *
      * @param input the consumed token stream
      * @param engine the skos expansion engine
-     * @param analyzer the analyzer
+     * @param analyzer a standard analyzer or null, labels are analyzed by the engine
      * @param bufferSize the length of the longest pref-label to consider
      * (needed for mult-term expansion)
      * @param types the skos types to expand to
+     * @throws IllegalArgumentException if the analyzer is not a standard analyzer
+     * @deprecated use {@link #SKOSLabelFilter(TokenStream, SKOSEngine, int, List, ExpansionCache)}
      */
+    @Deprecated
     public SKOSLabelFilter(TokenStream input, SKOSEngine engine,
             Analyzer analyzer, int bufferSize, List<SKOSType> types) {
-        super(input, engine, analyzer, types);
+        this(input, checkAnalyzer(engine, analyzer), bufferSize, types, null);
+    }
+
+    /**
+     * Constructor for multi-term expansion support with a cache of analyzed
+     * expansions.
+     *
+     * @param input the consumed token stream
+     * @param engine the skos expansion engine
+     * @param bufferSize the length of the longest pref-label to consider
+     * (needed for mult-term expansion)
+     * @param types the skos types to expand to
+     * @param cache the expansion cache, or null
+     */
+    public SKOSLabelFilter(TokenStream input, SKOSEngine engine,
+            int bufferSize, List<SKOSType> types, ExpansionCache cache) {
+        this(input, engine, bufferSize, 0, types, cache);
+    }
+
+    /**
+     * Constructor for multi-term expansion support that reads ahead a window
+     * of tokens and resolves the candidate labels of all its positions with
+     * one batched engine call. Tokens are emitted in their original order
+     * and positions.
+     *
+     * @param input the consumed token stream
+     * @param engine the skos expansion engine
+     * @param bufferSize the length of the longest pref-label to consider
+     * (needed for mult-term expansion)
+     * @param batchWindow the number of token positions resolved at once,
+     * 0 or 1 resolves each position on its own
+     * @param types the skos types to expand to
+     * @param cache the expansion cache, or null
+     */
+    public SKOSLabelFilter(TokenStream input, SKOSEngine engine,
+            int bufferSize, int batchWindow, List<SKOSType> types, ExpansionCache cache) {
+        this(input, null, engine, cache, bufferSize, batchWindow, types);
+    }
+
+    /**
+     * Constructor for a reloadable engine, which picks up the current version
+     * of the engine and its expansion cache on each reset.
+     *
+     * @param input the consumed token stream
+     * @param handle the handle of the skos expansion engine
+     * @param bufferSize the length of the longest pref-label to consider
+     * (needed for mult-term expansion)
+     * @param batchWindow the number of token positions resolved at once,
+     * 0 or 1 resolves each position on its own
+     * @param types the skos types to expand to
+     */
+    public SKOSLabelFilter(TokenStream input, SKOSEngineHandle handle,
+            int bufferSize, int batchWindow, List<SKOSType> types) {
+        this(input, handle, handle.getCurrent(), bufferSize, batchWindow, types);
+    }
+
+    private SKOSLabelFilter(TokenStream input, SKOSEngineHandle handle, SKOSEngineHandle.Version version,
+            int bufferSize, int batchWindow, List<SKOSType> types) {
+        this(input, handle, version.getEngine(), version.getCache(), bufferSize, batchWindow, types);
+    }
+
+    private SKOSLabelFilter(TokenStream input, SKOSEngineHandle handle, SKOSEngine engine, ExpansionCache cache,
+            int bufferSize, int batchWindow, List<SKOSType> types) {
+        super(input, handle, engine, types, cache);
+        if (batchWindow < 0) {
+            throw new IllegalArgumentException("'batchWindow' must not be negative");
+        }
         this.bufferSize = bufferSize;
+        this.batchWindow = batchWindow > 1 ? batchWindow : 0;
+        this.resolved = new ExpansionCache.Expansion[this.batchWindow];
+        this.batchKey = this.batchWindow > 0 ? new ExpansionCache.Key(getExpansionType(), this.types) : null;
+        this.cursor = cursor(engine);
+        this.labelEnds = new int[Math.max(1, bufferSize)];
+        this.candidates = new String[this.batchWindow][labelEnds.length];
+        this.candidateCounts = new int[this.batchWindow];
+        this.expandTypes = expandTypes(SKOSType.PREF, SKOSType.ALT, SKOSType.HIDDEN,
+                SKOSType.BROADER, SKOSType.BROADERTRANSITIVE, SKOSType.NARROWER, SKOSType.NARROWERTRANSITIVE);
+        // a window also needs the look-ahead of its last position
+        this.buffer = new State[this.batchWindow + Math.max(1, bufferSize) - (this.batchWindow > 0 ? 1 : 0)];
+        this.bufferTerms = new StringBuilder[buffer.length];
+        for (int i = 0; i < bufferTerms.length; i++) {
+            bufferTerms[i] = new StringBuilder();
+        }
     }
 
     /**
@@ -70,84 +189,341 @@ public final class SKOSLabelFilter extends AbstractSKOSFilter {
             processTermOnStack();
             return true;
         }
-        while (buffer.size() < bufferSize && input.incrementToken()) {
-            buffer.add(input.captureState());
+        if (batchWindow > 0) {
+            return incrementBatched();
         }
-        if (buffer.isEmpty()) {
+        if (bufferCount > 0) {
+            restoreState(buffer[bufferHead]);
+        } else if (exhausted || !input.incrementToken()) {
+            exhausted = true;
             return false;
         }
-        restoreState(buffer.peek());
         // check whether there are expanded terms for a given token
-        if (addAliasesToStack()) {
+        int labels = match();
+        if (labels > 0 && addAliasesToStack(labels)) {
             // if yes, capture the state of all attributes
             current = captureState();
         }
-        buffer.remove();
+        if (bufferCount > 0) {
+            buffer[bufferHead] = null;
+            bufferHead = (bufferHead + 1) % buffer.length;
+            bufferCount--;
+        }
         return true;
     }
 
-    private boolean addAliasesToStack() throws IOException {
-        for (int i = buffer.size(); i > 0; i--) {
-            String inputTokens = bufferToString(i);
-            if (addTermsToStack(inputTokens)) {
+    @Override
+    protected void engineChanged() {
+        cursor = cursor(engine);
+    }
+
+    private static LabelMatcher.Cursor cursor(SKOSEngine engine) {
+        LabelMatcher labelMatcher = engine.getLabelMatcher();
+        return labelMatcher != null ? labelMatcher.cursor() : ANY_LABEL;
+    }
+
+    @Override
+    public void reset() throws IOException {
+        super.reset();
+        Arrays.fill(buffer, null);
+        bufferHead = 0;
+        bufferCount = 0;
+        exhausted = false;
+        Arrays.fill(resolved, null);
+        resolvedCount = 0;
+        resolvedNext = 0;
+        clearWindow();
+    }
+
+    /**
+     * Emits the next token of the resolved window, resolving the next window
+     * first if all positions were emitted
+     */
+    private boolean incrementBatched() throws IOException {
+        if (resolvedNext == resolvedCount && !resolveWindow()) {
+            return false;
+        }
+        restoreState(buffer[bufferHead]);
+        ExpansionCache.Expansion expansion = resolved[resolvedNext];
+        resolved[resolvedNext++] = null;
+        if (expansion != null) {
+            for (int i = 0; i < expansion.size(); i++) {
+                termStack.push(expansion.term(i), expansion.type(i));
+            }
+            current = captureState();
+        }
+        buffer[bufferHead] = null;
+        bufferHead = (bufferHead + 1) % buffer.length;
+        bufferCount--;
+        return true;
+    }
+
+    /**
+     * Fills the look-ahead ring, finds the candidate labels at each position
+     * of the window, and resolves all candidates that are not cached with one
+     * batched engine call. At each position, the longest candidate with an
+     * expansion wins, as in {@link #addAliasesToStack(int)}.
+     *
+     * @return false if the consumed stream has no more tokens
+     * @throws IOException if the consumed stream or the engine fails
+     */
+    private boolean resolveWindow() throws IOException {
+        while (bufferCount < buffer.length && !exhausted) {
+            if (!input.incrementToken()) {
+                exhausted = true;
                 break;
             }
+            buffer(captureState());
         }
-        return !termStack.isEmpty();
+        if (bufferCount == 0) {
+            return false;
+        }
+        resolvedCount = Math.min(batchWindow, bufferCount);
+        resolvedNext = 0;
+        for (int p = 0; p < resolvedCount; p++) {
+            int labels = matchBuffered(p);
+            candidateCounts[p] = labels;
+            for (int i = 0; i < labels; i++) {
+                // lowercased as the key of the expansion cache
+                String candidate = batchKey.set(window, 0, labelEnds[i], true).toString();
+                candidates[p][i] = candidate;
+                if (expansions.containsKey(candidate) || misses.contains(candidate)) {
+                    continue;
+                }
+                ExpansionCache.Expansion expansion = cache != null ? cache.getIfPresent(batchKey) : null;
+                if (expansion != null) {
+                    expansions.put(candidate, expansion);
+                } else {
+                    misses.add(candidate);
+                }
+            }
+        }
+        if (!misses.isEmpty()) {
+            if (allowExpansion(misses.size())) {
+                long startNanos = System.nanoTime();
+                try {
+                    expandAll(misses, expansions);
+                    expansionDone(startNanos, null, misses.size());
+                } catch (IOException | RuntimeException e) {
+                    expansionDone(startNanos, e, misses.size());
+                }
+            }
+            // passed through, not cached
+            for (String miss : misses) {
+                if (!expansions.containsKey(miss)) {
+                    expansions.put(miss, NO_EXPANSION);
+                }
+            }
+        }
+        for (int p = 0; p < resolvedCount; p++) {
+            for (int i = candidateCounts[p] - 1; i >= 0; i--) {
+                ExpansionCache.Expansion expansion = expansions.get(candidates[p][i]);
+                if (expansion.size() > 0) {
+                    resolved[p] = expansion;
+                    break;
+                }
+            }
+        }
+        clearWindow();
+        return true;
     }
 
     /**
-     * Converts the first x=noTokens states in the queue to a concatenated token
-     * string separated by white spaces
-     * @param noTokens the number of tokens
-     * @return the concatenated token string
+     * Clears the buffers of a window, keeping their capacity for the next one
      */
-    private String bufferToString(int noTokens) {
-        State entered = captureState();
-        State[] bufferedStates = buffer.toArray(new State[buffer.size()]);
-        StringBuilder builder = new StringBuilder();
-        builder.append(termAtt.toString());
-        restoreState(bufferedStates[0]);
-        for (int i = 1; i < noTokens; i++) {
-            restoreState(bufferedStates[i]);
-            builder.append(" ").append(termAtt.toString());
+    private void clearWindow() {
+        for (int p = 0; p < candidates.length; p++) {
+            Arrays.fill(candidates[p], 0, candidateCounts[p], null);
+            candidateCounts[p] = 0;
         }
-        restoreState(entered);
-        return builder.toString();
+        expansions.clear();
+        misses.clear();
     }
 
     /**
-     * Add terms to stack
-     * Assumes that the given term is a textual token
-     * @param term the given term
-     * @return true if term stack is not empty
+     * Walks the labels of the engine from a buffered position on, like
+     * {@link #match()}, without reading ahead
+     *
+     * @param position the position relative to the head of the ring
+     * @return the number of window lengths that may be labels
+     * @throws IOException if the engine fails
      */
-    public boolean addTermsToStack(String term) throws IOException {
-        List<String> conceptURIs = engine.getConcepts(term);
-        for (String conceptURI : conceptURIs) {
-            if (types.contains(SKOSType.PREF)) {
-                pushLabelsToStack(engine.getPrefLabels(conceptURI), SKOSType.PREF);
+    private int matchBuffered(int position) throws IOException {
+        cursor.reset();
+        window.setLength(0);
+        int labels = 0;
+        for (int i = 0; i < bufferSize && position + i < bufferCount; i++) {
+            if (i > 0 && !cursor.hasNext()) {
+                break;
             }
-            if (types.contains(SKOSType.ALT)) {
-                pushLabelsToStack(engine.getAltLabels(conceptURI), SKOSType.ALT);
+            StringBuilder term = bufferTerms[(bufferHead + position + i) % buffer.length];
+            if (!cursor.next(term)) {
+                break;
             }
-            if (types.contains(SKOSType.HIDDEN)) {
-                pushLabelsToStack(engine.getHiddenLabels(conceptURI), SKOSType.HIDDEN);
+            if (i > 0) {
+                window.append(' ');
             }
-            if (types.contains(SKOSType.BROADER)) {
-                pushLabelsToStack(engine.getBroaderLabels(conceptURI), SKOSType.BROADER);
+            window.append(term);
+            if (cursor.isLabel()) {
+                labelEnds[labels++] = window.length();
             }
-            if (types.contains(SKOSType.BROADERTRANSITIVE)) {
-                pushLabelsToStack(engine.getBroaderTransitiveLabels(conceptURI), SKOSType.BROADERTRANSITIVE);
+        }
+        return labels;
+    }
+
+    /**
+     * Expands labels with one engine call for their concepts and one for the
+     * labels of all concepts, and caches the expansions
+     *
+     * @param labels the lowercased labels
+     * @param expansions receives the expansion of each label
+     * @throws IOException if the engine fails
+     */
+    private void expandAll(Collection<String> labels, Map<String, ExpansionCache.Expansion> expansions)
+            throws IOException {
+        Map<String, List<String>> concepts = engine.getConcepts(labels);
+        Set<String> conceptURIs = new LinkedHashSet<>();
+        for (List<String> list : concepts.values()) {
+            conceptURIs.addAll(list);
+        }
+        Map<String, Map<SKOSType, List<String>>> conceptLabels = conceptURIs.isEmpty() || expandTypes.isEmpty() ?
+                Collections.<String, Map<SKOSType, List<String>>>emptyMap() : engine.getLabels(conceptURIs, expandTypes);
+        ExpandedTerms expandedTerms = new ExpandedTerms();
+        for (String label : labels) {
+            expandedTerms.clear();
+            List<String> list = concepts.get(label);
+            if (list != null) {
+                pushConceptLabels(expandedTerms, list, conceptLabels, expandTypes);
             }
-            if (types.contains(SKOSType.NARROWER)) {
-                pushLabelsToStack(engine.getNarrowerLabels(conceptURI), SKOSType.NARROWER);
+            ExpansionCache.Expansion expansion = toExpansion(expandedTerms);
+            if (cache != null) {
+                cache.put(batchKey.set(label, 0, label.length(), false), expansion);
             }
-            if (types.contains(SKOSType.NARROWERTRANSITIVE)) {
-                pushLabelsToStack(engine.getNarrowerTransitiveLabels(conceptURI), SKOSType.NARROWERTRANSITIVE);
+            expansions.put(label, expansion);
+        }
+    }
+
+    /**
+     * Appends a state and its term to the look-ahead ring
+     */
+    private void buffer(State state) {
+        int slot = (bufferHead + bufferCount) % buffer.length;
+        buffer[slot] = state;
+        bufferTerms[slot].setLength(0);
+        bufferTerms[slot].append(termAtt);
+        bufferCount++;
+    }
+
+    /**
+     * Walks the labels of the engine from the current token on, one token
+     * at a time, and records each length of the window at which a label may
+     * end. Tokens are only read ahead while a label may continue, so the
+     * current token is only captured if it may start a multi-word label.
+     *
+     * @return the number of window lengths that may be labels
+     * @throws IOException if the consumed stream or the engine fails
+     */
+    private int match() throws IOException {
+        cursor.reset();
+        window.setLength(0);
+        if (!cursor.next(termAtt)) {
+            return 0;
+        }
+        window.append(termAtt);
+        int labels = 0;
+        if (cursor.isLabel()) {
+            labelEnds[labels++] = window.length();
+        }
+        boolean readAhead = false;
+        for (int i = 1; i < bufferSize && cursor.hasNext(); i++) {
+            if (bufferCount == 0) {
+                buffer(captureState());
+            }
+            if (i == bufferCount) {
+                if (exhausted) {
+                    break;
+                }
+                // the attributes are changed even if the end of the input is reached
+                readAhead = true;
+                if (!input.incrementToken()) {
+                    exhausted = true;
+                    break;
+                }
+                buffer(input.captureState());
+            }
+            StringBuilder term = bufferTerms[(bufferHead + i) % buffer.length];
+            if (!cursor.next(term)) {
+                break;
+            }
+            window.append(' ').append(term);
+            if (cursor.isLabel()) {
+                labelEnds[labels++] = window.length();
+            }
+        }
+        if (readAhead) {
+            restoreState(buffer[bufferHead]);
+        }
+        return labels;
+    }
+
+    /**
+     * Adds the expansions of the longest matched label that has any
+     *
+     * @param labels the number of window lengths that may be labels
+     * @return true if terms were added to the stack
+     * @throws IOException if the engine fails
+     */
+    private boolean addAliasesToStack(int labels) throws IOException {
+        for (int i = labels - 1; i >= 0; i--) {
+            if (addTermsToStack(window, 0, labelEnds[i])) {
+                return true;
             }
         }
-        return !termStack.isEmpty();
+        return false;
+    }
+
+    /**
+     * Add terms to stack
+     * Assumes that the given term is a textual token
+     * @param term the given term
+     * @param expandedTerms receives the expanded terms
+     */
+    @Override
+    protected void expand(String term, ExpandedTerms expandedTerms) throws IOException {
+        pushConceptLabels(expandedTerms, engine.getConcepts(term), expandTypes);
+    }
+
+    @Override
+    protected ExpansionType getExpansionType() {
+        return ExpansionType.LABEL;
     }
 
+    @Override
+    protected boolean ignoreCase() {
+        return true;
+    }
+
+    /**
+     * Accepts every sequence of words, for engines without a label matcher
+     */
+    private static final LabelMatcher.Cursor ANY_LABEL = new LabelMatcher.Cursor() {
+        @Override
+        public void reset() {
+        }
+
+        @Override
+        public boolean next(CharSequence word) {
+            return true;
+        }
+
+        @Override
+        public boolean isLabel() {
+            return true;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return true;
+        }
+    };
 }
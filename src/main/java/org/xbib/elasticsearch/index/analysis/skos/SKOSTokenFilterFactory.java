@@ -7,20 +7,22 @@ import java.util.LinkedList;
 import java.util.List;
 
 import org.apache.lucene.analysis.TokenStream;
-import org.apache.lucene.analysis.standard.StandardAnalyzer;
 
+import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.client.Client;
 import org.elasticsearch.common.inject.Inject;
 import org.elasticsearch.common.inject.Injector;
 import org.elasticsearch.common.inject.assistedinject.Assisted;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.NodeEnvironment;
 import org.elasticsearch.index.Index;
 import org.elasticsearch.index.analysis.AbstractTokenFilterFactory;
 import org.elasticsearch.index.analysis.AnalysisSettingsRequired;
 
 import org.elasticsearch.index.settings.IndexSettingsService;
+import org.elasticsearch.indices.IndicesLifecycle;
 import org.xbib.elasticsearch.index.analysis.skos.SKOSAnalyzer.ExpansionType;
-import org.xbib.elasticsearch.index.analysis.skos.engine.SKOSEngine;
+import org.xbib.elasticsearch.index.analysis.skos.engine.SKOSEngineHandle;
 import org.xbib.elasticsearch.index.analysis.skos.engine.SKOSEngineFactory;
 import org.xbib.elasticsearch.index.analysis.skos.SKOSTypeAttribute.SKOSType;
 
@@ -31,6 +33,9 @@ public class SKOSTokenFilterFactory extends AbstractTokenFilterFactory {
 
     private final Settings settings;
 
+    // the engine handle, bound on first use until the index is closed
+    private SKOSEngineHandle boundHandle;
+
     @Inject
     public SKOSTokenFilterFactory(Index index,
                                   IndexSettingsService indexSettingsService,
@@ -40,13 +45,47 @@ public class SKOSTokenFilterFactory extends AbstractTokenFilterFactory {
         super(index, indexSettingsService.indexSettings(), name, settings);
         this.injector = injector;
         this.settings = settings;
+        preload();
+    }
+
+    /**
+     * Starts loading the engine in the background, so that the first
+     * {@link #create(TokenStream)}, which may run on an index thread, does not
+     * build the engine with requests to its own cluster
+     */
+    private void preload() {
+        final String skosFile = settings.get("skosFile");
+        if (skosFile == null || !(skosFile.endsWith(".n3") || skosFile.endsWith(".rdf")
+                || skosFile.endsWith(".ttl") || skosFile.endsWith(".zip"))) {
+            // create() reports the error
+            return;
+        }
+        String languageString = settings.get("language");
+        try {
+            SKOSEngineFactory.load(injector.getInstance(Client.class), settings.get("indexName", "skos"), skosFile,
+                    languageString != null ? Arrays.asList(languageString.split(" ")) : Collections.<String>emptyList(),
+                    engineSettings(), new ActionListener<SKOSEngineHandle>() {
+                        @Override
+                        public void onResponse(SKOSEngineHandle handle) {
+                            logger.debug("SKOS engine for {} loaded", skosFile);
+                        }
+
+                        @Override
+                        public void onFailure(Throwable t) {
+                            // create() tries again and reports the failure
+                            logger.debug("could not preload SKOS engine", t);
+                        }
+                    });
+        } catch (IllegalArgumentException e) {
+            logger.debug("could not preload SKOS engine", e);
+        }
     }
 
     @Override
     public TokenStream create(TokenStream tokenStream) {
         Client client = injector.getInstance(Client.class);
         ExpansionType expansionType;
-        SKOSEngine skosEngine;
+        SKOSEngineHandle engineHandle;
         int bufferSize;
         String skosFile = settings.get("skosFile");
         if (skosFile == null) {
@@ -58,10 +97,7 @@ public class SKOSTokenFilterFactory extends AbstractTokenFilterFactory {
         }
         if (skosFile.endsWith(".n3") || skosFile.endsWith(".rdf") || skosFile.endsWith(".ttl") || skosFile.endsWith(".zip")) {
             try {
-                String indexName = settings.get("indexName", "skos");
-                String languageString = settings.get("language");
-                skosEngine = SKOSEngineFactory.getSKOSEngine(client, indexName, skosFile,
-                        languageString != null ? Arrays.asList(languageString.split(" ")) : Collections.<String>emptyList());
+                engineHandle = engineHandle(client, skosFile);
             } catch (IOException e) {
                 logger.error(e.getMessage(), e);
                 throw new IllegalArgumentException("could not instantiate SKOS engine", e);
@@ -98,9 +134,53 @@ public class SKOSTokenFilterFactory extends AbstractTokenFilterFactory {
             }
         }
         if (expansionType.equals(ExpansionType.LABEL)) {
-            return new SKOSLabelFilter(tokenStream, skosEngine, new StandardAnalyzer(), bufferSize, types);
+            return new SKOSLabelFilter(tokenStream, engineHandle, bufferSize, settings.getAsInt("batchWindow", 0), types);
         } else {
-            return new SKOSURIFilter(tokenStream, skosEngine, new StandardAnalyzer(), types);
+            return new SKOSURIFilter(tokenStream, engineHandle, types);
         }
     }
+
+    /**
+     * Returns the engine handle, and binds the index to it on first use, so
+     * that releasing the thesaurus does not close the engine under the
+     * analyzers of the index
+     */
+    private synchronized SKOSEngineHandle engineHandle(Client client, String skosFile) throws IOException {
+        if (boundHandle == null) {
+            String indexName = settings.get("indexName", "skos");
+            String languageString = settings.get("language");
+            boundHandle = SKOSEngineFactory.retainEngineHandle(client, indexName, skosFile,
+                    languageString != null ? Arrays.asList(languageString.split(" ")) : Collections.<String>emptyList(),
+                    engineSettings());
+            releaseOnClose(index(), boundHandle, injector.getInstance(IndicesLifecycle.class));
+        }
+        return boundHandle;
+    }
+
+    /**
+     * Unbinds an index from an engine handle when the index is closed on this node
+     *
+     * @param index the index
+     * @param handle the engine handle the index is bound to
+     * @param lifecycle the lifecycle of the indices of the node
+     */
+    static void releaseOnClose(final Index index, final SKOSEngineHandle handle, final IndicesLifecycle lifecycle) {
+        lifecycle.addListener(new IndicesLifecycle.Listener() {
+            @Override
+            public void afterIndexClosed(Index closed, Settings indexSettings) {
+                if (index.equals(closed)) {
+                    lifecycle.removeListener(this);
+                    handle.release();
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the settings for the engine, with the default path of private
+     * engine indexes and vocabulary snapshots under the node data path
+     */
+    private Settings engineSettings() {
+        return SKOSEngineFactory.withDefaultEnginePath(settings, injector.getInstance(NodeEnvironment.class));
+    }
 }
@@ -16,12 +16,17 @@
 package org.xbib.elasticsearch.index.analysis.skos;
 
 import java.io.IOException;
+import java.util.Collections;
 import java.util.List;
+import java.util.Set;
 
 import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.TokenStream;
 
+import org.xbib.elasticsearch.index.analysis.skos.SKOSAnalyzer.ExpansionType;
+import org.xbib.elasticsearch.index.analysis.skos.engine.ExpansionCache;
 import org.xbib.elasticsearch.index.analysis.skos.engine.SKOSEngine;
+import org.xbib.elasticsearch.index.analysis.skos.engine.SKOSEngineHandle;
 import org.xbib.elasticsearch.index.analysis.skos.SKOSTypeAttribute.SKOSType;
 
 /**
@@ -35,9 +40,45 @@ import org.xbib.elasticsearch.index.analysis.skos.SKOSTypeAttribute.SKOSType;
  */
 public final class SKOSURIFilter extends AbstractSKOSFilter {
 
+    /* the requested types this filter expands to, in the order they are added */
+    private final Set<SKOSType> expandTypes;
+
+    /**
+     * @param input the consumed token stream
+     * @param skosEngine the skos expansion engine
+     * @param analyzer a standard analyzer or null, labels are analyzed by the engine
+     * @param types the skos types to expand to
+     * @throws IllegalArgumentException if the analyzer is not a standard analyzer
+     * @deprecated use {@link #SKOSURIFilter(TokenStream, SKOSEngine, List, ExpansionCache)}
+     */
+    @Deprecated
     public SKOSURIFilter(TokenStream input, SKOSEngine skosEngine,
             Analyzer analyzer, List<SKOSType> types) {
-        super(input, skosEngine, analyzer, types);
+        this(input, checkAnalyzer(skosEngine, analyzer), types, null);
+    }
+
+    /**
+     * @param input the consumed token stream
+     * @param skosEngine the skos expansion engine
+     * @param types the skos types to expand to
+     * @param cache the expansion cache, or null
+     */
+    public SKOSURIFilter(TokenStream input, SKOSEngine skosEngine,
+            List<SKOSType> types, ExpansionCache cache) {
+        super(input, skosEngine, types, cache);
+        this.expandTypes = expandTypes(SKOSType.PREF, SKOSType.ALT,
+                SKOSType.BROADER, SKOSType.BROADERTRANSITIVE, SKOSType.NARROWER, SKOSType.NARROWERTRANSITIVE);
+    }
+
+    /**
+     * @param input the consumed token stream
+     * @param handle the handle of the reloadable skos expansion engine
+     * @param types the skos types to expand to
+     */
+    public SKOSURIFilter(TokenStream input, SKOSEngineHandle handle, List<SKOSType> types) {
+        super(input, handle, types);
+        this.expandTypes = expandTypes(SKOSType.PREF, SKOSType.ALT,
+                SKOSType.BROADER, SKOSType.BROADERTRANSITIVE, SKOSType.NARROWER, SKOSType.NARROWERTRANSITIVE);
     }
 
     /**
@@ -55,7 +96,7 @@ public final class SKOSURIFilter extends AbstractSKOSFilter {
             return false;
         }
         /* check whether there are expanded terms for a given token */
-        if (addTermsToStack(termAtt.toString())) {
+        if (addTermsToStack(termAtt, 0, termAtt.length())) {
             /* if yes, capture the state of all attributes */
             current = captureState();
         }
@@ -65,27 +106,15 @@ public final class SKOSURIFilter extends AbstractSKOSFilter {
     /**
      * Assumes that the given term is a concept URI
      * @param term the given term
-     * @return true if term stack is not empty
+     * @param expandedTerms receives the expanded terms
      */
-    public boolean addTermsToStack(String term) throws IOException {
-        if (types.contains(SKOSType.PREF)) {
-            pushLabelsToStack(engine.getPrefLabels(term), SKOSType.PREF);
-        }
-        if (types.contains(SKOSType.ALT)) {
-            pushLabelsToStack(engine.getAltLabels(term), SKOSType.ALT);
-        }
-        if (types.contains(SKOSType.BROADER)) {
-            pushLabelsToStack(engine.getBroaderLabels(term), SKOSType.BROADER);
-        }
-        if (types.contains(SKOSType.BROADERTRANSITIVE)) {
-            pushLabelsToStack(engine.getBroaderTransitiveLabels(term), SKOSType.BROADERTRANSITIVE);
-        }
-        if (types.contains(SKOSType.NARROWER)) {
-            pushLabelsToStack(engine.getNarrowerLabels(term), SKOSType.NARROWER);
-        }
-        if (types.contains(SKOSType.NARROWERTRANSITIVE)) {
-            pushLabelsToStack(engine.getNarrowerTransitiveLabels(term), SKOSType.NARROWERTRANSITIVE);
-        }
-        return !termStack.isEmpty();
+    @Override
+    protected void expand(String term, ExpandedTerms expandedTerms) throws IOException {
+        pushConceptLabels(expandedTerms, Collections.singletonList(term), expandTypes);
+    }
+
+    @Override
+    protected ExpansionType getExpansionType() {
+        return ExpansionType.URI;
     }
 }
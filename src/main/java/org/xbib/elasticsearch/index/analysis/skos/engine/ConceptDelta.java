@@ -0,0 +1,117 @@
+package org.xbib.elasticsearch.index.analysis.skos.engine;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * The concepts changed by an incremental update of a SKOS engine, and the
+ * terms whose cached expansions are affected by the change.
+ *
+ * The expansion of a term depends on the labels and relations of the
+ * concepts having the term as label, and on the labels of their related
+ * concepts. The affected terms are therefore the old and new labels and the
+ * URIs of all changed concepts, plus the labels and URIs of concepts that refer to a
+ * concept whose labels changed.
+ */
+public class ConceptDelta {
+
+    private final Set<String> updated = new LinkedHashSet<>();
+
+    private final Set<String> deleted = new LinkedHashSet<>();
+
+    private final Set<String> relabelled = new LinkedHashSet<>();
+
+    private final Set<String> affectedTerms = new HashSet<>();
+
+    /**
+     * Records a concept that was written
+     *
+     * @param conceptURI the concept URI
+     * @param oldLabels the labels before the change, empty for a new concept
+     * @param newLabels the labels after the change
+     */
+    public void update(String conceptURI, Collection<String> oldLabels, Collection<String> newLabels) {
+        updated.add(conceptURI);
+        affectedTerms.add(conceptURI);
+        affectedTerms.addAll(oldLabels);
+        affectedTerms.addAll(newLabels);
+        if (!new HashSet<>(oldLabels).equals(new HashSet<>(newLabels))) {
+            relabelled.add(conceptURI);
+        }
+    }
+
+    /**
+     * Records a concept that was deleted
+     *
+     * @param conceptURI the concept URI
+     * @param oldLabels the labels before the change
+     */
+    public void delete(String conceptURI, Collection<String> oldLabels) {
+        updated.remove(conceptURI);
+        deleted.add(conceptURI);
+        relabelled.add(conceptURI);
+        affectedTerms.add(conceptURI);
+        affectedTerms.addAll(oldLabels);
+    }
+
+    /**
+     * Adds terms whose expansions are affected, for example the labels of
+     * concepts that refer to a relabelled concept
+     *
+     * @param terms the terms
+     */
+    public void addAffectedTerms(Collection<String> terms) {
+        affectedTerms.addAll(terms);
+    }
+
+    /**
+     * Returns the URIs of the written concepts
+     *
+     * @return the concept URIs
+     */
+    public Set<String> getUpdated() {
+        return Collections.unmodifiableSet(updated);
+    }
+
+    /**
+     * Returns the URIs of the deleted concepts
+     *
+     * @return the concept URIs
+     */
+    public Set<String> getDeleted() {
+        return Collections.unmodifiableSet(deleted);
+    }
+
+    /**
+     * Returns the URIs of the concepts whose labels changed, including
+     * the deleted concepts. Concepts referring to them have changed
+     * expansions.
+     *
+     * @return the concept URIs
+     */
+    public Set<String> getRelabelled() {
+        return Collections.unmodifiableSet(relabelled);
+    }
+
+    /**
+     * Returns the labels and URIs whose expansions are affected
+     *
+     * @return the affected terms
+     */
+    public Set<String> getAffectedTerms() {
+        return Collections.unmodifiableSet(affectedTerms);
+    }
+
+    public boolean isEmpty() {
+        return updated.isEmpty() && deleted.isEmpty();
+    }
+
+    @Override
+    public String toString() {
+        return "updated=" + updated.size() + ", deleted=" + deleted.size()
+                + ", affectedTerms=" + affectedTerms.size();
+    }
+}
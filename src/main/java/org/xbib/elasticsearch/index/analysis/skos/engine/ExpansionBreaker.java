@@ -0,0 +1,194 @@
+package org.xbib.elasticsearch.index.analysis.skos.engine;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A circuit breaker for the engine calls of the filters, which keeps a
+ * failing or slow engine from blocking the analysis threads.
+ *
+ * A failed engine call, or a document whose engine calls exceed the
+ * expansion budget, counts as a failure. After a number of consecutive
+ * failures the breaker opens and the filters pass tokens through without
+ * expanding them, except for expansions that are cached. After the cooldown
+ * one engine call is let through, the breaker closes if it succeeds and opens
+ * again if it fails. Failures while the breaker is open are counted, but do
+ * not open it again.
+ */
+public class ExpansionBreaker {
+
+    private final static ESLogger logger = ESLoggerFactory.getLogger(ExpansionBreaker.class.getSimpleName());
+
+    public static final int DEFAULT_THRESHOLD = 5;
+
+    public static final TimeValue DEFAULT_COOLDOWN = TimeValue.timeValueSeconds(30);
+
+    private static final long CLOSED = Long.MIN_VALUE;
+
+    private final String name;
+
+    private final int threshold;
+
+    private final long cooldownNanos;
+
+    private final long budgetNanos;
+
+    // the time until which the breaker is open, or CLOSED
+    private final AtomicLong openUntil = new AtomicLong(CLOSED);
+
+    // whether an engine call was let through as a trial and did not fail yet
+    private final AtomicBoolean trial = new AtomicBoolean();
+
+    private final AtomicInteger consecutiveFailures = new AtomicInteger();
+
+    private final AtomicLong failures = new AtomicLong();
+
+    private final AtomicLong slowDocuments = new AtomicLong();
+
+    private final AtomicLong skipped = new AtomicLong();
+
+    private final AtomicLong trips = new AtomicLong();
+
+    /**
+     * @param name the name of the engine, for logging
+     * @param settings the settings, with the optional keys 'breakerThreshold',
+     * 'breakerCooldown' and 'expansionBudget'
+     */
+    public ExpansionBreaker(String name, Settings settings) {
+        this.name = name;
+        this.threshold = settings.getAsInt("breakerThreshold", DEFAULT_THRESHOLD);
+        this.cooldownNanos = settings.getAsTime("breakerCooldown", DEFAULT_COOLDOWN).nanos();
+        TimeValue budget = settings.getAsTime("expansionBudget", null);
+        this.budgetNanos = budget != null && budget.nanos() > 0L ? budget.nanos() : Long.MAX_VALUE;
+        if (threshold < 0) {
+            throw new IllegalArgumentException("'breakerThreshold' must not be negative");
+        }
+    }
+
+    /**
+     * Returns whether the engine may be called. While the breaker is open,
+     * the first caller after the cooldown is let through as a trial.
+     *
+     * @return true if the engine may be called
+     */
+    public boolean allowRequest() {
+        long until = openUntil.get();
+        if (until == CLOSED) {
+            return true;
+        }
+        long now = System.nanoTime();
+        if (now - until >= 0L && openUntil.compareAndSet(until, now + cooldownNanos)) {
+            trial.set(true);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether the engine calls of a document exceed the expansion budget
+     *
+     * @param nanos the time spent in engine calls for the document
+     * @return true if the budget is exceeded
+     */
+    public boolean isOverBudget(long nanos) {
+        return nanos > budgetNanos;
+    }
+
+    public void onSuccess() {
+        consecutiveFailures.set(0);
+        if (openUntil.get() != CLOSED && openUntil.getAndSet(CLOSED) != CLOSED) {
+            trial.set(false);
+            logger.info("SKOS engine {} recovered, expanding terms again", name);
+        }
+    }
+
+    public void onFailure(Throwable t) {
+        failures.incrementAndGet();
+        if (logger.isDebugEnabled()) {
+            logger.debug("expansion failed for SKOS engine {}", t, name);
+        }
+        failed(t.toString());
+    }
+
+    /**
+     * Records a document whose engine calls exceeded the expansion budget
+     */
+    public void onSlowDocument() {
+        slowDocuments.incrementAndGet();
+        failed("expansion budget exceeded");
+    }
+
+    /**
+     * Opens the breaker on the failure that reaches the threshold, or on a
+     * failed trial. Only the caller that makes the transition trips the
+     * breaker, other failures while it is open are only counted.
+     */
+    private void failed(String reason) {
+        if (threshold == 0) {
+            return;
+        }
+        if (openUntil.get() == CLOSED) {
+            if (consecutiveFailures.incrementAndGet() >= threshold
+                    && openUntil.compareAndSet(CLOSED, System.nanoTime() + cooldownNanos)) {
+                consecutiveFailures.set(0);
+                trip(reason);
+            }
+        } else if (trial.compareAndSet(true, false)) {
+            // a failed trial opens the breaker again at once
+            openUntil.set(System.nanoTime() + cooldownNanos);
+            trip(reason);
+        }
+    }
+
+    private void trip(String reason) {
+        trips.incrementAndGet();
+        logger.warn("SKOS engine {} is failing ({}), passing terms through for {}", name, reason,
+                TimeValue.timeValueNanos(cooldownNanos));
+    }
+
+    /**
+     * Counts terms that were not expanded
+     *
+     * @param terms the number of terms
+     */
+    public void skipped(int terms) {
+        skipped.addAndGet(terms);
+    }
+
+    public boolean isOpen() {
+        return openUntil.get() != CLOSED;
+    }
+
+    public long getSkipped() {
+        return skipped.get();
+    }
+
+    public long getTrips() {
+        return trips.get();
+    }
+
+    /**
+     * Returns the counters of the breaker
+     *
+     * @return the number of failed engine calls, of documents over the budget,
+     * of terms that were not expanded and of times the breaker opened, and
+     * 1 if the breaker is open
+     */
+    public Map<String, Long> getStats() {
+        Map<String, Long> stats = new LinkedHashMap<>();
+        stats.put("open", isOpen() ? 1L : 0L);
+        stats.put("failures", failures.get());
+        stats.put("slow_documents", slowDocuments.get());
+        stats.put("skipped", skipped.get());
+        stats.put("trips", trips.get());
+        return stats;
+    }
+}
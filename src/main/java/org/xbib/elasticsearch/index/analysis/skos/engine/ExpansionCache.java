@@ -0,0 +1,372 @@
+package org.xbib.elasticsearch.index.analysis.skos.engine;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.xbib.elasticsearch.index.analysis.skos.SKOSAnalyzer.ExpansionType;
+import org.xbib.elasticsearch.index.analysis.skos.SKOSTypeAttribute.SKOSType;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+/**
+ * A cache of the expansions of input terms, shared by all filters on top of
+ * a SKOS engine.
+ *
+ * The key is the normalized input term, the expansion type and the set of
+ * SKOS types to expand to. The value is the list of analyzed expanded terms,
+ * so a cache hit does not query the engine. Eviction is bounded by the
+ * estimated size of keys and values in bytes.
+ *
+ * The cached keys are indexed by their term, so that the expansions of
+ * changed terms are invalidated without walking the cache.
+ */
+public class ExpansionCache {
+
+    private final Cache<Key, Expansion> cache;
+
+    private final long maxWeight;
+
+    // the cached keys by term, guarded by itself
+    private final Map<String, Set<Key>> keysByTerm = new HashMap<>();
+
+    /**
+     * @param maxWeight the maximum estimated size of the cache in bytes
+     */
+    public ExpansionCache(long maxWeight) {
+        this.maxWeight = maxWeight;
+        this.cache = CacheBuilder.newBuilder()
+                .maximumWeight(maxWeight)
+                .weigher(new Weigher<Key, Expansion>() {
+                    @Override
+                    public int weigh(Key key, Expansion value) {
+                        return key.weight() + value.weight();
+                    }
+                })
+                .removalListener(new RemovalListener<Key, Expansion>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<Key, Expansion> notification) {
+                        unindex(notification.getKey());
+                    }
+                })
+                .recordStats()
+                .build();
+    }
+
+    /**
+     * Returns the expansion of a term, computing it if it is not cached. A
+     * cache hit does not allocate, on a miss the key is copied before it is
+     * stored.
+     *
+     * @param key the lookup key, which may be reused after the call
+     * @param loader computes the expansion on a cache miss
+     * @return the expansion
+     * @throws IOException if the expansion can not be computed
+     */
+    public Expansion get(Key key, Callable<Expansion> loader) throws IOException {
+        Expansion expansion = cache.getIfPresent(key);
+        if (expansion != null) {
+            return expansion;
+        }
+        try {
+            expansion = loader.call();
+        } catch (IOException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new IOException("could not expand " + key, e);
+        }
+        put(key, expansion);
+        return expansion;
+    }
+
+    /**
+     * Returns the cached expansion of a term
+     *
+     * @param key the lookup key, which may be reused after the call
+     * @return the expansion, or null if it is not cached
+     */
+    public Expansion getIfPresent(Key key) {
+        return cache.getIfPresent(key);
+    }
+
+    /**
+     * Caches the expansion of a term
+     *
+     * @param key the key, which is copied and may be reused after the call
+     * @param expansion the expansion
+     */
+    public void put(Key key, Expansion expansion) {
+        Key copy = key.copy();
+        cache.put(copy, expansion);
+        index(copy);
+    }
+
+    /**
+     * Removes the cached expansions of some terms, of all expansion and SKOS
+     * types. Terms are compared as given and lowercased.
+     *
+     * @param terms the terms, lowercase labels or URIs
+     * @return the number of removed expansions
+     */
+    public int invalidate(Collection<String> terms) {
+        List<Key> keys = new ArrayList<>();
+        synchronized (keysByTerm) {
+            for (String term : terms) {
+                addKeys(term, keys);
+                String lowercase = term.toLowerCase();
+                if (!lowercase.equals(term)) {
+                    addKeys(lowercase, keys);
+                }
+            }
+        }
+        int count = 0;
+        for (Key key : keys) {
+            if (cache.asMap().remove(key) != null) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private void addKeys(String term, List<Key> keys) {
+        Set<Key> termKeys = keysByTerm.get(term);
+        if (termKeys != null) {
+            keys.addAll(termKeys);
+        }
+    }
+
+    /**
+     * Indexes a key after it was put, and unindexes a key after it was
+     * removed, unless the cache changed again in the meantime. The check
+     * against the cache is made under the lock of the index, so the last
+     * change of a key decides whether it is indexed.
+     */
+    private void index(Key key) {
+        String term = key.toString();
+        synchronized (keysByTerm) {
+            if (!cache.asMap().containsKey(key)) {
+                // evicted at once
+                return;
+            }
+            Set<Key> keys = keysByTerm.get(term);
+            if (keys == null) {
+                keys = new HashSet<>();
+                keysByTerm.put(term, keys);
+            }
+            keys.add(key);
+        }
+    }
+
+    private void unindex(Key key) {
+        String term = key.toString();
+        synchronized (keysByTerm) {
+            if (cache.asMap().containsKey(key)) {
+                // put again, or replaced
+                return;
+            }
+            Set<Key> keys = keysByTerm.get(term);
+            if (keys != null && keys.remove(key) && keys.isEmpty()) {
+                keysByTerm.remove(term);
+            }
+        }
+    }
+
+    /**
+     * Removes all cached expansions
+     */
+    public void clear() {
+        cache.invalidateAll();
+    }
+
+    /**
+     * Returns the number of cached expansions
+     *
+     * @return the number of cached expansions
+     */
+    public long size() {
+        return cache.size();
+    }
+
+    /**
+     * Returns the estimated size of the cached keys and expansions
+     *
+     * @return the size in bytes
+     */
+    public long getSizeInBytes() {
+        long size = 0L;
+        for (Map.Entry<Key, Expansion> entry : cache.asMap().entrySet()) {
+            size += entry.getKey().weight() + entry.getValue().weight();
+        }
+        return size;
+    }
+
+    /**
+     * Returns hit, miss and eviction counts
+     *
+     * @return the cache statistics
+     */
+    public Map<String, Long> getStats() {
+        CacheStats stats = cache.stats();
+        Map<String, Long> map = new LinkedHashMap<>();
+        map.put("size", cache.size());
+        map.put("max_size_in_bytes", maxWeight);
+        map.put("hits", stats.hitCount());
+        map.put("misses", stats.missCount());
+        map.put("evictions", stats.evictionCount());
+        return map;
+    }
+
+    /**
+     * The analyzed terms of an expansion and their SKOS types, in the order
+     * they were produced by the engine
+     */
+    public static final class Expansion {
+
+        private final char[][] terms;
+
+        private final SKOSType[] types;
+
+        public Expansion(char[][] terms, SKOSType[] types) {
+            this.terms = terms;
+            this.types = types;
+        }
+
+        public int size() {
+            return terms.length;
+        }
+
+        public char[] term(int i) {
+            return terms[i];
+        }
+
+        public SKOSType type(int i) {
+            return types[i];
+        }
+
+        int weight() {
+            // object headers and the two arrays, two bytes per char plus the array header per term
+            int weight = 64 + 8 * terms.length;
+            for (char[] term : terms) {
+                weight += 16 + 2 * term.length;
+            }
+            return weight;
+        }
+    }
+
+    /**
+     * A cache key. A filter keeps one key and sets it to each term it looks
+     * up, the cache stores copies.
+     */
+    public static final class Key {
+
+        private final ExpansionType expansionType;
+
+        private final int typeMask;
+
+        private char[] term;
+
+        private int length;
+
+        private int hash;
+
+        /**
+         * @param expansionType the expansion type
+         * @param types the SKOS types to expand to
+         */
+        public Key(ExpansionType expansionType, Collection<SKOSType> types) {
+            this.expansionType = expansionType;
+            int mask = 0;
+            for (SKOSType type : types) {
+                mask |= 1 << type.ordinal();
+            }
+            this.typeMask = mask;
+            this.term = new char[16];
+        }
+
+        private Key(ExpansionType expansionType, int typeMask, char[] term, int hash) {
+            this.expansionType = expansionType;
+            this.typeMask = typeMask;
+            this.term = term;
+            this.length = term.length;
+            this.hash = hash;
+        }
+
+        /**
+         * Sets the term of this key to a part of a text
+         *
+         * @param text the text
+         * @param start the start of the term in the text
+         * @param end the end of the term in the text
+         * @param lowercase true if the term is lowercased
+         * @return this key
+         */
+        public Key set(CharSequence text, int start, int end, boolean lowercase) {
+            length = end - start;
+            if (term.length < length) {
+                term = new char[ArrayUtil.oversize(length, RamUsageEstimator.NUM_BYTES_CHAR)];
+            }
+            int h = 31 * expansionType.ordinal() + typeMask;
+            for (int i = 0; i < length; i++) {
+                char c = text.charAt(start + i);
+                if (lowercase) {
+                    c = Character.toLowerCase(c);
+                }
+                term[i] = c;
+                h = 31 * h + c;
+            }
+            hash = h;
+            return this;
+        }
+
+        Key copy() {
+            return new Key(expansionType, typeMask, Arrays.copyOf(term, length), hash);
+        }
+
+        int weight() {
+            return 56 + 2 * length;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            if (expansionType != other.expansionType || typeMask != other.typeMask
+                    || hash != other.hash || length != other.length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (term[i] != other.term[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public String toString() {
+            return new String(term, 0, length);
+        }
+    }
+}
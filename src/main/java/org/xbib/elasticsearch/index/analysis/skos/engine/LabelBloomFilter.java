@@ -0,0 +1,211 @@
+package org.xbib.elasticsearch.index.analysis.skos.engine;
+
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.CharsRefBuilder;
+import org.elasticsearch.common.metrics.CounterMetric;
+import org.elasticsearch.common.util.BloomFilter;
+
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A Bloom filter over the normalized labels of a vocabulary and over the word
+ * prefixes of its multi-word labels.
+ *
+ * A label is added as is, each word prefix of a multi-word label is added with
+ * a trailing space, so "united nations" adds "united nations" and "united ".
+ * A negative answer is definite, so a token that is neither a label nor the
+ * start of a label is rejected without asking the engine. As a label matcher,
+ * it may accept words that do not start a label, but never rejects words that
+ * do.
+ */
+public class LabelBloomFilter implements LabelMatcher {
+
+    /**
+     * Default false positive probability
+     */
+    public static final double DEFAULT_FPP = 0.01;
+
+    private final BloomFilter bloomFilter;
+
+    private volatile long entries;
+
+    private final CounterMetric lookups = new CounterMetric();
+
+    private final CounterMetric rejected = new CounterMetric();
+
+    private LabelBloomFilter(BloomFilter bloomFilter, long entries) {
+        this.bloomFilter = bloomFilter;
+        this.entries = entries;
+    }
+
+    /**
+     * Creates a Bloom filter over labels and their word prefixes
+     *
+     * @param labels the labels
+     * @param fpp the false positive probability
+     * @return the Bloom filter
+     */
+    public static LabelBloomFilter create(Collection<String> labels, double fpp) {
+        if (fpp <= 0.0 || fpp >= 1.0) {
+            throw new IllegalArgumentException("'bloomFilterFpp' must be between 0 and 1");
+        }
+        int expected = 0;
+        for (String label : labels) {
+            expected++;
+            for (int i = label.indexOf(' '); i >= 0; i = label.indexOf(' ', i + 1)) {
+                expected++;
+            }
+        }
+        BloomFilter bloomFilter = BloomFilter.create(Math.max(1, expected), fpp);
+        return new LabelBloomFilter(bloomFilter, put(bloomFilter, labels));
+    }
+
+    private static long put(BloomFilter bloomFilter, Collection<String> labels) {
+        long entries = 0;
+        for (String label : labels) {
+            String normalized = label.toLowerCase();
+            if (bloomFilter.put(new BytesRef(normalized))) {
+                entries++;
+            }
+            for (int i = normalized.indexOf(' '); i >= 0; i = normalized.indexOf(' ', i + 1)) {
+                if (bloomFilter.put(new BytesRef(normalized.substring(0, i + 1)))) {
+                    entries++;
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Adds labels and their word prefixes to the Bloom filter, for labels
+     * added by an incremental update. Removed labels can not be removed from
+     * the filter, they only cost a lookup. The false positive probability
+     * grows with the number of entries beyond the expected number.
+     *
+     * @param labels the labels
+     */
+    public synchronized void add(Collection<String> labels) {
+        entries += put(bloomFilter, labels);
+    }
+
+    /**
+     * Tests if a text may be a label
+     *
+     * @param text the text
+     * @return false if the text is not a label, true if it may be one
+     */
+    public boolean mightBeLabel(String text) {
+        return test(text.toLowerCase());
+    }
+
+    /**
+     * Tests if a text may be followed by more words of a label
+     *
+     * @param text the text
+     * @return false if no label starts with the words of the text, true if one may
+     */
+    public boolean mightBeLabelPrefix(String text) {
+        return test(text.toLowerCase() + ' ');
+    }
+
+    private boolean test(String normalized) {
+        return test(new BytesRef(normalized));
+    }
+
+    private boolean test(BytesRef bytes) {
+        lookups.inc();
+        if (bloomFilter.mightContain(bytes)) {
+            return true;
+        }
+        rejected.inc();
+        return false;
+    }
+
+    @Override
+    public Cursor cursor() {
+        return new BloomCursor();
+    }
+
+    /**
+     * Returns the expected false positive probability, computed from the
+     * number of bits, hash functions and entries
+     *
+     * @return the expected false positive probability
+     */
+    public double getExpectedFpp() {
+        double bits = bloomFilter.getSizeInBytes() * 8.0;
+        int k = bloomFilter.getNumHashFunctions();
+        return Math.pow(1.0 - Math.exp(-k * entries / bits), k);
+    }
+
+    /**
+     * Returns the memory used by the bit array
+     *
+     * @return the size in bytes
+     */
+    public long getSizeInBytes() {
+        return bloomFilter.getSizeInBytes();
+    }
+
+    /**
+     * Returns size, false positive probability and lookup counts
+     *
+     * @return the Bloom filter statistics
+     */
+    public Map<String, Object> getStats() {
+        Map<String, Object> map = new LinkedHashMap<>();
+        map.put("entries", entries);
+        map.put("size_in_bytes", getSizeInBytes());
+        map.put("hash_functions", bloomFilter.getNumHashFunctions());
+        map.put("expected_fpp", getExpectedFpp());
+        map.put("lookups", lookups.count());
+        map.put("rejected", rejected.count());
+        return map;
+    }
+
+    private final class BloomCursor implements Cursor {
+
+        private final CharsRefBuilder words = new CharsRefBuilder();
+
+        private final BytesRefBuilder bytes = new BytesRefBuilder();
+
+        private boolean label;
+
+        private boolean prefix;
+
+        @Override
+        public void reset() {
+            words.clear();
+            label = false;
+            prefix = false;
+        }
+
+        @Override
+        public boolean next(CharSequence word) {
+            if (words.length() > 0) {
+                words.append(' ');
+            }
+            for (int i = 0; i < word.length(); i++) {
+                words.append(Character.toLowerCase(word.charAt(i)));
+            }
+            bytes.copyChars(words.chars(), 0, words.length());
+            label = test(bytes.get());
+            bytes.append((byte) ' ');
+            prefix = test(bytes.get());
+            return label || prefix;
+        }
+
+        @Override
+        public boolean isLabel() {
+            return label;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return prefix;
+        }
+    }
+}
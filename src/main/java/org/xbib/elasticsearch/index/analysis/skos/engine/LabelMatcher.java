@@ -0,0 +1,53 @@
+package org.xbib.elasticsearch.index.analysis.skos.engine;
+
+import java.io.IOException;
+
+/**
+ * Matches a sequence of words against the normalized labels of a vocabulary,
+ * one word at a time. Words of a label are separated by a single space.
+ */
+public interface LabelMatcher {
+
+    /**
+     * Returns a new cursor positioned before the first word. A matcher is
+     * thread-safe, a cursor is not.
+     *
+     * @return the cursor
+     */
+    Cursor cursor();
+
+    /**
+     * The state of a match in progress
+     */
+    interface Cursor {
+
+        /**
+         * Starts a new match
+         */
+        void reset();
+
+        /**
+         * Appends a word to the match
+         *
+         * @param word the word, it is normalized by the cursor
+         * @return false if no label starts with the words appended so far
+         * @throws IOException if the underlying structure can not be read
+         */
+        boolean next(CharSequence word) throws IOException;
+
+        /**
+         * Tests if the words appended so far form a label
+         *
+         * @return true if the words may be a label
+         */
+        boolean isLabel();
+
+        /**
+         * Tests if a label continues after the words appended so far
+         *
+         * @return true if a label may have more words
+         * @throws IOException if the underlying structure can not be read
+         */
+        boolean hasNext() throws IOException;
+    }
+}
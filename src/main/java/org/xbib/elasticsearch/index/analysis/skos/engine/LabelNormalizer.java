@@ -0,0 +1,106 @@
+package org.xbib.elasticsearch.index.analysis.skos.engine;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.analysis.core.SimpleAnalyzer;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.util.CharsRef;
+import org.apache.lucene.util.CharsRefBuilder;
+import org.elasticsearch.common.settings.Settings;
+import org.xbib.elasticsearch.index.analysis.skos.AbstractSKOSFilter;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Normalizes labels into the form the filters emit. The analyzed tokens of a
+ * label are joined by a single space.
+ *
+ * The normalizer of an engine is chosen by the engine setting
+ * 'labelAnalyzer', one of standard (the default), simple, whitespace and
+ * keyword.
+ *
+ * A normalizer is thread-safe, analyzers reuse their token stream components
+ * per thread.
+ */
+public class LabelNormalizer {
+
+    /**
+     * The name of the engine setting
+     */
+    public static final String SETTING = "labelAnalyzer";
+
+    /**
+     * The normalizer of the SKOS filters, based on the standard analyzer
+     */
+    public static final LabelNormalizer DEFAULT = new LabelNormalizer("standard", new StandardAnalyzer());
+
+    private static final LabelNormalizer SIMPLE = new LabelNormalizer("simple", new SimpleAnalyzer());
+
+    private static final LabelNormalizer WHITESPACE = new LabelNormalizer("whitespace", new WhitespaceAnalyzer());
+
+    private static final LabelNormalizer KEYWORD = new LabelNormalizer("keyword", new KeywordAnalyzer());
+
+    private final String name;
+
+    private final Analyzer analyzer;
+
+    private LabelNormalizer(String name, Analyzer analyzer) {
+        this.name = name;
+        this.analyzer = analyzer;
+    }
+
+    /**
+     * Returns the normalizer chosen by the engine settings
+     *
+     * @param settings the engine settings
+     * @return the normalizer, {@link #DEFAULT} if the setting is missing
+     * @throws IllegalArgumentException if the setting names no normalizer
+     */
+    public static LabelNormalizer of(Settings settings) {
+        String name = settings.get(SETTING, DEFAULT.name);
+        switch (name.toLowerCase()) {
+            case "standard":
+                return DEFAULT;
+            case "simple":
+                return SIMPLE;
+            case "whitespace":
+                return WHITESPACE;
+            case "keyword":
+                return KEYWORD;
+            default:
+                throw new IllegalArgumentException("'" + SETTING + "' must be one of standard, simple, whitespace, keyword: " + name);
+        }
+    }
+
+    /**
+     * Returns the name of the normalizer, the value of the engine setting
+     *
+     * @return the name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Analyzes a label
+     *
+     * @param label the label
+     * @return the analyzed label, or null if the analyzer eliminates the label
+     * @throws IOException if the analyzer fails
+     */
+    public char[] normalize(String label) throws IOException {
+        try {
+            CharsRef chars = AbstractSKOSFilter.analyze(analyzer, label, new CharsRefBuilder());
+            return Arrays.copyOfRange(chars.chars, chars.offset, chars.offset + chars.length);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
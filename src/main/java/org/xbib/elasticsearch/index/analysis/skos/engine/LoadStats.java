@@ -0,0 +1,95 @@
+package org.xbib.elasticsearch.index.analysis.skos.engine;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Timings and counts of the stages of loading a SKOS vocabulary, in the
+ * order the stages ran.
+ */
+public class LoadStats {
+
+    private final Map<String, Long> timings = new LinkedHashMap<>();
+
+    private final Map<String, Long> counts = new LinkedHashMap<>();
+
+    private String stage;
+
+    private long start;
+
+    /**
+     * Starts timing a stage, and stops the previous stage if any
+     *
+     * @param stage the name of the stage
+     */
+    public synchronized void start(String stage) {
+        stop();
+        this.stage = stage;
+        this.start = System.nanoTime();
+    }
+
+    /**
+     * Stops timing the current stage
+     */
+    public synchronized void stop() {
+        if (stage != null) {
+            Long previous = timings.get(stage);
+            long elapsed = System.nanoTime() - start;
+            timings.put(stage, previous != null ? previous + elapsed : elapsed);
+            stage = null;
+        }
+    }
+
+    /**
+     * Returns the stage being timed
+     *
+     * @return the name of the stage, or null if no stage is running
+     */
+    public synchronized String getStage() {
+        return stage;
+    }
+
+    /**
+     * Sets a count, for example the number of triples or concepts
+     *
+     * @param name the name of the count
+     * @param value the value
+     */
+    public synchronized void count(String name, long value) {
+        counts.put(name, value);
+    }
+
+    /**
+     * Returns the time spent in each stage
+     *
+     * @return the stage names and their times in milliseconds
+     */
+    public synchronized Map<String, Long> getTimings() {
+        Map<String, Long> millis = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> entry : timings.entrySet()) {
+            millis.put(entry.getKey(), TimeUnit.NANOSECONDS.toMillis(entry.getValue()));
+        }
+        return Collections.unmodifiableMap(millis);
+    }
+
+    public synchronized Map<String, Long> getCounts() {
+        return Collections.unmodifiableMap(new LinkedHashMap<>(counts));
+    }
+
+    @Override
+    public synchronized String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Long> entry : getTimings().entrySet()) {
+            if (sb.length() > 0) {
+                sb.append(", ");
+            }
+            sb.append(entry.getKey()).append(" [").append(entry.getValue()).append("ms]");
+        }
+        for (Map.Entry<String, Long> entry : counts.entrySet()) {
+            sb.append(", ").append(entry.getKey()).append('=').append(entry.getValue());
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,136 @@
+package org.xbib.elasticsearch.index.analysis.skos.engine;
+
+import org.apache.lucene.util.RamUsageEstimator;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The estimated heap memory retained by the components of a SKOS engine,
+ * in the order the components were added.
+ *
+ * Sizes are estimates in the manner of Lucene's RamUsageEstimator: object
+ * headers, references and array contents are counted, shared objects such
+ * as interned strings are counted once per reference.
+ */
+public class MemoryUsage {
+
+    private static final long STRING_SIZE = RamUsageEstimator.shallowSizeOfInstance(String.class);
+
+    private static final long MAP_ENTRY_SIZE = RamUsageEstimator.NUM_BYTES_OBJECT_HEADER
+            + 4 * RamUsageEstimator.NUM_BYTES_OBJECT_REF;
+
+    private final Map<String, Long> sizes = new LinkedHashMap<>();
+
+    /**
+     * Adds the size of a component
+     *
+     * @param component the name of the component
+     * @param bytes the estimated size in bytes
+     * @return this memory usage
+     */
+    public MemoryUsage add(String component, long bytes) {
+        Long previous = sizes.get(component);
+        sizes.put(component, previous != null ? previous + bytes : bytes);
+        return this;
+    }
+
+    /**
+     * Returns the sum of the sizes of all components
+     *
+     * @return the total size in bytes
+     */
+    public long getTotal() {
+        long total = 0L;
+        for (Long bytes : sizes.values()) {
+            total += bytes;
+        }
+        return total;
+    }
+
+    /**
+     * Returns the sizes of the components
+     *
+     * @return the component names and their sizes in bytes
+     */
+    public Map<String, Long> getSizes() {
+        return Collections.unmodifiableMap(sizes);
+    }
+
+    /**
+     * Returns the estimated size of a string
+     *
+     * @param s the string
+     * @return the size in bytes
+     */
+    public static long sizeOf(String s) {
+        return STRING_SIZE + RamUsageEstimator.alignObjectSize(
+                RamUsageEstimator.NUM_BYTES_ARRAY_HEADER + RamUsageEstimator.NUM_BYTES_CHAR * s.length());
+    }
+
+    /**
+     * Returns the estimated size of an array of char arrays, null elements
+     * are counted as references only
+     *
+     * @param arrays the arrays
+     * @return the size in bytes
+     */
+    public static long sizeOf(char[][] arrays) {
+        long size = RamUsageEstimator.shallowSizeOf(arrays);
+        for (char[] array : arrays) {
+            if (array != null) {
+                size += RamUsageEstimator.sizeOf(array);
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Returns the estimated size of a value parsed from a JSON document:
+     * maps, collections, strings, numbers and booleans
+     *
+     * @param value the value
+     * @return the size in bytes
+     */
+    public static long sizeOfValue(Object value) {
+        if (value == null) {
+            return 0L;
+        }
+        if (value instanceof String) {
+            return sizeOf((String) value);
+        }
+        if (value instanceof char[]) {
+            return RamUsageEstimator.sizeOf((char[]) value);
+        }
+        if (value instanceof Map) {
+            long size = RamUsageEstimator.NUM_BYTES_OBJECT_HEADER
+                    + RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_ARRAY_HEADER
+                    + RamUsageEstimator.NUM_BYTES_OBJECT_REF * 2 * ((Map<?, ?>) value).size());
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                size += MAP_ENTRY_SIZE + sizeOfValue(entry.getKey()) + sizeOfValue(entry.getValue());
+            }
+            return size;
+        }
+        if (value instanceof Collection) {
+            long size = RamUsageEstimator.NUM_BYTES_OBJECT_HEADER
+                    + RamUsageEstimator.alignObjectSize(RamUsageEstimator.NUM_BYTES_ARRAY_HEADER
+                    + RamUsageEstimator.NUM_BYTES_OBJECT_REF * ((Collection<?>) value).size());
+            for (Object element : (Collection<?>) value) {
+                size += sizeOfValue(element);
+            }
+            return size;
+        }
+        return RamUsageEstimator.shallowSizeOf(value);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Long> entry : sizes.entrySet()) {
+            sb.append(entry.getKey()).append('=').append(entry.getValue()).append(", ");
+        }
+        return sb.append("total=").append(getTotal()).toString();
+    }
+}
@@ -15,8 +15,13 @@
  */
 package org.xbib.elasticsearch.index.analysis.skos.engine;
 
+import org.xbib.elasticsearch.index.analysis.skos.SKOSTypeAttribute.SKOSType;
+
 import java.io.IOException;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * An interface to the used SKOS model. It provides accessors to all the data
@@ -164,4 +169,63 @@ public interface SKOSEngine {
      * @throws IOException if method fails
      */
     List<String> getAltTerms(String label) throws IOException;
+
+    /**
+     * Returns the concepts (URIs) matching each of the given labels, in one
+     * call
+     *
+     * @param labels the labels
+     * @return the concepts of each label that matches a concept, in the order of the labels
+     * @throws IOException if method fails
+     */
+    Map<String, List<String>> getConcepts(Collection<String> labels) throws IOException;
+
+    /**
+     * Returns the labels of the given SKOS types for each of the given
+     * concepts, in one call. PREF, ALT and HIDDEN are the labels of the
+     * concept, the relation types are the labels (prefLabel + altLabel) of
+     * the related concepts.
+     *
+     * @param conceptURIs the concept URIs
+     * @param types the SKOS types
+     * @return the labels by type of each known concept, in the order of the URIs
+     * @throws IOException if method fails
+     */
+    Map<String, Map<SKOSType, List<String>>> getLabels(Collection<String> conceptURIs, Set<SKOSType> types)
+            throws IOException;
+
+    /**
+     * Returns a label as normalized by the {@link LabelNormalizer} of the
+     * engine, ready to be emitted by a filter. Engines normalize their labels when they are
+     * built, so this does not run an analyzer for labels of the engine.
+     *
+     * @param label a label returned by this engine
+     * @return the analyzed label, or null if the analyzer eliminates it
+     * @throws IOException if method fails
+     */
+    char[] getAnalyzedLabel(String label) throws IOException;
+
+    /**
+     * Returns the Bloom filter over the labels and label prefixes of the
+     * vocabulary, for rejecting tokens that can not match a label
+     *
+     * @return the Bloom filter, or null if there is none
+     */
+    LabelBloomFilter getLabelBloomFilter();
+
+    /**
+     * Returns the matcher for finding labels in a sequence of words
+     *
+     * @return the label matcher, or null if there is none
+     */
+    LabelMatcher getLabelMatcher();
+
+    /**
+     * Returns the estimated heap memory retained by the engine, for example
+     * by its labels, URIs, relations and caches. Structures that are only
+     * needed while the vocabulary is loaded are not retained.
+     *
+     * @return the memory usage by component
+     */
+    MemoryUsage getMemoryUsage();
 }
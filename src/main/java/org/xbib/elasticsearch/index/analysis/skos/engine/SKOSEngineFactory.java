@@ -15,21 +15,194 @@
  */
 package org.xbib.elasticsearch.index.analysis.skos.engine;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.HashMap;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
 
+import org.apache.lucene.util.IOUtils;
+import org.elasticsearch.action.ActionListener;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.common.io.PathUtils;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.env.NodeEnvironment;
+import org.xbib.elasticsearch.index.analysis.skos.engine.fst.FSTSKOSEngine;
 import org.xbib.elasticsearch.index.analysis.skos.engine.jena.SKOSEngineImpl;
+import org.xbib.elasticsearch.index.analysis.skos.engine.lucene.LuceneSKOSEngine;
 
 /**
- * This factory instantiates the various kinds of SKOSEngine implementations
+ * This factory instantiates the various kinds of SKOSEngine implementations.
+ *
+ * Engines are kept in a registry keyed by their full configuration. The first
+ * caller for a configuration builds the engine, concurrent callers for the same
+ * configuration wait for it instead of building it again.
+ *
+ * The storage of an engine (the SKOS index, the private Lucene index or the
+ * vocabulary snapshot) is named after the index name and the languages. Only
+ * one configuration can be registered for a storage name and engine type, a
+ * configuration with another SKOS file, stream or engine settings is rejected
+ * until the registered engine is released.
+ *
+ * Each registered engine is wrapped in a handle, so that it can be reloaded
+ * from its SKOS file and replaced while analyzers are using it.
  */
 public class SKOSEngineFactory {
 
-    private final static Map<String, SKOSEngine> cache = new HashMap<>();
+    /**
+     * The supported engine types
+     */
+    public enum EngineType {
+        /**
+         * concepts are stored in an Elasticsearch index and looked up by search requests
+         */
+        ELASTICSEARCH,
+        /**
+         * concepts are compiled into in-heap FSTs and arrays
+         */
+        FST,
+        /**
+         * concepts are stored in a private Lucene index under the node data path
+         */
+        LUCENE
+    }
+
+    /**
+     * Default engine type
+     */
+    public static final EngineType DEFAULT_ENGINE_TYPE = EngineType.ELASTICSEARCH;
+
+    /**
+     * Default maximum size of the expansion cache of an engine
+     */
+    public static final ByteSizeValue DEFAULT_EXPANSION_CACHE_SIZE = new ByteSizeValue(10, ByteSizeUnit.MB);
+
+    private final static ESLogger logger = ESLoggerFactory.getLogger(SKOSEngineFactory.class.getSimpleName());
+
+    private final static ConcurrentMap<EngineKey, Future<SKOSEngineHandle>> registry = new ConcurrentHashMap<>();
+
+    private final static ConcurrentMap<SKOSEngine, ExpansionCache> caches = new ConcurrentHashMap<>();
+
+    // the configuration registered for each storage name
+    private final static ConcurrentMap<String, EngineKey> storage = new ConcurrentHashMap<>();
+
+    /**
+     * The settings that change the engine built from a SKOS file, or how it
+     * looks up concepts. Engines with the same storage must agree on them.
+     */
+    private final static String[] ENGINE_SETTINGS = {
+            "maxTransitiveDepth", "enginePath", "snapshot", "bloomFilterFpp", "lookupTimeout", "localReplicas",
+            "deltaUpdate", LabelNormalizer.SETTING
+    };
+
+    // the timings and counts of engines being loaded for the first time
+    private final static ConcurrentMap<EngineKey, LoadStats> loading = new ConcurrentHashMap<>();
+
+    // the failures of the last attempt to load an engine
+    private final static ConcurrentMap<EngineKey, Throwable> failures = new ConcurrentHashMap<>();
+
+    // the load executors of the started nodes, the last one is used
+    private final static List<ExecutorService> loadExecutors = new CopyOnWriteArrayList<>();
+
+    // the load executor without a started node, its threads end when idle
+    private static ExecutorService defaultLoadExecutor;
+
+    /**
+     * The number of threads loading engines without a started node
+     */
+    private final static int DEFAULT_LOAD_THREADS = 2;
+
+    /**
+     * Registers the executor of a node for loading, reloading and updating
+     * engines in the background. The node unregisters it before it shuts the
+     * executor down.
+     *
+     * @param executor the executor
+     */
+    public static void addLoadExecutor(ExecutorService executor) {
+        loadExecutors.add(executor);
+    }
+
+    /**
+     * Unregisters the executor of a node
+     *
+     * @param executor the executor
+     */
+    public static void removeLoadExecutor(ExecutorService executor) {
+        loadExecutors.remove(executor);
+    }
+
+    /**
+     * Returns the executor of the last started node, or a bounded executor
+     * whose threads end when idle if the engines are used without a node
+     */
+    private static ExecutorService loadExecutor() {
+        ExecutorService[] executors = loadExecutors.toArray(new ExecutorService[0]);
+        if (executors.length > 0) {
+            return executors[executors.length - 1];
+        }
+        synchronized (SKOSEngineFactory.class) {
+            if (defaultLoadExecutor == null) {
+                defaultLoadExecutor = EsExecutors.newScaling("skos-load", 0, DEFAULT_LOAD_THREADS, 1L, TimeUnit.MINUTES,
+                        EsExecutors.daemonThreadFactory("skos-load"));
+            }
+            return defaultLoadExecutor;
+        }
+    }
+
+    /**
+     * Parses the 'engineType' setting
+     *
+     * @param settings the settings
+     * @return the engine type, or the default engine type if not set
+     */
+    public static EngineType engineType(Settings settings) {
+        try {
+            return EngineType.valueOf(settings.get("engineType", DEFAULT_ENGINE_TYPE.name()).toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("'engineType' must be one of ELASTICSEARCH, FST, LUCENE");
+        }
+    }
+
+    /**
+     * Sets the 'enginePath' setting to the 'skos' directory in the first data
+     * path of the node, unless it is set. Only the FST engine, for its
+     * vocabulary snapshot, and the LUCENE engine use the engine path.
+     *
+     * @param settings the settings
+     * @param nodeEnvironment the node environment, or null
+     * @return the settings with an engine path
+     */
+    public static Settings withDefaultEnginePath(Settings settings, NodeEnvironment nodeEnvironment) {
+        if (settings.get("enginePath") != null || nodeEnvironment == null || !nodeEnvironment.hasNodeFile()
+                || engineType(settings) == EngineType.ELASTICSEARCH) {
+            return settings;
+        }
+        return Settings.builder().put(settings)
+                .put("enginePath", nodeEnvironment.nodeDataPaths()[0].resolve("skos").toString())
+                .build();
+    }
 
     /**
      * Sets up a SKOS Engine from a given InputStream. The inputstream must
@@ -42,13 +215,14 @@ public class SKOSEngineFactory {
      * @return a new SKOSEngine instance
      * @throws IOException if SKOS engine can not be instantiated
      */
-    public static SKOSEngine getSKOSEngine(Client client, String indexName, InputStream inputStream, String lang) throws IOException {
-        if (cache.containsKey(indexName)) {
-            return cache.get(indexName);
-        }
-        SKOSEngine skosEngine = new SKOSEngineImpl(client, indexName, inputStream, lang);
-        cache.put(indexName, skosEngine);
-        return skosEngine;
+    public static SKOSEngine getSKOSEngine(final Client client, final String indexName, final InputStream inputStream,
+                                           final String lang) throws IOException {
+        return getOrBuild(new EngineKey(EngineType.ELASTICSEARCH, indexName, inputStream, null), new SKOSEngineHandle.Builder() {
+            @Override
+            public SKOSEngine build(LoadStats loadStats) throws IOException {
+                return new SKOSEngineImpl(client, indexName, inputStream, lang);
+            }
+        }, Settings.EMPTY).getEngine();
     }
 
     /**
@@ -64,14 +238,62 @@ public class SKOSEngineFactory {
      * @throws IOException if SKOS engine can not be instantiated
      */
     public static SKOSEngine getSKOSEngine(Client client, String indexName, String filenameOrURI, List<String> languages) throws IOException {
-        if (cache.containsKey(indexName)) {
-            return cache.get(indexName);
-        }
-        SKOSEngine skosEngine = new SKOSEngineImpl(client, indexName, filenameOrURI, languages);
-        cache.put(indexName, skosEngine);
-        return skosEngine;
+        return getSKOSEngine(client, indexName, filenameOrURI, languages, Settings.EMPTY);
     }
 
+    /**
+     * Sets up a SKOS Engine from a given rdf file (serialized in any RDF
+     * serialization format) and considers only those concept labels that are
+     * defined in the language parameter. The engine type and the engine
+     * options are taken from the settings.
+     *
+     * @param client the Elasticsearch client
+     * @param indexName the index name
+     * @param filenameOrURI the skos file
+     * @param languages the languages to be considered
+     * @param settings the settings, with the optional keys 'engineType' and 'maxTransitiveDepth'
+     * @return SKOSEngine
+     * @throws IOException if SKOS engine can not be instantiated
+     */
+    public static SKOSEngine getSKOSEngine(Client client, String indexName, String filenameOrURI,
+                                           List<String> languages, Settings settings) throws IOException {
+        return getEngineHandle(client, indexName, filenameOrURI, languages, settings).getEngine();
+    }
+
+    /**
+     * Sets up a SKOS Engine like {@link #getSKOSEngine(Client, String, String, List, Settings)}
+     * and returns the handle of the engine. Token filters hold the handle
+     * instead of the engine, so that they pick up reloaded versions.
+     *
+     * @param client the Elasticsearch client
+     * @param indexName the index name
+     * @param filenameOrURI the skos file
+     * @param languages the languages to be considered
+     * @param settings the settings, with the optional keys 'engineType' and 'maxTransitiveDepth'
+     * @return the engine handle
+     * @throws IOException if SKOS engine can not be instantiated
+     * @throws IllegalArgumentException if an engine with the same storage is
+     * registered from another SKOS file or with other engine settings
+     */
+    public static SKOSEngineHandle getEngineHandle(final Client client, final String indexName, final String filenameOrURI,
+                                                   final List<String> languages, final Settings settings) throws IOException {
+        final EngineType engineType = engineType(settings);
+        return getOrBuild(new EngineKey(engineType, indexName, filenameOrURI, languages, settings), new SKOSEngineHandle.Builder() {
+            @Override
+            public SKOSEngine build(LoadStats loadStats) throws IOException {
+                switch (engineType) {
+                    case FST:
+                        return new FSTSKOSEngine(snapshotFile(settings, indexName, languages),
+                                filenameOrURI, languages, settings, loadStats);
+                    case LUCENE:
+                        return new LuceneSKOSEngine(enginePath(settings, indexName, languages),
+                                filenameOrURI, languages, settings, loadStats);
+                    default:
+                        return new SKOSEngineImpl(client, indexName, filenameOrURI, languages, settings, loadStats);
+                }
+            }
+        }, settings);
+    }
 
     /**
      * Sets up a SKOS Engine from a given InputStream. The inputstream must
@@ -85,12 +307,474 @@ public class SKOSEngineFactory {
      * @return a new SKOSEngine instance
      * @throws IOException if SKOS engine can not be instantiated
      */
-    public static SKOSEngine getSKOSEngine(Client client, String indexName, InputStream inputStream, String format, List<String> languages) throws IOException {
-        if (cache.containsKey(indexName)) {
-            return cache.get(indexName);
+    public static SKOSEngine getSKOSEngine(final Client client, final String indexName, final InputStream inputStream,
+                                           final String format, final List<String> languages) throws IOException {
+        return getOrBuild(new EngineKey(EngineType.ELASTICSEARCH, indexName, inputStream, languages), new SKOSEngineHandle.Builder() {
+            @Override
+            public SKOSEngine build(LoadStats loadStats) throws IOException {
+                return new SKOSEngineImpl(client, indexName, inputStream, format, languages);
+            }
+        }, Settings.EMPTY).getEngine();
+    }
+
+    /**
+     * Returns the directory of a private engine index, named after the index
+     * name and the languages
+     */
+    private static Path enginePath(Settings settings, String indexName, List<String> languages) {
+        String enginePath = settings.get("enginePath");
+        if (enginePath == null) {
+            throw new IllegalArgumentException("'enginePath' is required for engine type LUCENE");
+        }
+        return PathUtils.get(enginePath).resolve(engineName(indexName, languages));
+    }
+
+    /**
+     * Returns the vocabulary snapshot file of an FST engine, named after the
+     * index name and the languages, or null if there is no engine path
+     */
+    private static Path snapshotFile(Settings settings, String indexName, List<String> languages) {
+        String enginePath = settings.get("enginePath");
+        if (enginePath == null || !settings.getAsBoolean("snapshot", true)) {
+            return null;
+        }
+        return PathUtils.get(enginePath).resolve(engineName(indexName, languages) + ".vocabulary");
+    }
+
+    private static String engineName(String indexName, List<String> languages) {
+        StringBuilder name = new StringBuilder(indexName);
+        if (languages != null) {
+            for (String language : new TreeSet<>(languages)) {
+                name.append('-').append(language);
+            }
+        }
+        return name.toString();
+    }
+
+    /**
+     * Returns the expansion cache of an engine, creating it on first use. All
+     * filters on top of the same engine share the cache. The size is taken
+     * from the 'expansionCacheSize' setting of the first caller, a size of 0
+     * disables caching.
+     *
+     * @param engine the SKOS engine
+     * @param settings the settings, with the optional key 'expansionCacheSize'
+     * @return the expansion cache, or null if caching is disabled
+     */
+    public static ExpansionCache getExpansionCache(SKOSEngine engine, Settings settings) {
+        if (engine == null) {
+            return null;
+        }
+        ByteSizeValue size = settings.getAsBytesSize("expansionCacheSize", DEFAULT_EXPANSION_CACHE_SIZE);
+        if (size.bytes() <= 0) {
+            return null;
+        }
+        ExpansionCache cache = caches.get(engine);
+        if (cache == null) {
+            ExpansionCache newCache = new ExpansionCache(size.bytes());
+            cache = caches.putIfAbsent(engine, newCache);
+            if (cache == null) {
+                cache = newCache;
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Returns the estimated heap memory retained by an engine and its
+     * expansion cache
+     *
+     * @param engine the SKOS engine
+     * @return the memory usage by component
+     */
+    public static MemoryUsage getMemoryUsage(SKOSEngine engine) {
+        MemoryUsage memoryUsage = engine.getMemoryUsage();
+        ExpansionCache cache = caches.get(engine);
+        if (cache != null) {
+            memoryUsage.add("expansion_cache", cache.getSizeInBytes());
+        }
+        return memoryUsage;
+    }
+
+    /**
+     * Loads an engine in the background, like
+     * {@link #getEngineHandle(Client, String, String, List, Settings)}. If the
+     * engine is registered, the listener is notified at once.
+     *
+     * @param client the Elasticsearch client
+     * @param indexName the index name
+     * @param filenameOrURI the skos file
+     * @param languages the languages to be considered
+     * @param settings the settings, with the optional keys 'engineType' and 'maxTransitiveDepth'
+     * @param listener notified when the engine is loaded or failed to load
+     */
+    public static void load(final Client client, final String indexName, final String filenameOrURI,
+                            final List<String> languages, final Settings settings,
+                            final ActionListener<SKOSEngineHandle> listener) {
+        // validates the settings before going to the background
+        engineType(settings);
+        loadExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                SKOSEngineHandle handle;
+                try {
+                    handle = getEngineHandle(client, indexName, filenameOrURI, languages, settings);
+                } catch (Throwable t) {
+                    listener.onFailure(t);
+                    return;
+                }
+                listener.onResponse(handle);
+            }
+        });
+    }
+
+    /**
+     * Returns the engine handle like
+     * {@link #getEngineHandle(Client, String, String, List, Settings)} and
+     * binds an index to it. The handle is not closed by {@link #release(String)}
+     * until the index calls {@link SKOSEngineHandle#release()}.
+     *
+     * @param client the Elasticsearch client
+     * @param indexName the index name
+     * @param filenameOrURI the skos file
+     * @param languages the languages to be considered
+     * @param settings the settings, with the optional keys 'engineType' and 'maxTransitiveDepth'
+     * @return the engine handle
+     * @throws IOException if SKOS engine can not be instantiated
+     */
+    public static SKOSEngineHandle retainEngineHandle(Client client, String indexName, String filenameOrURI,
+                                                      List<String> languages, Settings settings) throws IOException {
+        while (true) {
+            SKOSEngineHandle handle = getEngineHandle(client, indexName, filenameOrURI, languages, settings);
+            if (handle.retain()) {
+                return handle;
+            }
+            // released in between and removed from the registry, the next call builds it again
+        }
+    }
+
+    /**
+     * Returns the state, load progress and memory usage of the engines of an
+     * index name, including engines that are loading or failed to load
+     *
+     * @param indexName the index name, or null for all engines
+     * @return the engine infos
+     */
+    public static List<SKOSEngineInfo> getEngineInfos(String indexName) {
+        List<SKOSEngineInfo> infos = new ArrayList<>();
+        for (Map.Entry<EngineKey, Future<SKOSEngineHandle>> entry : registry.entrySet()) {
+            EngineKey key = entry.getKey();
+            if (indexName != null && !key.indexName.equals(indexName)) {
+                continue;
+            }
+            if (!entry.getValue().isDone()) {
+                LoadStats loadStats = loading.get(key);
+                infos.add(key.info(SKOSEngineInfo.State.LOADING)
+                        .loadStats(loadStats != null ? loadStats : new LoadStats()));
+                continue;
+            }
+            SKOSEngineHandle handle = handle(entry.getValue());
+            if (handle == null) {
+                // reported from the failures below
+                continue;
+            }
+            SKOSEngineHandle.Version version = handle.getCurrent();
+            LoadStats reloadStats = handle.getReloadStats();
+            SKOSEngineInfo info = key.info(reloadStats != null ? SKOSEngineInfo.State.RELOADING : SKOSEngineInfo.State.LOADED)
+                    .version(version.getVersion())
+                    .loadStats(version.getLoadStats())
+                    .reloadStats(reloadStats)
+                    .memoryUsage(getMemoryUsage(version.getEngine()))
+                    .breakerStats(handle.getBreaker().getStats())
+                    .failure(handle.getReloadFailure());
+            if (version.getCache() != null) {
+                info.cacheStats(version.getCache().getStats());
+            }
+            infos.add(info);
+        }
+        for (Map.Entry<EngineKey, Throwable> entry : failures.entrySet()) {
+            EngineKey key = entry.getKey();
+            if ((indexName == null || key.indexName.equals(indexName)) && !registry.containsKey(key)) {
+                infos.add(key.info(SKOSEngineInfo.State.FAILED).failure(entry.getValue()));
+            }
+        }
+        return infos;
+    }
+
+    /**
+     * Reloads all engines of an index name from their SKOS files. The new
+     * versions are built in the background and replace the current versions
+     * when they are complete. Engines loaded from a stream are skipped.
+     *
+     * @param indexName the index name
+     * @return the futures of the new versions
+     */
+    public static List<Future<SKOSEngineHandle.Version>> reload(String indexName) {
+        List<Future<SKOSEngineHandle.Version>> futures = new ArrayList<>();
+        for (Map.Entry<EngineKey, Future<SKOSEngineHandle>> entry : registry.entrySet()) {
+            if (entry.getKey().indexName.equals(indexName) && entry.getValue().isDone()) {
+                SKOSEngineHandle handle = handle(entry.getValue());
+                if (handle != null && handle.isReloadable()) {
+                    futures.add(handle.reload(loadExecutor()));
+                }
+            }
+        }
+        return futures;
+    }
+
+    /**
+     * Updates the elasticsearch engines of an index name in place, while they
+     * keep serving lookups. With a change set, the changes are applied to the
+     * SKOS index, otherwise the SKOS file is parsed again and only the changed
+     * concepts are written. The cached expansions of the affected terms are
+     * dropped. The other engine types are reloaded with {@link #reload(String)}.
+     *
+     * @param indexName the index name
+     * @param changeSet a change set file in the row format of RDF Patch, or null
+     * @return the futures of the changes
+     */
+    public static List<Future<ConceptDelta>> update(String indexName, final Path changeSet) {
+        List<Future<ConceptDelta>> futures = new ArrayList<>();
+        for (Map.Entry<EngineKey, Future<SKOSEngineHandle>> entry : registry.entrySet()) {
+            final EngineKey key = entry.getKey();
+            if (key.indexName.equals(indexName) && entry.getValue().isDone()) {
+                SKOSEngineHandle handle = handle(entry.getValue());
+                if (handle == null || !(handle.getEngine() instanceof SKOSEngineImpl)) {
+                    continue;
+                }
+                if (changeSet == null && !handle.isReloadable()) {
+                    continue;
+                }
+                final SKOSEngineImpl engine = (SKOSEngineImpl) handle.getEngine();
+                futures.add(loadExecutor().submit(new Callable<ConceptDelta>() {
+                    @Override
+                    public ConceptDelta call() throws IOException {
+                        ConceptDelta delta = changeSet != null ?
+                                engine.applyChanges(changeSet) : engine.update(key.filenameOrURI);
+                        ExpansionCache cache = caches.get(engine);
+                        if (cache != null) {
+                            cache.invalidate(delta.getAffectedTerms());
+                        }
+                        return delta;
+                    }
+                }));
+            }
+        }
+        return futures;
+    }
+
+    /**
+     * Removes all engines of an index name from the registry. An engine that
+     * is bound to indices keeps serving them and is closed when the last of
+     * them is closed, other engines are closed at once. A closed engine and
+     * its expansion cache are dropped as soon as no token stream uses them
+     * any more.
+     *
+     * @param indexName the index name
+     * @return the number of removed engines
+     */
+    public static int release(String indexName) {
+        int count = 0;
+        Iterator<EngineKey> failed = failures.keySet().iterator();
+        while (failed.hasNext()) {
+            if (failed.next().indexName.equals(indexName)) {
+                failed.remove();
+            }
+        }
+        Iterator<Map.Entry<EngineKey, Future<SKOSEngineHandle>>> it = registry.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<EngineKey, Future<SKOSEngineHandle>> entry = it.next();
+            if (entry.getKey().indexName.equals(indexName)) {
+                it.remove();
+                storage.remove(entry.getKey().storageName(), entry.getKey());
+                if (entry.getValue().isDone()) {
+                    SKOSEngineHandle handle = handle(entry.getValue());
+                    if (handle != null && !handle.unregister()) {
+                        logger.info("SKOS engine {} is released, it is closed with the last index using it", handle.getName());
+                    }
+                }
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Drops the expansion cache of an engine and closes the engine if it
+     * holds files. Called when the last user of an engine version is gone.
+     */
+    static void dispose(SKOSEngine engine) {
+        caches.remove(engine);
+        if (engine instanceof Closeable) {
+            IOUtils.closeWhileHandlingException((Closeable) engine);
+        }
+    }
+
+    /**
+     * Returns the handle of a completed future, or null if building failed
+     */
+    private static SKOSEngineHandle handle(Future<SKOSEngineHandle> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (ExecutionException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the engine handle registered for a configuration, or builds and
+     * registers it. Only one caller builds an engine for a configuration.
+     * If building fails, the configuration is removed from the registry so
+     * that a later call can retry, and the failure is kept for
+     * {@link #getEngineInfos(String)}. Engines with a SKOS file keep the
+     * builder for reloading.
+     */
+    private static SKOSEngineHandle getOrBuild(final EngineKey key, final SKOSEngineHandle.Builder builder,
+                                               final Settings settings) throws IOException {
+        Future<SKOSEngineHandle> future = registry.get(key);
+        if (future == null) {
+            EngineKey owner = storage.putIfAbsent(key.storageName(), key);
+            if (owner != null && !owner.equals(key)) {
+                throw new IllegalArgumentException("SKOS engine " + owner + " uses the storage of " + key
+                        + ", release it or use another indexName");
+            }
+            FutureTask<SKOSEngineHandle> task = new FutureTask<>(new Callable<SKOSEngineHandle>() {
+                @Override
+                public SKOSEngineHandle call() throws Exception {
+                    LoadStats loadStats = new LoadStats();
+                    loading.put(key, loadStats);
+                    try {
+                        SKOSEngine engine = builder.build(loadStats);
+                        failures.remove(key);
+                        return new SKOSEngineHandle(key.toString(), key.filenameOrURI != null ? builder : null,
+                                engine, loadStats, settings);
+                    } catch (Exception e) {
+                        failures.put(key, e);
+                        throw e;
+                    } finally {
+                        loading.remove(key);
+                    }
+                }
+            });
+            future = registry.putIfAbsent(key, task);
+            if (future == null) {
+                future = task;
+                task.run();
+            }
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while waiting for SKOS engine " + key, e);
+        } catch (ExecutionException e) {
+            if (registry.remove(key, future)) {
+                storage.remove(key.storageName(), key);
+            }
+            Throwable cause = e.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IOException("could not instantiate SKOS engine " + key, cause);
+        }
+    }
+
+    /**
+     * The configuration of an engine. An engine loaded from a stream is
+     * identified by the stream.
+     */
+    private static final class EngineKey {
+
+        private final EngineType engineType;
+
+        private final String indexName;
+
+        private final String filenameOrURI;
+
+        private final InputStream stream;
+
+        private final Set<String> languages;
+
+        private final Map<String, String> engineSettings;
+
+        EngineKey(EngineType engineType, String indexName, String filenameOrURI, List<String> languages,
+                  Settings settings) {
+            this(engineType, indexName, filenameOrURI, null, languages, settings);
+        }
+
+        EngineKey(EngineType engineType, String indexName, InputStream stream, List<String> languages) {
+            this(engineType, indexName, null, stream, languages, Settings.EMPTY);
+        }
+
+        private EngineKey(EngineType engineType, String indexName, String filenameOrURI, InputStream stream,
+                          List<String> languages, Settings settings) {
+            this.engineType = engineType;
+            this.indexName = indexName;
+            this.filenameOrURI = filenameOrURI;
+            this.stream = stream;
+            this.languages = languages != null ? new TreeSet<>(languages) : Collections.<String>emptySet();
+            this.engineSettings = new TreeMap<>();
+            for (String name : ENGINE_SETTINGS) {
+                String value = settings.get(name);
+                if (value != null) {
+                    engineSettings.put(name, value);
+                }
+            }
+        }
+
+        /**
+         * Returns the name of the storage of the engine, which is shared by
+         * all configurations with the same engine type, index name and
+         * languages
+         */
+        String storageName() {
+            return engineType.name().toLowerCase() + ":" + engineName(indexName, new ArrayList<>(languages));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof EngineKey)) {
+                return false;
+            }
+            EngineKey other = (EngineKey) o;
+            return engineType == other.engineType
+                    && indexName.equals(other.indexName)
+                    && (filenameOrURI != null ? filenameOrURI.equals(other.filenameOrURI) : other.filenameOrURI == null)
+                    && stream == other.stream
+                    && languages.equals(other.languages)
+                    && engineSettings.equals(other.engineSettings);
+        }
+
+        SKOSEngineInfo info(SKOSEngineInfo.State state) {
+            return new SKOSEngineInfo(indexName, engineType, filenameOrURI, new ArrayList<>(languages), state);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = engineType.hashCode();
+            result = 31 * result + indexName.hashCode();
+            result = 31 * result + (filenameOrURI != null ? filenameOrURI.hashCode() : 0);
+            result = 31 * result + System.identityHashCode(stream);
+            result = 31 * result + languages.hashCode();
+            result = 31 * result + engineSettings.hashCode();
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return engineType.name().toLowerCase() + ":" + indexName
+                    + (filenameOrURI != null ? ":" + filenameOrURI : "")
+                    + (stream != null ? ":stream" : "") + ":" + languages
+                    + (engineSettings.isEmpty() ? "" : ":" + engineSettings);
         }
-        SKOSEngine skosEngine = new SKOSEngineImpl(client, indexName, inputStream, format, languages);
-        cache.put(indexName, skosEngine);
-        return skosEngine;
     }
-}
\ No newline at end of file
+}
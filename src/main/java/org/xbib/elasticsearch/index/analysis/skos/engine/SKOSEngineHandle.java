@@ -0,0 +1,341 @@
+package org.xbib.elasticsearch.index.analysis.skos.engine;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.util.concurrent.AbstractRefCounted;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * A reference to the current version of a SKOS engine, which can be replaced
+ * by a new version while the old version is still in use.
+ *
+ * Filters acquire the current version when their token stream is reset and
+ * release it when the stream is closed. A reload builds a new version in the
+ * background and publishes it through a volatile reference, streams reset
+ * after that use the new version. The old version is closed, and its
+ * expansion cache dropped, when the last stream using it is closed.
+ */
+public class SKOSEngineHandle {
+
+    private final static ESLogger logger = ESLoggerFactory.getLogger(SKOSEngineHandle.class.getSimpleName());
+
+    private final String name;
+
+    private final Builder builder;
+
+    private final Settings settings;
+
+    private final ExpansionBreaker breaker;
+
+    private volatile Version current;
+
+    // the reload in progress or the last reload, guarded by this
+    private FutureTask<Version> reload;
+
+    // the progress of the reload in progress
+    private volatile LoadStats reloadStats;
+
+    // the failure of the last reload, or null
+    private volatile Throwable reloadFailure;
+
+    private volatile boolean closed;
+
+    // the number of indices bound to this handle, guarded by this
+    private int holders;
+
+    // true if the handle was removed from the registry, guarded by this
+    private boolean unregistered;
+
+    /**
+     * Builds the first version of an engine
+     *
+     * @param name the name of the engine, for logging
+     * @param builder builds a version of the engine, or null if the engine can not be reloaded
+     * @param engine the first version
+     * @param loadStats the timings and counts of loading the first version
+     * @param settings the settings, with the optional key 'expansionCacheSize' and the keys of
+     * {@link ExpansionBreaker}
+     */
+    SKOSEngineHandle(String name, Builder builder, SKOSEngine engine, LoadStats loadStats, Settings settings) {
+        this.name = name;
+        this.builder = builder;
+        this.settings = settings;
+        this.breaker = new ExpansionBreaker(name, settings);
+        this.current = new Version(engine, loadStats, 0L);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the current version of the engine without acquiring it. The
+     * engine may be closed by a reload while it is used.
+     *
+     * @return the current engine
+     */
+    public SKOSEngine getEngine() {
+        return current.engine;
+    }
+
+    /**
+     * Returns the circuit breaker of the filters using this engine, which is
+     * kept across reloads
+     *
+     * @return the breaker
+     */
+    public ExpansionBreaker getBreaker() {
+        return breaker;
+    }
+
+    /**
+     * Returns the current version without acquiring it, for setting up a
+     * stream before it is reset
+     *
+     * @return the current version
+     */
+    public Version getCurrent() {
+        return current;
+    }
+
+    /**
+     * Returns the number of the current version, starting at 0
+     *
+     * @return the version
+     */
+    public long getVersion() {
+        return current.version;
+    }
+
+    /**
+     * Acquires the current version, which must be released after use
+     *
+     * @return the current version
+     * @throws IllegalStateException if the handle is released
+     */
+    public Version acquire() {
+        while (true) {
+            Version version = current;
+            if (version.tryIncRef()) {
+                return version;
+            }
+            // closed is set before the last version is released, so it is seen here
+            if (closed) {
+                throw new IllegalStateException("SKOS engine " + name + " is released");
+            }
+            // the version was replaced and drained in between, read the new one
+        }
+    }
+
+    /**
+     * Returns whether the engine can be reloaded. Engines loaded from a
+     * stream can not be reloaded.
+     *
+     * @return true if the engine can be reloaded
+     */
+    public boolean isReloadable() {
+        return builder != null;
+    }
+
+    /**
+     * Returns the progress of the reload in progress
+     *
+     * @return the timings and counts so far, or null if no reload is in progress
+     */
+    public LoadStats getReloadStats() {
+        return reloadStats;
+    }
+
+    /**
+     * Returns why the last reload failed
+     *
+     * @return the failure, or null if the last reload succeeded or there was none
+     */
+    public Throwable getReloadFailure() {
+        return reloadFailure;
+    }
+
+    /**
+     * Builds a new version of the engine and publishes it. If a reload is
+     * in progress, no other reload is started.
+     *
+     * @param executor the executor for building the new version
+     * @return the future of the new version
+     */
+    public synchronized Future<Version> reload(Executor executor) {
+        if (builder == null) {
+            throw new IllegalStateException("SKOS engine " + name + " was loaded from a stream and can not be reloaded");
+        }
+        if (closed) {
+            throw new IllegalStateException("SKOS engine " + name + " is released");
+        }
+        if (reload != null && !reload.isDone()) {
+            return reload;
+        }
+        final LoadStats loadStats = new LoadStats();
+        reloadStats = loadStats;
+        reload = new FutureTask<>(new Callable<Version>() {
+            @Override
+            public Version call() throws Exception {
+                try {
+                    Version version = publish(builder.build(loadStats), loadStats);
+                    reloadFailure = null;
+                    return version;
+                } catch (Exception e) {
+                    reloadFailure = e;
+                    throw e;
+                } finally {
+                    reloadStats = null;
+                }
+            }
+        });
+        executor.execute(reload);
+        return reload;
+    }
+
+    /**
+     * Replaces the current version. The old version is closed as soon as it
+     * is no longer acquired.
+     */
+    private Version publish(SKOSEngine engine, LoadStats loadStats) {
+        Version old;
+        Version version;
+        synchronized (this) {
+            old = current;
+            version = new Version(engine, loadStats, old.version + 1);
+            if (closed) {
+                version.decRef();
+                throw new IllegalStateException("SKOS engine " + name + " is released");
+            }
+            current = version;
+        }
+        old.decRef();
+        logger.info("published version {} of SKOS engine {}", version.version, name);
+        return version;
+    }
+
+    /**
+     * Binds an index to this handle. A handle that is removed from the
+     * registry is not closed while indices are bound to it, because their
+     * analyzers keep acquiring it.
+     *
+     * @return true if the index is bound, false if the handle is removed from the registry
+     */
+    public synchronized boolean retain() {
+        if (closed || unregistered) {
+            return false;
+        }
+        holders++;
+        return true;
+    }
+
+    /**
+     * Unbinds an index from this handle, and closes the handle if it is
+     * removed from the registry and no other index is bound to it
+     */
+    public synchronized void release() {
+        if (holders > 0 && --holders == 0 && unregistered) {
+            close();
+        }
+    }
+
+    /**
+     * Marks the handle as removed from the registry and closes it, unless
+     * indices are bound to it
+     *
+     * @return true if the handle is closed, false if it is closed by the last index
+     */
+    synchronized boolean unregister() {
+        unregistered = true;
+        if (holders == 0) {
+            close();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Releases the current version. It is closed as soon as it is no longer
+     * acquired.
+     */
+    synchronized void close() {
+        if (!closed) {
+            closed = true;
+            current.decRef();
+        }
+    }
+
+    /**
+     * Builds a version of an engine
+     */
+    interface Builder {
+
+        /**
+         * @param loadStats receives the timings and counts while the engine is loaded
+         * @return the engine
+         * @throws IOException if the engine can not be loaded
+         */
+        SKOSEngine build(LoadStats loadStats) throws IOException;
+    }
+
+    /**
+     * A version of an engine and its expansion cache. The version is closed
+     * when the handle and all streams have released it.
+     */
+    public final class Version extends AbstractRefCounted {
+
+        private final SKOSEngine engine;
+
+        private final ExpansionCache cache;
+
+        private final LoadStats loadStats;
+
+        private final long version;
+
+        Version(SKOSEngine engine, LoadStats loadStats, long version) {
+            super(name);
+            this.engine = engine;
+            this.cache = SKOSEngineFactory.getExpansionCache(engine, settings);
+            this.loadStats = loadStats;
+            this.version = version;
+        }
+
+        public SKOSEngine getEngine() {
+            return engine;
+        }
+
+        /**
+         * Returns the expansion cache of this version
+         *
+         * @return the expansion cache, or null if caching is disabled
+         */
+        public ExpansionCache getCache() {
+            return cache;
+        }
+
+        /**
+         * Returns the timings and counts of loading this version
+         *
+         * @return the load statistics
+         */
+        public LoadStats getLoadStats() {
+            return loadStats;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        @Override
+        protected void closeInternal() {
+            SKOSEngineFactory.dispose(engine);
+            logger.debug("closed version {} of SKOS engine {}", version, name);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package org.xbib.elasticsearch.index.analysis.skos.engine;
+
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.xbib.elasticsearch.index.analysis.skos.engine.SKOSEngineFactory.EngineType;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The state, load progress and memory usage of a registered SKOS engine, as
+ * reported by the management endpoints.
+ */
+public class SKOSEngineInfo implements ToXContent {
+
+    /**
+     * The state of an engine
+     */
+    public enum State {
+        /**
+         * the first version is being loaded
+         */
+        LOADING,
+        /**
+         * the engine serves lookups
+         */
+        LOADED,
+        /**
+         * the engine serves lookups while a new version is being loaded
+         */
+        RELOADING,
+        /**
+         * the last attempt to load the engine failed
+         */
+        FAILED
+    }
+
+    private final String indexName;
+
+    private final EngineType engineType;
+
+    private final String skosFile;
+
+    private final List<String> languages;
+
+    private final State state;
+
+    private long version = -1L;
+
+    private LoadStats loadStats;
+
+    private LoadStats reloadStats;
+
+    private MemoryUsage memoryUsage;
+
+    private Map<String, Long> cacheStats;
+
+    private Map<String, Long> breakerStats;
+
+    private Throwable failure;
+
+    SKOSEngineInfo(String indexName, EngineType engineType, String skosFile, List<String> languages, State state) {
+        this.indexName = indexName;
+        this.engineType = engineType;
+        this.skosFile = skosFile;
+        this.languages = languages;
+        this.state = state;
+    }
+
+    SKOSEngineInfo version(long version) {
+        this.version = version;
+        return this;
+    }
+
+    SKOSEngineInfo loadStats(LoadStats loadStats) {
+        this.loadStats = loadStats;
+        return this;
+    }
+
+    SKOSEngineInfo reloadStats(LoadStats reloadStats) {
+        this.reloadStats = reloadStats;
+        return this;
+    }
+
+    SKOSEngineInfo memoryUsage(MemoryUsage memoryUsage) {
+        this.memoryUsage = memoryUsage;
+        return this;
+    }
+
+    SKOSEngineInfo cacheStats(Map<String, Long> cacheStats) {
+        this.cacheStats = cacheStats;
+        return this;
+    }
+
+    SKOSEngineInfo breakerStats(Map<String, Long> breakerStats) {
+        this.breakerStats = breakerStats;
+        return this;
+    }
+
+    SKOSEngineInfo failure(Throwable failure) {
+        this.failure = failure;
+        return this;
+    }
+
+    public String getIndexName() {
+        return indexName;
+    }
+
+    public EngineType getEngineType() {
+        return engineType;
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * Returns the number of the current version
+     *
+     * @return the version, or -1 if the engine is not loaded
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns the timings and counts of loading the current version, or of
+     * the first version while it is loading
+     *
+     * @return the load statistics, or null if the engine failed to load
+     */
+    public LoadStats getLoadStats() {
+        return loadStats;
+    }
+
+    /**
+     * Returns the estimated heap memory retained by the current version
+     *
+     * @return the memory usage, or null if the engine is not loaded
+     */
+    public MemoryUsage getMemoryUsage() {
+        return memoryUsage;
+    }
+
+    /**
+     * Returns the counters of the circuit breaker of the filters
+     *
+     * @return the breaker statistics, or null if the engine is not loaded
+     */
+    public Map<String, Long> getBreakerStats() {
+        return breakerStats;
+    }
+
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject();
+        builder.field("index_name", indexName);
+        builder.field("engine_type", engineType.name().toLowerCase());
+        if (skosFile != null) {
+            builder.field("skos_file", skosFile);
+        }
+        builder.field("languages", languages);
+        builder.field("state", state.name().toLowerCase());
+        if (version >= 0L) {
+            builder.field("version", version);
+        }
+        if (loadStats != null) {
+            builder.field("load");
+            buildLoadStats(builder, loadStats);
+        }
+        if (reloadStats != null) {
+            builder.field("reload");
+            buildLoadStats(builder, reloadStats);
+        }
+        if (memoryUsage != null) {
+            builder.startObject("memory");
+            builder.field("total_in_bytes", memoryUsage.getTotal());
+            for (Map.Entry<String, Long> entry : memoryUsage.getSizes().entrySet()) {
+                builder.field(entry.getKey() + "_in_bytes", entry.getValue());
+            }
+            builder.endObject();
+        }
+        if (cacheStats != null) {
+            builder.field("expansion_cache", cacheStats);
+        }
+        if (breakerStats != null) {
+            builder.field("breaker", breakerStats);
+        }
+        if (failure != null) {
+            builder.field("failure", failure.toString());
+        }
+        builder.endObject();
+        return builder;
+    }
+
+    private static void buildLoadStats(XContentBuilder builder, LoadStats loadStats) throws IOException {
+        builder.startObject();
+        String stage = loadStats.getStage();
+        if (stage != null) {
+            builder.field("stage", stage);
+        }
+        builder.field("timings_in_millis", loadStats.getTimings());
+        builder.field("counts", loadStats.getCounts());
+        builder.endObject();
+    }
+}
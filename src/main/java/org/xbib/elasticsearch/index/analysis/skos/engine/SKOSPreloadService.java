@@ -0,0 +1,198 @@
+package org.xbib.elasticsearch.index.analysis.skos.engine;
+
+import org.elasticsearch.action.admin.cluster.health.ClusterHealthResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.component.AbstractLifecycleComponent;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.env.NodeEnvironment;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads the thesauri listed in the node settings when the node starts, on a
+ * dedicated thread pool, so that the first index using a thesaurus does not
+ * pay for loading it on the thread creating the analyzer.
+ *
+ * Each thesaurus is a group under 'skos.preload', named after the indexName
+ * of the filters using it, with the settings of a SKOS filter:
+ *
+ * <pre>
+ * skos.preload.ukat.skosFile: /data/ukat.n3
+ * skos.preload.ukat.engineType: fst
+ * skos.preload.ukat.language: en
+ * </pre>
+ *
+ * Filters and analyzers with the same indexName, skosFile, engineType and
+ * language bind to the preloaded engine, or wait for it if it is still
+ * loading. The node is ready when all preloads completed or failed.
+ *
+ * The service also owns the bounded pool on which the node loads, reloads
+ * and updates engines in the background, sized by 'skos.load_threads'.
+ */
+public class SKOSPreloadService extends AbstractLifecycleComponent<SKOSPreloadService> {
+
+    private final Client client;
+
+    private final NodeEnvironment nodeEnvironment;
+
+    private final Map<String, Settings> preloads;
+
+    private final int threads;
+
+    private final int loadThreads;
+
+    private final TimeValue clusterTimeout;
+
+    private final CountDownLatch ready;
+
+    private final AtomicInteger failed = new AtomicInteger();
+
+    private ExecutorService executor;
+
+    private ExecutorService loadExecutor;
+
+    @Inject
+    public SKOSPreloadService(Settings settings, Client client, NodeEnvironment nodeEnvironment) {
+        super(settings);
+        this.client = client;
+        this.nodeEnvironment = nodeEnvironment;
+        this.preloads = settings.getGroups("skos.preload");
+        this.threads = settings.getAsInt("skos.preload_threads", Math.max(1, Math.min(4,
+                EsExecutors.boundedNumberOfProcessors(settings) / 2)));
+        this.loadThreads = settings.getAsInt("skos.load_threads", Math.max(1, Math.min(4,
+                EsExecutors.boundedNumberOfProcessors(settings) / 2)));
+        this.clusterTimeout = settings.getAsTime("skos.preload_cluster_timeout", TimeValue.timeValueMinutes(5));
+        this.ready = new CountDownLatch(preloads.size());
+        for (Map.Entry<String, Settings> entry : preloads.entrySet()) {
+            if (entry.getValue().get("skosFile") == null) {
+                throw new IllegalArgumentException("mandatory parameter 'skosFile' missing in skos.preload." + entry.getKey());
+            }
+            SKOSEngineFactory.engineType(entry.getValue());
+        }
+    }
+
+    @Override
+    protected void doStart() {
+        loadExecutor = EsExecutors.newScaling("skos-load", 0, loadThreads, 5L, TimeUnit.MINUTES,
+                EsExecutors.daemonThreadFactory(settings, "skos-load"));
+        SKOSEngineFactory.addLoadExecutor(loadExecutor);
+        if (preloads.isEmpty()) {
+            return;
+        }
+        executor = EsExecutors.newFixed("skos-preload", threads, preloads.size(),
+                EsExecutors.daemonThreadFactory(settings, "skos-preload"));
+        for (final Map.Entry<String, Settings> entry : preloads.entrySet()) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        preload(entry.getKey(), entry.getValue());
+                    } catch (Throwable t) {
+                        failed.incrementAndGet();
+                        logger.error("failed to preload SKOS thesaurus {}", t, entry.getKey());
+                    } finally {
+                        ready.countDown();
+                    }
+                }
+            });
+        }
+        logger.info("preloading SKOS thesauri {} on {} threads", preloads.keySet(), threads);
+    }
+
+    private void preload(String name, Settings settings) throws Exception {
+        long start = System.nanoTime();
+        SKOSEngineFactory.EngineType engineType = SKOSEngineFactory.engineType(settings);
+        if (engineType == SKOSEngineFactory.EngineType.ELASTICSEARCH) {
+            // the node has just started, the thesaurus index needs a formed cluster
+            ClusterHealthResponse health = client.admin().cluster().prepareHealth()
+                    .setWaitForYellowStatus()
+                    .setTimeout(clusterTimeout)
+                    .get();
+            if (health.isTimedOut()) {
+                throw new IllegalStateException("cluster health is not yellow after " + clusterTimeout
+                        + ": " + health.getStatus().name());
+            }
+        }
+        settings = SKOSEngineFactory.withDefaultEnginePath(settings, nodeEnvironment);
+        String languageString = settings.get("language");
+        List<String> languages = languageString != null ?
+                Arrays.asList(languageString.split(" ")) : Collections.<String>emptyList();
+        SKOSEngineFactory.getEngineHandle(client, name, settings.get("skosFile"), languages, settings);
+        logger.info("preloaded SKOS thesaurus {} in {}", name,
+                TimeValue.timeValueNanos(System.nanoTime() - start));
+    }
+
+    @Override
+    protected void doStop() {
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        if (loadExecutor != null) {
+            SKOSEngineFactory.removeLoadExecutor(loadExecutor);
+            loadExecutor.shutdownNow();
+        }
+    }
+
+    @Override
+    protected void doClose() {
+    }
+
+    /**
+     * Returns the names of the thesauri to preload
+     *
+     * @return the thesaurus names
+     */
+    public List<String> getPreloads() {
+        return Collections.unmodifiableList(new ArrayList<>(preloads.keySet()));
+    }
+
+    /**
+     * Returns whether all preloads completed or failed
+     *
+     * @return true if the node is ready
+     */
+    public boolean isReady() {
+        return ready.getCount() == 0;
+    }
+
+    /**
+     * Returns the number of preloads that did not complete yet
+     *
+     * @return the number of pending preloads
+     */
+    public long getPending() {
+        return ready.getCount();
+    }
+
+    /**
+     * Returns the number of preloads that failed
+     *
+     * @return the number of failed preloads
+     */
+    public int getFailed() {
+        return failed.get();
+    }
+
+    /**
+     * Waits until all preloads completed or failed
+     *
+     * @param timeout the maximum time to wait
+     * @param unit the unit of the timeout
+     * @return true if the node is ready, false if the timeout elapsed
+     * @throws InterruptedException if the thread is interrupted
+     */
+    public boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException {
+        return ready.await(timeout, unit);
+    }
+}
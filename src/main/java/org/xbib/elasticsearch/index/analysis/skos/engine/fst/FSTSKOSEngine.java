@@ -0,0 +1,523 @@
+package org.xbib.elasticsearch.index.analysis.skos.engine.fst;
+
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.settings.Settings;
+import org.xbib.elasticsearch.index.analysis.skos.SKOSTypeAttribute.SKOSType;
+import org.xbib.elasticsearch.index.analysis.skos.engine.LabelBloomFilter;
+import org.xbib.elasticsearch.index.analysis.skos.engine.LabelMatcher;
+import org.xbib.elasticsearch.index.analysis.skos.engine.LabelNormalizer;
+import org.xbib.elasticsearch.index.analysis.skos.engine.LoadStats;
+import org.xbib.elasticsearch.index.analysis.skos.engine.MemoryUsage;
+import org.xbib.elasticsearch.index.analysis.skos.engine.SKOSEngine;
+import org.xbib.elasticsearch.index.analysis.skos.engine.graph.Adjacency;
+import org.xbib.elasticsearch.index.analysis.skos.engine.graph.ConceptGraph;
+import org.xbib.elasticsearch.index.analysis.skos.engine.graph.FSTLabelMatcher;
+import org.xbib.elasticsearch.index.analysis.skos.engine.graph.TermDictionary;
+import org.xbib.elasticsearch.index.analysis.skos.engine.graph.Vocabulary;
+import org.xbib.elasticsearch.index.analysis.skos.engine.graph.VocabularySnapshot;
+import org.xbib.elasticsearch.index.analysis.skos.engine.jena.SKOSStreamLoader;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * SKOSEngine implementation that compiles the SKOS vocabulary into in-heap structures.
+ *
+ * Every resource is mapped to a dense concept ordinal in a {@link ConceptGraph}.
+ * Normalized (lowercase) pref, alt and hidden labels are compiled into a Lucene
+ * FST that yields a label ordinal. Labels of concepts, concepts of labels and
+ * relations are kept in CSR adjacency lists, so lookups are plain in-process reads.
+ *
+ * Given a snapshot file, the compiled vocabulary of a local SKOS file is written
+ * to a {@link VocabularySnapshot} and memory mapped on the next load instead of
+ * parsing the file again, as long as the checksum of the file is unchanged.
+ */
+public class FSTSKOSEngine implements SKOSEngine {
+
+    private final static ESLogger logger = ESLoggerFactory.getLogger(FSTSKOSEngine.class.getSimpleName());
+
+    /**
+     * The languages to be considered when returning labels.
+     *
+     * If NULL, all languages are supported
+     */
+    private Set<String> languages;
+
+    /**
+     * The maximum number of hops of the computed transitive relations, 0 for no limit
+     */
+    private final int maxTransitiveDepth;
+
+    // normalizes labels into the form the filters emit
+    private final LabelNormalizer normalizer;
+
+    // normalized label <-> label ordinal
+    private TermDictionary labels;
+    // concept URI <-> concept ordinal, relations between concepts
+    private ConceptGraph graph;
+    // label ordinal -> concept ordinals having this label as pref, alt or hidden label
+    private Adjacency labelConcepts;
+    // concept ordinal -> label ordinals
+    private Adjacency prefLabels;
+    private Adjacency altLabels;
+    private Adjacency hiddenLabels;
+    // label ordinal -> label as normalized by the filters, null if eliminated
+    private char[][] analyzedLabels;
+    // the mapped snapshot holding the analyzed labels, if loaded from a snapshot
+    private VocabularySnapshot snapshot;
+    // walks the label FST word by word
+    private LabelMatcher labelMatcher;
+
+    private final LoadStats loadStats;
+
+    /**
+     * This constructor loads the SKOS model from a given InputStream using the
+     * given serialization language parameter, which must be either N3, RDF/XML,
+     * or TURTLE.
+     *
+     * @param inputStream the input stream
+     * @param lang the serialization language
+     * @throws IOException if the model cannot be loaded
+     */
+    public FSTSKOSEngine(InputStream inputStream, String lang) throws IOException {
+        this(inputStream, lang, null);
+    }
+
+    /**
+     * This constructor loads the SKOS model from a given filename or URI
+     * and compiles it.
+     *
+     * @param filenameOrURI file name or URI
+     * @param languages the languages to be considered
+     * @throws IOException if compiling SKOS model fails
+     */
+    public FSTSKOSEngine(String filenameOrURI, List<String> languages) throws IOException {
+        this(filenameOrURI, languages, Settings.EMPTY);
+    }
+
+    /**
+     * This constructor loads the SKOS model from a given filename or URI
+     * and compiles it.
+     *
+     * @param filenameOrURI file name or URI
+     * @param languages the languages to be considered
+     * @param settings the engine settings
+     * @throws IOException if compiling SKOS model fails
+     */
+    public FSTSKOSEngine(String filenameOrURI, List<String> languages, Settings settings) throws IOException {
+        this(null, filenameOrURI, languages, settings);
+    }
+
+    /**
+     * This constructor maps the snapshot of a SKOS file, or loads and compiles
+     * the SKOS file and writes the snapshot. Snapshots are only used for local
+     * files, other URIs are always loaded.
+     *
+     * @param snapshotFile the snapshot file, or null for no snapshot
+     * @param filenameOrURI file name or URI
+     * @param languages the languages to be considered
+     * @param settings the engine settings
+     * @throws IOException if compiling SKOS model fails
+     */
+    public FSTSKOSEngine(Path snapshotFile, String filenameOrURI, List<String> languages, Settings settings)
+            throws IOException {
+        this(snapshotFile, filenameOrURI, languages, settings, new LoadStats());
+    }
+
+    /**
+     * This constructor maps the snapshot of a SKOS file, or loads and compiles
+     * the SKOS file and writes the snapshot, and reports its progress while
+     * it is loading.
+     *
+     * @param snapshotFile the snapshot file, or null for no snapshot
+     * @param filenameOrURI file name or URI
+     * @param languages the languages to be considered
+     * @param settings the engine settings
+     * @param loadStats receives the timings and counts while loading
+     * @throws IOException if compiling SKOS model fails
+     */
+    public FSTSKOSEngine(Path snapshotFile, String filenameOrURI, List<String> languages, Settings settings,
+                         LoadStats loadStats) throws IOException {
+        this.loadStats = loadStats;
+        this.maxTransitiveDepth = settings.getAsInt("maxTransitiveDepth", 0);
+        this.normalizer = LabelNormalizer.of(settings);
+        if (languages != null) {
+            this.languages = new TreeSet<>(languages);
+        }
+        Path source = snapshotFile != null ? SKOSStreamLoader.localFile(filenameOrURI) : null;
+        long checksum = 0L;
+        if (source != null) {
+            loadStats.start("snapshot");
+            checksum = VocabularySnapshot.checksum(source);
+            VocabularySnapshot snapshot = null;
+            try {
+                snapshot = VocabularySnapshot.open(snapshotFile, checksum, configuration());
+            } catch (IOException e) {
+                logger.warn("can not open SKOS snapshot {}, loading {}", e, snapshotFile, filenameOrURI);
+            }
+            if (snapshot != null) {
+                loadStats.stop();
+                loadStats.count("snapshotBytes", snapshot.sizeInBytes());
+                open(snapshot);
+                loadStats.count("retainedBytes", getMemoryUsage().getTotal());
+                logger.info("mapped SKOS vocabulary snapshot {}: {}", snapshotFile, loadStats);
+                return;
+            }
+        }
+        Vocabulary.Builder builder = new Vocabulary.Builder();
+        SKOSStreamLoader loader = new SKOSStreamLoader(builder, this.languages, loadStats);
+        loadStats.start("parse");
+        loader.load(filenameOrURI);
+        loadStats.count("triples", loader.getTriples());
+        Vocabulary vocabulary = compile(builder);
+        if (source != null) {
+            loadStats.start("write");
+            try {
+                VocabularySnapshot.write(snapshotFile, vocabulary, analyzedLabels, checksum, configuration());
+            } catch (IOException e) {
+                logger.warn("can not write SKOS snapshot {}", e, snapshotFile);
+            }
+            loadStats.stop();
+        }
+    }
+
+    /**
+     * This constructor loads the SKOS model from a given InputStream using the
+     * given serialization language parameter, which must be either N3, RDF/XML,
+     * or TURTLE.
+     *
+     * @param inputStream the input stream
+     * @param format the serialization language
+     * @param languages the languages
+     * @throws IOException if the model cannot be loaded
+     */
+    public FSTSKOSEngine(InputStream inputStream, String format, List<String> languages) throws IOException {
+        this.loadStats = new LoadStats();
+        this.maxTransitiveDepth = 0;
+        this.normalizer = LabelNormalizer.DEFAULT;
+        if (languages != null) {
+            this.languages = new TreeSet<>(languages);
+        }
+        Vocabulary.Builder builder = new Vocabulary.Builder();
+        SKOSStreamLoader loader = new SKOSStreamLoader(builder, this.languages, loadStats);
+        loadStats.start("parse");
+        loader.read(inputStream, format);
+        loadStats.count("triples", loader.getTriples());
+        compile(builder);
+    }
+
+    @Override
+    public List<String> getAltLabels(String conceptURI) throws IOException {
+        return readLabels(conceptURI, altLabels);
+    }
+
+    @Override
+    public List<String> getAltTerms(String label) throws IOException {
+        List<String> result = new LinkedList<>();
+        List<String> conceptURIs = getConcepts(label);
+        for (String conceptURI : conceptURIs) {
+            result.addAll(getAltLabels(conceptURI));
+        }
+        return result;
+    }
+
+    @Override
+    public List<String> getHiddenLabels(String conceptURI) throws IOException {
+        return readLabels(conceptURI, hiddenLabels);
+    }
+
+    @Override
+    public List<String> getBroaderConcepts(String conceptURI) throws IOException {
+        return readConcepts(conceptURI, SKOSType.BROADER);
+    }
+
+    @Override
+    public List<String> getBroaderLabels(String conceptURI) throws IOException {
+        return readRelatedLabels(conceptURI, SKOSType.BROADER);
+    }
+
+    @Override
+    public List<String> getBroaderTransitiveConcepts(String conceptURI) throws IOException {
+        return readConcepts(conceptURI, SKOSType.BROADERTRANSITIVE);
+    }
+
+    @Override
+    public List<String> getBroaderTransitiveLabels(String conceptURI) throws IOException {
+        return readRelatedLabels(conceptURI, SKOSType.BROADERTRANSITIVE);
+    }
+
+    @Override
+    public List<String> getConcepts(String label) throws IOException {
+        int labelOrd = labels.ordinal(label.toLowerCase());
+        if (labelOrd < 0) {
+            return Collections.emptyList();
+        }
+        List<String> result = new ArrayList<>(labelConcepts.degree(labelOrd));
+        for (int i = labelConcepts.start(labelOrd), end = labelConcepts.end(labelOrd); i < end; i++) {
+            result.add(graph.uri(labelConcepts.target(i)));
+        }
+        return result;
+    }
+
+    @Override
+    public List<String> getNarrowerConcepts(String conceptURI) throws IOException {
+        return readConcepts(conceptURI, SKOSType.NARROWER);
+    }
+
+    @Override
+    public List<String> getNarrowerLabels(String conceptURI) throws IOException {
+        return readRelatedLabels(conceptURI, SKOSType.NARROWER);
+    }
+
+    @Override
+    public List<String> getNarrowerTransitiveConcepts(String conceptURI) throws IOException {
+        return readConcepts(conceptURI, SKOSType.NARROWERTRANSITIVE);
+    }
+
+    @Override
+    public List<String> getNarrowerTransitiveLabels(String conceptURI) throws IOException {
+        return readRelatedLabels(conceptURI, SKOSType.NARROWERTRANSITIVE);
+    }
+
+    @Override
+    public List<String> getPrefLabels(String conceptURI) throws IOException {
+        return readLabels(conceptURI, prefLabels);
+    }
+
+    @Override
+    public List<String> getRelatedConcepts(String conceptURI) throws IOException {
+        return readConcepts(conceptURI, SKOSType.RELATED);
+    }
+
+    @Override
+    public List<String> getRelatedLabels(String conceptURI) throws IOException {
+        return readRelatedLabels(conceptURI, SKOSType.RELATED);
+    }
+
+    @Override
+    public Map<String, List<String>> getConcepts(Collection<String> labels) throws IOException {
+        Map<String, List<String>> result = new LinkedHashMap<>();
+        for (String label : labels) {
+            List<String> concepts = getConcepts(label);
+            if (!concepts.isEmpty()) {
+                result.put(label, concepts);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Map<SKOSType, List<String>>> getLabels(Collection<String> conceptURIs, Set<SKOSType> types)
+            throws IOException {
+        Map<String, Map<SKOSType, List<String>>> result = new LinkedHashMap<>();
+        for (String conceptURI : conceptURIs) {
+            int ord = conceptOrd(conceptURI);
+            if (ord < 0) {
+                continue;
+            }
+            Map<SKOSType, List<String>> conceptLabels = new EnumMap<>(SKOSType.class);
+            for (SKOSType type : types) {
+                List<String> list = new ArrayList<>();
+                switch (type) {
+                    case PREF:
+                        addLabels(list, prefLabels, ord);
+                        break;
+                    case ALT:
+                        addLabels(list, altLabels, ord);
+                        break;
+                    case HIDDEN:
+                        addLabels(list, hiddenLabels, ord);
+                        break;
+                    default:
+                        addRelatedLabels(list, graph.relation(type), ord);
+                        break;
+                }
+                conceptLabels.put(type, list);
+            }
+            result.put(conceptURI, conceptLabels);
+        }
+        return result;
+    }
+
+    @Override
+    public char[] getAnalyzedLabel(String label) throws IOException {
+        int labelOrd = labels.ordinal(label.toLowerCase());
+        if (labelOrd < 0) {
+            return normalizer.normalize(label);
+        }
+        return snapshot != null ? snapshot.analyzedLabel(labelOrd) : analyzedLabels[labelOrd];
+    }
+
+    /**
+     * The label FST is exact, so there is no Bloom filter
+     */
+    @Override
+    public LabelBloomFilter getLabelBloomFilter() {
+        return null;
+    }
+
+    @Override
+    public LabelMatcher getLabelMatcher() {
+        return labelMatcher;
+    }
+
+    @Override
+    public MemoryUsage getMemoryUsage() {
+        long conceptLabels = labelConcepts.ramBytesUsed();
+        for (Adjacency adjacency : new Adjacency[]{prefLabels, altLabels, hiddenLabels}) {
+            conceptLabels += adjacency.ramBytesUsed();
+        }
+        return new MemoryUsage()
+                .add("labels", labels.ramBytesUsed())
+                .add("graph", graph.ramBytesUsed())
+                .add("concept_labels", conceptLabels)
+                .add("analyzed_labels", analyzedLabels != null ? MemoryUsage.sizeOf(analyzedLabels) : 0L);
+    }
+
+    /**
+     * Returns the ordinal of a concept, or -1 if the URI is not a known concept
+     *
+     * @param conceptURI the concept URI
+     * @return the concept ordinal or -1
+     * @throws IOException if the FST can not be read
+     */
+    private int conceptOrd(String conceptURI) throws IOException {
+        int ord = graph.conceptOrdinal(conceptURI);
+        if (ord < 0) {
+            logger.warn("unknown concept " + conceptURI);
+        }
+        return ord;
+    }
+
+    private List<String> readLabels(String conceptURI, Adjacency field) throws IOException {
+        int ord = conceptOrd(conceptURI);
+        if (ord < 0) {
+            return Collections.emptyList();
+        }
+        List<String> result = new ArrayList<>(field.degree(ord));
+        addLabels(result, field, ord);
+        return result;
+    }
+
+    private List<String> readConcepts(String conceptURI, SKOSType relation) throws IOException {
+        int ord = conceptOrd(conceptURI);
+        if (ord < 0) {
+            return Collections.emptyList();
+        }
+        Adjacency field = graph.relation(relation);
+        List<String> result = new ArrayList<>(field.degree(ord));
+        for (int i = field.start(ord), end = field.end(ord); i < end; i++) {
+            result.add(graph.uri(field.target(i)));
+        }
+        return result;
+    }
+
+    /**
+     * Walks a relation of a concept and collects the pref and alt labels of
+     * the related concepts. Only label references are added to the result.
+     */
+    private List<String> readRelatedLabels(String conceptURI, SKOSType relation) throws IOException {
+        int ord = conceptOrd(conceptURI);
+        if (ord < 0) {
+            return Collections.emptyList();
+        }
+        List<String> result = new ArrayList<>();
+        addRelatedLabels(result, graph.relation(relation), ord);
+        return result;
+    }
+
+    private void addRelatedLabels(List<String> result, Adjacency field, int ord) {
+        for (int i = field.start(ord), end = field.end(ord); i < end; i++) {
+            int target = field.target(i);
+            addLabels(result, prefLabels, target);
+            addLabels(result, altLabels, target);
+        }
+    }
+
+    private void addLabels(List<String> result, Adjacency field, int ord) {
+        for (int i = field.start(ord), end = field.end(ord); i < end; i++) {
+            result.add(labels.term(field.target(i)));
+        }
+    }
+
+    /**
+     * Builds the vocabulary and keeps its lookup structures. The builder is
+     * not referenced afterwards.
+     *
+     * @param builder the vocabulary builder
+     * @return the vocabulary
+     * @throws IOException if the FSTs can not be built
+     */
+    private Vocabulary compile(Vocabulary.Builder builder) throws IOException {
+        Vocabulary vocabulary = builder.build(maxTransitiveDepth, loadStats);
+        use(vocabulary);
+        loadStats.start("normalize");
+        this.analyzedLabels = new char[labels.size()][];
+        for (int i = 0; i < analyzedLabels.length; i++) {
+            analyzedLabels[i] = normalizer.normalize(labels.term(i));
+        }
+        loadStats.stop();
+        loadStats.count("retainedBytes", getMemoryUsage().getTotal());
+        logger.info("compiled SKOS vocabulary: {}", loadStats);
+        return vocabulary;
+    }
+
+    /**
+     * Keeps the lookup structures of a mapped snapshot
+     *
+     * @param snapshot the snapshot
+     */
+    private void open(VocabularySnapshot snapshot) {
+        this.snapshot = snapshot;
+        use(snapshot.vocabulary());
+    }
+
+    private void use(Vocabulary vocabulary) {
+        this.graph = vocabulary.graph();
+        this.labels = vocabulary.labels();
+        this.prefLabels = vocabulary.labels(SKOSType.PREF);
+        this.altLabels = vocabulary.labels(SKOSType.ALT);
+        this.hiddenLabels = vocabulary.labels(SKOSType.HIDDEN);
+        this.labelConcepts = vocabulary.labelConcepts();
+        this.labelMatcher = new FSTLabelMatcher(labels);
+    }
+
+    /**
+     * Returns the settings that change the compiled vocabulary. A snapshot
+     * compiled with other settings is not used.
+     */
+    private String configuration() {
+        return "languages=" + (languages != null ? languages : "*") + ",maxTransitiveDepth=" + maxTransitiveDepth
+                + ",labelAnalyzer=" + normalizer;
+    }
+
+    /**
+     * Returns whether the vocabulary was mapped from a snapshot
+     *
+     * @return true if the vocabulary is read from a snapshot
+     */
+    public boolean isSnapshot() {
+        return snapshot != null;
+    }
+
+    /**
+     * Returns the timings and counts of loading the vocabulary
+     *
+     * @return the load statistics
+     */
+    public LoadStats getLoadStats() {
+        return loadStats;
+    }
+}
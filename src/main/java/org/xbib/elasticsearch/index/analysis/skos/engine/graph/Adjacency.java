@@ -0,0 +1,137 @@
+package org.xbib.elasticsearch.index.analysis.skos.engine.graph;
+
+import com.carrotsearch.hppc.IntArrayList;
+
+import org.apache.lucene.util.RamUsageEstimator;
+
+/**
+ * An immutable adjacency list in compressed sparse row (CSR) layout.
+ *
+ * The targets of node {@code n} are {@code targets[offsets[n]]} up to,
+ * but excluding, {@code targets[offsets[n + 1]]}. Walking the neighbours
+ * of a node is an array slice and does not allocate.
+ *
+ * Adjacency lists read from a {@link VocabularySnapshot} keep both arrays
+ * packed in the mapped file instead of the heap.
+ */
+public class Adjacency {
+
+    private final int[] offsets;
+
+    private final int[] targets;
+
+    Adjacency(int[] offsets, int[] targets) {
+        this.offsets = offsets;
+        this.targets = targets;
+    }
+
+    /**
+     * Returns the number of nodes
+     *
+     * @return the number of nodes
+     */
+    public int size() {
+        return offsets.length - 1;
+    }
+
+    /**
+     * Returns the first index of the targets of a node
+     *
+     * @param node the node
+     * @return the start index, inclusive
+     */
+    public int start(int node) {
+        return offsets[node];
+    }
+
+    /**
+     * Returns the last index of the targets of a node
+     *
+     * @param node the node
+     * @return the end index, exclusive
+     */
+    public int end(int node) {
+        return offsets[node + 1];
+    }
+
+    /**
+     * Returns the number of targets of a node
+     *
+     * @param node the node
+     * @return the degree
+     */
+    public int degree(int node) {
+        return offsets[node + 1] - offsets[node];
+    }
+
+    /**
+     * Returns the target at a given index
+     *
+     * @param index an index between start and end of a node
+     * @return the target
+     */
+    public int target(int index) {
+        return targets[index];
+    }
+
+    /**
+     * Returns the number of edges
+     *
+     * @return the number of edges
+     */
+    public int edges() {
+        return targets.length;
+    }
+
+    /**
+     * Returns the estimated heap size of the arrays
+     *
+     * @return the size in bytes
+     */
+    public long ramBytesUsed() {
+        return RamUsageEstimator.sizeOf(offsets) + RamUsageEstimator.sizeOf(targets);
+    }
+
+    /**
+     * Collects edges in insertion order and lays them out in CSR format.
+     */
+    public static class Builder {
+
+        private final IntArrayList from = new IntArrayList();
+
+        private final IntArrayList to = new IntArrayList();
+
+        public Builder add(int source, int target) {
+            from.add(source);
+            to.add(target);
+            return this;
+        }
+
+        /**
+         * Builds the adjacency list with a counting sort over the source nodes,
+         * so the targets of each node keep their insertion order.
+         *
+         * @param size the number of nodes, must be greater than every source node
+         * @return the adjacency list
+         */
+        public Adjacency build(int size) {
+            int[] offsets = new int[size + 1];
+            int[] sources = from.buffer;
+            int[] dests = to.buffer;
+            int n = from.size();
+            for (int i = 0; i < n; i++) {
+                offsets[sources[i] + 1]++;
+            }
+            for (int i = 0; i < size; i++) {
+                offsets[i + 1] += offsets[i];
+            }
+            int[] targets = new int[n];
+            int[] pos = new int[size];
+            System.arraycopy(offsets, 0, pos, 0, size);
+            for (int i = 0; i < n; i++) {
+                targets[pos[sources[i]]++] = dests[i];
+            }
+            return new Adjacency(offsets, targets);
+        }
+    }
+}
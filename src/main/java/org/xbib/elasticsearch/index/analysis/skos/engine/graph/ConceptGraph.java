@@ -0,0 +1,196 @@
+package org.xbib.elasticsearch.index.analysis.skos.engine.graph;
+
+import com.carrotsearch.hppc.IntArrayList;
+
+import org.apache.lucene.util.FixedBitSet;
+import org.xbib.elasticsearch.index.analysis.skos.SKOSTypeAttribute.SKOSType;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * The concept graph of a SKOS vocabulary.
+ *
+ * Every resource (concepts and relation targets) is mapped to a dense int
+ * ordinal. Each relation (broader, narrower, related and their transitive
+ * variants) is stored as an {@link Adjacency} in CSR layout, so hierarchy
+ * lookups are array slices over ordinals.
+ */
+public final class ConceptGraph {
+
+    /**
+     * The SKOS types that are relations between concepts
+     */
+    public static final SKOSType[] RELATIONS = new SKOSType[]{
+            SKOSType.BROADER,
+            SKOSType.NARROWER,
+            SKOSType.BROADERTRANSITIVE,
+            SKOSType.NARROWERTRANSITIVE,
+            SKOSType.RELATED
+    };
+
+    private final TermDictionary uris;
+
+    private final FixedBitSet concepts;
+
+    private final Adjacency[] relations;
+
+    ConceptGraph(TermDictionary uris, FixedBitSet concepts, Adjacency[] relations) {
+        this.uris = uris;
+        this.concepts = concepts;
+        this.relations = relations;
+    }
+
+    /**
+     * Returns the number of resources in the graph
+     *
+     * @return the number of resources
+     */
+    public int size() {
+        return uris.size();
+    }
+
+    /**
+     * Returns the ordinal of a resource
+     *
+     * @param uri the resource URI
+     * @return the ordinal, or -1 if the URI is unknown
+     * @throws IOException if the URI dictionary can not be read
+     */
+    public int ordinal(String uri) throws IOException {
+        return uris.ordinal(uri);
+    }
+
+    /**
+     * Returns the ordinal of a concept
+     *
+     * @param uri the concept URI
+     * @return the ordinal, or -1 if the URI is not a concept
+     * @throws IOException if the URI dictionary can not be read
+     */
+    public int conceptOrdinal(String uri) throws IOException {
+        int ord = uris.ordinal(uri);
+        return ord >= 0 && concepts.get(ord) ? ord : -1;
+    }
+
+    public String uri(int ord) {
+        return uris.term(ord);
+    }
+
+    public boolean isConcept(int ord) {
+        return concepts.get(ord);
+    }
+
+    public int concepts() {
+        return concepts.cardinality();
+    }
+
+    /**
+     * Returns the estimated heap size of the URIs, the concept bits and the
+     * relations
+     *
+     * @return the size in bytes
+     */
+    public long ramBytesUsed() {
+        long size = uris.ramBytesUsed() + concepts.ramBytesUsed();
+        for (SKOSType relation : RELATIONS) {
+            size += relations[relation.ordinal()].ramBytesUsed();
+        }
+        return size;
+    }
+
+    TermDictionary uris() {
+        return uris;
+    }
+
+    FixedBitSet conceptBits() {
+        return concepts;
+    }
+
+    /**
+     * Returns the adjacency list of a relation
+     *
+     * @param relation one of the {@link #RELATIONS}
+     * @return the adjacency list
+     */
+    public Adjacency relation(SKOSType relation) {
+        Adjacency adjacency = relations[relation.ordinal()];
+        if (adjacency == null) {
+            throw new IllegalArgumentException("not a relation: " + relation);
+        }
+        return adjacency;
+    }
+
+    /**
+     * Returns a graph with the same resources and the given relations
+     *
+     * @param relations the adjacency lists, indexed by SKOS type ordinal
+     * @return the new graph
+     */
+    ConceptGraph withRelations(Adjacency[] relations) {
+        return new ConceptGraph(uris, concepts, relations);
+    }
+
+    /**
+     * Collects resources and relation edges while a vocabulary is read.
+     */
+    public static class Builder {
+
+        private final TermDictionary.Builder uris = new TermDictionary.Builder();
+
+        private final Map<SKOSType, Adjacency.Builder> relations = new EnumMap<>(SKOSType.class);
+
+        private final IntArrayList conceptOrds = new IntArrayList();
+
+        public Builder() {
+            for (SKOSType relation : RELATIONS) {
+                relations.put(relation, new Adjacency.Builder());
+            }
+        }
+
+        /**
+         * Returns the ordinal of a resource, adding the resource if it is new
+         *
+         * @param uri the resource URI
+         * @return the ordinal
+         */
+        public int ordinal(String uri) {
+            return uris.ordinal(uri);
+        }
+
+        /**
+         * Marks a resource as a skos:Concept
+         *
+         * @param ord the ordinal of the resource
+         */
+        public void markConcept(int ord) {
+            conceptOrds.add(ord);
+        }
+
+        public void addEdge(SKOSType relation, int source, int target) {
+            Adjacency.Builder builder = relations.get(relation);
+            if (builder == null) {
+                throw new IllegalArgumentException("not a relation: " + relation);
+            }
+            builder.add(source, target);
+        }
+
+        public int size() {
+            return uris.size();
+        }
+
+        public ConceptGraph build() throws IOException {
+            int size = uris.size();
+            FixedBitSet bits = new FixedBitSet(size);
+            for (int i = 0; i < conceptOrds.size(); i++) {
+                bits.set(conceptOrds.get(i));
+            }
+            Adjacency[] adjacencies = new Adjacency[SKOSType.values().length];
+            for (Map.Entry<SKOSType, Adjacency.Builder> entry : relations.entrySet()) {
+                adjacencies[entry.getKey().ordinal()] = entry.getValue().build(size);
+            }
+            return new ConceptGraph(uris.build(), bits, adjacencies);
+        }
+    }
+}
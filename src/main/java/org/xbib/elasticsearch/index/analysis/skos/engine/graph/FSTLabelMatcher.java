@@ -0,0 +1,106 @@
+package org.xbib.elasticsearch.index.analysis.skos.engine.graph;
+
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.CharsRefBuilder;
+import org.apache.lucene.util.fst.FST;
+import org.xbib.elasticsearch.index.analysis.skos.engine.LabelMatcher;
+
+import java.io.IOException;
+
+/**
+ * An exact label matcher that walks the FST of a label dictionary. Each word
+ * advances the walk by its UTF-8 bytes, preceded by a space if it is not the
+ * first word, so a cursor only keeps the current arc of the longest prefix.
+ */
+public final class FSTLabelMatcher implements LabelMatcher {
+
+    private final FST<Long> fst;
+
+    /**
+     * @param labels the dictionary of normalized labels
+     */
+    public FSTLabelMatcher(TermDictionary labels) {
+        this.fst = labels.fst;
+    }
+
+    @Override
+    public Cursor cursor() {
+        return new FSTCursor();
+    }
+
+    private final class FSTCursor implements Cursor {
+
+        private final FST.BytesReader reader = fst != null ? fst.getBytesReader() : null;
+
+        private final FST.Arc<Long> arc = new FST.Arc<>();
+
+        private final FST.Arc<Long> scratchArc = new FST.Arc<>();
+
+        private final CharsRefBuilder chars = new CharsRefBuilder();
+
+        private final BytesRefBuilder bytes = new BytesRefBuilder();
+
+        private boolean started;
+
+        private boolean alive;
+
+        private boolean label;
+
+        private boolean prefix;
+
+        FSTCursor() {
+            reset();
+        }
+
+        @Override
+        public void reset() {
+            started = false;
+            label = false;
+            prefix = false;
+            alive = fst != null;
+            if (alive) {
+                fst.getFirstArc(arc);
+            }
+        }
+
+        @Override
+        public boolean next(CharSequence word) throws IOException {
+            if (!alive) {
+                return false;
+            }
+            label = false;
+            prefix = false;
+            if (started && fst.findTargetArc(' ', arc, arc, reader) == null) {
+                alive = false;
+                return false;
+            }
+            started = true;
+            chars.clear();
+            for (int i = 0; i < word.length(); i++) {
+                chars.append(Character.toLowerCase(word.charAt(i)));
+            }
+            bytes.copyChars(chars.chars(), 0, chars.length());
+            byte[] b = bytes.bytes();
+            for (int i = 0, len = bytes.length(); i < len; i++) {
+                if (fst.findTargetArc(b[i] & 0xff, arc, arc, reader) == null) {
+                    alive = false;
+                    return false;
+                }
+            }
+            label = arc.isFinal();
+            prefix = fst.findTargetArc(' ', arc, scratchArc, reader) != null;
+            alive = label || prefix;
+            return alive;
+        }
+
+        @Override
+        public boolean isLabel() {
+            return alive && label;
+        }
+
+        @Override
+        public boolean hasNext() {
+            return alive && prefix;
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package org.xbib.elasticsearch.index.analysis.skos.engine.graph;
+
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.RAMOutputStream;
+import org.apache.lucene.store.RandomAccessInput;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.BytesRefBuilder;
+import org.apache.lucene.util.LongValues;
+import org.apache.lucene.util.packed.DirectReader;
+import org.apache.lucene.util.packed.DirectWriter;
+
+import java.io.IOException;
+
+/**
+ * Strings by ordinal, front coded in blocks of {@link #BLOCK_SIZE} and read
+ * from a memory mapped file.
+ *
+ * The first term of a block is stored in full, every other term as the
+ * length of the prefix it shares with its predecessor and the remaining
+ * UTF-8 bytes. Looking up an ordinal decodes at most one block. Terms are
+ * kept in ordinal order, URIs in first occurrence order mostly share their
+ * namespace with their predecessor.
+ */
+final class FrontCodedTerms {
+
+    static final int BLOCK_SHIFT = 4;
+
+    static final int BLOCK_SIZE = 1 << BLOCK_SHIFT;
+
+    private final int size;
+
+    // block -> address of the block in the data
+    private final LongValues addresses;
+
+    private final RandomAccessInput data;
+
+    private FrontCodedTerms(int size, LongValues addresses, RandomAccessInput data) {
+        this.size = size;
+        this.addresses = addresses;
+        this.data = data;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Returns the term for an ordinal. Like the packed readers of Lucene, a
+     * failed read of the mapped file is rethrown unchecked.
+     *
+     * @param ord the ordinal
+     * @return the term
+     */
+    String term(int ord) {
+        try {
+            return decode(ord);
+        } catch (IOException e) {
+            throw new IllegalStateException("can not read term " + ord, e);
+        }
+    }
+
+    private String decode(int ord) throws IOException {
+        long pos = addresses.get(ord >>> BLOCK_SHIFT);
+        BytesRefBuilder term = new BytesRefBuilder();
+        int length = 0;
+        for (int i = ord & ~(BLOCK_SIZE - 1); i <= ord; i++) {
+            int prefix = 0;
+            if ((i & (BLOCK_SIZE - 1)) != 0) {
+                prefix = readVInt(pos);
+                pos += vIntLength(prefix);
+            }
+            int suffix = readVInt(pos);
+            pos += vIntLength(suffix);
+            length = prefix + suffix;
+            term.grow(length);
+            for (int j = prefix; j < length; j++) {
+                term.setByteAt(j, data.readByte(pos++));
+            }
+        }
+        term.setLength(length);
+        return term.get().utf8ToString();
+    }
+
+    private int readVInt(long pos) throws IOException {
+        byte b = data.readByte(pos);
+        int value = b & 0x7f;
+        for (int shift = 7; b < 0; shift += 7) {
+            b = data.readByte(++pos);
+            value |= (b & 0x7f) << shift;
+        }
+        return value;
+    }
+
+    private static int vIntLength(int value) {
+        int length = 1;
+        while ((value & ~0x7f) != 0) {
+            value >>>= 7;
+            length++;
+        }
+        return length;
+    }
+
+    /**
+     * Writes terms in ordinal order
+     *
+     * @param out the output
+     * @param terms the terms
+     * @throws IOException if the output can not be written
+     */
+    static void write(IndexOutput out, String[] terms) throws IOException {
+        out.writeVInt(terms.length);
+        int blocks = (terms.length + BLOCK_SIZE - 1) >>> BLOCK_SHIFT;
+        long[] addresses = new long[blocks];
+        RAMOutputStream data = new RAMOutputStream();
+        BytesRef previous = new BytesRef();
+        for (int i = 0; i < terms.length; i++) {
+            BytesRef term = new BytesRef(terms[i]);
+            int prefix = 0;
+            if ((i & (BLOCK_SIZE - 1)) == 0) {
+                addresses[i >>> BLOCK_SHIFT] = data.getFilePointer();
+            } else {
+                prefix = sharedPrefix(previous, term);
+                data.writeVInt(prefix);
+            }
+            data.writeVInt(term.length - prefix);
+            data.writeBytes(term.bytes, term.offset + prefix, term.length - prefix);
+            previous = term;
+        }
+        writePacked(out, addresses, data.getFilePointer());
+        out.writeVLong(data.getFilePointer());
+        data.writeTo(out);
+    }
+
+    private static int sharedPrefix(BytesRef left, BytesRef right) {
+        int length = Math.min(left.length, right.length);
+        int i = 0;
+        while (i < length && left.bytes[left.offset + i] == right.bytes[right.offset + i]) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Reads terms written by {@link #write} and positions the input after them
+     *
+     * @param in the input of a memory mapped file
+     * @return the terms, backed by the file
+     * @throws IOException if the input can not be read
+     */
+    static FrontCodedTerms read(IndexInput in) throws IOException {
+        int size = in.readVInt();
+        LongValues addresses = readPacked(in);
+        long length = in.readVLong();
+        RandomAccessInput data = in.randomAccessSlice(in.getFilePointer(), length);
+        in.seek(in.getFilePointer() + length);
+        return new FrontCodedTerms(size, addresses, data);
+    }
+
+    /**
+     * Writes values bit packed, preceded by the number of bits per value and
+     * the length of the packed bytes
+     *
+     * @param out the output
+     * @param values the values
+     * @param maxValue an upper bound of the values
+     * @throws IOException if the output can not be written
+     */
+    static void writePacked(IndexOutput out, long[] values, long maxValue) throws IOException {
+        int bitsPerValue = DirectWriter.unsignedBitsRequired(maxValue);
+        RAMOutputStream packed = new RAMOutputStream();
+        DirectWriter writer = DirectWriter.getInstance(packed, values.length, bitsPerValue);
+        for (long value : values) {
+            writer.add(value);
+        }
+        writer.finish();
+        out.writeByte((byte) bitsPerValue);
+        out.writeVLong(packed.getFilePointer());
+        packed.writeTo(out);
+    }
+
+    /**
+     * Reads values written by {@link #writePacked} without copying them to the
+     * heap, and positions the input after them
+     *
+     * @param in the input of a memory mapped file
+     * @return the values, backed by the file
+     * @throws IOException if the input can not be read
+     */
+    static LongValues readPacked(IndexInput in) throws IOException {
+        int bitsPerValue = in.readByte();
+        long length = in.readVLong();
+        RandomAccessInput slice = in.randomAccessSlice(in.getFilePointer(), length);
+        in.seek(in.getFilePointer() + length);
+        return DirectReader.getInstance(slice, bitsPerValue);
+    }
+}
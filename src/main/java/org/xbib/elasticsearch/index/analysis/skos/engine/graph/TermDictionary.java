@@ -0,0 +1,168 @@
+package org.xbib.elasticsearch.index.analysis.skos.engine.graph;
+
+import com.carrotsearch.hppc.ObjectIntHashMap;
+
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IntsRefBuilder;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.PositiveIntOutputs;
+import org.apache.lucene.util.fst.Util;
+import org.xbib.elasticsearch.index.analysis.skos.engine.MemoryUsage;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * An immutable mapping between strings and dense ordinals. The string to
+ * ordinal direction is a Lucene FST, the ordinal to string direction an array.
+ *
+ * Dictionaries read from a {@link VocabularySnapshot} keep the ordinal to
+ * string direction front coded in the mapped file instead of the heap.
+ */
+public class TermDictionary {
+
+    final FST<Long> fst;
+
+    private final String[] terms;
+
+    TermDictionary(FST<Long> fst, String[] terms) {
+        this.fst = fst;
+        this.terms = terms;
+    }
+
+    /**
+     * Returns the number of terms
+     *
+     * @return the number of terms
+     */
+    public int size() {
+        return terms.length;
+    }
+
+    /**
+     * Returns the ordinal of a term
+     *
+     * @param term the term
+     * @return the ordinal, or -1 if the term is unknown
+     * @throws IOException if the FST can not be read
+     */
+    public int ordinal(String term) throws IOException {
+        if (fst == null) {
+            return -1;
+        }
+        Long ord = Util.get(fst, new BytesRef(term));
+        return ord != null ? ord.intValue() : -1;
+    }
+
+    /**
+     * Returns the term for an ordinal
+     *
+     * @param ord the ordinal
+     * @return the term
+     */
+    public String term(int ord) {
+        return terms[ord];
+    }
+
+    /**
+     * Returns all terms in the order of their ordinals
+     *
+     * @return the terms
+     */
+    public List<String> terms() {
+        return Collections.unmodifiableList(Arrays.asList(terms));
+    }
+
+    /**
+     * Returns the estimated heap size of the FST and the terms
+     *
+     * @return the size in bytes
+     */
+    public long ramBytesUsed() {
+        long size = fst != null ? fst.ramBytesUsed() : 0L;
+        size += RamUsageEstimator.shallowSizeOf(terms);
+        for (String term : terms) {
+            size += MemoryUsage.sizeOf(term);
+        }
+        return size;
+    }
+
+    /**
+     * Assigns ordinals to terms in the order of their first occurrence.
+     */
+    public static class Builder {
+
+        private final ObjectIntHashMap<String> ords = new ObjectIntHashMap<>();
+
+        private final List<String> terms = new ArrayList<>();
+
+        /**
+         * Returns the ordinal of a term, adding the term if it is new
+         *
+         * @param term the term
+         * @return the ordinal
+         */
+        public int ordinal(String term) {
+            int ord = ords.getOrDefault(term, -1);
+            if (ord < 0) {
+                ord = terms.size();
+                ords.put(term, ord);
+                terms.add(term);
+            }
+            return ord;
+        }
+
+        /**
+         * Returns the ordinal of a term without adding it
+         *
+         * @param term the term
+         * @return the ordinal, or -1 if the term is unknown
+         */
+        public int lookup(String term) {
+            return ords.getOrDefault(term, -1);
+        }
+
+        public int size() {
+            return terms.size();
+        }
+
+        public TermDictionary build() throws IOException {
+            String[] values = terms.toArray(new String[terms.size()]);
+            return new TermDictionary(buildFST(values), values);
+        }
+
+        /**
+         * Builds an FST mapping each value to its position in the given array
+         *
+         * @param values the values
+         * @return the FST, or null if there are no values
+         * @throws IOException if the FST can not be built
+         */
+        private static FST<Long> buildFST(String[] values) throws IOException {
+            final BytesRef[] keys = new BytesRef[values.length];
+            Integer[] order = new Integer[values.length];
+            for (int i = 0; i < values.length; i++) {
+                keys[i] = new BytesRef(values[i]);
+                order[i] = i;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer o1, Integer o2) {
+                    return keys[o1].compareTo(keys[o2]);
+                }
+            });
+            org.apache.lucene.util.fst.Builder<Long> builder =
+                    new org.apache.lucene.util.fst.Builder<>(FST.INPUT_TYPE.BYTE1, PositiveIntOutputs.getSingleton());
+            IntsRefBuilder scratch = new IntsRefBuilder();
+            for (Integer i : order) {
+                builder.add(Util.toIntsRef(keys[i], scratch), (long) i);
+            }
+            return builder.finish();
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package org.xbib.elasticsearch.index.analysis.skos.engine.graph;
+
+import com.carrotsearch.hppc.IntArrayList;
+
+import org.xbib.elasticsearch.index.analysis.skos.SKOSTypeAttribute.SKOSType;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Computes the transitive closure of the concept hierarchy.
+ *
+ * The hierarchy consists of all skos:broader edges, the inverse of all
+ * skos:narrower edges, and the explicitly stated skos:broaderTransitive and
+ * inverse skos:narrowerTransitive edges. Vocabularies that only assert
+ * skos:broader therefore get complete transitive relations.
+ *
+ * Without a depth limit, the ancestors of each strongly connected component
+ * are computed once in reverse topological order and reused by all of its
+ * descendants, so cycles terminate and shared ancestry is not walked twice.
+ * With a depth limit, a breadth-first walk per concept stops at the given
+ * number of hops.
+ *
+ * The result is stored as CSR adjacency lists, so its size is the number of
+ * (concept, ancestor) pairs in each direction.
+ */
+public final class TransitiveClosure {
+
+    private TransitiveClosure() {
+    }
+
+    /**
+     * Returns a copy of the graph with computed broader transitive and narrower
+     * transitive relations.
+     *
+     * @param graph the concept graph
+     * @param maxDepth the maximum number of hops, or 0 for no limit
+     * @return the graph with the transitive closure
+     */
+    public static ConceptGraph apply(ConceptGraph graph, int maxDepth) {
+        int size = graph.size();
+        Adjacency parents = hierarchy(graph);
+        Adjacency ancestors = maxDepth > 0 ? bounded(parents, maxDepth) : memoised(parents);
+        Adjacency.Builder descendants = new Adjacency.Builder();
+        for (int node = 0; node < size; node++) {
+            for (int i = ancestors.start(node), end = ancestors.end(node); i < end; i++) {
+                descendants.add(ancestors.target(i), node);
+            }
+        }
+        Adjacency[] relations = new Adjacency[SKOSType.values().length];
+        for (SKOSType relation : ConceptGraph.RELATIONS) {
+            relations[relation.ordinal()] = graph.relation(relation);
+        }
+        relations[SKOSType.BROADERTRANSITIVE.ordinal()] = ancestors;
+        relations[SKOSType.NARROWERTRANSITIVE.ordinal()] = descendants.build(size);
+        return graph.withRelations(relations);
+    }
+
+    /**
+     * Collects the direct and explicitly stated transitive parent edges
+     */
+    private static Adjacency hierarchy(ConceptGraph graph) {
+        Adjacency.Builder builder = new Adjacency.Builder();
+        addEdges(builder, graph.relation(SKOSType.BROADER), false);
+        addEdges(builder, graph.relation(SKOSType.NARROWER), true);
+        addEdges(builder, graph.relation(SKOSType.BROADERTRANSITIVE), false);
+        addEdges(builder, graph.relation(SKOSType.NARROWERTRANSITIVE), true);
+        return builder.build(graph.size());
+    }
+
+    private static void addEdges(Adjacency.Builder builder, Adjacency adjacency, boolean inverse) {
+        for (int node = 0; node < adjacency.size(); node++) {
+            for (int i = adjacency.start(node), end = adjacency.end(node); i < end; i++) {
+                if (inverse) {
+                    builder.add(adjacency.target(i), node);
+                } else {
+                    builder.add(node, adjacency.target(i));
+                }
+            }
+        }
+    }
+
+    /**
+     * Breadth-first walk per node, limited to maxDepth hops. A stamp array
+     * marks visited nodes, which makes the walk safe against cycles.
+     */
+    private static Adjacency bounded(Adjacency parents, int maxDepth) {
+        int size = parents.size();
+        int[] stamp = new int[size];
+        IntArrayList queue = new IntArrayList();
+        Adjacency.Builder builder = new Adjacency.Builder();
+        for (int node = 0; node < size; node++) {
+            if (parents.degree(node) == 0) {
+                continue;
+            }
+            int mark = node + 1;
+            stamp[node] = mark;
+            queue.clear();
+            queue.add(node);
+            int head = 0;
+            for (int depth = 0; depth < maxDepth && head < queue.size(); depth++) {
+                int levelEnd = queue.size();
+                for (; head < levelEnd; head++) {
+                    int current = queue.get(head);
+                    for (int i = parents.start(current), end = parents.end(current); i < end; i++) {
+                        int parent = parents.target(i);
+                        if (stamp[parent] != mark) {
+                            stamp[parent] = mark;
+                            queue.add(parent);
+                            builder.add(node, parent);
+                        }
+                    }
+                }
+            }
+        }
+        return builder.build(size);
+    }
+
+    /**
+     * Iterative Tarjan walk over the parent edges. Components are completed
+     * after all components they reach, so the ancestors of a component are the
+     * union of its members' parents and their memoised ancestors.
+     */
+    private static Adjacency memoised(Adjacency parents) {
+        int size = parents.size();
+        int[] index = new int[size];
+        int[] lowlink = new int[size];
+        int[] component = new int[size];
+        boolean[] onStack = new boolean[size];
+        Arrays.fill(index, -1);
+        IntArrayList stack = new IntArrayList();
+        // explicit call stack: node and the position of the next parent to visit
+        IntArrayList callNodes = new IntArrayList();
+        IntArrayList callEdges = new IntArrayList();
+        // component ordinal -> ancestor nodes, in completion order
+        List<int[]> componentAncestors = new ArrayList<>();
+        int[] stamp = new int[size];
+        IntArrayList members = new IntArrayList();
+        IntArrayList result = new IntArrayList();
+        int counter = 0;
+        for (int root = 0; root < size; root++) {
+            if (index[root] >= 0) {
+                continue;
+            }
+            callNodes.add(root);
+            callEdges.add(parents.start(root));
+            index[root] = lowlink[root] = counter++;
+            stack.add(root);
+            onStack[root] = true;
+            while (!callNodes.isEmpty()) {
+                int top = callNodes.size() - 1;
+                int node = callNodes.get(top);
+                int edge = callEdges.get(top);
+                if (edge < parents.end(node)) {
+                    callEdges.set(top, edge + 1);
+                    int parent = parents.target(edge);
+                    if (index[parent] < 0) {
+                        index[parent] = lowlink[parent] = counter++;
+                        stack.add(parent);
+                        onStack[parent] = true;
+                        callNodes.add(parent);
+                        callEdges.add(parents.start(parent));
+                    } else if (onStack[parent]) {
+                        lowlink[node] = Math.min(lowlink[node], index[parent]);
+                    }
+                    continue;
+                }
+                callNodes.remove(top);
+                callEdges.remove(top);
+                if (top > 0) {
+                    int caller = callNodes.get(top - 1);
+                    lowlink[caller] = Math.min(lowlink[caller], lowlink[node]);
+                }
+                if (lowlink[node] != index[node]) {
+                    continue;
+                }
+                // node is the root of a completed component
+                int componentOrd = componentAncestors.size();
+                members.clear();
+                int member;
+                do {
+                    member = stack.remove(stack.size() - 1);
+                    onStack[member] = false;
+                    component[member] = componentOrd;
+                    members.add(member);
+                } while (member != node);
+                int mark = componentOrd + 1;
+                result.clear();
+                boolean cyclic = members.size() > 1;
+                for (int m = 0; m < members.size(); m++) {
+                    int current = members.get(m);
+                    for (int i = parents.start(current), end = parents.end(current); i < end; i++) {
+                        int parent = parents.target(i);
+                        if (parent == current) {
+                            cyclic = true;
+                            continue;
+                        }
+                        if (component[parent] == componentOrd) {
+                            // every node reachable from a completed component is assigned
+                            continue;
+                        }
+                        if (stamp[parent] != mark) {
+                            stamp[parent] = mark;
+                            result.add(parent);
+                        }
+                        for (int ancestor : componentAncestors.get(component[parent])) {
+                            if (stamp[ancestor] != mark) {
+                                stamp[ancestor] = mark;
+                                result.add(ancestor);
+                            }
+                        }
+                    }
+                }
+                if (cyclic) {
+                    // members of a cycle are ancestors of each other
+                    for (int m = 0; m < members.size(); m++) {
+                        int current = members.get(m);
+                        if (stamp[current] != mark) {
+                            stamp[current] = mark;
+                            result.add(current);
+                        }
+                    }
+                }
+                componentAncestors.add(result.toArray());
+            }
+        }
+        Adjacency.Builder builder = new Adjacency.Builder();
+        for (int node = 0; node < size; node++) {
+            for (int ancestor : componentAncestors.get(component[node])) {
+                if (ancestor != node) {
+                    builder.add(node, ancestor);
+                }
+            }
+        }
+        return builder.build(size);
+    }
+}
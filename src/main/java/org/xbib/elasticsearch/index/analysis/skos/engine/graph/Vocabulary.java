@@ -0,0 +1,247 @@
+package org.xbib.elasticsearch.index.analysis.skos.engine.graph;
+
+import com.carrotsearch.hppc.IntArrayList;
+
+import org.xbib.elasticsearch.index.analysis.skos.SKOSTypeAttribute.SKOSType;
+import org.xbib.elasticsearch.index.analysis.skos.engine.LoadStats;
+
+import java.io.IOException;
+import java.util.BitSet;
+
+/**
+ * The compiled form of a SKOS vocabulary: the concept graph, the label
+ * dictionary, the labels of each concept and the concepts of each label.
+ *
+ * Labels are stored lowercase. A concept is listed once per label, even if
+ * the label is used for more than one label type of the concept.
+ */
+public final class Vocabulary {
+
+    /**
+     * The SKOS types that are labels of concepts
+     */
+    public static final SKOSType[] LABELS = new SKOSType[]{
+            SKOSType.PREF,
+            SKOSType.ALT,
+            SKOSType.HIDDEN
+    };
+
+    private final ConceptGraph graph;
+
+    private final TermDictionary labels;
+
+    // concept ordinal -> label ordinals, indexed by SKOS type ordinal
+    private final Adjacency[] conceptLabels;
+
+    // label ordinal -> concept ordinals having this label as pref, alt or hidden label
+    private final Adjacency labelConcepts;
+
+    Vocabulary(ConceptGraph graph, TermDictionary labels, Adjacency[] conceptLabels, Adjacency labelConcepts) {
+        this.graph = graph;
+        this.labels = labels;
+        this.conceptLabels = conceptLabels;
+        this.labelConcepts = labelConcepts;
+    }
+
+    public ConceptGraph graph() {
+        return graph;
+    }
+
+    public TermDictionary labels() {
+        return labels;
+    }
+
+    /**
+     * Returns the labels of a given type for each concept
+     *
+     * @param type one of the {@link #LABELS}
+     * @return the adjacency list from concept ordinals to label ordinals
+     */
+    public Adjacency labels(SKOSType type) {
+        Adjacency adjacency = conceptLabels[type.ordinal()];
+        if (adjacency == null) {
+            throw new IllegalArgumentException("not a label: " + type);
+        }
+        return adjacency;
+    }
+
+    /**
+     * Returns the concepts of each label
+     *
+     * @return the adjacency list from label ordinals to concept ordinals
+     */
+    public Adjacency labelConcepts() {
+        return labelConcepts;
+    }
+
+    /**
+     * Collects concepts, labels and relations in any order, for example
+     * while triples are streamed from a parser.
+     *
+     * Concepts are discovered in the same pass: a resource is a concept if
+     * it is typed as skos:Concept or if it has a pref, alt or hidden label.
+     */
+    public static class Builder {
+
+        private final ConceptGraph.Builder graph = new ConceptGraph.Builder();
+
+        private final TermDictionary.Builder labels = new TermDictionary.Builder();
+
+        private final Adjacency.Builder[] conceptLabels = new Adjacency.Builder[SKOSType.values().length];
+
+        private final BitSet concepts = new BitSet();
+
+        // concepts with an explicit skos:Concept type
+        private final BitSet typed = new BitSet();
+
+        // relation edges, kept until it is known which sources are concepts
+        private final IntArrayList relationTypes = new IntArrayList();
+
+        private final IntArrayList relationSources = new IntArrayList();
+
+        private final IntArrayList relationTargets = new IntArrayList();
+
+        public Builder() {
+            for (SKOSType type : LABELS) {
+                conceptLabels[type.ordinal()] = new Adjacency.Builder();
+            }
+        }
+
+        /**
+         * Returns the ordinal of a resource, adding the resource if it is new
+         *
+         * @param uri the resource URI
+         * @return the ordinal
+         */
+        public int ordinal(String uri) {
+            return graph.ordinal(uri);
+        }
+
+        /**
+         * Marks a resource that is typed as skos:Concept
+         *
+         * @param ord the ordinal of the resource
+         */
+        public void markConcept(int ord) {
+            typed.set(ord);
+            discover(ord);
+        }
+
+        /**
+         * Marks a resource that has a label, and is therefore a skos:Concept
+         *
+         * @param ord the ordinal of the resource
+         */
+        public void markLabelled(int ord) {
+            discover(ord);
+        }
+
+        private void discover(int ord) {
+            if (!concepts.get(ord)) {
+                concepts.set(ord);
+                graph.markConcept(ord);
+            }
+        }
+
+        /**
+         * Adds a label to a resource and marks the resource as a skos:Concept
+         *
+         * @param type one of the {@link #LABELS}
+         * @param ord the ordinal of the resource
+         * @param label the label
+         */
+        public void addLabel(SKOSType type, int ord, String label) {
+            Adjacency.Builder builder = conceptLabels[type.ordinal()];
+            if (builder == null) {
+                throw new IllegalArgumentException("not a label: " + type);
+            }
+            discover(ord);
+            builder.add(ord, labels.ordinal(label.toLowerCase()));
+        }
+
+        /**
+         * Adds a relation edge. Edges of resources that turn out not to be
+         * concepts are dropped when the vocabulary is built.
+         *
+         * @param relation one of the {@link ConceptGraph#RELATIONS}
+         * @param source the ordinal of the source resource
+         * @param target the ordinal of the target resource
+         */
+        public void addRelation(SKOSType relation, int source, int target) {
+            relationTypes.add(relation.ordinal());
+            relationSources.add(source);
+            relationTargets.add(target);
+        }
+
+        public int size() {
+            return graph.size();
+        }
+
+        /**
+         * Builds the vocabulary and computes the transitive closure of the
+         * concept hierarchy.
+         *
+         * @param maxTransitiveDepth the maximum number of hops of the closure, 0 for no limit
+         * @return the vocabulary
+         * @throws IOException if the dictionaries can not be built
+         */
+        public Vocabulary build(int maxTransitiveDepth) throws IOException {
+            return build(maxTransitiveDepth, new LoadStats());
+        }
+
+        /**
+         * Builds the vocabulary and computes the transitive closure of the
+         * concept hierarchy, timing the graph, closure and label stages.
+         *
+         * @param maxTransitiveDepth the maximum number of hops of the closure, 0 for no limit
+         * @param stats the load statistics
+         * @return the vocabulary
+         * @throws IOException if the dictionaries can not be built
+         */
+        public Vocabulary build(int maxTransitiveDepth, LoadStats stats) throws IOException {
+            stats.start("graph");
+            SKOSType[] types = SKOSType.values();
+            for (int i = 0; i < relationTypes.size(); i++) {
+                int source = relationSources.get(i);
+                if (concepts.get(source)) {
+                    graph.addEdge(types[relationTypes.get(i)], source, relationTargets.get(i));
+                }
+            }
+            int size = graph.size();
+            ConceptGraph directGraph = graph.build();
+            stats.start("closure");
+            ConceptGraph conceptGraph = TransitiveClosure.apply(directGraph, maxTransitiveDepth);
+            stats.start("labels");
+            TermDictionary labelDictionary = labels.build();
+            Adjacency[] adjacencies = new Adjacency[types.length];
+            for (SKOSType type : LABELS) {
+                adjacencies[type.ordinal()] = conceptLabels[type.ordinal()].build(size);
+            }
+            // a stamp per label keeps concepts unique per label
+            int[] stamp = new int[labelDictionary.size()];
+            Adjacency.Builder labelConcepts = new Adjacency.Builder();
+            for (int ord = concepts.nextSetBit(0); ord >= 0; ord = concepts.nextSetBit(ord + 1)) {
+                for (SKOSType type : LABELS) {
+                    Adjacency adjacency = adjacencies[type.ordinal()];
+                    for (int i = adjacency.start(ord), end = adjacency.end(ord); i < end; i++) {
+                        int labelOrd = adjacency.target(i);
+                        if (stamp[labelOrd] != ord + 1) {
+                            stamp[labelOrd] = ord + 1;
+                            labelConcepts.add(labelOrd, ord);
+                        }
+                    }
+                }
+            }
+            Vocabulary vocabulary = new Vocabulary(conceptGraph, labelDictionary, adjacencies,
+                    labelConcepts.build(labelDictionary.size()));
+            stats.stop();
+            BitSet inferred = (BitSet) concepts.clone();
+            inferred.andNot(typed);
+            stats.count("resources", size);
+            stats.count("concepts", concepts.cardinality());
+            stats.count("conceptsFromLabels", inferred.cardinality());
+            stats.count("labels", labelDictionary.size());
+            return vocabulary;
+        }
+    }
+}
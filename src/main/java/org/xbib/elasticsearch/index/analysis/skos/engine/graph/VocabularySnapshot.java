@@ -0,0 +1,374 @@
+package org.xbib.elasticsearch.index.analysis.skos.engine.graph;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.LongValues;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.PositiveIntOutputs;
+import org.xbib.elasticsearch.index.analysis.skos.SKOSTypeAttribute.SKOSType;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.AbstractList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * A compiled {@link Vocabulary} in a versioned binary file that is memory
+ * mapped read-only.
+ *
+ * The file holds the label and URI FSTs, the front coded terms of both
+ * dictionaries, the concept bits, the relation and label adjacency lists as
+ * bit packed CSR arrays, and the labels as normalized by the filters. Opening
+ * a snapshot checks the header and the footer and maps the file, the arrays
+ * and terms are read from the mapping on access, so the pages are shared by
+ * all engines through the page cache. Only the FSTs and the concept bits are
+ * copied to the heap, Lucene FSTs can not be read from a file in place.
+ *
+ * The mapping is never unmapped explicitly but released by the garbage
+ * collector, so analyzers still holding a vocabulary never read from an
+ * unmapped file.
+ *
+ * A snapshot records the checksum of the SKOS source and the configuration
+ * it was compiled with. A snapshot with another checksum or configuration is
+ * stale and not opened.
+ */
+public final class VocabularySnapshot {
+
+    static final String CODEC = "skos_vocabulary";
+
+    static final int VERSION_START = 0;
+
+    static final int VERSION_CURRENT = VERSION_START;
+
+    private final Vocabulary vocabulary;
+
+    private final FrontCodedTerms analyzedLabels;
+
+    private final long sizeInBytes;
+
+    private VocabularySnapshot(Vocabulary vocabulary, FrontCodedTerms analyzedLabels, long sizeInBytes) {
+        this.vocabulary = vocabulary;
+        this.analyzedLabels = analyzedLabels;
+        this.sizeInBytes = sizeInBytes;
+    }
+
+    /**
+     * Returns the vocabulary, backed by the mapped file
+     *
+     * @return the vocabulary
+     */
+    public Vocabulary vocabulary() {
+        return vocabulary;
+    }
+
+    /**
+     * Returns a label as normalized by the filters
+     *
+     * @param labelOrd the label ordinal
+     * @return the analyzed label, or null if the label was eliminated
+     */
+    public char[] analyzedLabel(int labelOrd) {
+        String label = analyzedLabels.term(labelOrd);
+        return label.isEmpty() ? null : label.toCharArray();
+    }
+
+    /**
+     * Returns the size of the file
+     *
+     * @return the size in bytes
+     */
+    public long sizeInBytes() {
+        return sizeInBytes;
+    }
+
+    /**
+     * Writes a snapshot into a temporary file and moves it to the given file,
+     * so an interrupted write never leaves a partial snapshot behind.
+     *
+     * @param file the snapshot file
+     * @param vocabulary the vocabulary
+     * @param analyzedLabels the normalized labels by label ordinal, null for eliminated labels
+     * @param checksum the checksum of the SKOS source
+     * @param configuration the configuration the vocabulary was compiled with
+     * @throws IOException if the snapshot can not be written
+     */
+    public static void write(Path file, Vocabulary vocabulary, char[][] analyzedLabels, long checksum,
+                             String configuration) throws IOException {
+        Path dir = file.toAbsolutePath().getParent();
+        Files.createDirectories(dir);
+        String tmp = file.getFileName() + ".tmp";
+        try (Directory directory = FSDirectory.open(dir)) {
+            IOUtils.deleteFilesIgnoringExceptions(directory, tmp);
+            try (IndexOutput out = directory.createOutput(tmp, IOContext.DEFAULT)) {
+                CodecUtil.writeHeader(out, CODEC, VERSION_CURRENT);
+                out.writeLong(checksum);
+                out.writeString(configuration);
+                ConceptGraph graph = vocabulary.graph();
+                writeDictionary(out, vocabulary.labels());
+                writeDictionary(out, graph.uris());
+                long[] bits = graph.conceptBits().getBits();
+                out.writeVInt(graph.size());
+                for (int i = 0; i < FixedBitSet.bits2words(graph.size()); i++) {
+                    out.writeLong(bits[i]);
+                }
+                for (SKOSType relation : ConceptGraph.RELATIONS) {
+                    writeAdjacency(out, graph.relation(relation));
+                }
+                for (SKOSType type : Vocabulary.LABELS) {
+                    writeAdjacency(out, vocabulary.labels(type));
+                }
+                writeAdjacency(out, vocabulary.labelConcepts());
+                String[] analyzed = new String[analyzedLabels.length];
+                for (int i = 0; i < analyzed.length; i++) {
+                    analyzed[i] = analyzedLabels[i] != null ? new String(analyzedLabels[i]) : "";
+                }
+                FrontCodedTerms.write(out, analyzed);
+                CodecUtil.writeFooter(out);
+            }
+            directory.sync(Collections.singleton(tmp));
+        }
+        Files.move(dir.resolve(tmp), file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    /**
+     * Opens a snapshot
+     *
+     * @param file the snapshot file
+     * @param checksum the checksum of the SKOS source
+     * @param configuration the configuration the vocabulary is compiled with
+     * @return the snapshot, or null if there is no snapshot or it is stale
+     * @throws IOException if the snapshot can not be read or is corrupt
+     */
+    public static VocabularySnapshot open(Path file, long checksum, String configuration) throws IOException {
+        if (!Files.isRegularFile(file)) {
+            return null;
+        }
+        Path dir = file.toAbsolutePath().getParent();
+        MMapDirectory directory = new MMapDirectory(dir);
+        directory.setUseUnmap(false);
+        IndexInput in = null;
+        boolean success = false;
+        try {
+            in = directory.openInput(file.getFileName().toString(), IOContext.READ);
+            CodecUtil.checkHeader(in, CODEC, VERSION_START, VERSION_CURRENT);
+            CodecUtil.retrieveChecksum(in);
+            in.seek(CodecUtil.headerLength(CODEC));
+            if (in.readLong() != checksum || !in.readString().equals(configuration)) {
+                return null;
+            }
+            TermDictionary labels = readDictionary(in);
+            TermDictionary uris = readDictionary(in);
+            int size = in.readVInt();
+            long[] bits = new long[FixedBitSet.bits2words(size)];
+            for (int i = 0; i < bits.length; i++) {
+                bits[i] = in.readLong();
+            }
+            SKOSType[] types = SKOSType.values();
+            Adjacency[] relations = new Adjacency[types.length];
+            for (SKOSType relation : ConceptGraph.RELATIONS) {
+                relations[relation.ordinal()] = readAdjacency(in);
+            }
+            Adjacency[] conceptLabels = new Adjacency[types.length];
+            for (SKOSType type : Vocabulary.LABELS) {
+                conceptLabels[type.ordinal()] = readAdjacency(in);
+            }
+            Adjacency labelConcepts = readAdjacency(in);
+            FrontCodedTerms analyzedLabels = FrontCodedTerms.read(in);
+            ConceptGraph graph = new ConceptGraph(uris, new FixedBitSet(bits, size), relations);
+            VocabularySnapshot snapshot = new VocabularySnapshot(
+                    new Vocabulary(graph, labels, conceptLabels, labelConcepts), analyzedLabels, in.length());
+            success = true;
+            return snapshot;
+        } finally {
+            // the slices of an open input stay valid, the mapping is released with them
+            if (!success) {
+                IOUtils.closeWhileHandlingException(in);
+            }
+            directory.close();
+        }
+    }
+
+    /**
+     * Computes the checksum of the content of a SKOS source file
+     *
+     * @param file the file
+     * @return the CRC32 checksum
+     * @throws IOException if the file can not be read
+     */
+    public static long checksum(Path file) throws IOException {
+        CRC32 crc = new CRC32();
+        byte[] buffer = new byte[8192];
+        try (InputStream in = Files.newInputStream(file)) {
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                crc.update(buffer, 0, n);
+            }
+        }
+        return crc.getValue();
+    }
+
+    private static void writeDictionary(IndexOutput out, TermDictionary dictionary) throws IOException {
+        if (dictionary.fst != null) {
+            out.writeByte((byte) 1);
+            dictionary.fst.save(out);
+        } else {
+            out.writeByte((byte) 0);
+        }
+        String[] terms = new String[dictionary.size()];
+        for (int i = 0; i < terms.length; i++) {
+            terms[i] = dictionary.term(i);
+        }
+        FrontCodedTerms.write(out, terms);
+    }
+
+    private static TermDictionary readDictionary(IndexInput in) throws IOException {
+        FST<Long> fst = in.readByte() != 0 ? new FST<>(in, PositiveIntOutputs.getSingleton()) : null;
+        return new MappedTermDictionary(fst, FrontCodedTerms.read(in));
+    }
+
+    private static void writeAdjacency(IndexOutput out, Adjacency adjacency) throws IOException {
+        int size = adjacency.size();
+        int edges = adjacency.edges();
+        out.writeVInt(size);
+        out.writeVInt(edges);
+        long[] offsets = new long[size + 1];
+        for (int i = 0; i < size; i++) {
+            offsets[i] = adjacency.start(i);
+        }
+        offsets[size] = edges;
+        FrontCodedTerms.writePacked(out, offsets, edges);
+        long[] targets = new long[edges];
+        long max = 0;
+        for (int i = 0; i < edges; i++) {
+            targets[i] = adjacency.target(i);
+            max = Math.max(max, targets[i]);
+        }
+        FrontCodedTerms.writePacked(out, targets, max);
+    }
+
+    private static Adjacency readAdjacency(IndexInput in) throws IOException {
+        int size = in.readVInt();
+        int edges = in.readVInt();
+        LongValues offsets = FrontCodedTerms.readPacked(in);
+        LongValues targets = FrontCodedTerms.readPacked(in);
+        return new MappedAdjacency(size, edges, offsets, targets);
+    }
+
+    /**
+     * An adjacency list with bit packed arrays in the mapped file
+     */
+    private static final class MappedAdjacency extends Adjacency {
+
+        private final int size;
+
+        private final int edges;
+
+        private final LongValues offsets;
+
+        private final LongValues targets;
+
+        MappedAdjacency(int size, int edges, LongValues offsets, LongValues targets) {
+            super(null, null);
+            this.size = size;
+            this.edges = edges;
+            this.offsets = offsets;
+            this.targets = targets;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public int start(int node) {
+            return (int) offsets.get(node);
+        }
+
+        @Override
+        public int end(int node) {
+            return (int) offsets.get(node + 1);
+        }
+
+        @Override
+        public int degree(int node) {
+            return (int) (offsets.get(node + 1) - offsets.get(node));
+        }
+
+        @Override
+        public int target(int index) {
+            return (int) targets.get(index);
+        }
+
+        @Override
+        public int edges() {
+            return edges;
+        }
+
+        /**
+         * The arrays are in the mapped file
+         */
+        @Override
+        public long ramBytesUsed() {
+            return 0L;
+        }
+    }
+
+    /**
+     * A term dictionary with front coded terms in the mapped file
+     */
+    private static final class MappedTermDictionary extends TermDictionary {
+
+        private final FrontCodedTerms terms;
+
+        MappedTermDictionary(FST<Long> fst, FrontCodedTerms terms) {
+            super(fst, null);
+            this.terms = terms;
+        }
+
+        @Override
+        public int size() {
+            return terms.size();
+        }
+
+        @Override
+        public String term(int ord) {
+            return terms.term(ord);
+        }
+
+        /**
+         * The terms are in the mapped file, only the FST is on the heap
+         */
+        @Override
+        public long ramBytesUsed() {
+            return fst != null ? fst.ramBytesUsed() : 0L;
+        }
+
+        @Override
+        public List<String> terms() {
+            return new AbstractList<String>() {
+                @Override
+                public String get(int index) {
+                    return terms.term(index);
+                }
+
+                @Override
+                public int size() {
+                    return terms.size();
+                }
+            };
+        }
+    }
+}
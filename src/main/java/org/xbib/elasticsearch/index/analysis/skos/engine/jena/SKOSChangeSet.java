@@ -0,0 +1,109 @@
+package org.xbib.elasticsearch.index.analysis.skos.engine.jena;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.NodeFactory;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.sparql.core.Quad;
+
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.system.StreamRDFBase;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A change set of a SKOS vocabulary in the row format of RDF Patch: each
+ * line 'A s p o .' adds a triple, each line 'D s p o .' deletes a triple.
+ * Terms are written as in N-Triples, prefixed names are not supported.
+ * Header, transaction, prefix and comment lines are skipped.
+ *
+ * The changes are kept in the order of the file, so a triple that is added
+ * and deleted again is deleted.
+ */
+final class SKOSChangeSet {
+
+    // the graph names that carry the operation of a row through the N-Quads parser
+    private static final Node ADD = NodeFactory.createURI("urn:x-skos-patch:add");
+
+    private static final Node DELETE = NodeFactory.createURI("urn:x-skos-patch:delete");
+
+    private final List<Triple> triples = new ArrayList<>();
+
+    private final List<Boolean> additions = new ArrayList<>();
+
+    private SKOSChangeSet() {
+    }
+
+    /**
+     * Reads a change set file
+     *
+     * @param file the change set file
+     * @return the change set
+     * @throws IOException if the file can not be read or a row is malformed
+     */
+    static SKOSChangeSet read(Path file) throws IOException {
+        StringBuilder quads = new StringBuilder();
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (!line.startsWith("A ") && !line.startsWith("D ")) {
+                    continue;
+                }
+                int end = line.lastIndexOf('.');
+                if (end < 2 || !line.substring(end + 1).trim().isEmpty()) {
+                    throw new IOException("malformed change in line " + lineNumber + " of " + file + ": " + line);
+                }
+                quads.append(line.substring(2, end).trim())
+                        .append(" <").append(line.charAt(0) == 'A' ? ADD.getURI() : DELETE.getURI()).append("> .\n");
+            }
+        }
+        final SKOSChangeSet changeSet = new SKOSChangeSet();
+        RDFDataMgr.parse(new StreamRDFBase() {
+            @Override
+            public void quad(Quad quad) {
+                changeSet.triples.add(quad.asTriple());
+                changeSet.additions.add(ADD.equals(quad.getGraph()));
+            }
+        }, new ByteArrayInputStream(quads.toString().getBytes(StandardCharsets.UTF_8)), Lang.NQUADS);
+        return changeSet;
+    }
+
+    /**
+     * Returns the number of changes
+     *
+     * @return the number of changes
+     */
+    int size() {
+        return triples.size();
+    }
+
+    /**
+     * Returns the triple of a change
+     *
+     * @param i the number of the change
+     * @return the triple
+     */
+    Triple triple(int i) {
+        return triples.get(i);
+    }
+
+    /**
+     * Returns whether a change adds or deletes its triple
+     *
+     * @param i the number of the change
+     * @return true if the triple is added, false if it is deleted
+     */
+    boolean isAddition(int i) {
+        return additions.get(i);
+    }
+}
@@ -1,60 +1,112 @@
 package org.xbib.elasticsearch.index.analysis.skos.engine.jena;
 
-import com.hp.hpl.jena.ontology.AnnotationProperty;
-import com.hp.hpl.jena.ontology.ObjectProperty;
-import com.hp.hpl.jena.rdf.model.Literal;
-import com.hp.hpl.jena.rdf.model.Model;
-import com.hp.hpl.jena.rdf.model.ModelFactory;
-import com.hp.hpl.jena.rdf.model.RDFNode;
-import com.hp.hpl.jena.rdf.model.ResIterator;
-import com.hp.hpl.jena.rdf.model.Resource;
-import com.hp.hpl.jena.rdf.model.StmtIterator;
-import com.hp.hpl.jena.update.GraphStore;
-import com.hp.hpl.jena.update.GraphStoreFactory;
-import com.hp.hpl.jena.update.UpdateAction;
-import com.hp.hpl.jena.update.UpdateFactory;
-import com.hp.hpl.jena.update.UpdateRequest;
-import com.hp.hpl.jena.util.FileManager;
-import com.hp.hpl.jena.vocabulary.RDF;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.NoShardAvailableActionException;
 import org.elasticsearch.action.admin.cluster.health.ClusterHealthAction;
 import org.elasticsearch.action.admin.cluster.health.ClusterHealthRequestBuilder;
 import org.elasticsearch.action.admin.cluster.health.ClusterHealthResponse;
+import org.elasticsearch.action.admin.cluster.state.ClusterStateAction;
+import org.elasticsearch.action.admin.cluster.state.ClusterStateRequestBuilder;
 import org.elasticsearch.action.admin.indices.create.CreateIndexAction;
 import org.elasticsearch.action.admin.indices.create.CreateIndexRequestBuilder;
+import org.elasticsearch.action.admin.indices.delete.DeleteIndexAction;
+import org.elasticsearch.action.admin.indices.delete.DeleteIndexRequestBuilder;
 import org.elasticsearch.action.admin.indices.refresh.RefreshAction;
 import org.elasticsearch.action.admin.indices.refresh.RefreshRequestBuilder;
-import org.elasticsearch.action.bulk.BulkAction;
-import org.elasticsearch.action.bulk.BulkRequestBuilder;
+import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsAction;
+import org.elasticsearch.action.admin.indices.settings.put.UpdateSettingsRequestBuilder;
+import org.elasticsearch.action.bulk.BulkProcessor;
+import org.elasticsearch.action.bulk.BulkRequest;
 import org.elasticsearch.action.bulk.BulkResponse;
+import org.elasticsearch.action.delete.DeleteRequest;
+import org.elasticsearch.action.get.GetAction;
+import org.elasticsearch.action.get.GetRequestBuilder;
+import org.elasticsearch.action.get.GetResponse;
+import org.elasticsearch.action.get.MultiGetAction;
+import org.elasticsearch.action.get.MultiGetItemResponse;
+import org.elasticsearch.action.get.MultiGetRequest;
+import org.elasticsearch.action.get.MultiGetRequestBuilder;
 import org.elasticsearch.action.index.IndexAction;
+import org.elasticsearch.action.index.IndexRequest;
 import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.search.ClearScrollAction;
+import org.elasticsearch.action.search.ClearScrollRequestBuilder;
+import org.elasticsearch.action.search.MultiSearchAction;
+import org.elasticsearch.action.search.MultiSearchRequestBuilder;
+import org.elasticsearch.action.search.MultiSearchResponse;
 import org.elasticsearch.action.search.SearchAction;
 import org.elasticsearch.action.search.SearchRequestBuilder;
 import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.action.search.SearchScrollAction;
+import org.elasticsearch.action.search.SearchScrollRequestBuilder;
 import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.metadata.IndexMetaData;
+import org.elasticsearch.cluster.metadata.MappingMetaData;
+import org.elasticsearch.cluster.routing.IndexRoutingTable;
+import org.elasticsearch.cluster.routing.IndexShardRoutingTable;
+import org.elasticsearch.cluster.routing.ShardRouting;
+import org.elasticsearch.common.hash.MessageDigests;
 import org.elasticsearch.common.logging.ESLogger;
 import org.elasticsearch.common.logging.ESLoggerFactory;
 import org.elasticsearch.common.settings.Settings;
-import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.unit.ByteSizeUnit;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.concurrent.EsExecutors;
+import org.elasticsearch.index.query.BoolQueryBuilder;
 import org.elasticsearch.index.query.QueryBuilder;
 import org.elasticsearch.index.query.QueryBuilders;
-import org.elasticsearch.index.query.TermQueryBuilder;
+import org.elasticsearch.index.IndexNotFoundException;
 import org.elasticsearch.indices.IndexAlreadyExistsException;
 import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.fetch.source.FetchSourceContext;
+import org.elasticsearch.search.sort.SortOrder;
+import org.xbib.elasticsearch.index.analysis.skos.SKOSTypeAttribute.SKOSType;
+import org.xbib.elasticsearch.index.analysis.skos.engine.ConceptDelta;
+import org.xbib.elasticsearch.index.analysis.skos.engine.LabelBloomFilter;
+import org.xbib.elasticsearch.index.analysis.skos.engine.LabelMatcher;
+import org.xbib.elasticsearch.index.analysis.skos.engine.LabelNormalizer;
+import org.xbib.elasticsearch.index.analysis.skos.engine.LoadStats;
+import org.xbib.elasticsearch.index.analysis.skos.engine.MemoryUsage;
 import org.xbib.elasticsearch.index.analysis.skos.engine.SKOSEngine;
+import org.xbib.elasticsearch.index.analysis.skos.engine.graph.Adjacency;
+import org.xbib.elasticsearch.index.analysis.skos.engine.graph.ConceptGraph;
+import org.xbib.elasticsearch.index.analysis.skos.engine.graph.Vocabulary;
+import org.xbib.elasticsearch.index.analysis.skos.engine.graph.VocabularySnapshot;
 
-import static org.elasticsearch.common.xcontent.XContentFactory.jsonBuilder;
 import static org.elasticsearch.index.query.QueryBuilders.termQuery;
 
 /**
@@ -78,10 +130,55 @@ public class SKOSEngineImpl implements SKOSEngine {
     private static final String FIELD_BROADER_TRANSITIVE = "broaderTransitive";
     private static final String FIELD_NARROWER_TRANSITIVE = "narrowerTransitive";
     private static final String FIELD_RELATED = "related";
+    private static final String FIELD_DIGEST = "digest";
+    private static final String TYPE = "skos";
+    private static final String[] LABEL_FIELDS = {FIELD_PREF_LABEL, FIELD_ALT_LABEL, FIELD_HIDDEN_LABEL};
+    private static final String[] REFERRER_FIELDS = {FIELD_URI, FIELD_PREF_LABEL, FIELD_ALT_LABEL, FIELD_HIDDEN_LABEL};
+    private static final String[] RELATION_FIELDS = {FIELD_BROADER, FIELD_BROADER_TRANSITIVE, FIELD_NARROWER,
+            FIELD_NARROWER_TRANSITIVE, FIELD_RELATED};
+    /*
+     * The fields of a concept document in the order of its digest
+     */
+    private static final String[] DOCUMENT_FIELDS = {FIELD_URI, FIELD_PREF_LABEL, FIELD_ALT_LABEL, FIELD_HIDDEN_LABEL,
+            FIELD_BROADER, FIELD_BROADER_TRANSITIVE, FIELD_NARROWER, FIELD_NARROWER_TRANSITIVE, FIELD_RELATED};
+    /*
+     * The metadata document of the index, describing the source it was loaded from
+     */
+    private static final String META_TYPE = "meta";
+    private static final String META_ID = "skos";
+    private static final String META_SOURCE = "source";
+    private static final String META_CHECKSUM = "checksum";
+    private static final String META_SIZE = "size";
+    private static final String META_LANGUAGES = "languages";
+    private static final String META_MAX_TRANSITIVE_DEPTH = "maxTransitiveDepth";
+    private static final String META_STATE = "state";
+    private static final String META_TIMESTAMP = "timestamp";
+    private static final String META_CHANGE_SETS = "changeSets";
+    private static final String STATE_BUILDING = "building";
+    private static final String STATE_COMPLETE = "complete";
+    /*
+     * The maximum length of a document id in bytes
+     */
+    private static final int MAX_ID_LENGTH = 512;
+    /*
+     * The maximum number of URIs in one terms query
+     */
+    private static final int MAX_TERMS = 512;
+    /*
+     * The replicas of an index with a copy on every node
+     */
+    private static final String AUTO_EXPAND_ALL = "0-all";
+    /*
+     * The number of times an index replaced by another node is checked again
+     */
+    private static final int MAX_PREPARE_ATTEMPTS = 3;
+
     /**
-     * The input SKOS model
+     * How an index is brought up to date with its source
      */
-    private Model skosModel;
+    private enum LoadMode {
+        NONE, FULL, DELTA
+    }
 
     private final String indexName;
 
@@ -94,6 +191,98 @@ public class SKOSEngineImpl implements SKOSEngine {
      */
     private Set<String> languages;
 
+    /**
+     * The maximum number of hops of the computed transitive relations, 0 for no limit
+     */
+    private int maxTransitiveDepth;
+
+    /**
+     * Normalizes labels into the form the filters emit
+     */
+    private LabelNormalizer normalizer;
+
+    /**
+     * The number of threads that build concept documents
+     */
+    private int indexThreads;
+
+    /**
+     * The maximum number of bulk requests in flight
+     */
+    private int bulkConcurrency;
+
+    private int bulkActions;
+
+    private ByteSizeValue bulkSize;
+
+    /**
+     * The number of replicas of the thesaurus index after loading
+     */
+    private int replicas;
+
+    /**
+     * The false positive probability of the label Bloom filter, 0 for no Bloom filter
+     */
+    private double bloomFilterFpp;
+
+    /**
+     * Whether a stale index is updated in place instead of being rebuilt
+     */
+    private boolean deltaUpdate;
+
+    /**
+     * The maximum time a lookup from an analysis thread waits for the thesaurus index
+     */
+    private TimeValue lookupTimeout;
+
+    /**
+     * Whether every node holds a copy of the thesaurus index and looks up its own copy
+     */
+    private boolean localReplicas;
+
+    /**
+     * The maximum time to wait for the local copy of the thesaurus index
+     */
+    private TimeValue localReplicaTimeout;
+
+    /**
+     * The time after which an index in state building is taken as abandoned and rebuilt
+     */
+    private TimeValue buildTimeout;
+
+    /**
+     * The preference of lookups, or null for the default
+     */
+    private String preference;
+
+    private LabelBloomFilter labelBloomFilter;
+
+    /**
+     * Labels as normalized by the filters. The labels live in the index, so
+     * their normalized forms are memoized up to a bound instead of being
+     * computed for the whole vocabulary.
+     */
+    private final Cache<String, char[]> analyzedLabels = CacheBuilder.newBuilder()
+            .maximumSize(MAX_ANALYZED_LABELS)
+            .build();
+
+    private static final int MAX_ANALYZED_LABELS = 100000;
+
+    private static final char[] ELIMINATED = new char[0];
+
+    /**
+     * Concept documents by URI. The getters of the engine are called one
+     * field at a time for the same concept, so the whole document is kept
+     * after the first fetch.
+     */
+    private final Cache<String, Map<String, Object>> concepts = CacheBuilder.newBuilder()
+            .maximumSize(MAX_CONCEPTS)
+            .build();
+
+    private static final int MAX_CONCEPTS = 10000;
+
+    private final LoadStats loadStats;
+
     /**
      * This constructor loads the SKOS model from a given InputStream using the
      * given serialization language parameter, which must be either N3, RDF/XML,
@@ -104,15 +293,21 @@ public class SKOSEngineImpl implements SKOSEngine {
      * @throws IOException if the model cannot be loaded
      */
     public SKOSEngineImpl(Client client, String indexName, InputStream inputStream, String lang) throws IOException {
-        if (!("N3".equals(lang) || "RDF/XML".equals(lang) || "TURTLE".equals(lang))) {
-            throw new IOException("Invalid RDF serialization format");
-        }
         this.client = client;
+        this.loadStats = new LoadStats();
         this.indexName = indexName;
-        this.skosModel = ModelFactory.createDefaultModel();
-        skosModel.read(inputStream, null, lang);
-        entailSKOSModel();
-        indexSKOSModel();
+        configure(Settings.EMPTY);
+        Vocabulary vocabulary = null;
+        if (createIndex(null)) {
+            Vocabulary.Builder builder = new Vocabulary.Builder();
+            SKOSStreamLoader loader = new SKOSStreamLoader(builder, this.languages, loadStats);
+            loadStats.start("parse");
+            loader.read(inputStream, lang);
+            loadStats.count("triples", loader.getTriples());
+            vocabulary = builder.build(maxTransitiveDepth, loadStats);
+            indexVocabulary(vocabulary);
+        }
+        buildLabelBloomFilter(vocabulary);
     }
 
     /**
@@ -126,7 +321,43 @@ public class SKOSEngineImpl implements SKOSEngine {
      * @throws IOException if indexing SKOS model fails
      */
     public SKOSEngineImpl(Client client, String indexName, String filenameOrURI, List<String> languages) throws IOException {
+        this(client, indexName, filenameOrURI, languages, Settings.EMPTY);
+    }
+
+    /**
+     * This constructor loads the SKOS model from a given filename or URI,
+     * starts the indexing process and sets up the index searcher.
+     *
+     * @param client the Elasticsearch client
+     * @param indexName index name
+     * @param filenameOrURI file name or URI
+     * @param languages the languages to be considered
+     * @param settings the engine settings
+     * @throws IOException if indexing SKOS model fails
+     */
+    public SKOSEngineImpl(Client client, String indexName, String filenameOrURI, List<String> languages,
+                          Settings settings) throws IOException {
+        this(client, indexName, filenameOrURI, languages, settings, new LoadStats());
+    }
+
+    /**
+     * This constructor loads the SKOS model like
+     * {@link #SKOSEngineImpl(Client, String, String, List, Settings)}, and
+     * reports the progress while it is loading.
+     *
+     * @param client the Elasticsearch client
+     * @param indexName index name
+     * @param filenameOrURI file name or URI
+     * @param languages the languages to be considered
+     * @param settings the engine settings
+     * @param loadStats receives the timings and counts while loading
+     * @throws IOException if indexing SKOS model fails
+     */
+    public SKOSEngineImpl(Client client, String indexName, String filenameOrURI, List<String> languages,
+                          Settings settings, LoadStats loadStats) throws IOException {
         this.client = client;
+        this.loadStats = loadStats;
+        configure(settings);
         String langSig = "";
         if (languages != null ) {
             this.languages = new TreeSet<>(languages);
@@ -135,18 +366,33 @@ public class SKOSEngineImpl implements SKOSEngine {
             }
         }
         this.indexName = indexName + langSig;
-        if (filenameOrURI != null) {
-            FileManager fileManager = new FileManager();
-            fileManager.addLocatorFile();
-            fileManager.addLocatorURL();
-            fileManager.addLocatorClassLoader(SKOSEngineImpl.class.getClassLoader());
-            if (getExtension(filenameOrURI).equals("zip")) {
-                fileManager.addLocatorZip(filenameOrURI);
-                filenameOrURI = getBaseName(filenameOrURI);
+        Vocabulary vocabulary = null;
+        Map<String, Object> metadata = filenameOrURI != null ? sourceMetadata(filenameOrURI) : null;
+        LoadMode mode = filenameOrURI != null ? prepareIndex(metadata) : LoadMode.NONE;
+        if (mode == LoadMode.FULL) {
+            try {
+                if (metadata != null) {
+                    writeMetadata(metadata, STATE_BUILDING);
+                }
+                vocabulary = parse(filenameOrURI);
+                indexVocabulary(vocabulary);
+                if (metadata != null) {
+                    writeMetadata(metadata, STATE_COMPLETE);
+                }
+            } catch (IOException | RuntimeException e) {
+                // a partial index would be taken as up to date by the next load
+                deleteIndex();
+                throw e;
             }
-            skosModel = fileManager.loadModel(filenameOrURI);
-            entailSKOSModel();
-            indexSKOSModel();
+        } else if (mode == LoadMode.DELTA) {
+            // the metadata is written last, an interrupted update is repeated by the next load
+            vocabulary = parse(filenameOrURI);
+            updateIndex(vocabulary, new ConceptDelta());
+            writeMetadata(metadata, STATE_COMPLETE);
+        }
+        buildLabelBloomFilter(vocabulary);
+        if (localReplicas) {
+            awaitLocalCopy();
         }
     }
 
@@ -162,36 +408,46 @@ public class SKOSEngineImpl implements SKOSEngine {
      */
     public SKOSEngineImpl(Client client, String indexName, InputStream inputStream, String format, List<String> languages)
             throws IOException {
-        if (!("N3".equals(format) || "RDF/XML".equals(format) || "TURTLE".equals(format))) {
-            throw new IOException("Invalid RDF serialization format");
-        }
         this.client = client;
+        this.loadStats = new LoadStats();
         this.indexName = indexName;
+        configure(Settings.EMPTY);
         if (languages != null) {
             this.languages = new TreeSet<>(languages);
         }
-        skosModel = ModelFactory.createDefaultModel();
-        skosModel.read(inputStream, null, format);
-        entailSKOSModel();
-        indexSKOSModel();
+        Vocabulary vocabulary = null;
+        if (createIndex(null)) {
+            Vocabulary.Builder builder = new Vocabulary.Builder();
+            SKOSStreamLoader loader = new SKOSStreamLoader(builder, this.languages, loadStats);
+            loadStats.start("parse");
+            loader.read(inputStream, format);
+            loadStats.count("triples", loader.getTriples());
+            vocabulary = builder.build(maxTransitiveDepth, loadStats);
+            indexVocabulary(vocabulary);
+        }
+        buildLabelBloomFilter(vocabulary);
     }
 
-    private void entailSKOSModel() {
-        GraphStore graphStore = GraphStoreFactory.create(skosModel);
-        String sparqlQuery =
-                "PREFIX skos: <http://www.w3.org/2004/02/skos/core#>\n"
-                + "PREFIX rdf:<http://www.w3.org/1999/02/22-rdf-syntax-ns#>\n"
-                + "INSERT { ?subject rdf:type skos:Concept }\n"
-                + "WHERE {\n"
-                + "{ ?subject skos:prefLabel ?text } UNION\n"
-                + "{ ?subject skos:altLabel ?text } UNION\n"
-                + "{ ?subject skos:hiddenLabel ?text }\n"
-                + "}";
-        UpdateRequest request = UpdateFactory.create(sparqlQuery);
-        UpdateAction.execute(request, graphStore);
+    private void configure(Settings settings) {
+        this.maxTransitiveDepth = settings.getAsInt("maxTransitiveDepth", 0);
+        this.normalizer = LabelNormalizer.of(settings);
+        this.indexThreads = settings.getAsInt("indexThreads", Math.min(4, Runtime.getRuntime().availableProcessors()));
+        this.bulkConcurrency = settings.getAsInt("bulkConcurrency", 2);
+        this.bulkActions = settings.getAsInt("bulkActions", 1000);
+        this.bulkSize = settings.getAsBytesSize("bulkSize", new ByteSizeValue(5, ByteSizeUnit.MB));
+        this.replicas = settings.getAsInt("replicas", 1);
+        this.bloomFilterFpp = settings.getAsDouble("bloomFilterFpp", LabelBloomFilter.DEFAULT_FPP);
+        this.deltaUpdate = settings.getAsBoolean("deltaUpdate", true);
+        this.lookupTimeout = settings.getAsTime("lookupTimeout", TimeValue.timeValueSeconds(5));
+        this.localReplicas = settings.getAsBoolean("localReplicas", false);
+        this.localReplicaTimeout = settings.getAsTime("localReplicaTimeout", TimeValue.timeValueSeconds(30));
+        this.preference = localReplicas ? "_local" : null;
+        this.buildTimeout = settings.getAsTime("buildTimeout", TimeValue.timeValueMinutes(30));
+        if (indexThreads < 1 || bulkConcurrency < 0 || bulkActions < 1) {
+            throw new IllegalArgumentException("'indexThreads' and 'bulkActions' must be positive, 'bulkConcurrency' must not be negative");
+        }
     }
 
-
     @Override
     public List<String> getAltLabels(String conceptURI) throws IOException {
         return readConceptFieldValues(conceptURI, FIELD_ALT_LABEL);
@@ -247,7 +503,75 @@ public class SKOSEngineImpl implements SKOSEngine {
 
     @Override
     public List<String> getConcepts(String label) throws IOException {
-        List<String> concepts = new ArrayList<>();
+        return readHits(searchConcepts(label).execute().actionGet(lookupTimeout));
+    }
+
+    @Override
+    public Map<String, List<String>> getConcepts(Collection<String> labels) throws IOException {
+        Map<String, List<String>> result = new LinkedHashMap<>();
+        if (labels.isEmpty()) {
+            return result;
+        }
+        MultiSearchRequestBuilder multiSearchRequestBuilder = new MultiSearchRequestBuilder(client, MultiSearchAction.INSTANCE);
+        for (String label : labels) {
+            multiSearchRequestBuilder.add(searchConcepts(label));
+        }
+        MultiSearchResponse.Item[] responses = multiSearchRequestBuilder.execute().actionGet(lookupTimeout).getResponses();
+        int i = 0;
+        for (String label : labels) {
+            MultiSearchResponse.Item item = responses[i++];
+            if (item.isFailure()) {
+                throw new IOException("can't search concepts of " + label + ": " + item.getFailureMessage());
+            }
+            List<String> concepts = readHits(item.getResponse());
+            if (!concepts.isEmpty()) {
+                result.put(label, concepts);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Map<SKOSType, List<String>>> getLabels(Collection<String> conceptURIs, Set<SKOSType> types)
+            throws IOException {
+        Map<String, Map<String, Object>> concepts = readConcepts(conceptURIs);
+        // the related concepts of all concepts and relations are read at once
+        Set<String> related = new LinkedHashSet<>();
+        for (Map<String, Object> concept : concepts.values()) {
+            for (SKOSType type : types) {
+                if (isRelation(type)) {
+                    related.addAll(fieldValues(concept, field(type)));
+                }
+            }
+        }
+        Map<String, Map<String, Object>> relatedConcepts = readConcepts(related);
+        Map<String, Map<SKOSType, List<String>>> result = new LinkedHashMap<>();
+        for (Map.Entry<String, Map<String, Object>> entry : concepts.entrySet()) {
+            Map<SKOSType, List<String>> conceptLabels = new EnumMap<>(SKOSType.class);
+            for (SKOSType type : types) {
+                List<String> values = fieldValues(entry.getValue(), field(type));
+                if (isRelation(type)) {
+                    List<String> labels = new ArrayList<>();
+                    for (String conceptURI : values) {
+                        Map<String, Object> concept = relatedConcepts.get(conceptURI);
+                        if (concept != null) {
+                            labels.addAll(fieldValues(concept, FIELD_PREF_LABEL));
+                            labels.addAll(fieldValues(concept, FIELD_ALT_LABEL));
+                        }
+                    }
+                    values = labels;
+                }
+                conceptLabels.put(type, values);
+            }
+            result.put(entry.getKey(), conceptLabels);
+        }
+        return result;
+    }
+
+    /**
+     * Builds the search for the concepts of a label
+     */
+    private SearchRequestBuilder searchConcepts(String label) {
         // convert the query to lower-case
         String queryString = label.toLowerCase();
         QueryBuilder queryBuilder = QueryBuilders.disMaxQuery()
@@ -256,28 +580,58 @@ public class SKOSEngineImpl implements SKOSEngine {
                 .add(termQuery(FIELD_ALT_LABEL, queryString))
                 .add(termQuery(FIELD_HIDDEN_LABEL, queryString));
         SearchRequestBuilder searchRequestBuilder = new SearchRequestBuilder(client, SearchAction.INSTANCE);
-        SearchResponse searchResponse = searchRequestBuilder.setIndices(indexName)
+        return searchRequestBuilder.setIndices(indexName)
+                .setPreference(preference)
                 .setQuery(queryBuilder)
-                .setSize(100) // is 100 ok? 10?
-                .execute().actionGet();
+                .setSize(100); // is 100 ok? 10?
+    }
+
+    private List<String> readHits(SearchResponse searchResponse) {
+        List<String> concepts = new ArrayList<>();
         if (searchResponse.getHits() != null) {
             for (SearchHit hit : searchResponse.getHits().getHits()) {
-                String conceptURI = (String) hit.getSource().get(FIELD_URI);
+                // the hits are whole concept documents, keep them for the label getters
+                Map<String, Object> source = hit.getSource();
+                String conceptURI = (String) source.get(FIELD_URI);
+                this.concepts.put(conceptURI, source);
                 concepts.add(conceptURI);
             }
         }
         return concepts;
     }
 
+    private static boolean isRelation(SKOSType type) {
+        return type != SKOSType.PREF && type != SKOSType.ALT && type != SKOSType.HIDDEN;
+    }
+
+    private static String field(SKOSType type) {
+        switch (type) {
+            case PREF:
+                return FIELD_PREF_LABEL;
+            case ALT:
+                return FIELD_ALT_LABEL;
+            case HIDDEN:
+                return FIELD_HIDDEN_LABEL;
+            case BROADER:
+                return FIELD_BROADER;
+            case NARROWER:
+                return FIELD_NARROWER;
+            case BROADERTRANSITIVE:
+                return FIELD_BROADER_TRANSITIVE;
+            case NARROWERTRANSITIVE:
+                return FIELD_NARROWER_TRANSITIVE;
+            default:
+                return FIELD_RELATED;
+        }
+    }
+
     private List<String> getLabels(String conceptURI, String field)
             throws IOException {
         List<String> labels = new LinkedList<>();
         List<String> concepts = readConceptFieldValues(conceptURI, field);
-        if (concepts != null) {
-            for (String aConceptURI : concepts) {
-                labels.addAll(getPrefLabels(aConceptURI));
-                labels.addAll(getAltLabels(aConceptURI));
-            }
+        for (Map<String, Object> concept : readConcepts(concepts).values()) {
+            labels.addAll(fieldValues(concept, FIELD_PREF_LABEL));
+            labels.addAll(fieldValues(concept, FIELD_ALT_LABEL));
         }
         return labels;
     }
@@ -317,206 +671,1345 @@ public class SKOSEngineImpl implements SKOSEngine {
         return getLabels(conceptURI, FIELD_RELATED);
     }
 
-    @SuppressWarnings("unchecked")
-    private List<String> readConceptFieldValues(String conceptURI, String field)
-            throws IOException {
-        TermQueryBuilder termQueryBuilder = termQuery(FIELD_URI, conceptURI);
-        SearchRequestBuilder searchRequestBuilder = new SearchRequestBuilder(client, SearchAction.INSTANCE);
-        SearchResponse searchResponse = searchRequestBuilder.setIndices(indexName)
-                .setQuery(termQueryBuilder)
-                .setSize(1)
-                .execute().actionGet();
-        if (searchResponse.getHits().totalHits() != 1) {
+    private List<String> readConceptFieldValues(String conceptURI, String field) {
+        Map<String, Object> concept = readConcept(conceptURI);
+        if (concept == null) {
             logger.warn("unknown concept " + conceptURI);
             return Collections.emptyList();
         }
-        SearchHit hit = searchResponse.getHits().getAt(0);
-        Object object = hit.getSource().get(field);
+        return fieldValues(concept, field);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<String> fieldValues(Map<String, Object> concept, String field) {
+        Object object = concept.get(field);
+        if (object == null) {
+            return Collections.emptyList();
+        }
         if (!(object instanceof List)) {
-            object = Collections.singletonList(object);
+            return Collections.singletonList(object.toString());
         }
-        return (List<String>) object;
+        // the document is cached, so it must not be changed by the caller
+        return Collections.unmodifiableList((List<String>) object);
     }
 
     /**
-     * Creates the synonym index
+     * Returns the document of a concept by a realtime get of its id
      *
-     * @throws IOException
+     * @param conceptURI the concept URI
+     * @return the document source, or null if there is no such concept
      */
-    private void indexSKOSModel() throws IOException {
-
-        ClusterHealthRequestBuilder clusterHealthRequestBuilder = new ClusterHealthRequestBuilder(client, ClusterHealthAction.INSTANCE);
-        ClusterHealthResponse clusterIndexHealthResponse = clusterHealthRequestBuilder
-                .setIndices(new String[]{}) // we need this, or ES will bark with an NPE
-                .setWaitForYellowStatus()
-                .setTimeout("15s").execute().actionGet();
-        if (clusterIndexHealthResponse.isTimedOut()) {
-            throw new IOException("cluster health is not yellow: " + clusterIndexHealthResponse.getStatus().name());
-        }
-
-        CreateIndexRequestBuilder createIndexRequestBuilder = new CreateIndexRequestBuilder(client, CreateIndexAction.INSTANCE, indexName);
-        Settings settings = Settings.builder()
-                .put("index.analysis.analyzer.default.type", "keyword")
-                .build();
-        try {
-            createIndexRequestBuilder.setSettings(settings).execute().actionGet();
-        } catch (IndexAlreadyExistsException e) {
-            return;
+    private Map<String, Object> readConcept(String conceptURI) {
+        Map<String, Object> concept = concepts.getIfPresent(conceptURI);
+        if (concept != null) {
+            return concept;
         }
-
-        BulkRequestBuilder bulkRequestBuilder = new BulkRequestBuilder(client, BulkAction.INSTANCE);
-
-        ResIterator it = skosModel.listResourcesWithProperty(RDF.type, SKOS.Concept);
-        while (it.hasNext()) {
-            Resource skos_concept = it.next();
-            XContentBuilder builder = jsonBuilder();
-            builder.startObject()
-                    .field(FIELD_URI, skos_concept.getURI());
-            buildAnnotation(builder, skos_concept, SKOS.prefLabel, FIELD_PREF_LABEL);
-            buildAnnotation(builder, skos_concept, SKOS.altLabel, FIELD_ALT_LABEL);
-            buildAnnotation(builder, skos_concept, SKOS.hiddenLabel, FIELD_HIDDEN_LABEL);
-            buildObject(builder, skos_concept, SKOS.broader, FIELD_BROADER);
-            buildObject(builder, skos_concept, SKOS.broaderTransitive, FIELD_BROADER_TRANSITIVE);
-            buildObject(builder, skos_concept, SKOS.narrower, FIELD_NARROWER);
-            buildObject(builder, skos_concept, SKOS.narrowerTransitive, FIELD_NARROWER_TRANSITIVE);
-            buildObject(builder, skos_concept, SKOS.related, FIELD_RELATED);
-            builder.endObject();
-            IndexRequestBuilder indexRequestBuilder = new IndexRequestBuilder(client, IndexAction.INSTANCE);
-            indexRequestBuilder.setIndex(indexName).setType("skos")
-                    .setSource(builder);
-            bulkRequestBuilder.add(indexRequestBuilder);
-            if (bulkRequestBuilder.numberOfActions() == 1000) {
-                BulkResponse bulkResponse = bulkRequestBuilder.execute().actionGet();
-                if (bulkResponse.hasFailures()) {
-                    throw new IOException("can't index SKOS: " + bulkResponse.buildFailureMessage());
-                }
-                bulkRequestBuilder = new BulkRequestBuilder(client, BulkAction.INSTANCE);
-            }
-        }
-        if (bulkRequestBuilder.numberOfActions() > 0) {
-            BulkResponse bulkResponse = bulkRequestBuilder.execute().actionGet();
-            if (bulkResponse.hasFailures()) {
-                throw new IOException("can't index SKOS: " + bulkResponse.buildFailureMessage());
-            }
+        GetResponse getResponse = new GetRequestBuilder(client, GetAction.INSTANCE, indexName)
+                .setType(TYPE)
+                .setId(conceptId(conceptURI))
+                .setPreference(preference)
+                .execute().actionGet(lookupTimeout);
+        concept = getResponse.isExists() ? getResponse.getSourceAsMap() : searchConcept(conceptURI);
+        if (concept != null) {
+            concepts.put(conceptURI, concept);
         }
-        RefreshRequestBuilder refreshRequestBuilder = new RefreshRequestBuilder(client, RefreshAction.INSTANCE);
-        refreshRequestBuilder.setIndices(indexName).execute().actionGet();
+        return concept;
     }
 
-    private void buildAnnotation(XContentBuilder builder, Resource skos_concept,
-                                 AnnotationProperty property, String field) throws IOException {
-        List<String> values = new LinkedList<>();
-        StmtIterator stmt_iter = skos_concept.listProperties(property);
-        while (stmt_iter.hasNext()) {
-            Literal labelLiteral = stmt_iter.nextStatement().getObject().as(Literal.class);
-            String label = labelLiteral.getLexicalForm();
-            String labelLang = labelLiteral.getLanguage();
-            if (this.languages != null && !this.languages.isEmpty() && !this.languages.contains(labelLang)) {
-                continue;
+    /**
+     * Returns the documents of concepts with one multi get for all concepts
+     * that are not cached. Unknown concepts are skipped.
+     *
+     * @param conceptURIs the concept URIs
+     * @return the document sources by URI, in the order of the URIs
+     */
+    private Map<String, Map<String, Object>> readConcepts(Collection<String> conceptURIs) {
+        Map<String, Map<String, Object>> result = new LinkedHashMap<>();
+        List<String> missing = new ArrayList<>();
+        for (String conceptURI : conceptURIs) {
+            Map<String, Object> concept = concepts.getIfPresent(conceptURI);
+            if (concept == null) {
+                missing.add(conceptURI);
             }
-            values.add(label.toLowerCase());
+            // keeps the order of the URIs for concepts that are read below
+            result.put(conceptURI, concept);
         }
-        builder.field(field, values.toArray(new String[values.size()]));
-    }
-
-    private void buildObject(XContentBuilder builder, Resource skos_concept,
-                             ObjectProperty property, String field) throws IOException {
-        List<String> values = new LinkedList<>();
-        StmtIterator stmt_iter = skos_concept.listProperties(property);
-        while (stmt_iter.hasNext()) {
-            RDFNode concept = stmt_iter.nextStatement().getObject();
-            if (!concept.canAs(Resource.class)) {
-                logger.warn("error when indexing relationship of concept " + skos_concept.getURI() + " .");
-                continue;
+        if (!missing.isEmpty()) {
+            MultiGetRequestBuilder multiGetRequestBuilder = new MultiGetRequestBuilder(client, MultiGetAction.INSTANCE)
+                    .setPreference(preference);
+            for (String conceptURI : missing) {
+                multiGetRequestBuilder.add(indexName, TYPE, conceptId(conceptURI));
+            }
+            MultiGetItemResponse[] responses = multiGetRequestBuilder.execute().actionGet(lookupTimeout).getResponses();
+            for (int i = 0; i < responses.length; i++) {
+                String conceptURI = missing.get(i);
+                MultiGetItemResponse response = responses[i];
+                Map<String, Object> concept = !response.isFailed() && response.getResponse().isExists() ?
+                        response.getResponse().getSourceAsMap() : searchConcept(conceptURI);
+                if (concept != null) {
+                    concepts.put(conceptURI, concept);
+                    result.put(conceptURI, concept);
+                } else {
+                    logger.warn("unknown concept " + conceptURI);
+                    result.remove(conceptURI);
+                }
             }
-            Resource resource = concept.as(Resource.class);
-            values.add(resource.getURI());
         }
-        builder.field(field, values.toArray(new String[values.size()]));
+        return result;
     }
 
-    private String join(Iterator iterator, char separator) {
-        // handle null, zero and one elements before building a buffer
-        if (iterator == null) {
+    /**
+     * Searches the document of a concept by its URI field, for indexes
+     * written with generated ids
+     *
+     * @param conceptURI the concept URI
+     * @return the document source, or null if there is no such concept
+     */
+    private Map<String, Object> searchConcept(String conceptURI) {
+        SearchRequestBuilder searchRequestBuilder = new SearchRequestBuilder(client, SearchAction.INSTANCE);
+        SearchResponse searchResponse = searchRequestBuilder.setIndices(indexName)
+                .setPreference(preference)
+                .setQuery(QueryBuilders.constantScoreQuery(termQuery(FIELD_URI, conceptURI)))
+                .setSize(1)
+                .execute().actionGet(lookupTimeout);
+        if (searchResponse.getHits().totalHits() != 1) {
             return null;
         }
-        if (!iterator.hasNext()) {
-            return "";
-        }
-        Object first = iterator.next();
-        if (!iterator.hasNext()) {
-            return first == null ? "" : first.toString();
-        }
-        // two or more elements
-        StringBuilder buf = new StringBuilder();
-        if (first != null) {
-            buf.append(first);
+        return searchResponse.getHits().getAt(0).getSource();
+    }
+
+    /**
+     * Returns the document id of a concept, which is its URI, or a digest of
+     * the URI if the URI is too long for an id
+     *
+     * @param conceptURI the concept URI
+     * @return the document id
+     */
+    static String conceptId(String conceptURI) {
+        byte[] bytes = conceptURI.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length <= MAX_ID_LENGTH) {
+            return conceptURI;
         }
-        while (iterator.hasNext()) {
-            buf.append(separator);
-            Object obj = iterator.next();
-            if (obj != null) {
-                buf.append(obj);
+        return "sha1:" + MessageDigests.toHexString(MessageDigests.sha1().digest(bytes));
+    }
+
+    @Override
+    public char[] getAnalyzedLabel(String label) throws IOException {
+        char[] analyzed = analyzedLabels.getIfPresent(label);
+        if (analyzed == null) {
+            analyzed = normalizer.normalize(label);
+            if (analyzed == null) {
+                analyzed = ELIMINATED;
             }
+            analyzedLabels.put(label, analyzed);
         }
-        return buf.toString();
+        return analyzed != ELIMINATED ? analyzed : null;
     }
 
-    private static final char UNIX_SEPARATOR = '/';
-    private static final char WINDOWS_SEPARATOR = '\\';
-
-    private String getName(String filename) {
-        if (filename == null) {
-            return null;
-        }
-        int index = indexOfLastSeparator(filename);
-        return filename.substring(index + 1);
+    @Override
+    public LabelBloomFilter getLabelBloomFilter() {
+        return labelBloomFilter;
     }
 
-    private int indexOfLastSeparator(String filename) {
-        if (filename == null) {
-            return -1;
-        }
-        int lastUnixPos = filename.lastIndexOf(UNIX_SEPARATOR);
-        int lastWindowsPos = filename.lastIndexOf(WINDOWS_SEPARATOR);
-        return Math.max(lastUnixPos, lastWindowsPos);
+    @Override
+    public LabelMatcher getLabelMatcher() {
+        return labelBloomFilter;
     }
 
-    private String getExtension(String filename) {
-        if (filename == null) {
-            return null;
+    /**
+     * The concepts live in the index, only the Bloom filter and the caches
+     * are on the heap
+     */
+    @Override
+    public MemoryUsage getMemoryUsage() {
+        long conceptBytes = 0L;
+        for (Map.Entry<String, Map<String, Object>> entry : concepts.asMap().entrySet()) {
+            conceptBytes += MemoryUsage.sizeOf(entry.getKey()) + MemoryUsage.sizeOfValue(entry.getValue());
         }
-        int index = indexOfExtension(filename);
-        if (index == -1) {
-            return "";
-        } else {
-            return filename.substring(index + 1);
+        long labelBytes = 0L;
+        for (Map.Entry<String, char[]> entry : analyzedLabels.asMap().entrySet()) {
+            labelBytes += MemoryUsage.sizeOf(entry.getKey()) + MemoryUsage.sizeOfValue(entry.getValue());
         }
+        return new MemoryUsage()
+                .add("bloom_filter", labelBloomFilter != null ? labelBloomFilter.getSizeInBytes() : 0L)
+                .add("concept_cache", conceptBytes)
+                .add("analyzed_labels", labelBytes);
     }
 
-    private int indexOfExtension(String filename) {
-        if (filename == null) {
-            return -1;
+    /**
+     * Builds the label Bloom filter from the labels of the vocabulary, or, if
+     * the index already existed and nothing was parsed, from the labels
+     * stored in the index
+     *
+     * @param vocabulary the indexed vocabulary, or null
+     */
+    private void buildLabelBloomFilter(Vocabulary vocabulary) throws IOException {
+        if (bloomFilterFpp > 0.0) {
+            loadStats.start("bloom");
+            if (vocabulary != null) {
+                labelBloomFilter = LabelBloomFilter.create(vocabulary.labels().terms(), bloomFilterFpp);
+            } else {
+                try {
+                    labelBloomFilter = LabelBloomFilter.create(readIndexedLabels(), bloomFilterFpp);
+                } catch (IndexNotFoundException e) {
+                    logger.warn("no index {}, no label Bloom filter", indexName);
+                }
+            }
+            loadStats.stop();
         }
-        int extensionPos = filename.lastIndexOf(EXTENSION_SEPARATOR);
-        int lastSeparator = indexOfLastSeparator(filename);
-        return (lastSeparator > extensionPos ? -1 : extensionPos);
+        // the vocabulary is not referenced after this, only the Bloom filter is retained
+        loadStats.count("retainedBytes", getMemoryUsage().getTotal());
     }
-    public static final char EXTENSION_SEPARATOR = '.';
 
-    private String getBaseName(String filename) {
-        return removeExtension(getName(filename));
+    /**
+     * Scrolls over all documents of the index and collects their labels
+     *
+     * @return the distinct labels
+     */
+    private Set<String> readIndexedLabels() throws IOException {
+        final Set<String> labels = new HashSet<>();
+        scroll(QueryBuilders.matchAllQuery(), LABEL_FIELDS, new HitConsumer() {
+            @Override
+            public void accept(Map<String, Object> source) {
+                labels.addAll(labelsOf(source));
+            }
+        });
+        return labels;
     }
 
-    private String removeExtension(String filename) {
-        if (filename == null) {
-            return null;
+    /**
+     * Returns the labels of a concept document
+     *
+     * @param source the document source
+     * @return the pref, alt and hidden labels
+     */
+    private static List<String> labelsOf(Map<String, Object> source) {
+        List<String> labels = new ArrayList<>();
+        for (String field : LABEL_FIELDS) {
+            labels.addAll(fieldValues(source, field));
         }
-        int index = indexOfExtension(filename);
-        if (index == -1) {
-            return filename;
-        } else {
-            return filename.substring(0, index);
+        return labels;
+    }
+
+    /**
+     * Receives the documents of a scroll
+     */
+    private interface HitConsumer {
+
+        void accept(Map<String, Object> source) throws IOException;
+    }
+
+    /**
+     * Scrolls over the concept documents matching a query
+     *
+     * @param query the query
+     * @param fields the source fields to fetch
+     * @param consumer receives the source of each document
+     * @throws IOException if the consumer fails
+     */
+    private void scroll(QueryBuilder query, String[] fields, HitConsumer consumer) throws IOException {
+        TimeValue keepAlive = TimeValue.timeValueMinutes(1);
+        SearchRequestBuilder searchRequestBuilder = new SearchRequestBuilder(client, SearchAction.INSTANCE);
+        SearchResponse searchResponse = searchRequestBuilder.setIndices(indexName)
+                .setTypes(TYPE)
+                .setQuery(query)
+                .setFetchSource(fields, null)
+                .addSort("_doc", SortOrder.ASC)
+                .setScroll(keepAlive)
+                .setSize(bulkActions)
+                .execute().actionGet();
+        try {
+            while (searchResponse.getHits().getHits().length > 0) {
+                for (SearchHit hit : searchResponse.getHits().getHits()) {
+                    consumer.accept(hit.getSource());
+                }
+                searchResponse = new SearchScrollRequestBuilder(client, SearchScrollAction.INSTANCE,
+                        searchResponse.getScrollId()).setScroll(keepAlive).execute().actionGet();
+            }
+        } finally {
+            new ClearScrollRequestBuilder(client, ClearScrollAction.INSTANCE)
+                    .addScrollId(searchResponse.getScrollId()).execute().actionGet();
         }
-    }    
+    }
+
+    /**
+     * Returns the metadata of a SKOS source that decides whether an existing
+     * index is up to date
+     *
+     * @param filenameOrURI file name or URI
+     * @return the metadata, or null if the source is not a local file
+     * @throws IOException if the file can not be read
+     */
+    private Map<String, Object> sourceMetadata(String filenameOrURI) throws IOException {
+        Path file = SKOSStreamLoader.localFile(filenameOrURI);
+        if (file == null) {
+            return null;
+        }
+        loadStats.start("checksum");
+        Map<String, Object> metadata = new LinkedHashMap<>();
+        metadata.put(META_SOURCE, filenameOrURI);
+        metadata.put(META_CHECKSUM, VocabularySnapshot.checksum(file));
+        metadata.put(META_SIZE, Files.size(file));
+        metadata.put(META_LANGUAGES, languages != null ? new ArrayList<>(languages) : Collections.emptyList());
+        metadata.put(META_MAX_TRANSITIVE_DEPTH, maxTransitiveDepth);
+        loadStats.stop();
+        return metadata;
+    }
+
+    /**
+     * Creates the index, or checks whether the existing index was built from
+     * the same source and configuration. The index is created with the
+     * metadata in the mapping of the metadata type, so that another node sees
+     * it before the metadata document is written.
+     *
+     * A complete index with the same metadata is used. An index in state
+     * building is being loaded by another node and is used too, unless it
+     * is older than the build timeout, then its load is taken as abandoned.
+     * A stale index that was completely loaded with the same languages and
+     * maxTransitiveDepth is updated in place. Other indexes are deleted and
+     * created again, unless another node replaced them in the meantime.
+     * Without source metadata, an existing index is always used.
+     *
+     * @param metadata the metadata of the source, or null
+     * @return how the index must be loaded
+     * @throws IOException if the cluster is not available
+     */
+    private LoadMode prepareIndex(Map<String, Object> metadata) throws IOException {
+        for (int attempt = 0; attempt < MAX_PREPARE_ATTEMPTS; attempt++) {
+            if (createIndex(metadata)) {
+                return LoadMode.FULL;
+            }
+            if (metadata == null) {
+                return LoadMode.NONE;
+            }
+            IndexMetaData indexMetaData = indexMetaData();
+            if (indexMetaData == null) {
+                // deleted by another node
+                continue;
+            }
+            Map<String, Object> indexed = readMetadata(indexMetaData);
+            if (indexed != null && isCurrent(indexed, metadata)) {
+                logger.info("SKOS index {} is up to date, not parsing {}", indexName, metadata.get(META_SOURCE));
+                return LoadMode.NONE;
+            }
+            if (indexed != null && STATE_BUILDING.equals(indexed.get(META_STATE)) && isSameSource(indexed, metadata)) {
+                long age = indexed.get(META_TIMESTAMP) instanceof Number ?
+                        System.currentTimeMillis() - ((Number) indexed.get(META_TIMESTAMP)).longValue() : Long.MAX_VALUE;
+                if (age < buildTimeout.millis()) {
+                    logger.info("SKOS index {} is being loaded from {} by another node, not parsing it", indexName,
+                            metadata.get(META_SOURCE));
+                    return LoadMode.NONE;
+                }
+                logger.warn("SKOS index {} is in state building for more than {}, rebuilding it from {}", indexName,
+                        buildTimeout, metadata.get(META_SOURCE));
+            } else if (deltaUpdate && indexed != null && isUpdatable(indexed, metadata)) {
+                logger.info("SKOS index {} is stale, updating the changed concepts from {}", indexName,
+                        metadata.get(META_SOURCE));
+                return LoadMode.DELTA;
+            } else {
+                logger.info("SKOS index {} is stale, rebuilding it from {}", indexName, metadata.get(META_SOURCE));
+            }
+            deleteIndex(indexMetaData.getIndexUUID());
+        }
+        throw new IOException("SKOS index " + indexName + " was replaced by other nodes " + MAX_PREPARE_ATTEMPTS
+                + " times while it was checked, do other nodes load it from another source?");
+    }
+
+    /**
+     * Returns whether an index is complete and was built from the same source
+     * and configuration
+     */
+    private static boolean isCurrent(Map<String, Object> indexed, Map<String, Object> metadata) {
+        return STATE_COMPLETE.equals(indexed.get(META_STATE)) && isSameSource(indexed, metadata);
+    }
+
+    private static boolean isSameSource(Map<String, Object> indexed, Map<String, Object> metadata) {
+        for (String key : new String[]{META_CHECKSUM, META_SIZE, META_MAX_TRANSITIVE_DEPTH}) {
+            Object value = indexed.get(key);
+            if (!(value instanceof Number) || ((Number) value).longValue() != ((Number) metadata.get(key)).longValue()) {
+                return false;
+            }
+        }
+        return metadata.get(META_LANGUAGES).equals(indexed.get(META_LANGUAGES));
+    }
+
+    /**
+     * Returns whether a stale index can be updated in place: it must be
+     * complete and its documents must hold the same languages and
+     * transitive relations as documents built from the new source
+     */
+    private static boolean isUpdatable(Map<String, Object> indexed, Map<String, Object> metadata) {
+        Object depth = indexed.get(META_MAX_TRANSITIVE_DEPTH);
+        return STATE_COMPLETE.equals(indexed.get(META_STATE))
+                && depth instanceof Number
+                && ((Number) depth).longValue() == ((Number) metadata.get(META_MAX_TRANSITIVE_DEPTH)).longValue()
+                && metadata.get(META_LANGUAGES).equals(indexed.get(META_LANGUAGES));
+    }
+
+    /**
+     * Reads the metadata document by a realtime get, or the metadata the
+     * index was created with if the document is not written yet
+     *
+     * @return the metadata, or null if the index has no metadata
+     * @throws IOException if the mapping can not be read
+     */
+    private Map<String, Object> readMetadata() throws IOException {
+        IndexMetaData indexMetaData = indexMetaData();
+        return indexMetaData != null ? readMetadata(indexMetaData) : null;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Map<String, Object> readMetadata(IndexMetaData indexMetaData) throws IOException {
+        try {
+            GetResponse getResponse = new GetRequestBuilder(client, GetAction.INSTANCE, indexName)
+                    .setType(META_TYPE)
+                    .setId(META_ID)
+                    .execute().actionGet();
+            if (getResponse.isExists()) {
+                return getResponse.getSourceAsMap();
+            }
+        } catch (IndexNotFoundException e) {
+            return null;
+        } catch (NoShardAvailableActionException e) {
+            // the index was just created, its mapping holds the metadata
+        }
+        MappingMetaData mapping = indexMetaData.mapping(META_TYPE);
+        Object meta = mapping != null ? mapping.sourceAsMap().get("_meta") : null;
+        return meta instanceof Map ? (Map<String, Object>) meta : null;
+    }
+
+    /**
+     * Returns the metadata of the index from the cluster state
+     *
+     * @return the index metadata, or null if the index does not exist
+     */
+    private IndexMetaData indexMetaData() {
+        try {
+            ClusterState state = new ClusterStateRequestBuilder(client, ClusterStateAction.INSTANCE)
+                    .clear()
+                    .setMetaData(true)
+                    .setIndices(indexName)
+                    .execute().actionGet().getState();
+            return state.metaData().index(indexName);
+        } catch (IndexNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes the metadata document with a load state and the current time
+     *
+     * @param metadata the metadata of the source
+     * @param state the load state
+     * @throws IOException if the document can not be written
+     */
+    private void writeMetadata(Map<String, Object> metadata, String state) throws IOException {
+        Map<String, Object> source = new LinkedHashMap<>(metadata);
+        source.put(META_STATE, state);
+        source.put(META_TIMESTAMP, System.currentTimeMillis());
+        // a bulk request, the engine may be built on an index thread that a single index request would wait for
+        execute(new BulkRequest().add(new IndexRequest(indexName, META_TYPE, META_ID).source(source)));
+    }
+
+    /**
+     * Deletes the index if it is still the index with the given UUID, and
+     * not an index created by another node in the meantime
+     *
+     * @param indexUUID the UUID of the index to delete
+     */
+    private void deleteIndex(String indexUUID) {
+        IndexMetaData indexMetaData = indexMetaData();
+        if (indexMetaData != null && indexUUID.equals(indexMetaData.getIndexUUID())) {
+            deleteIndex();
+        }
+    }
+
+    private void deleteIndex() {
+        try {
+            new DeleteIndexRequestBuilder(client, DeleteIndexAction.INSTANCE, indexName).execute().actionGet();
+        } catch (IndexNotFoundException e) {
+            // deleted by another node
+        }
+    }
+
+    /**
+     * Creates the synonym index. The metadata of the source is stored in the
+     * mapping of the metadata type in state building, so that the index and
+     * its metadata are created at once.
+     *
+     * @param metadata the metadata of the source, or null
+     * @return true if the index was created, false if it already exists
+     * @throws IOException if the cluster is not available
+     */
+    private boolean createIndex(Map<String, Object> metadata) throws IOException {
+
+        ClusterHealthRequestBuilder clusterHealthRequestBuilder = new ClusterHealthRequestBuilder(client, ClusterHealthAction.INSTANCE);
+        ClusterHealthResponse clusterIndexHealthResponse = clusterHealthRequestBuilder
+                .setIndices(new String[]{}) // we need this, or ES will bark with an NPE
+                .setWaitForYellowStatus()
+                .setTimeout("15s").execute().actionGet();
+        if (clusterIndexHealthResponse.isTimedOut()) {
+            throw new IOException("cluster health is not yellow: " + clusterIndexHealthResponse.getStatus().name());
+        }
+
+        CreateIndexRequestBuilder createIndexRequestBuilder = new CreateIndexRequestBuilder(client, CreateIndexAction.INSTANCE, indexName);
+        // refresh and replicas are enabled when loading is complete
+        Settings.Builder settings = Settings.builder()
+                .put("index.analysis.analyzer.default.type", "keyword")
+                .put("index.refresh_interval", "-1")
+                .put("index.number_of_replicas", 0);
+        if (localReplicas) {
+            // one shard, so that a lookup is answered by one local copy
+            settings.put("index.number_of_shards", 1);
+        }
+        if (metadata != null) {
+            Map<String, Object> meta = new LinkedHashMap<>(metadata);
+            meta.put(META_STATE, STATE_BUILDING);
+            meta.put(META_TIMESTAMP, System.currentTimeMillis());
+            createIndexRequestBuilder.addMapping(META_TYPE, Collections.<String, Object>singletonMap("_meta", meta));
+        }
+        try {
+            createIndexRequestBuilder.setSettings(settings).execute().actionGet();
+        } catch (IndexAlreadyExistsException e) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Indexes each concept of the vocabulary as a document. Documents are
+     * built in parallel on a bounded pool of worker threads, each working on
+     * a range of concept ordinals, and sent by a bulk processor that limits
+     * the number of bulk requests in flight.
+     *
+     * @param vocabulary the vocabulary
+     * @throws IOException if indexing fails
+     */
+    private void indexVocabulary(final Vocabulary vocabulary) throws IOException {
+        loadStats.start("index");
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final BulkProcessor bulkProcessor = BulkProcessor.builder(client, new BulkProcessor.Listener() {
+            @Override
+            public void beforeBulk(long executionId, BulkRequest request) {
+            }
+
+            @Override
+            public void afterBulk(long executionId, BulkRequest request, BulkResponse response) {
+                if (response.hasFailures()) {
+                    failure.compareAndSet(null, new IOException(response.buildFailureMessage()));
+                }
+            }
+
+            @Override
+            public void afterBulk(long executionId, BulkRequest request, Throwable t) {
+                failure.compareAndSet(null, t);
+            }
+        })
+                .setName("skos-" + indexName)
+                .setConcurrentRequests(bulkConcurrency)
+                .setBulkActions(bulkActions)
+                .setBulkSize(bulkSize)
+                .build();
+        int size = vocabulary.graph().size();
+        int chunks = indexThreads * 4;
+        int chunkSize = (size + chunks - 1) / chunks;
+        ExecutorService executor = EsExecutors.newFixed("skos-index", indexThreads, chunks,
+                EsExecutors.daemonThreadFactory("skos-index"));
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int from = 0; from < size; from += chunkSize) {
+                final int start = from;
+                final int end = Math.min(size, from + chunkSize);
+                futures.add(executor.submit(new Callable<Void>() {
+                    @Override
+                    public Void call() throws IOException {
+                        for (int ord = start; ord < end && failure.get() == null; ord++) {
+                            if (vocabulary.graph().isConcept(ord)) {
+                                bulkProcessor.add(buildDocument(vocabulary, ord));
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            if (!bulkProcessor.awaitClose(1, TimeUnit.MINUTES)) {
+                throw new IOException("timeout while waiting for bulk requests of index " + indexName);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while indexing SKOS", e);
+        } catch (ExecutionException e) {
+            failure.compareAndSet(null, e.getCause());
+        } finally {
+            executor.shutdownNow();
+            bulkProcessor.close();
+        }
+        if (failure.get() != null) {
+            throw new IOException("can't index SKOS: " + failure.get().getMessage(), failure.get());
+        }
+        UpdateSettingsRequestBuilder updateSettingsRequestBuilder =
+                new UpdateSettingsRequestBuilder(client, UpdateSettingsAction.INSTANCE, indexName);
+        Settings.Builder settings = Settings.builder()
+                .put("index.refresh_interval", "1s");
+        if (localReplicas) {
+            settings.put("index.auto_expand_replicas", AUTO_EXPAND_ALL);
+        } else {
+            settings.put("index.number_of_replicas", replicas);
+        }
+        updateSettingsRequestBuilder.setSettings(settings).execute().actionGet();
+        refresh();
+        loadStats.stop();
+        logger.info("indexed SKOS vocabulary into {}: {}", indexName, loadStats);
+    }
+
+    /**
+     * Makes sure that this node gets a copy of each shard of the SKOS index,
+     * so that lookups with the preference _local stay on this node. An index
+     * created without localReplicas is switched to a copy on every node. If
+     * there is no local copy yet, a single cluster health request waits for
+     * all copies in the background, and lookups go to other nodes until the
+     * local copy is recovered.
+     */
+    private void awaitLocalCopy() {
+        ClusterState state = new ClusterStateRequestBuilder(client, ClusterStateAction.INSTANCE)
+                .setLocal(true)
+                .clear()
+                .setNodes(true)
+                .setMetaData(true)
+                .setRoutingTable(true)
+                .setIndices(indexName)
+                .execute().actionGet().getState();
+        IndexMetaData indexMetaData = state.metaData().index(indexName);
+        if (indexMetaData == null) {
+            return;
+        }
+        if (!AUTO_EXPAND_ALL.equals(indexMetaData.getSettings().get("index.auto_expand_replicas"))) {
+            new UpdateSettingsRequestBuilder(client, UpdateSettingsAction.INSTANCE, indexName)
+                    .setSettings(Settings.builder().put("index.auto_expand_replicas", AUTO_EXPAND_ALL))
+                    .execute().actionGet();
+        }
+        final String localNodeId = state.nodes().localNodeId();
+        IndexRoutingTable routingTable = state.routingTable().index(indexName);
+        if (localNodeId != null && routingTable != null && hasLocalCopy(routingTable, localNodeId)) {
+            return;
+        }
+        final long start = System.nanoTime();
+        // a copy of each shard on every data node
+        int copies = indexMetaData.getNumberOfShards() * Math.max(1, state.nodes().dataNodes().size());
+        new ClusterHealthRequestBuilder(client, ClusterHealthAction.INSTANCE)
+                .setIndices(indexName)
+                .setWaitForActiveShards(copies)
+                .setTimeout(localReplicaTimeout)
+                .execute(new ActionListener<ClusterHealthResponse>() {
+                    @Override
+                    public void onResponse(ClusterHealthResponse response) {
+                        if (response.isTimedOut()) {
+                            logger.warn("SKOS index {} has no local copy after {}, lookups go to other nodes until it is recovered",
+                                    indexName, localReplicaTimeout);
+                        } else {
+                            logger.info("SKOS index {} has a local copy on node {}, took {}", indexName, localNodeId,
+                                    TimeValue.timeValueNanos(System.nanoTime() - start));
+                        }
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        logger.warn("could not wait for the local copy of SKOS index {}", t, indexName);
+                    }
+                });
+    }
+
+    private static boolean hasLocalCopy(IndexRoutingTable routingTable, String localNodeId) {
+        for (IndexShardRoutingTable shardRoutingTable : routingTable) {
+            boolean local = false;
+            for (ShardRouting shardRouting : shardRoutingTable) {
+                if (shardRouting.started() && localNodeId.equals(shardRouting.currentNodeId())) {
+                    local = true;
+                    break;
+                }
+            }
+            if (!local) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void refresh() {
+        RefreshRequestBuilder refreshRequestBuilder = new RefreshRequestBuilder(client, RefreshAction.INSTANCE);
+        refreshRequestBuilder.setIndices(indexName).execute().actionGet();
+    }
+
+    private IndexRequest buildDocument(Vocabulary vocabulary, int ord) {
+        return indexRequest(buildSource(vocabulary, ord));
+    }
+
+    /**
+     * Builds the document source of a concept, with a list of values for
+     * each label and relation field
+     */
+    private static Map<String, Object> buildSource(Vocabulary vocabulary, int ord) {
+        ConceptGraph graph = vocabulary.graph();
+        Map<String, Object> source = new LinkedHashMap<>();
+        source.put(FIELD_URI, graph.uri(ord));
+        source.put(FIELD_PREF_LABEL, buildLabels(vocabulary, ord, SKOSType.PREF));
+        source.put(FIELD_ALT_LABEL, buildLabels(vocabulary, ord, SKOSType.ALT));
+        source.put(FIELD_HIDDEN_LABEL, buildLabels(vocabulary, ord, SKOSType.HIDDEN));
+        source.put(FIELD_BROADER, buildRelation(graph, ord, SKOSType.BROADER));
+        source.put(FIELD_BROADER_TRANSITIVE, buildRelation(graph, ord, SKOSType.BROADERTRANSITIVE));
+        source.put(FIELD_NARROWER, buildRelation(graph, ord, SKOSType.NARROWER));
+        source.put(FIELD_NARROWER_TRANSITIVE, buildRelation(graph, ord, SKOSType.NARROWERTRANSITIVE));
+        source.put(FIELD_RELATED, buildRelation(graph, ord, SKOSType.RELATED));
+        return source;
+    }
+
+    /**
+     * Builds the index request of a concept document, with the digest of its fields
+     */
+    private IndexRequest indexRequest(Map<String, Object> source) {
+        source.put(FIELD_DIGEST, digest(source));
+        IndexRequestBuilder indexRequestBuilder = new IndexRequestBuilder(client, IndexAction.INSTANCE);
+        return indexRequestBuilder.setIndex(indexName).setType(TYPE)
+                .setId(conceptId((String) source.get(FIELD_URI)))
+                .setSource(source)
+                .request();
+    }
+
+    /**
+     * Returns the digest of the fields of a concept document, which tells an
+     * update whether the document has changed
+     *
+     * @param source the document source
+     * @return the SHA-1 digest as hex string
+     */
+    static String digest(Map<String, Object> source) {
+        MessageDigest digest = MessageDigests.sha1();
+        for (String field : DOCUMENT_FIELDS) {
+            digest.update(field.getBytes(StandardCharsets.UTF_8));
+            for (String value : fieldValues(source, field)) {
+                digest.update((byte) 0);
+                digest.update(value.getBytes(StandardCharsets.UTF_8));
+            }
+            digest.update((byte) 1);
+        }
+        return MessageDigests.toHexString(digest.digest());
+    }
+
+    /**
+     * Parses a SKOS file into a vocabulary
+     *
+     * @param filenameOrURI file name or URI
+     * @return the vocabulary
+     * @throws IOException if the file can not be parsed
+     */
+    private Vocabulary parse(String filenameOrURI) throws IOException {
+        Vocabulary.Builder builder = new Vocabulary.Builder();
+        SKOSStreamLoader loader = new SKOSStreamLoader(builder, this.languages, loadStats);
+        loadStats.start("parse");
+        loader.load(filenameOrURI);
+        loadStats.count("triples", loader.getTriples());
+        return builder.build(maxTransitiveDepth, loadStats);
+    }
+
+    /**
+     * Updates the index from a new version of its SKOS file while the engine
+     * is in use. Only the concepts whose documents changed are written, and
+     * concepts no longer in the file are deleted. Nothing is done if the
+     * index is up to date.
+     *
+     * @param filenameOrURI file name or URI
+     * @return the changed concepts and the terms whose expansions are affected
+     * @throws IOException if the file can not be parsed or the index not be updated
+     */
+    public synchronized ConceptDelta update(String filenameOrURI) throws IOException {
+        ConceptDelta delta = new ConceptDelta();
+        Map<String, Object> metadata = sourceMetadata(filenameOrURI);
+        if (metadata != null) {
+            Map<String, Object> indexed = readMetadata();
+            if (indexed != null && isCurrent(indexed, metadata)) {
+                logger.info("SKOS index {} is up to date, not parsing {}", indexName, filenameOrURI);
+                return delta;
+            }
+        }
+        updateIndex(parse(filenameOrURI), delta);
+        if (metadata != null) {
+            // the change sets applied to the old version are contained in the new one
+            writeMetadata(metadata, STATE_COMPLETE);
+        }
+        return delta;
+    }
+
+    /**
+     * Writes the changed concepts of a vocabulary and deletes the concepts
+     * that are not in the vocabulary. The digest of each built document is
+     * compared with the digest of the indexed document, so unchanged
+     * concepts cost a get but no write.
+     *
+     * @param vocabulary the vocabulary
+     * @param delta receives the changes
+     * @throws IOException if the index can not be updated
+     */
+    private void updateIndex(Vocabulary vocabulary, ConceptDelta delta) throws IOException {
+        loadStats.start("delta");
+        final ConceptGraph graph = vocabulary.graph();
+        List<Map<String, Object>> batch = new ArrayList<>();
+        for (int ord = 0; ord < graph.size(); ord++) {
+            if (graph.isConcept(ord)) {
+                batch.add(buildSource(vocabulary, ord));
+                if (batch.size() == bulkActions) {
+                    writeChanged(batch, delta);
+                    batch.clear();
+                }
+            }
+        }
+        writeChanged(batch, delta);
+        final Map<String, List<String>> removed = new LinkedHashMap<>();
+        scroll(QueryBuilders.matchAllQuery(), new String[]{FIELD_URI, FIELD_PREF_LABEL, FIELD_ALT_LABEL, FIELD_HIDDEN_LABEL},
+                new HitConsumer() {
+                    @Override
+                    public void accept(Map<String, Object> source) throws IOException {
+                        String conceptURI = (String) source.get(FIELD_URI);
+                        if (conceptURI != null && graph.conceptOrdinal(conceptURI) < 0) {
+                            removed.put(conceptURI, labelsOf(source));
+                        }
+                    }
+                });
+        BulkRequest bulkRequest = new BulkRequest();
+        for (Map.Entry<String, List<String>> entry : removed.entrySet()) {
+            bulkRequest.add(new DeleteRequest(indexName, TYPE, conceptId(entry.getKey())));
+            delta.delete(entry.getKey(), entry.getValue());
+            if (bulkRequest.numberOfActions() == bulkActions) {
+                execute(bulkRequest);
+                bulkRequest = new BulkRequest();
+            }
+        }
+        execute(bulkRequest);
+        finishUpdate(delta);
+    }
+
+    /**
+     * Writes the concept documents that differ from the indexed documents
+     */
+    private void writeChanged(List<Map<String, Object>> sources, ConceptDelta delta) throws IOException {
+        if (sources.isEmpty()) {
+            return;
+        }
+        List<String> conceptURIs = new ArrayList<>(sources.size());
+        for (Map<String, Object> source : sources) {
+            conceptURIs.add((String) source.get(FIELD_URI));
+        }
+        Map<String, Map<String, Object>> indexed = readSources(conceptURIs,
+                new String[]{FIELD_DIGEST, FIELD_PREF_LABEL, FIELD_ALT_LABEL, FIELD_HIDDEN_LABEL});
+        BulkRequest bulkRequest = new BulkRequest();
+        for (Map<String, Object> source : sources) {
+            String conceptURI = (String) source.get(FIELD_URI);
+            Map<String, Object> old = indexed.get(conceptURI);
+            if (old == null || !digest(source).equals(old.get(FIELD_DIGEST))) {
+                List<String> labels = labelsOf(source);
+                bulkRequest.add(indexRequest(source));
+                delta.update(conceptURI, old != null ? labelsOf(old) : Collections.<String>emptyList(), labels);
+                addToLabelBloomFilter(labels);
+            }
+        }
+        execute(bulkRequest);
+    }
+
+    /**
+     * Applies a change set in the row format of RDF Patch ('A s p o .' adds,
+     * 'D s p o .' deletes a triple) to the index, without reading the SKOS
+     * file. Labels and the relations broader, narrower and related are
+     * changed on the documents of their subjects, the computed transitive
+     * relations of the concepts below a changed broader or narrower relation
+     * are recomputed. A concept whose skos:Concept type is deleted and which
+     * has no labels left is deleted. Changes of broaderTransitive and
+     * narrowerTransitive are ignored, they are computed.
+     *
+     * The checksum of an applied change set is recorded in the metadata of
+     * the index, applying it again does nothing. The record is cleared by the
+     * next update from the SKOS file.
+     *
+     * @param changeSetFile the change set file
+     * @return the changed concepts and the terms whose expansions are affected
+     * @throws IOException if the change set can not be read or the index not be updated
+     */
+    public synchronized ConceptDelta applyChanges(Path changeSetFile) throws IOException {
+        ConceptDelta delta = new ConceptDelta();
+        Map<String, Object> metadata = readMetadata();
+        long checksum = VocabularySnapshot.checksum(changeSetFile);
+        List<Object> applied = new ArrayList<>();
+        if (metadata != null && metadata.get(META_CHANGE_SETS) instanceof List) {
+            applied.addAll((List<?>) metadata.get(META_CHANGE_SETS));
+        }
+        for (Object value : applied) {
+            if (value instanceof Number && ((Number) value).longValue() == checksum) {
+                logger.info("change set {} is already applied to SKOS index {}", changeSetFile, indexName);
+                return delta;
+            }
+        }
+        loadStats.start("changes");
+        SKOSChangeSet changeSet = SKOSChangeSet.read(changeSetFile);
+        loadStats.count("changes", changeSet.size());
+        // the subjects of all changes and the objects of changed relations
+        Set<String> resources = new LinkedHashSet<>();
+        for (int i = 0; i < changeSet.size(); i++) {
+            Triple triple = changeSet.triple(i);
+            if (triple.getSubject().isURI()) {
+                resources.add(triple.getSubject().getURI());
+                if (SKOSStreamLoader.relationType(triple.getPredicate()) != null && triple.getObject().isURI()) {
+                    resources.add(triple.getObject().getURI());
+                }
+            }
+        }
+        Map<String, Map<String, Object>> before = readSources(resources, null);
+        Map<String, Map<String, Object>> after = new LinkedHashMap<>();
+        for (String resource : resources) {
+            after.put(resource, copySource(resource, before.get(resource)));
+        }
+        Set<String> concepts = new HashSet<>(before.keySet());
+        Set<String> untyped = new HashSet<>();
+        // the resources whose parents in the hierarchy changed
+        Set<String> children = new LinkedHashSet<>();
+        for (int i = 0; i < changeSet.size(); i++) {
+            Triple triple = changeSet.triple(i);
+            boolean add = changeSet.isAddition(i);
+            if (!triple.getSubject().isURI()) {
+                continue;
+            }
+            String subject = triple.getSubject().getURI();
+            Node predicate = triple.getPredicate();
+            Node object = triple.getObject();
+            SKOSType type = SKOSStreamLoader.labelType(predicate);
+            if (type != null) {
+                if (!object.isLiteral()) {
+                    continue;
+                }
+                if (add) {
+                    // labelled resources are concepts, as in the loader
+                    concepts.add(subject);
+                }
+                String language = object.getLiteralLanguage();
+                if (languages != null && !languages.isEmpty() && !languages.contains(language)) {
+                    continue;
+                }
+                change(after.get(subject), field(type), object.getLiteralLexicalForm().toLowerCase(), add);
+                continue;
+            }
+            type = SKOSStreamLoader.relationType(predicate);
+            if (type != null) {
+                if (!object.isURI()) {
+                    continue;
+                }
+                if (type == SKOSType.BROADERTRANSITIVE || type == SKOSType.NARROWERTRANSITIVE) {
+                    logger.warn("ignoring change of computed relation {} of {}", predicate, subject);
+                    continue;
+                }
+                if (change(after.get(subject), field(type), object.getURI(), add)) {
+                    if (type == SKOSType.BROADER) {
+                        children.add(subject);
+                    } else if (type == SKOSType.NARROWER) {
+                        children.add(object.getURI());
+                    }
+                }
+                continue;
+            }
+            if (SKOSStreamLoader.isConceptType(predicate, object)) {
+                if (add) {
+                    concepts.add(subject);
+                    untyped.remove(subject);
+                } else {
+                    untyped.add(subject);
+                }
+            }
+        }
+        BulkRequest bulkRequest = new BulkRequest();
+        for (String resource : resources) {
+            Map<String, Object> old = before.get(resource);
+            Map<String, Object> source = after.get(resource);
+            List<String> labels = labelsOf(source);
+            if (old != null && untyped.contains(resource) && labels.isEmpty()) {
+                bulkRequest.add(new DeleteRequest(indexName, TYPE, conceptId(resource)));
+                delta.delete(resource, labelsOf(old));
+                // its children lose it as ancestor
+                children.add(resource);
+            } else if (concepts.contains(resource) && (old == null || !digest(source).equals(digest(old)))) {
+                bulkRequest.add(indexRequest(source));
+                delta.update(resource, old != null ? labelsOf(old) : Collections.<String>emptyList(), labels);
+                addToLabelBloomFilter(labels);
+            }
+        }
+        execute(bulkRequest);
+        refresh();
+        updateClosure(children, before, delta);
+        if (metadata != null) {
+            applied.add(checksum);
+            Map<String, Object> source = new LinkedHashMap<>(metadata);
+            source.put(META_CHANGE_SETS, applied);
+            writeMetadata(source, STATE_COMPLETE);
+        }
+        finishUpdate(delta);
+        return delta;
+    }
+
+    /**
+     * Returns a modifiable copy of a concept document, with a list for each field
+     */
+    private static Map<String, Object> copySource(String conceptURI, Map<String, Object> source) {
+        Map<String, Object> copy = new LinkedHashMap<>();
+        copy.put(FIELD_URI, conceptURI);
+        for (String field : DOCUMENT_FIELDS) {
+            if (!FIELD_URI.equals(field)) {
+                copy.put(field, new ArrayList<>(source != null ?
+                        fieldValues(source, field) : Collections.<String>emptyList()));
+            }
+        }
+        return copy;
+    }
+
+    /**
+     * Adds a value to a field of a document copy, or removes it
+     *
+     * @return true if the field changed
+     */
+    @SuppressWarnings("unchecked")
+    private static boolean change(Map<String, Object> source, String field, String value, boolean add) {
+        List<String> values = (List<String>) source.get(field);
+        if (add) {
+            if (values.contains(value)) {
+                return false;
+            }
+            values.add(value);
+            return true;
+        }
+        return values.remove(value);
+    }
+
+    /**
+     * Recomputes the transitive relations after the broader or narrower
+     * relations of some concepts changed. The broader transitive concepts of
+     * the changed concepts and of their descendants are computed again by
+     * walking up the hierarchy in the index, up to maxTransitiveDepth hops,
+     * and the narrower transitive concepts of every ancestor gained or lost
+     * are adjusted.
+     *
+     * @param children the concepts whose broader or narrower relation changed, or which were deleted
+     * @param before the documents of the changed concepts before the change
+     * @param delta receives the changes
+     * @throws IOException if the index can not be updated
+     */
+    private void updateClosure(Set<String> children, Map<String, Map<String, Object>> before,
+                               ConceptDelta delta) throws IOException {
+        if (children.isEmpty()) {
+            return;
+        }
+        loadStats.start("closure");
+        Set<String> affected = new LinkedHashSet<>(children);
+        for (String child : children) {
+            Map<String, Object> old = before.get(child);
+            if (old != null) {
+                affected.addAll(fieldValues(old, FIELD_NARROWER_TRANSITIVE));
+            }
+        }
+        Map<String, Map<String, Object>> sources = readSources(affected, null);
+        Map<String, Set<String>> ancestors = ancestors(sources.keySet());
+        // descendants by gained or lost ancestor
+        Map<String, Set<String>> gained = new LinkedHashMap<>();
+        Map<String, Set<String>> lost = new LinkedHashMap<>();
+        BulkRequest bulkRequest = new BulkRequest();
+        for (Map.Entry<String, Map<String, Object>> entry : sources.entrySet()) {
+            String conceptURI = entry.getKey();
+            Set<String> oldAncestors = new LinkedHashSet<>(fieldValues(entry.getValue(), FIELD_BROADER_TRANSITIVE));
+            Set<String> newAncestors = ancestors.get(conceptURI);
+            if (!oldAncestors.equals(newAncestors)) {
+                Map<String, Object> source = copySource(conceptURI, entry.getValue());
+                source.put(FIELD_BROADER_TRANSITIVE, new ArrayList<>(newAncestors));
+                bulkRequest.add(indexRequest(source));
+                List<String> labels = labelsOf(source);
+                delta.update(conceptURI, labels, labels);
+                for (String ancestor : newAncestors) {
+                    if (!oldAncestors.contains(ancestor)) {
+                        descendants(gained, ancestor).add(conceptURI);
+                    }
+                }
+                for (String ancestor : oldAncestors) {
+                    if (!newAncestors.contains(ancestor)) {
+                        descendants(lost, ancestor).add(conceptURI);
+                    }
+                }
+            }
+        }
+        for (String conceptURI : delta.getDeleted()) {
+            Map<String, Object> old = before.get(conceptURI);
+            if (old != null) {
+                for (String ancestor : fieldValues(old, FIELD_BROADER_TRANSITIVE)) {
+                    descendants(lost, ancestor).add(conceptURI);
+                }
+            }
+        }
+        execute(bulkRequest);
+        // the inverse relation, read after the writes above by realtime get
+        Set<String> changedAncestors = new LinkedHashSet<>(gained.keySet());
+        changedAncestors.addAll(lost.keySet());
+        bulkRequest = new BulkRequest();
+        for (Map.Entry<String, Map<String, Object>> entry : readSources(changedAncestors, null).entrySet()) {
+            String conceptURI = entry.getKey();
+            Map<String, Object> source = copySource(conceptURI, entry.getValue());
+            boolean changed = false;
+            if (lost.containsKey(conceptURI)) {
+                for (String descendant : lost.get(conceptURI)) {
+                    changed |= change(source, FIELD_NARROWER_TRANSITIVE, descendant, false);
+                }
+            }
+            if (gained.containsKey(conceptURI)) {
+                for (String descendant : gained.get(conceptURI)) {
+                    changed |= change(source, FIELD_NARROWER_TRANSITIVE, descendant, true);
+                }
+            }
+            if (changed) {
+                bulkRequest.add(indexRequest(source));
+                List<String> labels = labelsOf(source);
+                delta.update(conceptURI, labels, labels);
+            }
+        }
+        execute(bulkRequest);
+        refresh();
+        loadStats.stop();
+    }
+
+    private static Set<String> descendants(Map<String, Set<String>> map, String ancestor) {
+        Set<String> descendants = map.get(ancestor);
+        if (descendants == null) {
+            descendants = new LinkedHashSet<>();
+            map.put(ancestor, descendants);
+        }
+        return descendants;
+    }
+
+    /**
+     * Computes the broader transitive concepts of some concepts by a breadth
+     * first walk up the hierarchy, one hop for all concepts at a time, with
+     * the parents of a concept being its broader concepts and the concepts
+     * having it as narrower concept. A concept is not its own ancestor.
+     *
+     * @param conceptURIs the concept URIs
+     * @return the ancestors by concept URI, in the order they were found
+     * @throws IOException if the index can not be read
+     */
+    private Map<String, Set<String>> ancestors(Collection<String> conceptURIs) throws IOException {
+        Map<String, List<String>> parents = new HashMap<>();
+        Map<String, Set<String>> ancestors = new LinkedHashMap<>();
+        Map<String, List<String>> frontiers = new HashMap<>();
+        for (String conceptURI : conceptURIs) {
+            ancestors.put(conceptURI, new LinkedHashSet<String>());
+            frontiers.put(conceptURI, Collections.singletonList(conceptURI));
+        }
+        for (int depth = 0; !frontiers.isEmpty() && (maxTransitiveDepth == 0 || depth < maxTransitiveDepth); depth++) {
+            Set<String> unknown = new LinkedHashSet<>();
+            for (List<String> frontier : frontiers.values()) {
+                for (String node : frontier) {
+                    if (!parents.containsKey(node)) {
+                        unknown.add(node);
+                    }
+                }
+            }
+            parents.putAll(readParents(unknown));
+            Map<String, List<String>> next = new HashMap<>();
+            for (Map.Entry<String, List<String>> entry : frontiers.entrySet()) {
+                String conceptURI = entry.getKey();
+                Set<String> found = ancestors.get(conceptURI);
+                List<String> frontier = new ArrayList<>();
+                for (String node : entry.getValue()) {
+                    for (String parent : parents.get(node)) {
+                        if (!parent.equals(conceptURI) && found.add(parent)) {
+                            frontier.add(parent);
+                        }
+                    }
+                }
+                if (!frontier.isEmpty()) {
+                    next.put(conceptURI, frontier);
+                }
+            }
+            frontiers = next;
+        }
+        return ancestors;
+    }
+
+    /**
+     * Reads the parents of concepts: their broader concepts and the concepts
+     * that have them as narrower concept
+     */
+    private Map<String, List<String>> readParents(Collection<String> conceptURIs) throws IOException {
+        final Map<String, List<String>> parents = new HashMap<>();
+        for (String conceptURI : conceptURIs) {
+            parents.put(conceptURI, new ArrayList<String>());
+        }
+        for (Map.Entry<String, Map<String, Object>> entry :
+                readSources(conceptURIs, new String[]{FIELD_URI, FIELD_BROADER}).entrySet()) {
+            parents.get(entry.getKey()).addAll(fieldValues(entry.getValue(), FIELD_BROADER));
+        }
+        List<String> list = new ArrayList<>(conceptURIs);
+        for (int i = 0; i < list.size(); i += MAX_TERMS) {
+            List<String> chunk = list.subList(i, Math.min(list.size(), i + MAX_TERMS));
+            scroll(QueryBuilders.termsQuery(FIELD_NARROWER, chunk), new String[]{FIELD_URI, FIELD_NARROWER},
+                    new HitConsumer() {
+                        @Override
+                        public void accept(Map<String, Object> source) {
+                            String parent = (String) source.get(FIELD_URI);
+                            for (String narrower : fieldValues(source, FIELD_NARROWER)) {
+                                List<String> found = parents.get(narrower);
+                                if (found != null && !found.contains(parent)) {
+                                    found.add(parent);
+                                }
+                            }
+                        }
+                    });
+        }
+        return parents;
+    }
+
+    /**
+     * Completes an update: the labels of concepts that refer to a relabelled
+     * or deleted concept are added to the affected terms, because their
+     * expansions contain the labels of the concepts they refer to, and the
+     * changed concepts are dropped from the document cache
+     */
+    private void finishUpdate(final ConceptDelta delta) throws IOException {
+        refresh();
+        List<String> relabelled = new ArrayList<>(delta.getRelabelled());
+        for (int i = 0; i < relabelled.size(); i += MAX_TERMS) {
+            List<String> chunk = relabelled.subList(i, Math.min(relabelled.size(), i + MAX_TERMS));
+            BoolQueryBuilder query = QueryBuilders.boolQuery();
+            for (String field : RELATION_FIELDS) {
+                query.should(QueryBuilders.termsQuery(field, chunk));
+            }
+            scroll(query, REFERRER_FIELDS, new HitConsumer() {
+                @Override
+                public void accept(Map<String, Object> source) {
+                    delta.addAffectedTerms(labelsOf(source));
+                    // the expansion of the URI of a referrer holds the labels of its related concepts
+                    Object uri = source.get(FIELD_URI);
+                    if (uri != null) {
+                        delta.addAffectedTerms(Collections.singletonList(uri.toString()));
+                    }
+                }
+            });
+        }
+        concepts.invalidateAll(delta.getUpdated());
+        concepts.invalidateAll(delta.getDeleted());
+        loadStats.count("updatedConcepts", delta.getUpdated().size());
+        loadStats.count("deletedConcepts", delta.getDeleted().size());
+        loadStats.stop();
+        logger.info("updated SKOS index {}: {}", indexName, delta);
+    }
+
+    private void addToLabelBloomFilter(Collection<String> labels) {
+        // the Bloom filter of a new engine is built after the update
+        if (labelBloomFilter != null) {
+            labelBloomFilter.add(labels);
+        }
+    }
+
+    /**
+     * Returns the documents of concepts by realtime multi gets, bypassing the
+     * document cache. Unknown concepts are skipped.
+     *
+     * @param conceptURIs the concept URIs
+     * @param fields the source fields to fetch, or null for the whole document
+     * @return the document sources by URI
+     * @throws IOException if a get fails
+     */
+    private Map<String, Map<String, Object>> readSources(Collection<String> conceptURIs, String[] fields)
+            throws IOException {
+        Map<String, Map<String, Object>> result = new LinkedHashMap<>();
+        List<String> list = new ArrayList<>(conceptURIs);
+        for (int i = 0; i < list.size(); i += bulkActions) {
+            List<String> chunk = list.subList(i, Math.min(list.size(), i + bulkActions));
+            MultiGetRequestBuilder multiGetRequestBuilder = new MultiGetRequestBuilder(client, MultiGetAction.INSTANCE);
+            for (String conceptURI : chunk) {
+                MultiGetRequest.Item item = new MultiGetRequest.Item(indexName, TYPE, conceptId(conceptURI));
+                if (fields != null) {
+                    item.fetchSourceContext(new FetchSourceContext(fields, null));
+                }
+                multiGetRequestBuilder.add(item);
+            }
+            MultiGetItemResponse[] responses = multiGetRequestBuilder.execute().actionGet().getResponses();
+            for (int k = 0; k < responses.length; k++) {
+                MultiGetItemResponse response = responses[k];
+                if (response.isFailed()) {
+                    throw new IOException("can't read concept " + chunk.get(k) + ": " + response.getFailure().getMessage());
+                }
+                if (response.getResponse().isExists()) {
+                    result.put(chunk.get(k), response.getResponse().getSourceAsMap());
+                }
+            }
+        }
+        return result;
+    }
+
+    private void execute(BulkRequest bulkRequest) throws IOException {
+        if (bulkRequest.numberOfActions() == 0) {
+            return;
+        }
+        BulkResponse bulkResponse = client.bulk(bulkRequest).actionGet();
+        if (bulkResponse.hasFailures()) {
+            throw new IOException("can't update SKOS index " + indexName + ": " + bulkResponse.buildFailureMessage());
+        }
+    }
+
+    /**
+     * Returns the timings and counts of loading the vocabulary. Empty if the
+     * index already existed.
+     *
+     * @return the load statistics
+     */
+    public LoadStats getLoadStats() {
+        return loadStats;
+    }
+
+    private static List<String> buildLabels(Vocabulary vocabulary, int ord, SKOSType type) {
+        Adjacency adjacency = vocabulary.labels(type);
+        List<String> values = new ArrayList<>(adjacency.degree(ord));
+        for (int i = adjacency.start(ord), k = 0; k < adjacency.degree(ord); i++, k++) {
+            values.add(vocabulary.labels().term(adjacency.target(i)));
+        }
+        return values;
+    }
+
+    private static List<String> buildRelation(ConceptGraph graph, int ord, SKOSType relation) {
+        Adjacency adjacency = graph.relation(relation);
+        List<String> values = new ArrayList<>(adjacency.degree(ord));
+        for (int i = adjacency.start(ord), k = 0; k < adjacency.degree(ord); i++, k++) {
+            values.add(graph.uri(adjacency.target(i)));
+        }
+        return values;
+    }
+
+    private String join(Iterator iterator, char separator) {
+        // handle null, zero and one elements before building a buffer
+        if (iterator == null) {
+            return null;
+        }
+        if (!iterator.hasNext()) {
+            return "";
+        }
+        Object first = iterator.next();
+        if (!iterator.hasNext()) {
+            return first == null ? "" : first.toString();
+        }
+        // two or more elements
+        StringBuilder buf = new StringBuilder();
+        if (first != null) {
+            buf.append(first);
+        }
+        while (iterator.hasNext()) {
+            buf.append(separator);
+            Object obj = iterator.next();
+            if (obj != null) {
+                buf.append(obj);
+            }
+        }
+        return buf.toString();
+    }
 }
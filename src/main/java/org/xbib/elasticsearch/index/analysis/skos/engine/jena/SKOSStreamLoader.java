@@ -0,0 +1,292 @@
+package org.xbib.elasticsearch.index.analysis.skos.engine.jena;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.vocabulary.RDF;
+
+import org.apache.jena.riot.Lang;
+import org.apache.jena.riot.RDFDataMgr;
+import org.apache.jena.riot.RDFLanguages;
+import org.apache.jena.riot.system.StreamRDFBase;
+import org.elasticsearch.common.io.PathUtils;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.xbib.elasticsearch.index.analysis.skos.SKOSTypeAttribute.SKOSType;
+import org.xbib.elasticsearch.index.analysis.skos.engine.LoadStats;
+import org.xbib.elasticsearch.index.analysis.skos.engine.graph.Vocabulary;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.FileSystemNotFoundException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Streams SKOS vocabularies with the Jena RIOT parsers into a
+ * {@link Vocabulary.Builder}.
+ *
+ * Each triple is folded into the builder as it is parsed, no Jena model is
+ * created. Concepts are discovered in the same pass: resources with a pref,
+ * alt or hidden label, or with the type skos:Concept, are concepts.
+ */
+public class SKOSStreamLoader extends StreamRDFBase {
+
+    private final static ESLogger logger = ESLoggerFactory.getLogger(SKOSStreamLoader.class.getSimpleName());
+
+    private final static Node TYPE = RDF.type.asNode();
+
+    private final static Node CONCEPT = SKOS.Concept.asNode();
+
+    private final static Map<Node, SKOSType> LABELS = new HashMap<>();
+
+    private final static Map<Node, SKOSType> RELATIONS = new HashMap<>();
+
+    static {
+        LABELS.put(SKOS.prefLabel.asNode(), SKOSType.PREF);
+        LABELS.put(SKOS.altLabel.asNode(), SKOSType.ALT);
+        LABELS.put(SKOS.hiddenLabel.asNode(), SKOSType.HIDDEN);
+        RELATIONS.put(SKOS.broader.asNode(), SKOSType.BROADER);
+        RELATIONS.put(SKOS.narrower.asNode(), SKOSType.NARROWER);
+        RELATIONS.put(SKOS.broaderTransitive.asNode(), SKOSType.BROADERTRANSITIVE);
+        RELATIONS.put(SKOS.narrowerTransitive.asNode(), SKOSType.NARROWERTRANSITIVE);
+        RELATIONS.put(SKOS.related.asNode(), SKOSType.RELATED);
+    }
+
+    private final Vocabulary.Builder builder;
+
+    private long triples;
+
+    /*
+     * The number of triples between two progress reports
+     */
+    private static final int PROGRESS_INTERVAL = 65536;
+
+    private final LoadStats progress;
+
+    /**
+     * The languages to be considered for labels.
+     *
+     * If NULL or empty, all languages are supported
+     */
+    private final Set<String> languages;
+
+    /**
+     * @param builder the vocabulary builder that receives the triples
+     * @param languages the languages to be considered for labels
+     */
+    public SKOSStreamLoader(Vocabulary.Builder builder, Set<String> languages) {
+        this(builder, languages, null);
+    }
+
+    /**
+     * @param builder the vocabulary builder that receives the triples
+     * @param languages the languages to be considered for labels
+     * @param progress receives the number of triples while they are read, or null
+     */
+    public SKOSStreamLoader(Vocabulary.Builder builder, Set<String> languages, LoadStats progress) {
+        this.builder = builder;
+        this.languages = languages;
+        this.progress = progress;
+    }
+
+    /**
+     * Reads a SKOS vocabulary from a given InputStream using the given
+     * serialization language parameter, which must be either N3, RDF/XML, or
+     * TURTLE.
+     *
+     * @param inputStream the input stream
+     * @param format the serialization language
+     * @throws IOException if the format is not supported
+     */
+    public void read(InputStream inputStream, String format) throws IOException {
+        if (!("N3".equals(format) || "RDF/XML".equals(format) || "TURTLE".equals(format))) {
+            throw new IOException("Invalid RDF serialization format");
+        }
+        RDFDataMgr.parse(this, inputStream, RDFLanguages.nameToLang(format));
+    }
+
+    /**
+     * Reads a SKOS vocabulary from a given file name or URI. Zip archives are
+     * opened and the entry named after the archive's base name is read. The
+     * serialization format is derived from the file name.
+     *
+     * @param filenameOrURI file name or URI
+     * @throws IOException if the zip archive can not be read
+     */
+    public void load(String filenameOrURI) throws IOException {
+        if (getExtension(filenameOrURI).equals("zip")) {
+            String entryName = getBaseName(filenameOrURI);
+            try (ZipFile zipFile = new ZipFile(filenameOrURI)) {
+                ZipEntry entry = zipFile.getEntry(entryName);
+                if (entry == null) {
+                    throw new IOException("no entry " + entryName + " in " + filenameOrURI);
+                }
+                try (InputStream inputStream = zipFile.getInputStream(entry)) {
+                    RDFDataMgr.parse(this, inputStream, RDFLanguages.filenameToLang(entryName, Lang.RDFXML));
+                }
+            }
+        } else {
+            RDFDataMgr.parse(this, filenameOrURI);
+        }
+    }
+
+    /**
+     * Returns the path of a SKOS source if it is a local file
+     *
+     * @param filenameOrURI file name or URI
+     * @return the path, or null if the source is not a local file
+     */
+    public static Path localFile(String filenameOrURI) {
+        try {
+            Path path = filenameOrURI.startsWith("file:") ?
+                    PathUtils.get(URI.create(filenameOrURI)) : PathUtils.get(filenameOrURI);
+            return Files.isRegularFile(path) ? path : null;
+        } catch (IllegalArgumentException | FileSystemNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the label type of a predicate
+     *
+     * @param predicate the predicate
+     * @return the label type, or null if the predicate is not a label
+     */
+    static SKOSType labelType(Node predicate) {
+        return LABELS.get(predicate);
+    }
+
+    /**
+     * Returns the relation type of a predicate
+     *
+     * @param predicate the predicate
+     * @return the relation type, or null if the predicate is not a relation
+     */
+    static SKOSType relationType(Node predicate) {
+        return RELATIONS.get(predicate);
+    }
+
+    /**
+     * Returns whether a predicate and object type a resource as skos:Concept
+     *
+     * @param predicate the predicate
+     * @param object the object
+     * @return true for rdf:type skos:Concept
+     */
+    static boolean isConceptType(Node predicate, Node object) {
+        return TYPE.equals(predicate) && CONCEPT.equals(object);
+    }
+
+    /**
+     * Returns the number of triples read so far
+     *
+     * @return the number of triples
+     */
+    public long getTriples() {
+        return triples;
+    }
+
+    @Override
+    public void triple(Triple triple) {
+        triples++;
+        if (progress != null && triples % PROGRESS_INTERVAL == 0) {
+            progress.count("triples", triples);
+        }
+        Node subject = triple.getSubject();
+        if (!subject.isURI()) {
+            return;
+        }
+        Node predicate = triple.getPredicate();
+        Node object = triple.getObject();
+        SKOSType type = LABELS.get(predicate);
+        if (type != null) {
+            if (!object.isLiteral()) {
+                return;
+            }
+            String labelLang = object.getLiteralLanguage();
+            if (languages != null && !languages.isEmpty() && !languages.contains(labelLang)) {
+                // a labelled resource is a concept, whatever the label language
+                builder.markLabelled(builder.ordinal(subject.getURI()));
+                return;
+            }
+            builder.addLabel(type, builder.ordinal(subject.getURI()), object.getLiteralLexicalForm());
+            return;
+        }
+        type = RELATIONS.get(predicate);
+        if (type != null) {
+            if (!object.isURI()) {
+                logger.warn("error when reading relationship of concept " + subject.getURI() + " .");
+                return;
+            }
+            builder.addRelation(type, builder.ordinal(subject.getURI()), builder.ordinal(object.getURI()));
+            return;
+        }
+        if (isConceptType(predicate, object)) {
+            builder.markConcept(builder.ordinal(subject.getURI()));
+        }
+    }
+
+    private static final char UNIX_SEPARATOR = '/';
+    private static final char WINDOWS_SEPARATOR = '\\';
+    public static final char EXTENSION_SEPARATOR = '.';
+
+    private static String getName(String filename) {
+        if (filename == null) {
+            return null;
+        }
+        int index = indexOfLastSeparator(filename);
+        return filename.substring(index + 1);
+    }
+
+    private static int indexOfLastSeparator(String filename) {
+        if (filename == null) {
+            return -1;
+        }
+        int lastUnixPos = filename.lastIndexOf(UNIX_SEPARATOR);
+        int lastWindowsPos = filename.lastIndexOf(WINDOWS_SEPARATOR);
+        return Math.max(lastUnixPos, lastWindowsPos);
+    }
+
+    static String getExtension(String filename) {
+        if (filename == null) {
+            return null;
+        }
+        int index = indexOfExtension(filename);
+        if (index == -1) {
+            return "";
+        } else {
+            return filename.substring(index + 1);
+        }
+    }
+
+    private static int indexOfExtension(String filename) {
+        if (filename == null) {
+            return -1;
+        }
+        int extensionPos = filename.lastIndexOf(EXTENSION_SEPARATOR);
+        int lastSeparator = indexOfLastSeparator(filename);
+        return (lastSeparator > extensionPos ? -1 : extensionPos);
+    }
+
+    static String getBaseName(String filename) {
+        return removeExtension(getName(filename));
+    }
+
+    private static String removeExtension(String filename) {
+        if (filename == null) {
+            return null;
+        }
+        int index = indexOfExtension(filename);
+        if (index == -1) {
+            return filename;
+        } else {
+            return filename.substring(0, index);
+        }
+    }
+}
@@ -0,0 +1,671 @@
+package org.xbib.elasticsearch.index.analysis.skos.engine.lucene;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.PostingsEnum;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.util.Accountable;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IOUtils;
+import org.elasticsearch.common.logging.ESLogger;
+import org.elasticsearch.common.logging.ESLoggerFactory;
+import org.elasticsearch.common.settings.Settings;
+import org.xbib.elasticsearch.index.analysis.skos.SKOSTypeAttribute.SKOSType;
+import org.xbib.elasticsearch.index.analysis.skos.engine.LabelBloomFilter;
+import org.xbib.elasticsearch.index.analysis.skos.engine.LabelMatcher;
+import org.xbib.elasticsearch.index.analysis.skos.engine.LabelNormalizer;
+import org.xbib.elasticsearch.index.analysis.skos.engine.LoadStats;
+import org.xbib.elasticsearch.index.analysis.skos.engine.MemoryUsage;
+import org.xbib.elasticsearch.index.analysis.skos.engine.SKOSEngine;
+import org.xbib.elasticsearch.index.analysis.skos.engine.graph.Adjacency;
+import org.xbib.elasticsearch.index.analysis.skos.engine.graph.ConceptGraph;
+import org.xbib.elasticsearch.index.analysis.skos.engine.graph.Vocabulary;
+import org.xbib.elasticsearch.index.analysis.skos.engine.graph.VocabularySnapshot;
+import org.xbib.elasticsearch.index.analysis.skos.engine.jena.SKOSStreamLoader;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * SKOSEngine implementation on a private Lucene index in the data path of the
+ * node.
+ *
+ * Each concept is a document with its URI, its normalized labels and the URIs
+ * of its related concepts. The index is written once, force merged, and
+ * opened with a {@link MMapDirectory}. Lookups walk the terms dictionary and
+ * read stored fields in the calling thread, so they never leave the JVM and
+ * do not queue behind searches of the cluster.
+ *
+ * The checksum of a local SKOS file and the settings that change the index
+ * are stored in the commit, an index of another file version or other
+ * settings is written again.
+ *
+ * Each version of the index is written into its own generation directory
+ * below the engine path, named after the checksum and the settings, and the
+ * name of the latest generation is kept in a file next to it. A reloaded
+ * engine writes a new generation while the old one is still mapped, the old
+ * generation is deleted when the engine using it is closed.
+ */
+public class LuceneSKOSEngine implements SKOSEngine, Closeable {
+
+    private final static ESLogger logger = ESLoggerFactory.getLogger(LuceneSKOSEngine.class.getSimpleName());
+
+    private static final String FIELD_URI = "uri";
+    private static final String FIELD_PREF_LABEL = "pref";
+    private static final String FIELD_ALT_LABEL = "alt";
+    private static final String FIELD_HIDDEN_LABEL = "hidden";
+    private static final String FIELD_BROADER = "broader";
+    private static final String FIELD_NARROWER = "narrower";
+    private static final String FIELD_BROADER_TRANSITIVE = "broaderTransitive";
+    private static final String FIELD_NARROWER_TRANSITIVE = "narrowerTransitive";
+    private static final String FIELD_RELATED = "related";
+
+    private static final String COMMIT_CHECKSUM = "checksum";
+    private static final String COMMIT_CONFIGURATION = "configuration";
+
+    private static final String GENERATION_FILE = "generation";
+
+    private static final String[] LABEL_FIELDS = new String[]{FIELD_PREF_LABEL, FIELD_ALT_LABEL, FIELD_HIDDEN_LABEL};
+
+    private static final Set<String> RELATED_LABEL_FIELDS =
+            new HashSet<>(Arrays.asList(FIELD_PREF_LABEL, FIELD_ALT_LABEL));
+
+    /**
+     * The languages to be considered when returning labels.
+     *
+     * If NULL, all languages are supported
+     */
+    private Set<String> languages;
+
+    /**
+     * The maximum number of hops of the computed transitive relations, 0 for no limit
+     */
+    private final int maxTransitiveDepth;
+
+    /**
+     * Normalizes labels into the form the filters emit
+     */
+    private final LabelNormalizer normalizer;
+
+    /**
+     * The false positive probability of the label Bloom filter, 0 for no Bloom filter
+     */
+    private final double bloomFilterFpp;
+
+    private final Path path;
+
+    /**
+     * The name of the generation directory of this engine
+     */
+    private final String generation;
+
+    private final Directory directory;
+
+    private final DirectoryReader reader;
+
+    private LabelBloomFilter labelBloomFilter;
+
+    /**
+     * Labels as normalized by the filters, memoized up to a bound
+     */
+    private final Cache<String, char[]> analyzedLabels = CacheBuilder.newBuilder()
+            .maximumSize(MAX_ANALYZED_LABELS)
+            .build();
+
+    private static final int MAX_ANALYZED_LABELS = 100000;
+
+    private static final char[] ELIMINATED = new char[0];
+
+    private final LoadStats loadStats;
+
+    /**
+     * Opens the index in a directory, or, if there is none or it was written
+     * from another version of a local SKOS file, loads the SKOS model from a
+     * given filename or URI and writes the index first.
+     *
+     * @param path the directory of the index generations
+     * @param filenameOrURI file name or URI
+     * @param languages the languages to be considered
+     * @param settings the engine settings
+     * @throws IOException if the index can not be written or opened
+     */
+    public LuceneSKOSEngine(Path path, String filenameOrURI, List<String> languages, Settings settings)
+            throws IOException {
+        this(path, filenameOrURI, languages, settings, new LoadStats());
+    }
+
+    /**
+     * Opens or writes the index like
+     * {@link #LuceneSKOSEngine(Path, String, List, Settings)}, and reports
+     * the progress while it is loading.
+     *
+     * @param path the directory of the index generations
+     * @param filenameOrURI file name or URI
+     * @param languages the languages to be considered
+     * @param settings the engine settings
+     * @param loadStats receives the timings and counts while loading
+     * @throws IOException if the index can not be written or opened
+     */
+    public LuceneSKOSEngine(Path path, String filenameOrURI, List<String> languages, Settings settings,
+                            LoadStats loadStats) throws IOException {
+        this.loadStats = loadStats;
+        this.path = path;
+        this.maxTransitiveDepth = settings.getAsInt("maxTransitiveDepth", 0);
+        this.normalizer = LabelNormalizer.of(settings);
+        this.bloomFilterFpp = settings.getAsDouble("bloomFilterFpp", LabelBloomFilter.DEFAULT_FPP);
+        if (languages != null) {
+            this.languages = new TreeSet<>(languages);
+        }
+        Path source = SKOSStreamLoader.localFile(filenameOrURI);
+        Map<String, String> commitData = new HashMap<>();
+        commitData.put(COMMIT_CONFIGURATION, configuration());
+        if (source != null) {
+            commitData.put(COMMIT_CHECKSUM, Long.toString(VocabularySnapshot.checksum(source)));
+        }
+        this.generation = generation(commitData);
+        Path generationPath = path.resolve(generation);
+        if (!indexIsCurrent(generationPath, commitData)) {
+            Vocabulary.Builder builder = new Vocabulary.Builder();
+            SKOSStreamLoader loader = new SKOSStreamLoader(builder, this.languages, loadStats);
+            loadStats.start("parse");
+            loader.load(filenameOrURI);
+            loadStats.count("triples", loader.getTriples());
+            writeIndex(builder.build(maxTransitiveDepth, loadStats), generationPath, commitData);
+        }
+        this.directory = new MMapDirectory(generationPath);
+        this.reader = DirectoryReader.open(directory);
+        writeGeneration();
+        buildLabelBloomFilter();
+        loadStats.count("retainedBytes", getMemoryUsage().getTotal());
+        logger.info("opened SKOS index {}: {}", path, loadStats);
+    }
+
+    /**
+     * Returns whether there is an index with the given commit data. Indexes
+     * without commit data were written from an unknown file and are current
+     * as long as the file is not local.
+     */
+    private static boolean indexIsCurrent(Path path, Map<String, String> commitData) throws IOException {
+        if (!Files.isDirectory(path)) {
+            return false;
+        }
+        try (Directory directory = FSDirectory.open(path)) {
+            if (!DirectoryReader.indexExists(directory)) {
+                return false;
+            }
+            Map<String, String> userData = SegmentInfos.readLatestCommit(directory).getUserData();
+            if (userData.isEmpty()) {
+                return !commitData.containsKey(COMMIT_CHECKSUM);
+            }
+            return userData.equals(commitData);
+        }
+    }
+
+    /**
+     * Returns the name of the generation directory of an index with the given
+     * commit data
+     */
+    private static String generation(Map<String, String> commitData) {
+        String checksum = commitData.get(COMMIT_CHECKSUM);
+        return (checksum != null ? Long.toHexString(Long.parseLong(checksum)) : "remote")
+                + "-" + Integer.toHexString(commitData.get(COMMIT_CONFIGURATION).hashCode());
+    }
+
+    /**
+     * Records the generation of this engine as the latest generation
+     */
+    private void writeGeneration() throws IOException {
+        Path tmp = path.resolve(GENERATION_FILE + ".tmp");
+        Files.write(tmp, generation.getBytes(StandardCharsets.UTF_8));
+        Files.move(tmp, path.resolve(GENERATION_FILE), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Returns the latest generation, or null if none was recorded
+     */
+    private String readGeneration() throws IOException {
+        Path file = path.resolve(GENERATION_FILE);
+        return Files.exists(file) ? new String(Files.readAllBytes(file), StandardCharsets.UTF_8) : null;
+    }
+
+    /**
+     * Returns the settings that change the index
+     */
+    private String configuration() {
+        return "languages=" + (languages != null ? languages : "*") + ",maxTransitiveDepth=" + maxTransitiveDepth;
+    }
+
+    @Override
+    public List<String> getPrefLabels(String conceptURI) throws IOException {
+        return readConceptFieldValues(conceptURI, FIELD_PREF_LABEL);
+    }
+
+    @Override
+    public List<String> getAltLabels(String conceptURI) throws IOException {
+        return readConceptFieldValues(conceptURI, FIELD_ALT_LABEL);
+    }
+
+    @Override
+    public List<String> getHiddenLabels(String conceptURI) throws IOException {
+        return readConceptFieldValues(conceptURI, FIELD_HIDDEN_LABEL);
+    }
+
+    @Override
+    public List<String> getRelatedLabels(String conceptURI) throws IOException {
+        return getLabels(conceptURI, FIELD_RELATED);
+    }
+
+    @Override
+    public List<String> getRelatedConcepts(String conceptURI) throws IOException {
+        return readConceptFieldValues(conceptURI, FIELD_RELATED);
+    }
+
+    @Override
+    public List<String> getBroaderConcepts(String conceptURI) throws IOException {
+        return readConceptFieldValues(conceptURI, FIELD_BROADER);
+    }
+
+    @Override
+    public List<String> getNarrowerConcepts(String conceptURI) throws IOException {
+        return readConceptFieldValues(conceptURI, FIELD_NARROWER);
+    }
+
+    @Override
+    public List<String> getBroaderLabels(String conceptURI) throws IOException {
+        return getLabels(conceptURI, FIELD_BROADER);
+    }
+
+    @Override
+    public List<String> getNarrowerLabels(String conceptURI) throws IOException {
+        return getLabels(conceptURI, FIELD_NARROWER);
+    }
+
+    @Override
+    public List<String> getBroaderTransitiveConcepts(String conceptURI) throws IOException {
+        return readConceptFieldValues(conceptURI, FIELD_BROADER_TRANSITIVE);
+    }
+
+    @Override
+    public List<String> getNarrowerTransitiveConcepts(String conceptURI) throws IOException {
+        return readConceptFieldValues(conceptURI, FIELD_NARROWER_TRANSITIVE);
+    }
+
+    @Override
+    public List<String> getBroaderTransitiveLabels(String conceptURI) throws IOException {
+        return getLabels(conceptURI, FIELD_BROADER_TRANSITIVE);
+    }
+
+    @Override
+    public List<String> getNarrowerTransitiveLabels(String conceptURI) throws IOException {
+        return getLabels(conceptURI, FIELD_NARROWER_TRANSITIVE);
+    }
+
+    @Override
+    public List<String> getConcepts(String label) throws IOException {
+        BytesRef term = new BytesRef(label.toLowerCase());
+        // the concepts of a label in document order, a concept may have the label in several fields
+        Set<Integer> docs = new TreeSet<>();
+        for (LeafReaderContext leaf : reader.leaves()) {
+            for (String field : LABEL_FIELDS) {
+                PostingsEnum postings = postings(leaf, field, term);
+                if (postings != null) {
+                    for (int doc = postings.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = postings.nextDoc()) {
+                        docs.add(leaf.docBase + doc);
+                    }
+                }
+            }
+        }
+        List<String> concepts = new ArrayList<>(docs.size());
+        for (int doc : docs) {
+            concepts.add(reader.document(doc, Collections.singleton(FIELD_URI)).get(FIELD_URI));
+        }
+        return concepts;
+    }
+
+    @Override
+    public List<String> getAltTerms(String label) throws IOException {
+        List<String> result = new LinkedList<>();
+        for (String conceptURI : getConcepts(label)) {
+            result.addAll(getAltLabels(conceptURI));
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, List<String>> getConcepts(Collection<String> labels) throws IOException {
+        Map<String, List<String>> result = new LinkedHashMap<>();
+        for (String label : labels) {
+            List<String> concepts = getConcepts(label);
+            if (!concepts.isEmpty()) {
+                result.put(label, concepts);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Map<SKOSType, List<String>>> getLabels(Collection<String> conceptURIs, Set<SKOSType> types)
+            throws IOException {
+        Map<String, Map<SKOSType, List<String>>> result = new LinkedHashMap<>();
+        for (String conceptURI : conceptURIs) {
+            Document concept = readConcept(conceptURI);
+            if (concept == null) {
+                continue;
+            }
+            Map<SKOSType, List<String>> conceptLabels = new EnumMap<>(SKOSType.class);
+            for (SKOSType type : types) {
+                List<String> values = Arrays.asList(concept.getValues(field(type)));
+                if (type != SKOSType.PREF && type != SKOSType.ALT && type != SKOSType.HIDDEN) {
+                    values = readRelatedLabels(values);
+                }
+                conceptLabels.put(type, values);
+            }
+            result.put(conceptURI, conceptLabels);
+        }
+        return result;
+    }
+
+    @Override
+    public char[] getAnalyzedLabel(String label) throws IOException {
+        char[] analyzed = analyzedLabels.getIfPresent(label);
+        if (analyzed == null) {
+            analyzed = normalizer.normalize(label);
+            if (analyzed == null) {
+                analyzed = ELIMINATED;
+            }
+            analyzedLabels.put(label, analyzed);
+        }
+        return analyzed != ELIMINATED ? analyzed : null;
+    }
+
+    @Override
+    public LabelBloomFilter getLabelBloomFilter() {
+        return labelBloomFilter;
+    }
+
+    @Override
+    public LabelMatcher getLabelMatcher() {
+        return labelBloomFilter;
+    }
+
+    /**
+     * The index is memory mapped, only the heap structures of its segment
+     * readers, the Bloom filter and the label cache count
+     */
+    @Override
+    public MemoryUsage getMemoryUsage() {
+        long indexBytes = 0L;
+        for (LeafReaderContext leaf : reader.leaves()) {
+            if (leaf.reader() instanceof Accountable) {
+                indexBytes += ((Accountable) leaf.reader()).ramBytesUsed();
+            }
+        }
+        long labelBytes = 0L;
+        for (Map.Entry<String, char[]> entry : analyzedLabels.asMap().entrySet()) {
+            labelBytes += MemoryUsage.sizeOf(entry.getKey()) + MemoryUsage.sizeOfValue(entry.getValue());
+        }
+        return new MemoryUsage()
+                .add("index", indexBytes)
+                .add("bloom_filter", labelBloomFilter != null ? labelBloomFilter.getSizeInBytes() : 0L)
+                .add("analyzed_labels", labelBytes);
+    }
+
+    /**
+     * Returns the timings and counts of loading the vocabulary. Empty if the
+     * index already existed.
+     *
+     * @return the load statistics
+     */
+    public LoadStats getLoadStats() {
+        return loadStats;
+    }
+
+    /**
+     * Returns the directory of the index generations
+     *
+     * @return the path
+     */
+    public Path getPath() {
+        return path;
+    }
+
+    /**
+     * Returns the generation directory of the index opened by this engine
+     *
+     * @return the path of the generation
+     */
+    public Path getGenerationPath() {
+        return path.resolve(generation);
+    }
+
+    /**
+     * Closes the index, and deletes its generation if a newer generation was
+     * written in the meantime. The latest generation is kept for the next load.
+     */
+    @Override
+    public void close() throws IOException {
+        IOUtils.close(reader, directory);
+        if (!generation.equals(readGeneration())) {
+            IOUtils.rm(path.resolve(generation));
+        }
+    }
+
+    private List<String> readConceptFieldValues(String conceptURI, String field) throws IOException {
+        Document concept = readConcept(conceptURI);
+        if (concept == null) {
+            logger.warn("unknown concept " + conceptURI);
+            return Collections.emptyList();
+        }
+        return Arrays.asList(concept.getValues(field));
+    }
+
+    private List<String> getLabels(String conceptURI, String field) throws IOException {
+        return readRelatedLabels(readConceptFieldValues(conceptURI, field));
+    }
+
+    /**
+     * Collects the pref and alt labels of concepts
+     */
+    private List<String> readRelatedLabels(List<String> conceptURIs) throws IOException {
+        List<String> labels = new ArrayList<>();
+        for (String conceptURI : conceptURIs) {
+            int doc = conceptDoc(conceptURI);
+            if (doc >= 0) {
+                Document concept = reader.document(doc, RELATED_LABEL_FIELDS);
+                labels.addAll(Arrays.asList(concept.getValues(FIELD_PREF_LABEL)));
+                labels.addAll(Arrays.asList(concept.getValues(FIELD_ALT_LABEL)));
+            }
+        }
+        return labels;
+    }
+
+    /**
+     * Reads the stored fields of a concept
+     *
+     * @param conceptURI the concept URI
+     * @return the document, or null if there is no such concept
+     * @throws IOException if the index can not be read
+     */
+    private Document readConcept(String conceptURI) throws IOException {
+        int doc = conceptDoc(conceptURI);
+        return doc >= 0 ? reader.document(doc) : null;
+    }
+
+    /**
+     * Looks up the document of a concept in the terms dictionary of the URI
+     * field
+     *
+     * @param conceptURI the concept URI
+     * @return the document number, or -1 if there is no such concept
+     * @throws IOException if the index can not be read
+     */
+    private int conceptDoc(String conceptURI) throws IOException {
+        BytesRef term = new BytesRef(conceptURI);
+        for (LeafReaderContext leaf : reader.leaves()) {
+            PostingsEnum postings = postings(leaf, FIELD_URI, term);
+            if (postings != null) {
+                int doc = postings.nextDoc();
+                if (doc != DocIdSetIterator.NO_MORE_DOCS) {
+                    return leaf.docBase + doc;
+                }
+            }
+        }
+        return -1;
+    }
+
+    private static PostingsEnum postings(LeafReaderContext leaf, String field, BytesRef term) throws IOException {
+        Terms terms = leaf.reader().terms(field);
+        if (terms == null) {
+            return null;
+        }
+        TermsEnum termsEnum = terms.iterator();
+        return termsEnum.seekExact(term) ? termsEnum.postings(null, PostingsEnum.NONE) : null;
+    }
+
+    /**
+     * Builds the label Bloom filter from the terms dictionaries of the label
+     * fields
+     */
+    private void buildLabelBloomFilter() throws IOException {
+        if (bloomFilterFpp <= 0.0) {
+            return;
+        }
+        loadStats.start("bloom");
+        Set<String> labels = new HashSet<>();
+        for (LeafReaderContext leaf : reader.leaves()) {
+            for (String field : LABEL_FIELDS) {
+                Terms terms = leaf.reader().terms(field);
+                if (terms != null) {
+                    TermsEnum termsEnum = terms.iterator();
+                    for (BytesRef term = termsEnum.next(); term != null; term = termsEnum.next()) {
+                        labels.add(term.utf8ToString());
+                    }
+                }
+            }
+        }
+        labelBloomFilter = LabelBloomFilter.create(labels, bloomFilterFpp);
+        loadStats.stop();
+    }
+
+    /**
+     * Writes each concept of the vocabulary as a document into a temporary
+     * directory, force merges it into one segment, and moves it to its
+     * generation directory, so an interrupted write never leaves a partial
+     * index behind. Other generations are left alone, they may be mapped by
+     * the engine being reloaded.
+     *
+     * @param vocabulary the vocabulary
+     * @param generationPath the generation directory
+     * @param commitData the commit data
+     * @throws IOException if the index can not be written
+     */
+    private void writeIndex(Vocabulary vocabulary, Path generationPath, Map<String, String> commitData)
+            throws IOException {
+        loadStats.start("index");
+        Path tmp = generationPath.resolveSibling(generationPath.getFileName() + ".tmp");
+        IOUtils.rm(tmp);
+        Files.createDirectories(tmp);
+        ConceptGraph graph = vocabulary.graph();
+        IndexWriterConfig config = new IndexWriterConfig(new KeywordAnalyzer())
+                .setOpenMode(IndexWriterConfig.OpenMode.CREATE)
+                .setRAMBufferSizeMB(64.0);
+        try (Directory tmpDirectory = FSDirectory.open(tmp);
+             IndexWriter writer = new IndexWriter(tmpDirectory, config)) {
+            for (int ord = 0; ord < graph.size(); ord++) {
+                if (graph.isConcept(ord)) {
+                    writer.addDocument(buildDocument(vocabulary, ord));
+                }
+            }
+            writer.forceMerge(1);
+            writer.setCommitData(commitData);
+            writer.commit();
+        }
+        // a generation with the same name is not current, so no engine has it open
+        IOUtils.rm(generationPath);
+        Files.move(tmp, generationPath, StandardCopyOption.ATOMIC_MOVE);
+        loadStats.stop();
+    }
+
+    private Document buildDocument(Vocabulary vocabulary, int ord) {
+        ConceptGraph graph = vocabulary.graph();
+        Document document = new Document();
+        document.add(new StringField(FIELD_URI, graph.uri(ord), Field.Store.YES));
+        buildLabels(document, vocabulary, ord, SKOSType.PREF, FIELD_PREF_LABEL);
+        buildLabels(document, vocabulary, ord, SKOSType.ALT, FIELD_ALT_LABEL);
+        buildLabels(document, vocabulary, ord, SKOSType.HIDDEN, FIELD_HIDDEN_LABEL);
+        buildRelation(document, graph, ord, SKOSType.BROADER, FIELD_BROADER);
+        buildRelation(document, graph, ord, SKOSType.BROADERTRANSITIVE, FIELD_BROADER_TRANSITIVE);
+        buildRelation(document, graph, ord, SKOSType.NARROWER, FIELD_NARROWER);
+        buildRelation(document, graph, ord, SKOSType.NARROWERTRANSITIVE, FIELD_NARROWER_TRANSITIVE);
+        buildRelation(document, graph, ord, SKOSType.RELATED, FIELD_RELATED);
+        return document;
+    }
+
+    private void buildLabels(Document document, Vocabulary vocabulary, int ord, SKOSType type, String field) {
+        Adjacency adjacency = vocabulary.labels(type);
+        for (int i = adjacency.start(ord), end = adjacency.end(ord); i < end; i++) {
+            document.add(new StringField(field, vocabulary.labels().term(adjacency.target(i)), Field.Store.YES));
+        }
+    }
+
+    private void buildRelation(Document document, ConceptGraph graph, int ord, SKOSType relation, String field) {
+        Adjacency adjacency = graph.relation(relation);
+        for (int i = adjacency.start(ord), end = adjacency.end(ord); i < end; i++) {
+            document.add(new StoredField(field, graph.uri(adjacency.target(i))));
+        }
+    }
+
+    private static String field(SKOSType type) {
+        switch (type) {
+            case PREF:
+                return FIELD_PREF_LABEL;
+            case ALT:
+                return FIELD_ALT_LABEL;
+            case HIDDEN:
+                return FIELD_HIDDEN_LABEL;
+            case BROADER:
+                return FIELD_BROADER;
+            case NARROWER:
+                return FIELD_NARROWER;
+            case BROADERTRANSITIVE:
+                return FIELD_BROADER_TRANSITIVE;
+            case NARROWERTRANSITIVE:
+                return FIELD_NARROWER_TRANSITIVE;
+            default:
+                return FIELD_RELATED;
+        }
+    }
+}
@@ -1,9 +1,19 @@
 package org.xbib.elasticsearch.plugin.analysis;
 
+import org.elasticsearch.common.component.LifecycleComponent;
+import org.elasticsearch.common.inject.Module;
 import org.elasticsearch.index.analysis.AnalysisModule;
 import org.elasticsearch.plugins.Plugin;
 
+import org.elasticsearch.rest.RestModule;
 import org.xbib.elasticsearch.index.analysis.skos.SKOSAnalysisBinderProcessor;
+import org.xbib.elasticsearch.index.analysis.skos.engine.SKOSPreloadService;
+import org.xbib.elasticsearch.rest.action.skos.RestSKOSReloadAction;
+import org.xbib.elasticsearch.rest.action.skos.RestSKOSStatsAction;
+import org.xbib.elasticsearch.rest.action.skos.RestSKOSThesaurusAction;
+
+import java.util.Collection;
+import java.util.Collections;
 
 public class SKOSAnalysisPlugin extends Plugin {
 
@@ -17,9 +27,24 @@ public class SKOSAnalysisPlugin extends Plugin {
         return "SKOS analysis support";
     }
 
+    @Override
+    public Collection<Module> nodeModules() {
+        return Collections.<Module>singletonList(new SKOSModule());
+    }
+
+    @Override
+    public Collection<Class<? extends LifecycleComponent>> nodeServices() {
+        return Collections.<Class<? extends LifecycleComponent>>singletonList(SKOSPreloadService.class);
+    }
+
     public void onModule(AnalysisModule module) {
         module.addProcessor(new SKOSAnalysisBinderProcessor());
     }
 
-}
+    public void onModule(RestModule module) {
+        module.addRestAction(RestSKOSThesaurusAction.class);
+        module.addRestAction(RestSKOSReloadAction.class);
+        module.addRestAction(RestSKOSStatsAction.class);
+    }
 
+}
@@ -0,0 +1,15 @@
+package org.xbib.elasticsearch.plugin.analysis;
+
+import org.elasticsearch.common.inject.AbstractModule;
+import org.xbib.elasticsearch.index.analysis.skos.engine.SKOSPreloadService;
+
+/**
+ * Binds the node level SKOS services.
+ */
+public class SKOSModule extends AbstractModule {
+
+    @Override
+    protected void configure() {
+        bind(SKOSPreloadService.class).asEagerSingleton();
+    }
+}
@@ -0,0 +1,49 @@
+package org.xbib.elasticsearch.rest.action.skos;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.io.PathUtils;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestStatus;
+import org.xbib.elasticsearch.index.analysis.skos.engine.SKOSEngineFactory;
+
+import static org.elasticsearch.rest.RestRequest.Method.POST;
+
+/**
+ * Reloads the SKOS engines of a thesaurus on the node that receives the
+ * request. The engines keep serving lookups while the new versions are
+ * loaded in the background, the progress is reported by
+ * GET /_skos/thesaurus/{name}.
+ *
+ * With the parameter change_set, the change set file is applied to the
+ * elasticsearch engines instead.
+ */
+public class RestSKOSReloadAction extends BaseRestHandler {
+
+    @Inject
+    public RestSKOSReloadAction(Settings settings, RestController controller, Client client) {
+        super(settings, controller, client);
+        controller.registerHandler(POST, "/_skos/thesaurus/{name}/_reload", this);
+    }
+
+    @Override
+    protected void handleRequest(RestRequest request, RestChannel channel, Client client) throws Exception {
+        String name = request.param("name");
+        String changeSet = request.param("change_set");
+        int count = changeSet != null ?
+                SKOSEngineFactory.update(name, PathUtils.get(changeSet)).size() :
+                SKOSEngineFactory.reload(name).size();
+        XContentBuilder builder = channel.newBuilder();
+        builder.startObject()
+                .field("acknowledged", count > 0)
+                .field("reloading", count)
+                .endObject();
+        channel.sendResponse(new BytesRestResponse(count > 0 ? RestStatus.ACCEPTED : RestStatus.NOT_FOUND, builder));
+    }
+}
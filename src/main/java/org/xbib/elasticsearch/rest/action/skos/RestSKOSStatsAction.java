@@ -0,0 +1,93 @@
+package org.xbib.elasticsearch.rest.action.skos;
+
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestStatus;
+import org.xbib.elasticsearch.index.analysis.skos.engine.SKOSEngineFactory;
+import org.xbib.elasticsearch.index.analysis.skos.engine.SKOSEngineInfo;
+import org.xbib.elasticsearch.index.analysis.skos.engine.SKOSPreloadService;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+import static org.elasticsearch.rest.RestRequest.Method.HEAD;
+
+/**
+ * Reports the SKOS engines of the node that receives the request: the number
+ * of engines by state, their total estimated heap memory, and the state, load
+ * progress, memory usage and expansion cache statistics of each engine.
+ *
+ * GET /_skos/_ready answers 200 when the thesauri preloaded at node start are
+ * loaded or failed, and 503 while they are loading.
+ */
+public class RestSKOSStatsAction extends BaseRestHandler {
+
+    private final SKOSPreloadService preloadService;
+
+    @Inject
+    public RestSKOSStatsAction(Settings settings, RestController controller, Client client,
+                               SKOSPreloadService preloadService) {
+        super(settings, controller, client);
+        this.preloadService = preloadService;
+        controller.registerHandler(GET, "/_skos/_stats", this);
+        controller.registerHandler(GET, "/_skos/_ready", this);
+        controller.registerHandler(HEAD, "/_skos/_ready", this);
+    }
+
+    @Override
+    protected void handleRequest(RestRequest request, RestChannel channel, Client client) throws Exception {
+        if (request.path().endsWith("/_ready")) {
+            XContentBuilder builder = channel.newBuilder();
+            builder.startObject();
+            buildPreload(builder);
+            builder.endObject();
+            channel.sendResponse(new BytesRestResponse(preloadService.isReady() ?
+                    RestStatus.OK : RestStatus.SERVICE_UNAVAILABLE, builder));
+            return;
+        }
+        List<SKOSEngineInfo> infos = SKOSEngineFactory.getEngineInfos(null);
+        Map<SKOSEngineInfo.State, Integer> states = new EnumMap<>(SKOSEngineInfo.State.class);
+        long memory = 0L;
+        for (SKOSEngineInfo info : infos) {
+            Integer count = states.get(info.getState());
+            states.put(info.getState(), count != null ? count + 1 : 1);
+            if (info.getMemoryUsage() != null) {
+                memory += info.getMemoryUsage().getTotal();
+            }
+        }
+        XContentBuilder builder = channel.newBuilder();
+        builder.startObject();
+        builder.field("node", nodeName());
+        buildPreload(builder);
+        builder.startObject("engines");
+        builder.field("count", infos.size());
+        for (SKOSEngineInfo.State state : SKOSEngineInfo.State.values()) {
+            Integer count = states.get(state);
+            builder.field(state.name().toLowerCase(), count != null ? count : 0);
+        }
+        builder.field("memory_in_bytes", memory);
+        builder.endObject();
+        RestSKOSThesaurusAction.buildInfos(builder, request, infos);
+        builder.endObject();
+        channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
+    }
+
+    private void buildPreload(XContentBuilder builder) throws IOException {
+        builder.startObject("preload");
+        builder.field("ready", preloadService.isReady());
+        builder.field("thesauri", preloadService.getPreloads());
+        builder.field("pending", preloadService.getPending());
+        builder.field("failed", preloadService.getFailed());
+        builder.endObject();
+    }
+}
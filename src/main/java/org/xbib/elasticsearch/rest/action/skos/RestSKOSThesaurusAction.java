@@ -0,0 +1,149 @@
+package org.xbib.elasticsearch.rest.action.skos;
+
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.ToXContent;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.BytesRestResponse;
+import org.elasticsearch.rest.RestChannel;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.RestStatus;
+import org.xbib.elasticsearch.index.analysis.skos.engine.SKOSEngineFactory;
+import org.xbib.elasticsearch.index.analysis.skos.engine.SKOSEngineHandle;
+import org.xbib.elasticsearch.index.analysis.skos.engine.SKOSEngineInfo;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.elasticsearch.rest.RestRequest.Method.DELETE;
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+import static org.elasticsearch.rest.RestRequest.Method.POST;
+import static org.elasticsearch.rest.RestRequest.Method.PUT;
+
+/**
+ * Loads, inspects and drops the SKOS engines of a thesaurus on the node that
+ * receives the request. The name of a thesaurus is the 'indexName' of the
+ * filters using it.
+ *
+ * PUT /_skos/thesaurus/{name} loads an engine in the background from a body
+ * with the settings of a SKOS filter, for example
+ * {"skosFile": "ukat.n3", "engineType": "fst", "language": "en"}. With
+ * wait_for_completion=true, the response is sent when the engine is loaded.
+ * GET returns the state and load progress of the engines, DELETE removes
+ * them from the registry. Engines that are used by indices keep serving them
+ * and are closed when the last of them is closed.
+ */
+public class RestSKOSThesaurusAction extends BaseRestHandler {
+
+    private final Client client;
+
+    private final NodeEnvironment nodeEnvironment;
+
+    @Inject
+    public RestSKOSThesaurusAction(Settings settings, RestController controller, Client client,
+                                   NodeEnvironment nodeEnvironment) {
+        super(settings, controller, client);
+        this.client = client;
+        this.nodeEnvironment = nodeEnvironment;
+        controller.registerHandler(PUT, "/_skos/thesaurus/{name}", this);
+        controller.registerHandler(POST, "/_skos/thesaurus/{name}", this);
+        controller.registerHandler(GET, "/_skos/thesaurus", this);
+        controller.registerHandler(GET, "/_skos/thesaurus/{name}", this);
+        controller.registerHandler(DELETE, "/_skos/thesaurus/{name}", this);
+    }
+
+    @Override
+    protected void handleRequest(final RestRequest request, final RestChannel channel, Client client) throws Exception {
+        String name = request.param("name");
+        switch (request.method()) {
+            case GET: {
+                List<SKOSEngineInfo> infos = SKOSEngineFactory.getEngineInfos(name);
+                XContentBuilder builder = channel.newBuilder();
+                builder.startObject();
+                buildInfos(builder, request, infos);
+                builder.endObject();
+                channel.sendResponse(new BytesRestResponse(name != null && infos.isEmpty() ?
+                        RestStatus.NOT_FOUND : RestStatus.OK, builder));
+                break;
+            }
+            case DELETE: {
+                int count = SKOSEngineFactory.release(name);
+                XContentBuilder builder = channel.newBuilder();
+                builder.startObject()
+                        .field("acknowledged", count > 0)
+                        .field("released", count)
+                        .endObject();
+                channel.sendResponse(new BytesRestResponse(count > 0 ? RestStatus.OK : RestStatus.NOT_FOUND, builder));
+                break;
+            }
+            default:
+                load(name, request, channel);
+        }
+    }
+
+    private void load(final String name, final RestRequest request, final RestChannel channel) throws IOException {
+        Settings settings = request.hasContent() ?
+                Settings.builder().loadFromSource(request.content().toUtf8()).build() : Settings.EMPTY;
+        String skosFile = settings.get("skosFile");
+        if (skosFile == null) {
+            throw new IllegalArgumentException("mandatory parameter 'skosFile' missing");
+        }
+        String languageString = settings.get("language");
+        List<String> languages = languageString != null ?
+                Arrays.asList(languageString.split(" ")) : Collections.<String>emptyList();
+        // the same engine settings as the token filter, so that filters find the loaded engine
+        settings = SKOSEngineFactory.withDefaultEnginePath(settings, nodeEnvironment);
+        final boolean waitForCompletion = request.paramAsBoolean("wait_for_completion", false);
+        SKOSEngineFactory.load(client, name, skosFile, languages, settings, new ActionListener<SKOSEngineHandle>() {
+            @Override
+            public void onResponse(SKOSEngineHandle handle) {
+                if (!waitForCompletion) {
+                    return;
+                }
+                try {
+                    XContentBuilder builder = channel.newBuilder();
+                    builder.startObject();
+                    buildInfos(builder, request, SKOSEngineFactory.getEngineInfos(name));
+                    builder.endObject();
+                    channel.sendResponse(new BytesRestResponse(RestStatus.OK, builder));
+                } catch (Throwable t) {
+                    onFailure(t);
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                if (!waitForCompletion) {
+                    logger.warn("failed to load SKOS thesaurus {}", t, name);
+                    return;
+                }
+                try {
+                    channel.sendResponse(new BytesRestResponse(channel, t));
+                } catch (IOException e) {
+                    logger.error("failed to send failure response for SKOS thesaurus {}", e, name);
+                }
+            }
+        });
+        if (!waitForCompletion) {
+            XContentBuilder builder = channel.newBuilder();
+            builder.startObject().field("acknowledged", true).endObject();
+            channel.sendResponse(new BytesRestResponse(RestStatus.ACCEPTED, builder));
+        }
+    }
+
+    static void buildInfos(XContentBuilder builder, ToXContent.Params params, List<SKOSEngineInfo> infos)
+            throws IOException {
+        builder.startArray("thesauri");
+        for (SKOSEngineInfo info : infos) {
+            info.toXContent(builder, params);
+        }
+        builder.endArray();
+    }
+}
@@ -0,0 +1,68 @@
+package org.xbib.elasticsearch.index.analysis.skos.test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.analysis.tokenattributes.PositionIncrementAttribute;
+import org.junit.Test;
+import org.xbib.elasticsearch.index.analysis.skos.SKOSLabelFilter;
+import org.xbib.elasticsearch.index.analysis.skos.SKOSTypeAttribute;
+import org.xbib.elasticsearch.index.analysis.skos.SKOSTypeAttribute.SKOSType;
+import org.xbib.elasticsearch.index.analysis.skos.engine.ExpansionCache;
+import org.xbib.elasticsearch.index.analysis.skos.engine.SKOSEngine;
+import org.xbib.elasticsearch.index.analysis.skos.engine.fst.FSTSKOSEngine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that a label filter resolving windows of tokens emits the same tokens
+ * as a filter resolving one token at a time
+ */
+public class BatchWindowTest {
+
+    private static final List<SKOSType> TYPES = Arrays.asList(SKOSType.PREF, SKOSType.ALT, SKOSType.HIDDEN);
+
+    private static final String TEXT = "the quick sheep and the United Nations met the UN and the quick kity " +
+            "near the united nations dog";
+
+    @Test
+    public void testBatchWindow() throws IOException {
+        InputStream inputStream = getClass().getResourceAsStream("/skos_samples/simple_test_skos.n3");
+        SKOSEngine engine = new FSTSKOSEngine(inputStream, "N3");
+        List<String> expected = tokens(engine, 0, null);
+        assertTrue(expected.size() > TEXT.split(" ").length);
+        // windows smaller than, aligned with, and larger than the text
+        for (int batchWindow : new int[]{2, 3, 5, 64}) {
+            assertEquals(expected, tokens(engine, batchWindow, null));
+            ExpansionCache cache = new ExpansionCache(1024 * 1024);
+            assertEquals(expected, tokens(engine, batchWindow, cache));
+            // the second pass is served from the cache
+            assertEquals(expected, tokens(engine, batchWindow, cache));
+        }
+    }
+
+    private static List<String> tokens(SKOSEngine engine, int batchWindow, ExpansionCache cache) throws IOException {
+        WhitespaceTokenizer tokenizer = new WhitespaceTokenizer();
+        tokenizer.setReader(new StringReader(TEXT));
+        List<String> tokens = new ArrayList<>();
+        try (TokenStream stream = new SKOSLabelFilter(tokenizer, engine, 3, batchWindow, TYPES, cache)) {
+            CharTermAttribute termAtt = stream.addAttribute(CharTermAttribute.class);
+            PositionIncrementAttribute posIncrAtt = stream.addAttribute(PositionIncrementAttribute.class);
+            SKOSTypeAttribute skosAtt = stream.addAttribute(SKOSTypeAttribute.class);
+            stream.reset();
+            while (stream.incrementToken()) {
+                tokens.add(termAtt + "/" + posIncrAtt.getPositionIncrement() + "/" + skosAtt.getSkosType());
+            }
+            stream.end();
+        }
+        return tokens;
+    }
+}
@@ -0,0 +1,72 @@
+package org.xbib.elasticsearch.index.analysis.skos.test;
+
+import java.io.IOException;
+
+import org.junit.Test;
+import org.xbib.elasticsearch.index.analysis.skos.SKOSTypeAttribute.SKOSType;
+import org.xbib.elasticsearch.index.analysis.skos.engine.graph.Adjacency;
+import org.xbib.elasticsearch.index.analysis.skos.engine.graph.ConceptGraph;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the CSR layout of the concept graph
+ */
+public class ConceptGraphTest {
+
+    @Test
+    public void testAdjacency() {
+        Adjacency adjacency = new Adjacency.Builder()
+                .add(2, 0)
+                .add(0, 1)
+                .add(2, 1)
+                .add(0, 3)
+                .build(4);
+        assertEquals(4, adjacency.size());
+        assertEquals(4, adjacency.edges());
+        assertEquals(2, adjacency.degree(0));
+        assertEquals(0, adjacency.degree(1));
+        assertEquals(2, adjacency.degree(2));
+        assertEquals(0, adjacency.degree(3));
+        // insertion order is kept per node
+        assertEquals(1, adjacency.target(adjacency.start(0)));
+        assertEquals(3, adjacency.target(adjacency.start(0) + 1));
+        assertEquals(0, adjacency.target(adjacency.start(2)));
+        assertEquals(1, adjacency.target(adjacency.start(2) + 1));
+        assertEquals(adjacency.end(0), adjacency.start(1));
+    }
+
+    @Test
+    public void testConceptGraph() throws IOException {
+        ConceptGraph.Builder builder = new ConceptGraph.Builder();
+        int weapons = builder.ordinal("http://www.ukat.org.uk/thesaurus/concept/859");
+        int equipment = builder.ordinal("http://www.ukat.org.uk/thesaurus/concept/5060");
+        int artillery = builder.ordinal("http://www.ukat.org.uk/thesaurus/concept/7630");
+        builder.markConcept(weapons);
+        builder.markConcept(artillery);
+        builder.addEdge(SKOSType.BROADER, weapons, equipment);
+        builder.addEdge(SKOSType.NARROWER, weapons, artillery);
+        builder.addEdge(SKOSType.BROADER, artillery, weapons);
+        ConceptGraph graph = builder.build();
+        assertEquals(3, graph.size());
+        assertEquals(2, graph.concepts());
+        assertEquals(weapons, graph.conceptOrdinal("http://www.ukat.org.uk/thesaurus/concept/859"));
+        // a relation target that is not a concept itself
+        assertEquals(equipment, graph.ordinal("http://www.ukat.org.uk/thesaurus/concept/5060"));
+        assertEquals(-1, graph.conceptOrdinal("http://www.ukat.org.uk/thesaurus/concept/5060"));
+        assertEquals(-1, graph.ordinal("http://www.ukat.org.uk/thesaurus/concept/0"));
+        assertTrue(graph.isConcept(artillery));
+        assertFalse(graph.isConcept(equipment));
+        Adjacency broader = graph.relation(SKOSType.BROADER);
+        assertEquals(1, broader.degree(weapons));
+        assertEquals("http://www.ukat.org.uk/thesaurus/concept/5060", graph.uri(broader.target(broader.start(weapons))));
+        assertEquals(0, graph.relation(SKOSType.RELATED).edges());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNotARelation() throws IOException {
+        new ConceptGraph.Builder().build().relation(SKOSType.PREF);
+    }
+}
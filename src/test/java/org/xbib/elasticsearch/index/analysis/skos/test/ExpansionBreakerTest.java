@@ -0,0 +1,99 @@
+package org.xbib.elasticsearch.index.analysis.skos.test;
+
+import java.io.IOException;
+
+import org.elasticsearch.common.settings.Settings;
+import org.junit.Test;
+import org.xbib.elasticsearch.index.analysis.skos.engine.ExpansionBreaker;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that the circuit breaker passes terms through after repeated
+ * failures and lets a trial through after the cooldown
+ */
+public class ExpansionBreakerTest {
+
+    @Test
+    public void testTripAndRecover() throws Exception {
+        ExpansionBreaker breaker = new ExpansionBreaker("breaker-1", Settings.builder()
+                .put("breakerThreshold", 3)
+                .put("breakerCooldown", "100ms")
+                .build());
+        IOException failure = new IOException("thesaurus index is red");
+        breaker.onFailure(failure);
+        breaker.onFailure(failure);
+        // a success resets the consecutive failures
+        breaker.onSuccess();
+        breaker.onFailure(failure);
+        breaker.onFailure(failure);
+        assertTrue(breaker.allowRequest());
+        breaker.onFailure(failure);
+        assertTrue(breaker.isOpen());
+        assertEquals(1L, breaker.getTrips());
+        assertFalse(breaker.allowRequest());
+        Thread.sleep(150L);
+        // one trial after the cooldown, a failed trial opens the breaker again
+        assertTrue(breaker.allowRequest());
+        assertFalse(breaker.allowRequest());
+        breaker.onFailure(failure);
+        assertEquals(2L, breaker.getTrips());
+        assertFalse(breaker.allowRequest());
+        Thread.sleep(150L);
+        assertTrue(breaker.allowRequest());
+        breaker.onSuccess();
+        assertFalse(breaker.isOpen());
+        assertTrue(breaker.allowRequest());
+        assertEquals(6L, (long) breaker.getStats().get("failures"));
+    }
+
+    @Test
+    public void testFailuresWhileOpen() {
+        ExpansionBreaker breaker = new ExpansionBreaker("breaker-4", Settings.builder()
+                .put("breakerThreshold", 2)
+                .put("breakerCooldown", "1h")
+                .build());
+        IOException failure = new IOException("thesaurus index is red");
+        breaker.onFailure(failure);
+        breaker.onFailure(failure);
+        assertTrue(breaker.isOpen());
+        // calls that were in flight when the breaker opened fail without tripping it again
+        for (int i = 0; i < 10; i++) {
+            breaker.onFailure(failure);
+        }
+        assertEquals(1L, breaker.getTrips());
+        assertEquals(12L, (long) breaker.getStats().get("failures"));
+        assertFalse(breaker.allowRequest());
+    }
+
+    @Test
+    public void testExpansionBudget() {
+        ExpansionBreaker breaker = new ExpansionBreaker("breaker-2", Settings.builder()
+                .put("breakerThreshold", 2)
+                .put("expansionBudget", "10ms")
+                .build());
+        assertFalse(breaker.isOverBudget(5000000L));
+        assertTrue(breaker.isOverBudget(20000000L));
+        breaker.onSlowDocument();
+        breaker.onSlowDocument();
+        assertTrue(breaker.isOpen());
+        breaker.skipped(3);
+        assertEquals(3L, breaker.getSkipped());
+        assertEquals(2L, (long) breaker.getStats().get("slow_documents"));
+    }
+
+    @Test
+    public void testDisabled() {
+        ExpansionBreaker breaker = new ExpansionBreaker("breaker-3", Settings.builder()
+                .put("breakerThreshold", 0)
+                .build());
+        for (int i = 0; i < 100; i++) {
+            breaker.onFailure(new IOException());
+        }
+        assertFalse(breaker.isOpen());
+        assertTrue(breaker.allowRequest());
+        assertFalse(breaker.isOverBudget(Long.MAX_VALUE - 1L));
+    }
+}
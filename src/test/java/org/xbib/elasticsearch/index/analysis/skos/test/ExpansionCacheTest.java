@@ -0,0 +1,107 @@
+package org.xbib.elasticsearch.index.analysis.skos.test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.junit.Test;
+import org.xbib.elasticsearch.index.analysis.skos.SKOSAnalyzer.ExpansionType;
+import org.xbib.elasticsearch.index.analysis.skos.SKOSLabelFilter;
+import org.xbib.elasticsearch.index.analysis.skos.SKOSTypeAttribute.SKOSType;
+import org.xbib.elasticsearch.index.analysis.skos.engine.ExpansionCache;
+import org.xbib.elasticsearch.index.analysis.skos.engine.SKOSEngine;
+import org.xbib.elasticsearch.index.analysis.skos.engine.fst.FSTSKOSEngine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that cached expansions produce the same tokens as uncached ones
+ */
+public class ExpansionCacheTest {
+
+    private static final List<SKOSType> TYPES = Arrays.asList(SKOSType.PREF, SKOSType.ALT);
+
+    @Test
+    public void testCachedExpansion() throws IOException {
+        InputStream inputStream = getClass().getResourceAsStream("/skos_samples/simple_test_skos.n3");
+        SKOSEngine engine = new FSTSKOSEngine(inputStream, "N3");
+        String text = "the quick sheep and the quick kity";
+        ExpansionCache cache = new ExpansionCache(1024 * 1024);
+        List<String> expected = tokens(engine, text, null);
+        assertTrue(expected.size() > text.split(" ").length);
+        assertEquals(expected, tokens(engine, text, cache));
+        long misses = cache.getStats().get("misses");
+        assertTrue(cache.getStats().get("hits") > 0);
+        // a second pass is served from the cache only
+        assertEquals(expected, tokens(engine, text, cache));
+        assertEquals(misses, (long) cache.getStats().get("misses"));
+        cache.clear();
+        assertEquals(0, cache.size());
+    }
+
+    @Test
+    public void testReusedKey() throws IOException {
+        ExpansionCache cache = new ExpansionCache(1024 * 1024);
+        ExpansionCache.Key key = new ExpansionCache.Key(ExpansionType.LABEL, TYPES);
+        final ExpansionCache.Expansion expansion = new ExpansionCache.Expansion(
+                new char[][]{"sheep".toCharArray()}, new SKOSType[]{SKOSType.PREF});
+        Callable<ExpansionCache.Expansion> loader = new Callable<ExpansionCache.Expansion>() {
+            @Override
+            public ExpansionCache.Expansion call() {
+                return expansion;
+            }
+        };
+        assertSame(expansion, cache.get(key.set("the Lamb", 4, 8, true), loader));
+        // the stored key is a copy, so the lookup key can be set to another term
+        assertSame(expansion, cache.get(key.set("LAMB", 0, 4, true), loader));
+        key.set("ewe", 0, 3, true);
+        assertEquals(1, cache.size());
+        assertEquals(1L, (long) cache.getStats().get("hits"));
+        assertEquals(1L, (long) cache.getStats().get("misses"));
+    }
+
+    @Test
+    public void testInvalidate() {
+        ExpansionCache cache = new ExpansionCache(1024 * 1024);
+        ExpansionCache.Expansion expansion = new ExpansionCache.Expansion(
+                new char[][]{"sheep".toCharArray()}, new SKOSType[]{SKOSType.PREF});
+        ExpansionCache.Key label = new ExpansionCache.Key(ExpansionType.LABEL, TYPES);
+        ExpansionCache.Key alt = new ExpansionCache.Key(ExpansionType.LABEL, Collections.singletonList(SKOSType.ALT));
+        cache.put(label.set("lamb", 0, 4, false), expansion);
+        cache.put(alt.set("lamb", 0, 4, false), expansion);
+        cache.put(label.set("ewe", 0, 3, false), expansion);
+        // the expansions of a term are removed for all SKOS types, terms are also compared lowercased
+        assertEquals(2, cache.invalidate(Collections.singletonList("LAMB")));
+        assertEquals(1, cache.size());
+        assertEquals(0, cache.invalidate(Collections.singletonList("lamb")));
+        // a term cached again after its removal is invalidated again
+        cache.put(label.set("lamb", 0, 4, false), expansion);
+        assertEquals(2, cache.invalidate(Arrays.asList("lamb", "ewe")));
+        assertEquals(0, cache.size());
+    }
+
+    private static List<String> tokens(SKOSEngine engine, String text, ExpansionCache cache) throws IOException {
+        WhitespaceTokenizer tokenizer = new WhitespaceTokenizer();
+        tokenizer.setReader(new StringReader(text));
+        List<String> tokens = new ArrayList<>();
+        try (TokenStream stream = new SKOSLabelFilter(tokenizer, engine, 2, TYPES, cache)) {
+            CharTermAttribute termAtt = stream.addAttribute(CharTermAttribute.class);
+            stream.reset();
+            while (stream.incrementToken()) {
+                tokens.add(termAtt.toString());
+            }
+            stream.end();
+        }
+        return tokens;
+    }
+}
@@ -0,0 +1,211 @@
+package org.xbib.elasticsearch.index.analysis.skos.test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.common.settings.Settings;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.xbib.elasticsearch.index.analysis.skos.SKOSTypeAttribute.SKOSType;
+import org.xbib.elasticsearch.index.analysis.skos.engine.LoadStats;
+import org.xbib.elasticsearch.index.analysis.skos.engine.MemoryUsage;
+import org.xbib.elasticsearch.index.analysis.skos.engine.SKOSEngine;
+import org.xbib.elasticsearch.index.analysis.skos.engine.SKOSEngineFactory;
+import org.xbib.elasticsearch.index.analysis.skos.engine.fst.FSTSKOSEngine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the functionality of the in-heap FST SKOS Engine implementation
+ */
+public class FSTSKOSEngineTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testSimpleSKOSSamplesRDFXML() throws IOException {
+        InputStream inputStream = getClass().getResourceAsStream("/skos_samples/simple_test_skos.rdf");
+        SKOSEngine skosEngine = new FSTSKOSEngine(inputStream, "RDF/XML");
+        assertEquals(2, skosEngine.getAltTerms("quick").size());
+        assertEquals(1, skosEngine.getAltTerms("over").size());
+        assertEquals(0, skosEngine.getAltTerms("nonsense").size());
+    }
+
+    @Test
+    public void testSimpleSKOSSampleN3NoType() throws IOException {
+        InputStream inputStream = getClass().getResourceAsStream("/skos_samples/simple_test_skos.n3");
+        SKOSEngine skosEngine = new FSTSKOSEngine(inputStream, "N3");
+        assertEquals(2, skosEngine.getAltTerms("sheep").size());
+        assertEquals(2, skosEngine.getAltTerms("kity").size());
+        assertEquals(1, skosEngine.getConcepts("United Nations").size());
+    }
+
+    @Test
+    public void testLoadStats() throws IOException {
+        InputStream inputStream = getClass().getResourceAsStream("/skos_samples/simple_test_skos.n3");
+        LoadStats loadStats = new FSTSKOSEngine(inputStream, "N3").getLoadStats();
+        assertEquals(Arrays.asList("parse", "graph", "closure", "labels", "normalize"),
+                new ArrayList<>(loadStats.getTimings().keySet()));
+        assertEquals(8L, (long) loadStats.getCounts().get("concepts"));
+        // two concepts have labels but no skos:Concept type
+        assertEquals(2L, (long) loadStats.getCounts().get("conceptsFromLabels"));
+    }
+
+    @Test
+    public void testMemoryUsage() throws IOException {
+        InputStream inputStream = getClass().getResourceAsStream("/skos_samples/simple_test_skos.n3");
+        FSTSKOSEngine skosEngine = new FSTSKOSEngine(inputStream, "N3");
+        MemoryUsage memoryUsage = skosEngine.getMemoryUsage();
+        assertEquals(Arrays.asList("labels", "graph", "concept_labels", "analyzed_labels"),
+                new ArrayList<>(memoryUsage.getSizes().keySet()));
+        for (long bytes : memoryUsage.getSizes().values()) {
+            assertTrue(bytes > 0L);
+        }
+        assertEquals(memoryUsage.getTotal(), (long) skosEngine.getLoadStats().getCounts().get("retainedBytes"));
+    }
+
+    @Test
+    public void testAnalyzedLabels() throws IOException {
+        InputStream inputStream = getClass().getResourceAsStream("/skos_samples/simple_test_skos.n3");
+        SKOSEngine skosEngine = new FSTSKOSEngine(inputStream, "N3");
+        assertEquals("united nations", new String(skosEngine.getAnalyzedLabel("united nations")));
+        assertEquals("un", new String(skosEngine.getAnalyzedLabel("UN")));
+        // not a label of the engine, and completely eliminated by the analyzer
+        assertNull(skosEngine.getAnalyzedLabel("the"));
+    }
+
+    @Test
+    public void testLabelAnalyzer() throws IOException {
+        Path source = folder.getRoot().toPath().resolve("simple_test_skos.n3");
+        Files.copy(Paths.get("src/test/resources/skos_samples/simple_test_skos.n3"), source);
+        Path snapshotFile = folder.getRoot().toPath().resolve("simple.vocabulary");
+        Settings keyword = Settings.builder().put("labelAnalyzer", "keyword").build();
+        FSTSKOSEngine skosEngine = new FSTSKOSEngine(snapshotFile, source.toString(), null, keyword);
+        assertEquals("united nations", new String(skosEngine.getAnalyzedLabel("united nations")));
+        // the keyword analyzer does not eliminate stop words
+        assertEquals("the", new String(skosEngine.getAnalyzedLabel("the")));
+        assertTrue(new FSTSKOSEngine(snapshotFile, source.toString(), null, keyword).isSnapshot());
+        // a snapshot normalized by another analyzer is not used
+        FSTSKOSEngine standard = new FSTSKOSEngine(snapshotFile, source.toString(), null, Settings.EMPTY);
+        assertFalse(standard.isSnapshot());
+        assertNull(standard.getAnalyzedLabel("the"));
+        try {
+            new FSTSKOSEngine(snapshotFile, source.toString(), null,
+                    Settings.builder().put("labelAnalyzer", "german").build());
+            fail("an unknown label analyzer must be rejected");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testSKOSSpecSamplesWithLanguageRestriction() throws IOException {
+        InputStream inputStream = getClass().getResourceAsStream("/skos_samples/skos_spec_samples.n3");
+        SKOSEngine skosEngine = new FSTSKOSEngine(inputStream, "N3", Collections.singletonList("en"));
+        List<String> altTerms = skosEngine.getAltTerms("animals");
+        assertEquals(1, altTerms.size());
+        assertEquals("creatures", altTerms.get(0));
+    }
+
+    @Test
+    public void testUKATSamples() throws IOException {
+        SKOSEngine skosEngine = SKOSEngineFactory.getSKOSEngine(null, "fst-ukat",
+                "src/test/resources/skos_samples/ukat_examples.n3", null, Settings.builder().put("engineType", "fst").build());
+        String conceptURI = "http://www.ukat.org.uk/thesaurus/concept/859";
+        List<String> prefLabel = skosEngine.getPrefLabels(conceptURI);
+        assertEquals(1, prefLabel.size());
+        assertEquals("weapons", prefLabel.get(0));
+        List<String> altLabel = skosEngine.getAltLabels(conceptURI);
+        assertEquals(2, altLabel.size());
+        assertTrue(altLabel.contains("armaments"));
+        assertTrue(altLabel.contains("arms"));
+        List<String> broader = skosEngine.getBroaderConcepts(conceptURI);
+        assertEquals(1, broader.size());
+        assertEquals("http://www.ukat.org.uk/thesaurus/concept/5060", broader.get(0));
+        List<String> narrower = skosEngine.getNarrowerConcepts(conceptURI);
+        assertEquals(2, narrower.size());
+        assertTrue(narrower.contains("http://www.ukat.org.uk/thesaurus/concept/18874"));
+        assertTrue(narrower.contains("http://www.ukat.org.uk/thesaurus/concept/7630"));
+        List<String> broaderLabels = skosEngine.getBroaderLabels(conceptURI);
+        assertEquals(3, broaderLabels.size());
+        assertTrue(broaderLabels.contains("military equipment"));
+        assertTrue(broaderLabels.contains("defense equipment and supplies"));
+        assertTrue(broaderLabels.contains("ordnance"));
+        List<String> narrowerLabels = skosEngine.getNarrowerLabels(conceptURI);
+        assertEquals(2, narrowerLabels.size());
+        assertTrue(narrowerLabels.contains("ammunition"));
+        assertTrue(narrowerLabels.contains("artillery"));
+        assertEquals(Collections.singletonList(conceptURI), skosEngine.getConcepts("Arms"));
+        assertTrue(skosEngine.getPrefLabels("http://www.ukat.org.uk/thesaurus/concept/0").isEmpty());
+    }
+
+    @Test
+    public void testBatchLookups() throws IOException {
+        SKOSEngine skosEngine = SKOSEngineFactory.getSKOSEngine(null, "fst-ukat-batch",
+                "src/test/resources/skos_samples/ukat_examples.n3", null, Settings.builder().put("engineType", "fst").build());
+        String conceptURI = "http://www.ukat.org.uk/thesaurus/concept/859";
+        Map<String, List<String>> concepts = skosEngine.getConcepts(Arrays.asList("weapons", "nonsense", "arms"));
+        assertEquals(Arrays.asList("weapons", "arms"), new ArrayList<>(concepts.keySet()));
+        assertEquals(Collections.singletonList(conceptURI), concepts.get("arms"));
+        Map<String, Map<SKOSType, List<String>>> labels = skosEngine.getLabels(
+                Arrays.asList(conceptURI, "http://www.ukat.org.uk/thesaurus/concept/unknown"),
+                EnumSet.of(SKOSType.PREF, SKOSType.ALT, SKOSType.BROADER, SKOSType.NARROWER));
+        assertEquals(Collections.singleton(conceptURI), labels.keySet());
+        Map<SKOSType, List<String>> conceptLabels = labels.get(conceptURI);
+        assertEquals(skosEngine.getPrefLabels(conceptURI), conceptLabels.get(SKOSType.PREF));
+        assertEquals(skosEngine.getAltLabels(conceptURI), conceptLabels.get(SKOSType.ALT));
+        assertEquals(skosEngine.getBroaderLabels(conceptURI), conceptLabels.get(SKOSType.BROADER));
+        assertEquals(skosEngine.getNarrowerLabels(conceptURI), conceptLabels.get(SKOSType.NARROWER));
+    }
+
+    @Test
+    public void testSnapshot() throws IOException {
+        Path source = folder.getRoot().toPath().resolve("ukat_examples.n3");
+        Files.copy(Paths.get("src/test/resources/skos_samples/ukat_examples.n3"), source);
+        Path snapshotFile = folder.getRoot().toPath().resolve("ukat.vocabulary");
+        String conceptURI = "http://www.ukat.org.uk/thesaurus/concept/859";
+        FSTSKOSEngine compiled = new FSTSKOSEngine(snapshotFile, source.toString(), null, Settings.EMPTY);
+        assertFalse(compiled.isSnapshot());
+        assertTrue(Files.isRegularFile(snapshotFile));
+        // the snapshot is mapped without parsing the vocabulary again
+        FSTSKOSEngine mapped = new FSTSKOSEngine(snapshotFile, source.toString(), null, Settings.EMPTY);
+        assertTrue(mapped.isSnapshot());
+        assertFalse(mapped.getLoadStats().getTimings().containsKey("parse"));
+        assertEquals(compiled.getPrefLabels(conceptURI), mapped.getPrefLabels(conceptURI));
+        assertEquals(compiled.getAltLabels(conceptURI), mapped.getAltLabels(conceptURI));
+        assertEquals(compiled.getBroaderConcepts(conceptURI), mapped.getBroaderConcepts(conceptURI));
+        assertEquals(compiled.getNarrowerLabels(conceptURI), mapped.getNarrowerLabels(conceptURI));
+        assertEquals(compiled.getBroaderTransitiveConcepts(conceptURI), mapped.getBroaderTransitiveConcepts(conceptURI));
+        assertEquals(Collections.singletonList(conceptURI), mapped.getConcepts("Arms"));
+        assertTrue(mapped.getConcepts("nonsense").isEmpty());
+        assertEquals("military equipment", new String(mapped.getAnalyzedLabel("military equipment")));
+        assertTrue(mapped.getLabelMatcher().cursor().next("weapons"));
+        // the arrays and terms of the snapshot are not on the heap
+        assertTrue(mapped.getMemoryUsage().getTotal() < compiled.getMemoryUsage().getTotal());
+        // another configuration does not use the snapshot
+        FSTSKOSEngine limited = new FSTSKOSEngine(snapshotFile, source.toString(), null,
+                Settings.builder().put("maxTransitiveDepth", 1).build());
+        assertFalse(limited.isSnapshot());
+        // a changed source invalidates the snapshot
+        Files.write(source, "\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        assertFalse(new FSTSKOSEngine(snapshotFile, source.toString(), null, Settings.EMPTY).isSnapshot());
+        assertTrue(new FSTSKOSEngine(snapshotFile, source.toString(), null, Settings.EMPTY).isSnapshot());
+    }
+}
@@ -0,0 +1,110 @@
+package org.xbib.elasticsearch.index.analysis.skos.test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.junit.Test;
+import org.xbib.elasticsearch.index.analysis.skos.SKOSLabelFilter;
+import org.xbib.elasticsearch.index.analysis.skos.SKOSTypeAttribute.SKOSType;
+import org.xbib.elasticsearch.index.analysis.skos.engine.LabelBloomFilter;
+import org.xbib.elasticsearch.index.analysis.skos.engine.LabelMatcher;
+import org.xbib.elasticsearch.index.analysis.skos.engine.SKOSEngine;
+import org.xbib.elasticsearch.index.analysis.skos.engine.fst.FSTSKOSEngine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the Bloom filter and the FST walk for matching labels word by word
+ */
+public class LabelMatcherTest {
+
+    @Test
+    public void testLabelsAndPrefixes() {
+        LabelBloomFilter bloomFilter = LabelBloomFilter.create(
+                Arrays.asList("weapons", "United Nations", "world health organization"), 0.001);
+        assertTrue(bloomFilter.mightBeLabel("weapons"));
+        assertTrue(bloomFilter.mightBeLabel("united nations"));
+        assertTrue(bloomFilter.mightBeLabelPrefix("United"));
+        assertTrue(bloomFilter.mightBeLabelPrefix("world health"));
+        assertFalse(bloomFilter.mightBeLabelPrefix("weapons"));
+        assertFalse(bloomFilter.mightBeLabel("united"));
+        assertFalse(bloomFilter.mightBeLabel("nonsense"));
+        Map<String, Object> stats = bloomFilter.getStats();
+        assertEquals(6L, stats.get("entries"));
+        assertEquals(7L, stats.get("lookups"));
+        assertEquals(3L, stats.get("rejected"));
+        assertTrue(bloomFilter.getExpectedFpp() < 0.001);
+        assertTrue(bloomFilter.getSizeInBytes() > 0);
+    }
+
+    @Test
+    public void testBloomFilterCursor() throws IOException {
+        LabelBloomFilter bloomFilter = LabelBloomFilter.create(
+                Arrays.asList("weapons", "United Nations", "world health organization"), 0.001);
+        LabelMatcher.Cursor cursor = bloomFilter.cursor();
+        assertTrue(cursor.next("World"));
+        assertFalse(cursor.isLabel());
+        assertTrue(cursor.hasNext());
+        assertTrue(cursor.next("health"));
+        assertTrue(cursor.next("organization"));
+        assertTrue(cursor.isLabel());
+        assertFalse(cursor.hasNext());
+        cursor.reset();
+        assertFalse(cursor.next("nonsense"));
+    }
+
+    @Test
+    public void testFSTCursor() throws IOException {
+        InputStream inputStream = getClass().getResourceAsStream("/skos_samples/simple_test_skos.n3");
+        SKOSEngine engine = new FSTSKOSEngine(inputStream, "N3");
+        assertNull(engine.getLabelBloomFilter());
+        LabelMatcher.Cursor cursor = engine.getLabelMatcher().cursor();
+        assertTrue(cursor.next("United"));
+        assertFalse(cursor.isLabel());
+        assertTrue(cursor.hasNext());
+        assertTrue(cursor.next("Nations"));
+        assertTrue(cursor.isLabel());
+        assertFalse(cursor.hasNext());
+        assertFalse(cursor.next("nations"));
+        cursor.reset();
+        assertTrue(cursor.next("sheep"));
+        assertTrue(cursor.isLabel());
+        cursor.reset();
+        assertFalse(cursor.next("unit"));
+        assertFalse(cursor.isLabel());
+    }
+
+    @Test
+    public void testMultiWordLabel() throws IOException {
+        InputStream inputStream = getClass().getResourceAsStream("/skos_samples/simple_test_skos.n3");
+        SKOSEngine engine = new FSTSKOSEngine(inputStream, "N3");
+        WhitespaceTokenizer tokenizer = new WhitespaceTokenizer();
+        tokenizer.setReader(new StringReader("the United Nations and the dog"));
+        List<String> tokens = new ArrayList<>();
+        try (TokenStream stream = new SKOSLabelFilter(tokenizer, engine, 4,
+                Collections.singletonList(SKOSType.ALT), null)) {
+            CharTermAttribute termAtt = stream.addAttribute(CharTermAttribute.class);
+            stream.reset();
+            while (stream.incrementToken()) {
+                tokens.add(termAtt.toString());
+            }
+            stream.end();
+        }
+        assertEquals(9, tokens.size());
+        assertEquals(Arrays.asList("the", "United", "un", "Nations", "and", "the", "dog"),
+                tokens.subList(0, 7));
+        assertTrue(tokens.containsAll(Arrays.asList("canine", "pooch")));
+    }
+}
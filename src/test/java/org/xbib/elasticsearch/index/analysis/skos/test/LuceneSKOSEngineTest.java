@@ -0,0 +1,108 @@
+package org.xbib.elasticsearch.index.analysis.skos.test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+
+import org.elasticsearch.common.settings.Settings;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.xbib.elasticsearch.index.analysis.skos.SKOSTypeAttribute.SKOSType;
+import org.xbib.elasticsearch.index.analysis.skos.engine.SKOSEngine;
+import org.xbib.elasticsearch.index.analysis.skos.engine.SKOSEngineFactory;
+import org.xbib.elasticsearch.index.analysis.skos.engine.lucene.LuceneSKOSEngine;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the SKOS engine on a private Lucene index
+ */
+public class LuceneSKOSEngineTest {
+
+    private static final String UKAT = "src/test/resources/skos_samples/ukat_examples.n3";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testUKATSamples() throws IOException {
+        Path path = folder.getRoot().toPath().resolve("ukat");
+        try (LuceneSKOSEngine skosEngine = new LuceneSKOSEngine(path, UKAT, null, Settings.EMPTY)) {
+            assertTrue(skosEngine.getLoadStats().getTimings().containsKey("index"));
+            String conceptURI = "http://www.ukat.org.uk/thesaurus/concept/859";
+            assertEquals(Collections.singletonList("weapons"), skosEngine.getPrefLabels(conceptURI));
+            List<String> altLabel = skosEngine.getAltLabels(conceptURI);
+            assertEquals(2, altLabel.size());
+            assertTrue(altLabel.containsAll(Arrays.asList("armaments", "arms")));
+            assertEquals(Collections.singletonList("http://www.ukat.org.uk/thesaurus/concept/5060"),
+                    skosEngine.getBroaderConcepts(conceptURI));
+            List<String> broaderLabels = skosEngine.getBroaderLabels(conceptURI);
+            assertEquals(3, broaderLabels.size());
+            assertTrue(broaderLabels.containsAll(Arrays.asList("military equipment", "defense equipment and supplies",
+                    "ordnance")));
+            List<String> narrowerLabels = skosEngine.getNarrowerLabels(conceptURI);
+            assertEquals(2, narrowerLabels.size());
+            assertTrue(narrowerLabels.containsAll(Arrays.asList("ammunition", "artillery")));
+            assertEquals(Collections.singletonList(conceptURI), skosEngine.getConcepts("Arms"));
+            assertTrue(skosEngine.getConcepts("nonsense").isEmpty());
+            assertTrue(skosEngine.getLabelMatcher().cursor().next("weapons"));
+            Map<String, Map<SKOSType, List<String>>> labels = skosEngine.getLabels(
+                    Collections.singletonList(conceptURI), EnumSet.of(SKOSType.ALT, SKOSType.NARROWER));
+            assertEquals(altLabel, labels.get(conceptURI).get(SKOSType.ALT));
+            assertEquals(narrowerLabels, labels.get(conceptURI).get(SKOSType.NARROWER));
+        }
+        // the index is opened without parsing the vocabulary again
+        try (LuceneSKOSEngine skosEngine = new LuceneSKOSEngine(path, UKAT, null, Settings.EMPTY)) {
+            assertFalse(skosEngine.getLoadStats().getTimings().containsKey("parse"));
+            assertEquals(1, skosEngine.getConcepts("weapons").size());
+        }
+    }
+
+    @Test
+    public void testGenerations() throws IOException {
+        Path path = folder.getRoot().toPath().resolve("generations");
+        Path source = folder.getRoot().toPath().resolve("ukat_examples.n3");
+        Files.copy(Paths.get(UKAT), source);
+        LuceneSKOSEngine first = new LuceneSKOSEngine(path, source.toString(), null, Settings.EMPTY);
+        Files.write(source, "\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        // the new version is written next to the version in use
+        LuceneSKOSEngine second = new LuceneSKOSEngine(path, source.toString(), null, Settings.EMPTY);
+        assertNotEquals(first.getGenerationPath(), second.getGenerationPath());
+        assertEquals(1, first.getConcepts("weapons").size());
+        assertEquals(1, second.getConcepts("weapons").size());
+        // the old version is deleted when it is closed, the latest one is kept
+        first.close();
+        assertFalse(Files.exists(first.getGenerationPath()));
+        second.close();
+        assertTrue(Files.exists(second.getGenerationPath()));
+        try (LuceneSKOSEngine skosEngine = new LuceneSKOSEngine(path, source.toString(), null, Settings.EMPTY)) {
+            assertFalse(skosEngine.getLoadStats().getTimings().containsKey("parse"));
+        }
+    }
+
+    @Test
+    public void testFactory() throws IOException {
+        Settings settings = Settings.builder()
+                .put("engineType", "lucene")
+                .put("enginePath", folder.getRoot().getAbsolutePath())
+                .build();
+        SKOSEngine skosEngine = SKOSEngineFactory.getSKOSEngine(null, "lucene-spec",
+                "src/test/resources/skos_samples/skos_spec_samples.n3", Collections.singletonList("en"), settings);
+        assertTrue(skosEngine instanceof LuceneSKOSEngine);
+        assertEquals(folder.getRoot().toPath().resolve("lucene-spec-en"), ((LuceneSKOSEngine) skosEngine).getPath());
+        assertEquals(Collections.singletonList("creatures"), skosEngine.getAltTerms("animals"));
+        assertEquals(1, SKOSEngineFactory.release("lucene-spec"));
+    }
+}
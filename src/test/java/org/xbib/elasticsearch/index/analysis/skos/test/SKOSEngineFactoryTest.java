@@ -0,0 +1,292 @@
+package org.xbib.elasticsearch.index.analysis.skos.test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.Tokenizer;
+import org.apache.lucene.analysis.core.WhitespaceTokenizer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.node.MockNode;
+import org.elasticsearch.node.Node;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.xbib.elasticsearch.NodeTestUtils;
+import org.xbib.elasticsearch.index.analysis.skos.SKOSLabelFilter;
+import org.xbib.elasticsearch.index.analysis.skos.SKOSTypeAttribute.SKOSType;
+import org.xbib.elasticsearch.index.analysis.skos.engine.SKOSEngine;
+import org.xbib.elasticsearch.index.analysis.skos.engine.SKOSEngineFactory;
+import org.xbib.elasticsearch.index.analysis.skos.engine.SKOSEngineHandle;
+import org.xbib.elasticsearch.index.analysis.skos.engine.SKOSEngineInfo;
+import org.xbib.elasticsearch.index.analysis.skos.engine.SKOSPreloadService;
+import org.xbib.elasticsearch.plugin.analysis.SKOSAnalysisPlugin;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests the engine registry of the SKOS engine factory
+ */
+public class SKOSEngineFactoryTest {
+
+    private static final String SKOS_FILE = "src/test/resources/skos_samples/ukat_examples.n3";
+
+    private static final Settings FST = Settings.builder().put("engineType", "fst").build();
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testSingleFlight() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<SKOSEngine>> futures = new ArrayList<>();
+            for (int i = 0; i < 8; i++) {
+                futures.add(executor.submit(new Callable<SKOSEngine>() {
+                    @Override
+                    public SKOSEngine call() throws Exception {
+                        return SKOSEngineFactory.getSKOSEngine(null, "factory-1", SKOS_FILE, null, FST);
+                    }
+                }));
+            }
+            SKOSEngine first = futures.get(0).get();
+            for (Future<SKOSEngine> future : futures) {
+                assertSame(first, future.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(1, SKOSEngineFactory.release("factory-1"));
+    }
+
+    @Test
+    public void testKeyAndRelease() throws Exception {
+        SKOSEngine all = SKOSEngineFactory.getSKOSEngine(null, "factory-2", SKOS_FILE, null, FST);
+        SKOSEngine en = SKOSEngineFactory.getSKOSEngine(null, "factory-2", SKOS_FILE, Collections.singletonList("en"), FST);
+        assertNotSame(all, en);
+        assertSame(all, SKOSEngineFactory.getSKOSEngine(null, "factory-2", SKOS_FILE, Collections.<String>emptyList(), FST));
+        assertEquals(2, SKOSEngineFactory.release("factory-2"));
+        assertNotSame(all, SKOSEngineFactory.getSKOSEngine(null, "factory-2", SKOS_FILE, null, FST));
+        assertEquals(1, SKOSEngineFactory.release("factory-2"));
+    }
+
+    @Test
+    public void testReload() throws Exception {
+        Path source = folder.getRoot().toPath().resolve("simple_test_skos.n3");
+        Files.copy(Paths.get("src/test/resources/skos_samples/simple_test_skos.n3"), source);
+        SKOSEngineHandle handle = SKOSEngineFactory.getEngineHandle(null, "factory-3", source.toString(), null, FST);
+        SKOSEngine first = handle.getEngine();
+        assertTrue(first.getAltTerms("slow").isEmpty());
+        Tokenizer tokenizer = new WhitespaceTokenizer();
+        TokenStream stream = new SKOSLabelFilter(tokenizer, handle, 1, 0, Collections.singletonList(SKOSType.ALT));
+        tokenizer.setReader(new StringReader("slow"));
+        assertEquals(Collections.singletonList("slow"), terms(stream));
+        SKOSEngineHandle.Version acquired = handle.acquire();
+        Files.write(source, ("<http://www.cs.univie.ac.at/thesaurus/concept/100> a skos:Concept ;"
+                + " skos:altLabel \"leisurely\" ; skos:prefLabel \"slow\" .\n").getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.APPEND);
+        List<Future<SKOSEngineHandle.Version>> futures = SKOSEngineFactory.reload("factory-3");
+        assertEquals(1, futures.size());
+        SKOSEngineHandle.Version reloaded = futures.get(0).get();
+        assertEquals(1L, reloaded.getVersion());
+        assertSame(reloaded.getEngine(), handle.getEngine());
+        assertEquals(Collections.singletonList("leisurely"), handle.getEngine().getAltTerms("slow"));
+        // the registry returns the new version, the acquired old version is still usable
+        assertSame(handle.getEngine(), SKOSEngineFactory.getSKOSEngine(null, "factory-3", source.toString(), null, FST));
+        assertEquals(2, acquired.getEngine().getAltTerms("quick").size());
+        acquired.decRef();
+        // a reused stream picks up the new version on reset
+        tokenizer.setReader(new StringReader("slow"));
+        assertEquals(Arrays.asList("slow", "leisurely"), terms(stream));
+        assertEquals(1, SKOSEngineFactory.release("factory-3"));
+    }
+
+    @Test(timeout = 10000L)
+    public void testAcquireAfterRelease() throws Exception {
+        SKOSEngineHandle handle = SKOSEngineFactory.getEngineHandle(null, "factory-7", SKOS_FILE, null, FST);
+        handle.acquire().decRef();
+        assertEquals(1, SKOSEngineFactory.release("factory-7"));
+        try {
+            handle.acquire();
+            fail("a released handle must not be acquired");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test(timeout = 10000L)
+    public void testReleaseBoundHandle() throws Exception {
+        SKOSEngineHandle handle = SKOSEngineFactory.retainEngineHandle(null, "factory-8", SKOS_FILE, null, FST);
+        assertEquals(1, SKOSEngineFactory.release("factory-8"));
+        // the index bound to the handle keeps using the engine
+        handle.acquire().decRef();
+        assertNotSame(handle, SKOSEngineFactory.getEngineHandle(null, "factory-8", SKOS_FILE, null, FST));
+        assertEquals(1, SKOSEngineFactory.release("factory-8"));
+        // the last index closes the handle
+        handle.release();
+        try {
+            handle.acquire();
+            fail("a released handle must not be acquired");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testStorageConflict() throws Exception {
+        SKOSEngine engine = SKOSEngineFactory.getSKOSEngine(null, "factory-9", SKOS_FILE, null, FST);
+        // another file or other engine settings would share the storage of the registered engine
+        try {
+            SKOSEngineFactory.getSKOSEngine(null, "factory-9", "src/test/resources/skos_samples/simple_test_skos.n3",
+                    null, FST);
+            fail("a second SKOS file must not be registered for the same storage");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            SKOSEngineFactory.getSKOSEngine(null, "factory-9", SKOS_FILE, null,
+                    Settings.builder().put(FST).put("maxTransitiveDepth", 2).build());
+            fail("other engine settings must not be registered for the same storage");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertSame(engine, SKOSEngineFactory.getSKOSEngine(null, "factory-9", SKOS_FILE, null, FST));
+        assertEquals(1, SKOSEngineFactory.release("factory-9"));
+        SKOSEngineFactory.getSKOSEngine(null, "factory-9", "src/test/resources/skos_samples/simple_test_skos.n3",
+                null, FST);
+        assertEquals(1, SKOSEngineFactory.release("factory-9"));
+    }
+
+    @Test
+    public void testLoadInBackground() throws Exception {
+        final CountDownLatch latch = new CountDownLatch(2);
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        ActionListener<SKOSEngineHandle> listener = new ActionListener<SKOSEngineHandle>() {
+            @Override
+            public void onResponse(SKOSEngineHandle handle) {
+                latch.countDown();
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                failure.set(t);
+                latch.countDown();
+            }
+        };
+        SKOSEngineFactory.load(null, "factory-4", SKOS_FILE, null, FST, listener);
+        SKOSEngineFactory.load(null, "factory-5", "src/test/resources/skos_samples/missing.n3", null, FST, listener);
+        assertTrue(latch.await(1, TimeUnit.MINUTES));
+        List<SKOSEngineInfo> infos = SKOSEngineFactory.getEngineInfos("factory-4");
+        assertEquals(1, infos.size());
+        SKOSEngineInfo info = infos.get(0);
+        assertEquals(SKOSEngineInfo.State.LOADED, info.getState());
+        assertEquals(0L, info.getVersion());
+        assertTrue(info.getLoadStats().getCounts().get("triples") > 0L);
+        assertTrue(info.getLoadStats().getCounts().get("concepts") > 0L);
+        assertTrue(info.getMemoryUsage().getTotal() > 0L);
+        // the engine is registered for the filters
+        assertSame(SKOSEngineFactory.getSKOSEngine(null, "factory-4", SKOS_FILE, null, FST),
+                SKOSEngineFactory.getEngineHandle(null, "factory-4", SKOS_FILE, null, FST).getEngine());
+        // a failed load is reported until the engine is released
+        assertNotNull(failure.get());
+        infos = SKOSEngineFactory.getEngineInfos("factory-5");
+        assertEquals(1, infos.size());
+        assertEquals(SKOSEngineInfo.State.FAILED, infos.get(0).getState());
+        assertEquals(1, SKOSEngineFactory.release("factory-4"));
+        SKOSEngineFactory.release("factory-5");
+        assertTrue(SKOSEngineFactory.getEngineInfos("factory-5").isEmpty());
+    }
+
+    @Test
+    public void testPreloadAtNodeStart() throws Exception {
+        Settings nodeSettings = Settings.settingsBuilder()
+                .put("path.home", System.getProperty("path.home"))
+                .put("skos.preload.factory-6.skosFile", SKOS_FILE)
+                .put("skos.preload.factory-6.engineType", "fst")
+                .build();
+        Node node = new MockNode(nodeSettings, SKOSAnalysisPlugin.class);
+        try {
+            node.start();
+            SKOSPreloadService preloadService = node.injector().getInstance(SKOSPreloadService.class);
+            assertEquals(Collections.singletonList("factory-6"), preloadService.getPreloads());
+            assertTrue(preloadService.awaitReady(30, TimeUnit.SECONDS));
+            assertEquals(0, preloadService.getFailed());
+            List<SKOSEngineInfo> infos = SKOSEngineFactory.getEngineInfos("factory-6");
+            assertEquals(1, infos.size());
+            assertEquals(SKOSEngineInfo.State.LOADED, infos.get(0).getState());
+            // a filter with the same settings binds to the preloaded engine
+            assertNotNull(infos.get(0).getMemoryUsage());
+            Settings settings = SKOSEngineFactory.withDefaultEnginePath(FST,
+                    node.injector().getInstance(NodeEnvironment.class));
+            assertSame(SKOSEngineFactory.getEngineHandle(null, "factory-6", SKOS_FILE, null, settings).getEngine(),
+                    SKOSEngineFactory.getSKOSEngine(null, "factory-6", SKOS_FILE, null, settings));
+            assertEquals(1, SKOSEngineFactory.getEngineInfos("factory-6").size());
+        } finally {
+            NodeTestUtils.releaseNode(node);
+            SKOSEngineFactory.release("factory-6");
+        }
+    }
+
+    @Test
+    public void testDefaultSnapshotFile() throws Exception {
+        Node node = NodeTestUtils.createNode();
+        try {
+            Settings settings = Settings.builder()
+                    .put("index.analysis.filter.skosfilter.type", "skos")
+                    .put("index.analysis.filter.skosfilter.indexName", "factory-10")
+                    .put("index.analysis.filter.skosfilter.skosFile", SKOS_FILE)
+                    .put("index.analysis.filter.skosfilter.expansionType", "LABEL")
+                    .put("index.analysis.filter.skosfilter.engineType", "fst")
+                    .put("index.analysis.analyzer.skos.type", "custom")
+                    .put("index.analysis.analyzer.skos.tokenizer", "keyword")
+                    .put("index.analysis.analyzer.skos.filter", "skosfilter")
+                    .build();
+            node.client().admin().indices().prepareCreate("factory-10").setSettings(settings).get();
+            node.client().admin().cluster().prepareHealth("factory-10").setWaitForYellowStatus().get();
+            node.client().admin().indices().prepareAnalyze("factory-10", "weapons").setAnalyzer("skos").get();
+            // the FST engine of a filter writes its snapshot under the node data path by default
+            Path snapshotFile = node.injector().getInstance(NodeEnvironment.class).nodeDataPaths()[0]
+                    .resolve("skos").resolve("factory-10.vocabulary");
+            assertTrue(Files.exists(snapshotFile));
+        } finally {
+            NodeTestUtils.releaseNode(node);
+            SKOSEngineFactory.release("factory-10");
+        }
+    }
+
+    private static List<String> terms(TokenStream stream) throws IOException {
+        CharTermAttribute termAtt = stream.addAttribute(CharTermAttribute.class);
+        List<String> terms = new ArrayList<>();
+        stream.reset();
+        while (stream.incrementToken()) {
+            terms.add(termAtt.toString());
+        }
+        stream.end();
+        stream.close();
+        return terms;
+    }
+}
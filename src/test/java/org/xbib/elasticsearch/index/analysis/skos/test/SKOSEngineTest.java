@@ -17,19 +17,38 @@ package org.xbib.elasticsearch.index.analysis.skos.test;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
+import org.elasticsearch.common.settings.Settings;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.xbib.elasticsearch.NodeTestUtils;
+import org.xbib.elasticsearch.index.analysis.skos.SKOSTypeAttribute.SKOSType;
+import org.xbib.elasticsearch.index.analysis.skos.engine.ConceptDelta;
 import org.xbib.elasticsearch.index.analysis.skos.engine.SKOSEngine;
 import org.xbib.elasticsearch.index.analysis.skos.engine.SKOSEngineFactory;
+import org.xbib.elasticsearch.index.analysis.skos.engine.jena.SKOSEngineImpl;
 
 /**
  * Tests the functionality of the Elasticsearch-backed SKOS Engine implementation
  */
 public class SKOSEngineTest extends NodeTestUtils {
 
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
     @Test
     public void testSimpleSKOSSamplesRDFXML() throws IOException {
         InputStream inputStream = getClass().getResourceAsStream("/skos_samples/simple_test_skos.rdf");
@@ -76,6 +95,8 @@ public class SKOSEngineTest extends NodeTestUtils {
         InputStream skosFile = getClass().getResourceAsStream("/skos_samples/ukat_examples.n3");
         String conceptURI = "http://www.ukat.org.uk/thesaurus/concept/859";
         SKOSEngine skosEngine = SKOSEngineFactory.getSKOSEngine(client("1"), "skos-6", skosFile, "N3");
+        // concepts are indexed by their URI
+        assertTrue(client("1").prepareGet("skos-6", "skos", conceptURI).get().isExists());
         // testing pref-labels
         List<String> prefLabel = skosEngine.getPrefLabels(conceptURI);
         assertEquals(1, prefLabel.size());
@@ -106,4 +127,148 @@ public class SKOSEngineTest extends NodeTestUtils {
         assertTrue(narrowerLabels.contains("ammunition"));
         assertTrue(narrowerLabels.contains("artillery"));
     }
+
+    @Test
+    public void testBatchLookups() throws IOException {
+        SKOSEngine skosEngine = SKOSEngineFactory.getSKOSEngine(client("1"), "skos-7",
+                getClass().getResourceAsStream("/skos_samples/ukat_examples.n3"), "N3");
+        String conceptURI = "http://www.ukat.org.uk/thesaurus/concept/859";
+        Map<String, List<String>> concepts = skosEngine.getConcepts(Arrays.asList("weapons", "nonsense", "arms"));
+        assertEquals(Arrays.asList("weapons", "arms"), new ArrayList<>(concepts.keySet()));
+        assertEquals(Collections.singletonList(conceptURI), concepts.get("arms"));
+        Map<String, Map<SKOSType, List<String>>> labels = skosEngine.getLabels(
+                Arrays.asList(conceptURI, "http://www.ukat.org.uk/thesaurus/concept/unknown"),
+                EnumSet.of(SKOSType.PREF, SKOSType.ALT, SKOSType.BROADER, SKOSType.NARROWER));
+        assertEquals(Collections.singleton(conceptURI), labels.keySet());
+        Map<SKOSType, List<String>> conceptLabels = labels.get(conceptURI);
+        assertEquals(skosEngine.getPrefLabels(conceptURI), conceptLabels.get(SKOSType.PREF));
+        assertEquals(skosEngine.getAltLabels(conceptURI), conceptLabels.get(SKOSType.ALT));
+        assertEquals(skosEngine.getBroaderLabels(conceptURI), conceptLabels.get(SKOSType.BROADER));
+        assertEquals(skosEngine.getNarrowerLabels(conceptURI), conceptLabels.get(SKOSType.NARROWER));
+    }
+
+    @Test
+    public void testStreamConflict() throws IOException {
+        InputStream inputStream = getClass().getResourceAsStream("/skos_samples/simple_test_skos.n3");
+        SKOSEngine skosEngine = SKOSEngineFactory.getSKOSEngine(client("1"), "skos-11", inputStream, "N3");
+        assertSame(skosEngine, SKOSEngineFactory.getSKOSEngine(client("1"), "skos-11", inputStream, "N3"));
+        try {
+            SKOSEngineFactory.getSKOSEngine(client("1"), "skos-11",
+                    getClass().getResourceAsStream("/skos_samples/ukat_examples.n3"), "N3");
+            fail("a second stream must not be registered for the same index");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(1, SKOSEngineFactory.release("skos-11"));
+    }
+
+    @Test
+    public void testUpToDateIndex() throws IOException {
+        Path skosFile = folder.getRoot().toPath().resolve("ukat_examples.n3");
+        Files.copy(Paths.get("src/test/resources/skos_samples/ukat_examples.n3"), skosFile);
+        SKOSEngineImpl skosEngine = new SKOSEngineImpl(client("1"), "skos-8", skosFile.toString(), null);
+        assertTrue(skosEngine.getLoadStats().getTimings().containsKey("parse"));
+        assertEquals("complete", client("1").prepareGet("skos-8", "meta", "skos").get().getSource().get("state"));
+        // the index is up to date, the file is not parsed again
+        skosEngine = new SKOSEngineImpl(client("1"), "skos-8", skosFile.toString(), null);
+        assertFalse(skosEngine.getLoadStats().getTimings().containsKey("parse"));
+        assertEquals(1, skosEngine.getConcepts("weapons").size());
+        // a changed file makes the index stale
+        Files.write(skosFile, "\n".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        skosEngine = new SKOSEngineImpl(client("1"), "skos-8", skosFile.toString(), null);
+        assertTrue(skosEngine.getLoadStats().getTimings().containsKey("parse"));
+        assertEquals(1, skosEngine.getConcepts("weapons").size());
+    }
+
+    @Test
+    public void testBuildingIndex() throws IOException {
+        Path skosFile = folder.getRoot().toPath().resolve("ukat_examples.n3");
+        Files.copy(Paths.get("src/test/resources/skos_samples/ukat_examples.n3"), skosFile);
+        new SKOSEngineImpl(client("1"), "skos-10", skosFile.toString(), null);
+        Map<String, Object> metadata = new HashMap<>(client("1").prepareGet("skos-10", "meta", "skos").get().getSource());
+        // an index in state building is being loaded by another node
+        metadata.put("state", "building");
+        metadata.put("timestamp", System.currentTimeMillis());
+        client("1").prepareIndex("skos-10", "meta", "skos").setSource(metadata).get();
+        SKOSEngineImpl skosEngine = new SKOSEngineImpl(client("1"), "skos-10", skosFile.toString(), null);
+        assertFalse(skosEngine.getLoadStats().getTimings().containsKey("parse"));
+        assertEquals("building", client("1").prepareGet("skos-10", "meta", "skos").get().getSource().get("state"));
+        // a load in state building for longer than the build timeout is abandoned
+        skosEngine = new SKOSEngineImpl(client("1"), "skos-10", skosFile.toString(), null,
+                Settings.builder().put("buildTimeout", "1ms").build());
+        assertTrue(skosEngine.getLoadStats().getTimings().containsKey("parse"));
+        assertEquals("complete", client("1").prepareGet("skos-10", "meta", "skos").get().getSource().get("state"));
+        assertEquals(1, skosEngine.getConcepts("weapons").size());
+    }
+
+    @Test
+    public void testPipelinedBulkIndexing() throws IOException {
+        Settings settings = Settings.builder()
+                .put("indexThreads", 3)
+                .put("bulkActions", 2)
+                .put("bulkConcurrency", 2)
+                .build();
+        SKOSEngineImpl skosEngine = new SKOSEngineImpl(client("1"), "skos-12",
+                "src/test/resources/skos_samples/ukat_examples.n3", null, settings);
+        // several small bulk requests from several threads, every concept is indexed once
+        long concepts = skosEngine.getLoadStats().getCounts().get("concepts");
+        assertTrue(concepts > 2);
+        assertEquals(concepts, client("1").prepareSearch("skos-12").setTypes("skos").setSize(0).get()
+                .getHits().getTotalHits());
+        assertEquals(1, skosEngine.getConcepts("weapons").size());
+    }
+
+    @Test
+    public void testLocalReplicas() throws IOException {
+        SKOSEngineImpl skosEngine = new SKOSEngineImpl(client("1"), "skos-13",
+                "src/test/resources/skos_samples/ukat_examples.n3", null,
+                Settings.builder().put("localReplicas", true).build());
+        Settings indexSettings = client("1").admin().indices().prepareGetSettings("skos-13").get()
+                .getIndexToSettings().get("skos-13");
+        assertEquals("1", indexSettings.get("index.number_of_shards"));
+        assertEquals("0-all", indexSettings.get("index.auto_expand_replicas"));
+        // lookups are answered by the copy on the local node
+        String conceptURI = "http://www.ukat.org.uk/thesaurus/concept/859";
+        assertEquals(Collections.singletonList(conceptURI), skosEngine.getConcepts("weapons"));
+        assertTrue(skosEngine.getAltLabels(conceptURI).contains("arms"));
+        Map<String, List<String>> concepts = skosEngine.getConcepts(Arrays.asList("weapons", "arms"));
+        assertEquals(Arrays.asList("weapons", "arms"), new ArrayList<>(concepts.keySet()));
+    }
+
+    @Test
+    public void testDeltaUpdate() throws IOException {
+        String ukat = "http://www.ukat.org.uk/thesaurus/concept/";
+        Path skosFile = folder.getRoot().toPath().resolve("ukat_examples.n3");
+        Files.copy(Paths.get("src/test/resources/skos_samples/ukat_examples.n3"), skosFile);
+        new SKOSEngineImpl(client("1"), "skos-9", skosFile.toString(), null);
+        // a changed file updates the changed concepts in place
+        Files.write(skosFile, ("\nukat:7630 skos:altLabel \"Cannons\" .\n"
+                + "ukat:900 rdf:type skos:Concept ; skos:prefLabel \"Spears\" ; skos:broader ukat:859 .\n")
+                .getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        SKOSEngineImpl skosEngine = new SKOSEngineImpl(client("1"), "skos-9", skosFile.toString(), null);
+        assertTrue(skosEngine.getLoadStats().getTimings().containsKey("delta"));
+        assertFalse(skosEngine.getLoadStats().getTimings().containsKey("index"));
+        assertEquals(0L, (long) skosEngine.getLoadStats().getCounts().get("deletedConcepts"));
+        assertTrue(skosEngine.getAltLabels(ukat + "7630").contains("cannons"));
+        assertTrue(skosEngine.getBroaderTransitiveConcepts(ukat + "900").contains(ukat + "5060"));
+        assertTrue(skosEngine.getNarrowerTransitiveConcepts(ukat + "5060").contains(ukat + "900"));
+        // a change set is applied without parsing the file
+        Path changeSet = folder.getRoot().toPath().resolve("changes.rdfp");
+        String skos = "http://www.w3.org/2004/02/skos/core#";
+        Files.write(changeSet, ("D <" + ukat + "7630> <" + skos + "altLabel> \"Cannons\" .\n"
+                + "A <" + ukat + "18874> <" + skos + "broader> <" + ukat + "900> .\n")
+                .getBytes(StandardCharsets.UTF_8));
+        ConceptDelta delta = skosEngine.applyChanges(changeSet);
+        assertTrue(delta.getRelabelled().contains(ukat + "7630"));
+        // the expansion of weapons contains the labels of its narrower concept artillery
+        assertTrue(delta.getAffectedTerms().contains("weapons"));
+        // and so does the expansion of its URI by a URI filter
+        assertTrue(delta.getAffectedTerms().contains(ukat + "859"));
+        assertTrue(delta.getAffectedTerms().contains("cannons"));
+        assertFalse(skosEngine.getAltLabels(ukat + "7630").contains("cannons"));
+        assertTrue(skosEngine.getBroaderTransitiveConcepts(ukat + "18874").contains(ukat + "900"));
+        assertTrue(skosEngine.getNarrowerTransitiveConcepts(ukat + "900").contains(ukat + "18874"));
+        // an applied change set is not applied again
+        assertTrue(skosEngine.applyChanges(changeSet).isEmpty());
+    }
 }
@@ -0,0 +1,103 @@
+package org.xbib.elasticsearch.index.analysis.skos.test;
+
+import java.io.IOException;
+
+import org.junit.Test;
+import org.xbib.elasticsearch.index.analysis.skos.SKOSTypeAttribute.SKOSType;
+import org.xbib.elasticsearch.index.analysis.skos.engine.graph.Adjacency;
+import org.xbib.elasticsearch.index.analysis.skos.engine.graph.ConceptGraph;
+import org.xbib.elasticsearch.index.analysis.skos.engine.graph.TransitiveClosure;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the computed transitive closure of the concept hierarchy
+ */
+public class TransitiveClosureTest {
+
+    @Test
+    public void testChain() throws IOException {
+        // d broader c broader b broader a, the last one stated as narrower
+        ConceptGraph.Builder builder = new ConceptGraph.Builder();
+        int a = builder.ordinal("a");
+        int b = builder.ordinal("b");
+        int c = builder.ordinal("c");
+        int d = builder.ordinal("d");
+        builder.addEdge(SKOSType.NARROWER, a, b);
+        builder.addEdge(SKOSType.BROADER, c, b);
+        builder.addEdge(SKOSType.BROADER, d, c);
+        ConceptGraph graph = TransitiveClosure.apply(builder.build(), 0);
+        Adjacency broader = graph.relation(SKOSType.BROADERTRANSITIVE);
+        assertEquals(3, broader.degree(d));
+        assertTrue(contains(broader, d, a));
+        assertTrue(contains(broader, d, b));
+        assertTrue(contains(broader, d, c));
+        assertEquals(0, broader.degree(a));
+        Adjacency narrower = graph.relation(SKOSType.NARROWERTRANSITIVE);
+        assertEquals(3, narrower.degree(a));
+        assertTrue(contains(narrower, a, d));
+        assertEquals(0, narrower.degree(d));
+        // direct relations are kept
+        assertEquals(1, graph.relation(SKOSType.BROADER).degree(d));
+        assertEquals(1, graph.relation(SKOSType.NARROWER).degree(a));
+    }
+
+    @Test
+    public void testMaxDepth() throws IOException {
+        ConceptGraph.Builder builder = new ConceptGraph.Builder();
+        int a = builder.ordinal("a");
+        int b = builder.ordinal("b");
+        int c = builder.ordinal("c");
+        int d = builder.ordinal("d");
+        builder.addEdge(SKOSType.BROADER, b, a);
+        builder.addEdge(SKOSType.BROADER, c, b);
+        builder.addEdge(SKOSType.BROADER, d, c);
+        ConceptGraph graph = TransitiveClosure.apply(builder.build(), 2);
+        Adjacency broader = graph.relation(SKOSType.BROADERTRANSITIVE);
+        assertEquals(2, broader.degree(d));
+        assertTrue(contains(broader, d, c));
+        assertTrue(contains(broader, d, b));
+        assertFalse(contains(broader, d, a));
+        assertEquals(2, graph.relation(SKOSType.NARROWERTRANSITIVE).degree(a));
+    }
+
+    @Test
+    public void testCycle() throws IOException {
+        // a, b and c form a cycle below top, x is below the cycle
+        ConceptGraph.Builder builder = new ConceptGraph.Builder();
+        int top = builder.ordinal("top");
+        int a = builder.ordinal("a");
+        int b = builder.ordinal("b");
+        int c = builder.ordinal("c");
+        int x = builder.ordinal("x");
+        builder.addEdge(SKOSType.BROADER, a, b);
+        builder.addEdge(SKOSType.BROADER, b, c);
+        builder.addEdge(SKOSType.BROADER, c, a);
+        builder.addEdge(SKOSType.BROADER, c, top);
+        builder.addEdge(SKOSType.BROADER, x, a);
+        builder.addEdge(SKOSType.BROADER, top, top);
+        for (int maxDepth : new int[]{0, 10}) {
+            ConceptGraph graph = TransitiveClosure.apply(builder.build(), maxDepth);
+            Adjacency broader = graph.relation(SKOSType.BROADERTRANSITIVE);
+            assertEquals(3, broader.degree(a));
+            assertTrue(contains(broader, a, b));
+            assertTrue(contains(broader, a, c));
+            assertTrue(contains(broader, a, top));
+            assertFalse(contains(broader, a, a));
+            assertEquals(4, broader.degree(x));
+            assertEquals(0, broader.degree(top));
+            assertEquals(4, graph.relation(SKOSType.NARROWERTRANSITIVE).degree(top));
+        }
+    }
+
+    private static boolean contains(Adjacency adjacency, int node, int target) {
+        for (int i = adjacency.start(node); i < adjacency.end(node); i++) {
+            if (adjacency.target(i) == target) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -17,11 +17,19 @@ package org.xbib.elasticsearch.index.analysis.skos.test.filter;
 
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
+import org.xbib.elasticsearch.index.analysis.skos.engine.LabelBloomFilter;
+import org.xbib.elasticsearch.index.analysis.skos.engine.LabelMatcher;
+import org.xbib.elasticsearch.index.analysis.skos.engine.LabelNormalizer;
+import org.xbib.elasticsearch.index.analysis.skos.engine.MemoryUsage;
 import org.xbib.elasticsearch.index.analysis.skos.engine.SKOSEngine;
 import org.xbib.elasticsearch.index.analysis.skos.SKOSTypeAttribute.SKOSType;
 
@@ -97,6 +105,26 @@ public class SKOSEngineMock implements SKOSEngine {
         return altTerms;
     }
 
+    @Override
+    public char[] getAnalyzedLabel(String label) throws IOException {
+        return LabelNormalizer.DEFAULT.normalize(label);
+    }
+
+    @Override
+    public LabelBloomFilter getLabelBloomFilter() {
+        return null;
+    }
+
+    @Override
+    public LabelMatcher getLabelMatcher() {
+        return null;
+    }
+
+    @Override
+    public MemoryUsage getMemoryUsage() {
+        return new MemoryUsage();
+    }
+
     @Override
     public List<String> getHiddenLabels(String conceptURI) throws IOException {
         return readConceptFieldValues(conceptURI, SKOSType.HIDDEN);
@@ -146,6 +174,37 @@ public class SKOSEngineMock implements SKOSEngine {
         return conceptURIs;
     }
 
+    @Override
+    public Map<String, List<String>> getConcepts(Collection<String> labels) throws IOException {
+        Map<String, List<String>> result = new LinkedHashMap<>();
+        for (String label : labels) {
+            List<String> conceptURIs = getConcepts(label);
+            if (!conceptURIs.isEmpty()) {
+                result.put(label, conceptURIs);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public Map<String, Map<SKOSType, List<String>>> getLabels(Collection<String> conceptURIs, Set<SKOSType> types)
+            throws IOException {
+        Map<String, Map<SKOSType, List<String>>> result = new LinkedHashMap<>();
+        for (String conceptURI : conceptURIs) {
+            if (!conceptMap.containsKey(conceptURI)) {
+                continue;
+            }
+            Map<SKOSType, List<String>> labels = new EnumMap<>(SKOSType.class);
+            for (SKOSType type : types) {
+                List<String> values = type == SKOSType.PREF || type == SKOSType.ALT || type == SKOSType.HIDDEN ?
+                        readConceptFieldValues(conceptURI, type) : getLabels(conceptURI, type);
+                labels.put(type, values != null ? values : Collections.<String>emptyList());
+            }
+            result.put(conceptURI, labels);
+        }
+        return result;
+    }
+
     private List<String> getLabels(String conceptURI, SKOSType type)
             throws IOException {
         List<String> concepts = readConceptFieldValues(conceptURI, type);
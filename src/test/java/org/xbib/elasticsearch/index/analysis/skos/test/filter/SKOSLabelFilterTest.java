@@ -16,9 +16,15 @@
 package org.xbib.elasticsearch.index.analysis.skos.test.filter;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
+import org.apache.lucene.analysis.TokenStream;
 import org.apache.lucene.analysis.core.SimpleAnalyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.TextField;
@@ -38,6 +44,8 @@ import org.junit.Test;
 import org.xbib.elasticsearch.index.analysis.skos.SKOSAnalyzer;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 /**
  * Testing the SKOS Label Filter
@@ -100,4 +108,34 @@ public class SKOSLabelFilterTest extends AbstractFilterTest {
         Query query = parser.parse("united nations", "content");
         assertEquals(1, searcher.search(query, 1).totalHits);
     }
+
+    @Test
+    public void testUnmatchedTokensAtEnd() throws IOException {
+        assertEquals(Arrays.asList("dog", "canine", "pooch"),
+                terms(new SKOSAnalyzer(skosEngine, SKOSAnalyzer.ExpansionType.LABEL), "dog"));
+        for (int bufferSize : new int[] { 2, 4 }) {
+            SKOSAnalyzer analyzer = new SKOSAnalyzer(SKOSAnalyzer.STOP_WORDS_SET, skosEngine,
+                    SKOSAnalyzer.ExpansionType.LABEL, bufferSize, Arrays.asList(SKOSAnalyzer.DEFAULT_SKOS_TYPES));
+            List<String> terms = terms(analyzer, "a jumps b c dog");
+            assertFalse(terms.contains(""));
+            assertTrue(terms.containsAll(Arrays.asList("jumps", "hops", "leaps", "b", "c", "dog", "canine", "pooch")));
+            terms = terms(analyzer, "jumps b c");
+            assertFalse(terms.contains(""));
+            assertTrue(terms.containsAll(Arrays.asList("jumps", "b", "c")));
+        }
+    }
+
+    private static List<String> terms(SKOSAnalyzer analyzer, String text) throws IOException {
+        List<String> terms = new ArrayList<>();
+        try (TokenStream tokenStream = analyzer.tokenStream("content", text)) {
+            CharTermAttribute termAtt = tokenStream.addAttribute(CharTermAttribute.class);
+            tokenStream.reset();
+            while (tokenStream.incrementToken()) {
+                terms.add(termAtt.toString());
+            }
+            tokenStream.end();
+        }
+        Collections.sort(terms.subList(1, terms.size()));
+        return terms;
+    }
 }